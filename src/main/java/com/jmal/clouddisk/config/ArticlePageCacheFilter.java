@@ -0,0 +1,187 @@
+package com.jmal.clouddisk.config;
+
+import cn.hutool.core.text.CharSequenceUtil;
+import com.jmal.clouddisk.annotation.LogOperatingFun;
+import com.jmal.clouddisk.model.LogOperation;
+import com.jmal.clouddisk.service.impl.ArticlePageCache;
+import com.jmal.clouddisk.service.impl.LogService;
+import com.jmal.clouddisk.service.impl.UserLoginHolder;
+import io.swagger.v3.oas.annotations.tags.Tag;
+import jakarta.servlet.FilterChain;
+import jakarta.servlet.ServletException;
+import jakarta.servlet.http.Cookie;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.jetbrains.annotations.NotNull;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.stereotype.Component;
+import org.springframework.web.filter.OncePerRequestFilter;
+import org.springframework.web.method.HandlerMethod;
+import org.springframework.web.servlet.HandlerMapping;
+import org.springframework.web.util.ContentCachingResponseWrapper;
+
+import java.io.IOException;
+import java.util.Set;
+
+/**
+ * 公开文章页面缓存过滤器
+ * <p>
+ * 命中缓存时直接返回渲染好的页面, 支持 ETag/304, 不访问数据库<br>
+ * 命中时照常记录访问日志, 保证访问量统计不受影响
+ * </p>
+ *
+ * @author jmal
+ */
+@Component
+@Lazy
+@Slf4j
+@RequiredArgsConstructor
+public class ArticlePageCacheFilter extends OncePerRequestFilter {
+
+    private static final String ARTICLES = "/articles";
+
+    private static final String X_PJAX = "X-PJAX";
+
+    private static final String X_PAGE_CACHE = "X-Page-Cache";
+
+    /**
+     * 不缓存的页面: 站点地图由单独的接口处理, 搜索关键字不可枚举
+     */
+    private static final Set<String> EXCLUDE_PREFIX = Set.of("/articles/sitemap", "/articles/search");
+
+    private final ArticlePageCache articlePageCache;
+
+    private final LogService logService;
+
+    private final UserLoginHolder userLoginHolder;
+
+    @Override
+    protected boolean shouldNotFilter(@NotNull HttpServletRequest request) {
+        if (!HttpMethod.GET.matches(request.getMethod()) || !articlePageCache.isEnabled()) {
+            return true;
+        }
+        String uri = request.getRequestURI();
+        if (!uri.equals(ARTICLES) && !uri.startsWith(ARTICLES + "/")) {
+            return true;
+        }
+        for (String prefix : EXCLUDE_PREFIX) {
+            if (uri.startsWith(prefix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    protected void doFilterInternal(@NotNull HttpServletRequest request, @NotNull HttpServletResponse response, @NotNull FilterChain filterChain) throws ServletException, IOException {
+        String key = getKey(request);
+        ArticlePageCache.CachedPage page = articlePageCache.get(key);
+        if (page != null) {
+            response.setHeader(X_PAGE_CACHE, "HIT");
+            writePage(request, response, page.contentType(), page.etag(), page.body());
+            addLog(request, response, page);
+            return;
+        }
+        long generation = articlePageCache.generation();
+        ContentCachingResponseWrapper responseWrapper = new ContentCachingResponseWrapper(response);
+        filterChain.doFilter(request, responseWrapper);
+        byte[] body = responseWrapper.getContentAsByteArray();
+        String contentType = responseWrapper.getContentType();
+        if (responseWrapper.getStatus() != HttpServletResponse.SC_OK || contentType == null || !contentType.startsWith("text/html") || body.length == 0) {
+            responseWrapper.copyBodyToResponse();
+            return;
+        }
+        String etag = ArticlePageCache.etag(body);
+        Set<String> tags = ArticlePageCache.getRequestTags(request);
+        if (!tags.isEmpty()) {
+            String[] operation = getOperation(request);
+            articlePageCache.put(key, new ArticlePageCache.CachedPage(body, contentType, etag, Set.copyOf(tags), operation[0], operation[1]), generation);
+        }
+        response.setHeader(X_PAGE_CACHE, "MISS");
+        responseWrapper.resetBuffer();
+        writePage(request, response, contentType, etag, body);
+    }
+
+    private static void writePage(HttpServletRequest request, HttpServletResponse response, String contentType, String etag, byte[] body) throws IOException {
+        response.setHeader(HttpHeaders.ETAG, etag);
+        // 每次都向服务端确认, 页面更新后能立即看到
+        response.setHeader(HttpHeaders.CACHE_CONTROL, "no-cache");
+        response.setHeader(HttpHeaders.VARY, X_PJAX + ", Cookie");
+        String ifNoneMatch = request.getHeader(HttpHeaders.IF_NONE_MATCH);
+        if (ifNoneMatch != null && (ifNoneMatch.contains(etag) || "*".equals(ifNoneMatch.trim()))) {
+            response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return;
+        }
+        response.setContentType(contentType);
+        response.setContentLength(body.length);
+        response.getOutputStream().write(body);
+    }
+
+    /**
+     * 页面key, 包含所有影响渲染结果的请求信息
+     */
+    private static String getKey(HttpServletRequest request) {
+        StringBuilder key = new StringBuilder();
+        key.append("true".equals(request.getHeader(X_PJAX)) ? 'P' : 'F');
+        boolean dark = false;
+        boolean editable = false;
+        Cookie[] cookies = request.getCookies();
+        if (cookies != null) {
+            for (Cookie cookie : cookies) {
+                if ("jmal-theme".equals(cookie.getName()) && "dark".equals(cookie.getValue())) {
+                    dark = true;
+                }
+                if ("consumerId".equals(cookie.getName())) {
+                    editable = true;
+                }
+            }
+        }
+        key.append(dark ? 'D' : 'L').append(editable ? 'E' : 'R').append(request.getRequestURI());
+        if (!CharSequenceUtil.isBlank(request.getQueryString())) {
+            key.append('?').append(request.getQueryString());
+        }
+        return key.toString();
+    }
+
+    /**
+     * 从处理请求的Controller方法上获取日志的操作模块和操作功能
+     */
+    private static String[] getOperation(HttpServletRequest request) {
+        String[] operation = new String[2];
+        if (request.getAttribute(HandlerMapping.BEST_MATCHING_HANDLER_ATTRIBUTE) instanceof HandlerMethod handlerMethod) {
+            Tag tag = handlerMethod.getBeanType().getAnnotation(Tag.class);
+            if (tag != null) {
+                operation[0] = tag.name();
+            }
+            LogOperatingFun logOperatingFun = handlerMethod.getMethodAnnotation(LogOperatingFun.class);
+            if (logOperatingFun != null) {
+                operation[1] = logOperatingFun.value();
+            }
+        }
+        return operation;
+    }
+
+    /**
+     * 命中缓存时Controller不会执行, 这里补记访问日志
+     */
+    private void addLog(HttpServletRequest request, HttpServletResponse response, ArticlePageCache.CachedPage page) {
+        if (page.operationFun() == null) {
+            return;
+        }
+        try {
+            LogOperation logOperation = new LogOperation();
+            logOperation.setTime(0L);
+            logOperation.setUsername(userLoginHolder.getUsername());
+            logOperation.setOperationModule(page.operationModule());
+            logOperation.setOperationFun(page.operationFun());
+            logOperation.setType(LogOperation.Type.ARTICLE.name());
+            logService.addLogBefore(logOperation, null, request, response);
+        } catch (Exception e) {
+            log.warn("记录页面缓存访问日志失败: {}", e.getMessage());
+        }
+    }
+}
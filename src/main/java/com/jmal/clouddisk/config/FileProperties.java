@@ -36,10 +36,34 @@ public class FileProperties {
      * 视频转码后的缓存目录, 位于 ${chunkFileDir}/${username}/${videoTranscodeCache}
      */
     private String videoTranscodeCache = "videoTranscodeCache";
+    /**
+     * 图片衍生文件(剪裁/缩略图/webp)的缓存目录, 位于 ${chunkFileDir}/${imageDerivativeCache}
+     */
+    private String imageDerivativeCache = "imageDerivativeCache";
+    /**
+     * oss 文件衍生文件(缩略图/视频封面)的缓存目录, 位于 ${chunkFileDir}/${ossDerivativeCache}
+     */
+    private String ossDerivativeCache = "ossDerivativeCache";
+    /**
+     * 站点地图文件的缓存目录, 位于 ${chunkFileDir}/${sitemapCache}
+     */
+    private String sitemapCache = "sitemapCache";
+    /**
+     * 图片衍生文件解码线程数, 默认为 cpu核数的一半
+     */
+    private Integer imageDerivativeThreads;
+    /**
+     * 图片衍生文件解码可占用的内存上限(MB), 默认为 jvm最大内存的1/4
+     */
+    private Integer imageDerivativeMemoryBudget;
     /**
      * lucene索引存储目录
      */
     private String luceneIndexDir = "luceneIndex";
+    /**
+     * 已发布文章的索引存储目录
+     */
+    private String articleIndexDir = "articleIndex";
     /***
      * 用户头像默认存储路径
      */
@@ -81,6 +105,87 @@ public class FileProperties {
      * webDAV协议前缀
      */
     private String webDavPrefix;
+    /**
+     * SSE 消息分发方式, local: 单节点(默认), mongo: 通过 MongoDB change stream 分发到多个节点(需要副本集)
+     */
+    private String sseBroker = "local";
+    /**
+     * 是否开启多节点缓存一致性, 通过 MongoDB change stream 同步用户/角色/菜单/OSS配置的缓存(需要副本集)
+     */
+    private Boolean cacheCoherence = false;
+    /**
+     * 操作日志写入队列容量
+     */
+    private Integer logQueueCapacity = 8192;
+    /**
+     * 操作日志队列满时的策略, dropNewest: 丢弃最新的(默认), dropOldest: 丢弃最旧的, sample: 超过高水位后按采样率保留
+     */
+    private String logDropPolicy = "dropNewest";
+    /**
+     * sample 策略下超过高水位后保留日志的比例
+     */
+    private Double logSampleRate = 0.1;
+    /**
+     * 是否按天统计文章访问量, 用于访问趋势
+     */
+    private Boolean visitDailyBuckets = false;
+    /**
+     * 是否缓存公开文章页面的渲染结果
+     * <p>
+     * 缓存只在本节点内, 失效也只作用于本节点<br>
+     * 多节点部署时, 在一个节点上修改文章, 分类, 标签, 网站设置后, 其他节点的页面最多延迟 articlePageCacheTtl 秒更新
+     * </p>
+     */
+    private Boolean articlePageCache = true;
+    /**
+     * 文章页面缓存的最大容量(MB)
+     */
+    private Long articlePageCacheSize = 64L;
+    /**
+     * 文章页面缓存的最长时间(秒), 页面上的访问量最多延迟这么久
+     */
+    private Long articlePageCacheTtl = 300L;
+    /**
+     * oss 复制时每个平台同时复制的对象数
+     */
+    private Integer ossCopyConcurrency = 16;
+    /**
+     * oss 复制单个对象失败后的重试次数
+     */
+    private Integer ossCopyRetries = 3;
+    /**
+     * oss 分片上传时每个 bucket 同时上传的文件/分片数
+     */
+    private Integer ossUploadConcurrency = 8;
+    /**
+     * oss 分片上传单个分片失败后的重试次数
+     */
+    private Integer ossUploadRetries = 3;
+    /**
+     * oss 命名空间索引的过期时间(秒), 目录在该时间内列举过就不再请求 oss, 0 为不使用索引
+     */
+    private Long ossIndexTtl = 600L;
+    /**
+     * oss 文件衍生文件缓存的大小上限(MB), 超过后删除最久没有使用的
+     */
+    private Integer ossDerivativeCacheSize = 1024;
+    /**
+     * 是否开启 oss 直传, 开启后下载重定向到预签名URL, 分片上传由浏览器直接上传到 oss
+     * 需要在 bucket 上配置允许本站点跨域 PUT
+     */
+    private Boolean ossDirectTransfer = false;
+    /**
+     * oss 直传预签名URL的过期时间(秒)
+     */
+    private Integer ossPresignedExpiry = 300;
+    /**
+     * 是否使用虚拟线程处理请求和输出下载流(Tomcat 请求线程和 StreamingResponseBody 的异步线程)
+     */
+    private Boolean virtualThreads = false;
+    /**
+     * 每个用户同时进行的下载流数量上限, 超过返回 429, 未登录的按客户端IP计数, 0 为不限制
+     */
+    private Integer maxStreamsPerUser = 0;
     /***
      * ip2region-path
      */
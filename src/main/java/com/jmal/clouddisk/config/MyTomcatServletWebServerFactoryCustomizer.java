@@ -1,5 +1,7 @@
 package com.jmal.clouddisk.config;
 
+import cn.hutool.core.util.BooleanUtil;
+import org.apache.tomcat.util.threads.VirtualThreadExecutor;
 import org.springframework.boot.autoconfigure.web.ServerProperties;
 import org.springframework.boot.autoconfigure.web.servlet.TomcatServletWebServerFactoryCustomizer;
 import org.springframework.boot.web.embedded.tomcat.TomcatServletWebServerFactory;
@@ -11,8 +13,11 @@ import org.springframework.stereotype.Component;
 @Component
 public class MyTomcatServletWebServerFactoryCustomizer extends TomcatServletWebServerFactoryCustomizer {
 
-    public MyTomcatServletWebServerFactoryCustomizer(ServerProperties serverProperties) {
+    private final FileProperties fileProperties;
+
+    public MyTomcatServletWebServerFactoryCustomizer(ServerProperties serverProperties, FileProperties fileProperties) {
         super(serverProperties);
+        this.fileProperties = fileProperties;
     }
 
     @Override
@@ -22,5 +27,9 @@ public class MyTomcatServletWebServerFactoryCustomizer extends TomcatServletWebS
             connector.setProperty("relaxedPathChars", "|{}[]");
             connector.setProperty("relaxedQueryChars", "|{}[]");
         });
+        if (BooleanUtil.isTrue(fileProperties.getVirtualThreads())) {
+            // 每个请求一个虚拟线程, 阻塞在IO上时不占用平台线程, 并发数由 server.tomcat.max-connections 限制
+            factory.addProtocolHandlerCustomizers(protocolHandler -> protocolHandler.setExecutor(new VirtualThreadExecutor("jmalcloud-vt-")));
+        }
     }
 }
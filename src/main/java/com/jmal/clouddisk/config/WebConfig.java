@@ -1,5 +1,6 @@
 package com.jmal.clouddisk.config;
 
+import cn.hutool.core.util.BooleanUtil;
 import com.jmal.clouddisk.interceptor.AuthInterceptor;
 import com.jmal.clouddisk.interceptor.FileInterceptor;
 import lombok.RequiredArgsConstructor;
@@ -7,6 +8,7 @@ import lombok.extern.slf4j.Slf4j;
 import org.jetbrains.annotations.NotNull;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.core.task.AsyncTaskExecutor;
+import org.springframework.core.task.SimpleAsyncTaskExecutor;
 import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
 import org.springframework.web.servlet.config.annotation.*;
 
@@ -46,6 +48,12 @@ public class WebConfig implements WebMvcConfigurer {
     }
 
     public AsyncTaskExecutor taskExecutor() {
+        if (BooleanUtil.isTrue(fileProperties.getVirtualThreads())) {
+            // StreamingResponseBody 在虚拟线程上输出, 不再受线程池和队列大小限制
+            SimpleAsyncTaskExecutor executor = new SimpleAsyncTaskExecutor("Custom-Executor-");
+            executor.setVirtualThreads(true);
+            return executor;
+        }
         ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
         executor.setCorePoolSize(10);
         executor.setMaxPoolSize(50);
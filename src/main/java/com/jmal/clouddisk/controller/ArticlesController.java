@@ -7,18 +7,22 @@ import com.jmal.clouddisk.annotation.LogOperatingFun;
 import com.jmal.clouddisk.model.*;
 import com.jmal.clouddisk.service.IMarkdownService;
 import com.jmal.clouddisk.service.IUserService;
+import com.jmal.clouddisk.service.impl.ArticlePageCache;
 import com.jmal.clouddisk.service.impl.CategoryService;
 import com.jmal.clouddisk.service.impl.LogService;
 import com.jmal.clouddisk.service.impl.SettingService;
+import com.jmal.clouddisk.service.impl.SitemapService;
 import com.jmal.clouddisk.service.impl.TagService;
 import io.swagger.v3.oas.annotations.tags.Tag;
 import jakarta.servlet.http.Cookie;
 import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Controller;
 import org.springframework.ui.Model;
 import org.springframework.web.bind.annotation.*;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -46,6 +50,9 @@ public class ArticlesController {
     @Autowired
     private LogService logService;
 
+    @Autowired
+    private SitemapService sitemapService;
+
     @Autowired
     IUserService userService;
 
@@ -60,18 +67,28 @@ public class ArticlesController {
         return isPjax ? "404" : "index";
     }
 
-    @GetMapping(value = "/articles/sitemap.xml", produces = {"application/xml;charset=UTF-8"})
+    @GetMapping("/articles/sitemap.xml")
     @LogOperatingFun(value = "sitemap.xml", logType = LogOperation.Type.ARTICLE)
-    @ResponseBody
-    public Urlset sitemapXml() {
-        return fileService.getSitemapXml();
+    public void sitemapXml(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        sitemapService.write(SitemapService.SITEMAP_XML, request, response);
     }
 
-    @GetMapping(value = "/articles/sitemap.txt", produces = {"text/plain;charset=UTF-8"})
+    @GetMapping("/articles/sitemap.txt")
     @LogOperatingFun(value = "sitemap.txt", logType = LogOperation.Type.ARTICLE)
-    @ResponseBody
-    public String sitemapTxt() {
-        return fileService.getSitemapTxt();
+    public void sitemapTxt(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        sitemapService.write(SitemapService.SITEMAP_TXT, request, response);
+    }
+
+    @GetMapping("/articles/sitemap-{index:\\d+}.xml")
+    @LogOperatingFun(value = "sitemap.xml", logType = LogOperation.Type.ARTICLE)
+    public void sitemapXmlShard(@PathVariable Integer index, HttpServletRequest request, HttpServletResponse response) throws IOException {
+        sitemapService.write("sitemap-" + index + ".xml", request, response);
+    }
+
+    @GetMapping("/articles/sitemap-{index:\\d+}.txt")
+    @LogOperatingFun(value = "sitemap.txt", logType = LogOperation.Type.ARTICLE)
+    public void sitemapTxtShard(@PathVariable Integer index, HttpServletRequest request, HttpServletResponse response) throws IOException {
+        sitemapService.write("sitemap-" + index + ".txt", request, response);
     }
 
     @GetMapping("/articles")
@@ -93,6 +110,7 @@ public class ArticlesController {
             page = Integer.parseInt(pIndex);
         }
         map.addAttribute("articlesData", fileService.getArticles(page, pageSize));
+        ArticlePageCache.tag(request, ArticlePageCache.TAG_SITE, ArticlePageCache.TAG_LIST);
         return isPjax ? "articles" : "index";
     }
 
@@ -118,10 +136,23 @@ public class ArticlesController {
 
     private String articlePage(HttpServletRequest request, String slug, Model map) {
         boolean isPjax = pjaxMap(request, map, "article");
+        // 文章不存在时缓存的是404页面, 发布该slug的文章时需要删除
+        ArticlePageCache.tag(request, ArticlePageCache.TAG_SLUG_PREFIX + slug);
         ArticleVO articleVO = fileService.getMarkDownContentBySlug(slug);
         if (articleVO == null || !BooleanUtil.isTrue(articleVO.getRelease())) {
             return notFind(request, map);
         }
+        ArticlePageCache.tag(request, ArticlePageCache.TAG_ARTICLE_PREFIX + articleVO.getId());
+        if (articleVO.getCategoryIds() != null) {
+            for (String categoryId : articleVO.getCategoryIds()) {
+                ArticlePageCache.tag(request, ArticlePageCache.TAG_CATEGORY_PREFIX + categoryId);
+            }
+        }
+        if (articleVO.getTagIds() != null) {
+            for (String tagId : articleVO.getTagIds()) {
+                ArticlePageCache.tag(request, ArticlePageCache.TAG_TAG_PREFIX + tagId);
+            }
+        }
         Cookie[] cookies = request.getCookies();
         if (cookies != null) {
             for (Cookie cookie : cookies) {
@@ -141,6 +172,9 @@ public class ArticlesController {
         if (articleVO == null || articleVO.getHtml() == null) {
             return "";
         }
+        if (articleVO.getDescription() != null) {
+            return articleVO.getDescription();
+        }
         return articleVO.getHtml().substring(0, Math.min(articleVO.getHtml().length(), 500)).replaceAll("<[^>]*>","");
     }
 
@@ -164,6 +198,7 @@ public class ArticlesController {
         boolean isPjax = pjaxMap(request, map, "categories");
         map.addAttribute("titleName", "分类");
         map.addAttribute("categories", categoryService.list(null, null));
+        ArticlePageCache.tag(request, ArticlePageCache.TAG_LIST);
         return isPjax ? "categories" : "index";
     }
 
@@ -178,6 +213,7 @@ public class ArticlesController {
             page = Integer.parseInt(pIndex);
         }
         map.addAttribute("articlesData", fileService.getArchives(page, pageSize));
+        ArticlePageCache.tag(request, ArticlePageCache.TAG_LIST);
         return isPjax ? "archives" : "index";
     }
 
@@ -199,6 +235,7 @@ public class ArticlesController {
             map.addAttribute("query", query);
             categoryId = categoryDO.getId();
         }
+        ArticlePageCache.tag(request, ArticlePageCache.TAG_LIST, ArticlePageCache.TAG_CATEGORY_PREFIX + categoryId);
         int page = 1, pageSize = 10;
         String pIndex = request.getParameter("page");
         if (!CharSequenceUtil.isBlank(pIndex)) {
@@ -214,6 +251,7 @@ public class ArticlesController {
         boolean isPjax = pjaxMap(request, map, "tags");
         map.addAttribute("titleName", "标签");
         map.addAttribute("tags", tagService.listTagsOfArticle());
+        ArticlePageCache.tag(request, ArticlePageCache.TAG_LIST);
         return isPjax ? "tags" : "index";
     }
 
@@ -235,6 +273,7 @@ public class ArticlesController {
             map.addAttribute("query", query);
             tagId = tag.getId();
         }
+        ArticlePageCache.tag(request, ArticlePageCache.TAG_LIST, ArticlePageCache.TAG_TAG_PREFIX + tagId);
         int page = 1, pageSize = 10;
         String pIndex = request.getParameter("page");
         if (!CharSequenceUtil.isBlank(pIndex)) {
@@ -260,6 +299,7 @@ public class ArticlesController {
             query.setBackground(markdownVO.getCover());
         }
         query.setName("包含关键字 " + keyword + " 的文章");
+        map.addAttribute("keyword", keyword);
         map.addAttribute("titleName", query.getName());
         map.addAttribute("query", query);
         map.addAttribute("articlesData", articles);
@@ -281,6 +321,7 @@ public class ArticlesController {
         }
         ArticlesQueryVO query = new ArticlesQueryVO();
         Page<List<MarkdownVO>> articles = fileService.getArticlesByAuthor(page, pageSize, userId);
+        ArticlePageCache.tag(request, ArticlePageCache.TAG_LIST);
         if (!articles.isEmpty()) {
             MarkdownVO markdownVO = articles.getData().get(0);
             query.setBackground(markdownVO.getCover());
@@ -293,6 +334,7 @@ public class ArticlesController {
     }
 
     private WebsiteSettingDTO getSetting(HttpServletRequest request, Model map) {
+        ArticlePageCache.tag(request, ArticlePageCache.TAG_LAYOUT);
         WebsiteSettingDTO websiteSettingDTO = settingService.getWebsiteSetting();
         setOperatingButtonList(websiteSettingDTO);
         List<MarkdownVO> markdownVOList = fileService.getAlonePages();
@@ -357,6 +399,7 @@ public class ArticlesController {
 
     private boolean pjaxMap(HttpServletRequest request, Model map, String viewName) {
         boolean isPjax = isPjax(request);
+        ArticlePageCache.tag(request, ArticlePageCache.TAG_SITE);
         if (!isPjax) {
             getSetting(request, map);
         } else {
@@ -10,7 +10,10 @@ import com.jmal.clouddisk.model.LogOperation;
 import com.jmal.clouddisk.model.WebsiteSettingDTO;
 import com.jmal.clouddisk.service.IAuthService;
 import com.jmal.clouddisk.service.IUserService;
+import com.jmal.clouddisk.service.impl.ArticlePageCache;
+import com.jmal.clouddisk.service.impl.FileIndexManager;
 import com.jmal.clouddisk.service.impl.SettingService;
+import com.jmal.clouddisk.util.CaffeineUtil;
 import com.jmal.clouddisk.util.ResponseResult;
 import com.jmal.clouddisk.util.ResultUtil;
 import com.jmal.clouddisk.video.TranscodeConfig;
@@ -40,6 +43,10 @@ public class CloudSettingController {
 
     private final RebuildIndexTaskService rebuildIndexTaskService;
 
+    private final ArticlePageCache articlePageCache;
+
+    private final FileIndexManager fileIndexManager;
+
     private final VideoProcessService videoProcessService;
 
     @Operation(summary = "重建索引-用户")
@@ -104,6 +111,22 @@ public class CloudSettingController {
         return ResultUtil.success();
     }
 
+    @Operation(summary = "缓存统计信息")
+    @GetMapping("/user/setting/cacheStats")
+    @Permission(onlyCreator = true)
+    public ResponseResult<Map<String, Map<String, Object>>> cacheStats() {
+        Map<String, Map<String, Object>> stats = CaffeineUtil.stats();
+        stats.put("articlePage", articlePageCache.stats());
+        return ResultUtil.success(stats);
+    }
+
+    @Operation(summary = "文件索引报告")
+    @GetMapping("/user/setting/indexReport")
+    @Permission(onlyCreator = true)
+    public ResponseResult<FileIndexManager.IndexReport> indexReport() {
+        return ResultUtil.success(fileIndexManager.report());
+    }
+
     @Operation(summary = "获取是否禁用webp状态")
     @GetMapping("/user/setting/get/webp")
     @Permission("sys:user:list")
@@ -7,6 +7,7 @@ import com.jmal.clouddisk.annotation.Permission;
 import com.jmal.clouddisk.exception.CommonException;
 import com.jmal.clouddisk.exception.ExceptionType;
 import com.jmal.clouddisk.interceptor.AuthInterceptor;
+import com.jmal.clouddisk.interceptor.StreamLimiter;
 import com.jmal.clouddisk.model.*;
 import com.jmal.clouddisk.oss.web.WebOssCommonService;
 import com.jmal.clouddisk.oss.web.WebOssService;
@@ -59,6 +60,9 @@ public class FileController {
     @Autowired
     UserLoginHolder userLoginHolder;
 
+    @Autowired
+    StreamLimiter streamLimiter;
+
     @Autowired
     IUserService service;
 
@@ -77,6 +81,13 @@ public class FileController {
         return fileService.listFiles(upload);
     }
 
+    @Operation(summary = "文件列表(游标分页)")
+    @GetMapping("/list/cursor")
+    @LogOperatingFun(logType = LogOperation.Type.BROWSE)
+    public ResponseResult<Object> listByCursor(UploadApiParamDTO upload) {
+        return fileService.listFilesByCursor(upload);
+    }
+
     @Operation(summary = "查找下级目录")
     @GetMapping("/query-file-tree")
     @LogOperatingFun(logType = LogOperation.Type.BROWSE)
@@ -181,7 +192,7 @@ public class FileController {
     @GetMapping("/preview/text/stream")
     @Permission("cloud:file:list")
     @LogOperatingFun(logType = LogOperation.Type.BROWSE)
-    public ResponseEntity<StreamingResponseBody> previewTextStream(@RequestParam String id, @RequestParam String path, @RequestParam String fileName) {
+    public ResponseEntity<StreamingResponseBody> previewTextStream(HttpServletRequest request, @RequestParam String id, @RequestParam String path, @RequestParam String fileName) {
         String ossPath = CaffeineUtil.getOssPath(Paths.get(id));
         StreamingResponseBody responseBody;
         if (ossPath != null) {
@@ -190,7 +201,7 @@ public class FileController {
         } else {
             responseBody = fileService.getStreamById(id);
         }
-        return new ResponseEntity<>(responseBody, HttpStatus.OK);
+        return limitStream(request, responseBody);
     }
 
     @Operation(summary = "根据path读取simText文件")
@@ -210,7 +221,7 @@ public class FileController {
     @GetMapping("/preview/path/text/stream")
     @Permission("cloud:file:list")
     @LogOperatingFun(logType = LogOperation.Type.BROWSE)
-    public ResponseEntity<StreamingResponseBody> previewTextByPathStream(@RequestParam String path, @RequestParam String username) {
+    public ResponseEntity<StreamingResponseBody> previewTextByPathStream(HttpServletRequest request, @RequestParam String path, @RequestParam String username) {
         Path prePth = Paths.get(username, path);
         String ossPath = CaffeineUtil.getOssPath(prePth);
         StreamingResponseBody responseBody;
@@ -219,7 +230,18 @@ public class FileController {
         } else {
             responseBody = fileService.previewTextByPathStream(URLUtil.decode(path), username);
         }
-        return new ResponseEntity<>(responseBody, HttpStatus.OK);
+        return limitStream(request, responseBody);
+    }
+
+    /**
+     * 限制每个用户同时进行的下载流数量, 超过时返回 429
+     */
+    private ResponseEntity<StreamingResponseBody> limitStream(HttpServletRequest request, StreamingResponseBody responseBody) {
+        String streamKey = StreamLimiter.getKey(request, userLoginHolder.getUsername());
+        if (!streamLimiter.tryAcquire(streamKey)) {
+            return new ResponseEntity<>(HttpStatus.TOO_MANY_REQUESTS);
+        }
+        return new ResponseEntity<>(streamLimiter.releaseAfter(request, streamKey, responseBody), HttpStatus.OK);
     }
 
     @Operation(summary = "是否允许下载")
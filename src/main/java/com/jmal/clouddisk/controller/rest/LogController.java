@@ -2,16 +2,20 @@ package com.jmal.clouddisk.controller.rest;
 
 import com.jmal.clouddisk.annotation.LogOperatingFun;
 import com.jmal.clouddisk.annotation.Permission;
+import com.jmal.clouddisk.exception.CommonException;
+import com.jmal.clouddisk.exception.ExceptionType;
 import com.jmal.clouddisk.model.LogOperation;
 import com.jmal.clouddisk.model.LogOperationDTO;
 import com.jmal.clouddisk.service.impl.LogService;
 import com.jmal.clouddisk.util.ResponseResult;
+import com.jmal.clouddisk.util.ResultUtil;
 import io.swagger.v3.oas.annotations.tags.Tag;
 import io.swagger.v3.oas.annotations.Operation;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.web.bind.annotation.*;
 
 import java.util.List;
+import java.util.Map;
 
 /**
  * @author jmal
@@ -34,4 +38,21 @@ public class LogController {
         return logService.list(logOperationDTO);
     }
 
+    @Operation(summary = "日志写入队列统计")
+    @GetMapping("/metrics")
+    @Permission("sys:log:list")
+    public ResponseResult<Map<String, Object>> metrics() {
+        return ResultUtil.success(logService.writerMetrics());
+    }
+
+    @Operation(summary = "文章按天访问量")
+    @GetMapping("/visits/daily")
+    @Permission("sys:log:list")
+    public ResponseResult<Map<String, Long>> dailyVisits(@RequestParam String url, @RequestParam(defaultValue = "30") Integer days) {
+        if (days < 1 || days > 366) {
+            throw new CommonException(ExceptionType.PARAMETERS_VALUE);
+        }
+        return ResultUtil.success(logService.getDailyVisitsByUrl(url, days));
+    }
+
 }
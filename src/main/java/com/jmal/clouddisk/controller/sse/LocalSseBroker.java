@@ -0,0 +1,38 @@
+package com.jmal.clouddisk.controller.sse;
+
+import org.springframework.stereotype.Component;
+
+import java.util.function.Consumer;
+
+/**
+ * 单节点(进程内)分发, 默认实现
+ *
+ * @author jmal
+ */
+@Component
+public class LocalSseBroker implements SseBroker {
+
+    public static final String NAME = "local";
+
+    private Consumer<Message> consumer;
+
+    @Override
+    public String name() {
+        return NAME;
+    }
+
+    @Override
+    public boolean isLocalOnly() {
+        return true;
+    }
+
+    @Override
+    public void start(Consumer<Message> consumer) {
+        this.consumer = consumer;
+    }
+
+    @Override
+    public void publish(Message message) {
+        consumer.accept(message);
+    }
+}
@@ -3,6 +3,8 @@ package com.jmal.clouddisk.controller.sse;
 import lombok.Getter;
 import lombok.Setter;
 
+import java.util.List;
+
 @Getter
 @Setter
 public class Message {
@@ -10,4 +12,8 @@ public class Message {
     private Object body;
     private String url;
     private Long space;
+    /**
+     * 合并发送的文件变更事件, 按发生顺序排列, 最后一条同时也是 body
+     */
+    private List<Object> batch;
 }
@@ -0,0 +1,200 @@
+package com.jmal.clouddisk.controller.sse;
+
+import cn.hutool.core.lang.UUID;
+import cn.hutool.core.thread.ThreadUtil;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.mongodb.client.MongoChangeStreamCursor;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.Aggregates;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.changestream.ChangeStreamDocument;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.bson.BsonDocument;
+import org.bson.Document;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.index.Index;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * 基于 MongoDB change stream 的多节点分发
+ * <p>
+ * 1. 本节点的消息直接推送给本节点连接, 同时写入 sseMessage 集合<br>
+ * 2. 各节点监听 sseMessage 的 insert 事件, 忽略本节点写入的消息<br>
+ * 3. 每个节点的消息由单线程按顺序批量写入, seq 单调递增, 接收方按(节点, 用户)丢弃重复或过期的 seq<br>
+ * 需要 MongoDB 以副本集方式运行
+ * </p>
+ *
+ * @author jmal
+ */
+@Component
+@Slf4j
+@RequiredArgsConstructor
+public class MongoSseBroker implements SseBroker {
+
+    public static final String NAME = "mongo";
+
+    public static final String COLLECTION_NAME = "sseMessage";
+
+    /**
+     * 消息保留时间, 只用于节点短暂断开后的续传
+     */
+    private static final Duration EXPIRE = Duration.ofMinutes(10);
+
+    private static final int QUEUE_CAPACITY = 10000;
+
+    private static final int BATCH_SIZE = 100;
+
+    private final MongoTemplate mongoTemplate;
+
+    private final ObjectMapper objectMapper;
+
+    private final String nodeId = UUID.fastUUID().toString(true);
+
+    private final BlockingQueue<Message> publishQueue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+
+    /**
+     * 已推送的最大seq
+     * key: nodeId + username
+     */
+    private final Cache<String, Long> lastSeqCache = Caffeine.newBuilder().expireAfterAccess(1, TimeUnit.HOURS).build();
+
+    private Consumer<Message> consumer;
+
+    private volatile boolean running;
+
+    private volatile MongoChangeStreamCursor<ChangeStreamDocument<Document>> cursor;
+
+    private long seq;
+
+    @Override
+    public String name() {
+        return NAME;
+    }
+
+    @Override
+    public void start(Consumer<Message> consumer) {
+        this.consumer = consumer;
+        this.running = true;
+        mongoTemplate.indexOps(COLLECTION_NAME).ensureIndex(new Index().on("createTime", Sort.Direction.ASC).expire(EXPIRE));
+        ThreadUtil.newThread(this::publishLoop, "sseBrokerPublish", true).start();
+        ThreadUtil.newThread(this::watchLoop, "sseBrokerWatch", true).start();
+        log.info("SSE broker: mongo, nodeId: {}", nodeId);
+    }
+
+    @Override
+    public void publish(Message message) {
+        consumer.accept(message);
+        if (!publishQueue.offer(message)) {
+            log.warn("SSE broker 发布队列已满, 丢弃消息, username: {}, url: {}", message.getUsername(), message.getUrl());
+        }
+    }
+
+    @Override
+    public void stop() {
+        running = false;
+        MongoChangeStreamCursor<ChangeStreamDocument<Document>> current = cursor;
+        if (current != null) {
+            current.close();
+        }
+    }
+
+    private void publishLoop() {
+        List<Message> messages = new ArrayList<>(BATCH_SIZE);
+        while (running) {
+            try {
+                Message first = publishQueue.poll(1, TimeUnit.SECONDS);
+                if (first == null) {
+                    continue;
+                }
+                messages.add(first);
+                publishQueue.drainTo(messages, BATCH_SIZE - 1);
+                List<Document> documents = new ArrayList<>(messages.size());
+                Date now = new Date();
+                for (Message message : messages) {
+                    documents.add(toDocument(message, now));
+                }
+                mongoTemplate.getCollection(COLLECTION_NAME).insertMany(documents);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (Exception e) {
+                log.error("SSE broker 发布失败: {}", e.getMessage());
+            } finally {
+                messages.clear();
+            }
+        }
+    }
+
+    private Document toDocument(Message message, Date now) throws JsonProcessingException {
+        Document document = new Document("_id", UUID.fastUUID().toString(true));
+        document.put("nodeId", nodeId);
+        // 只在发布线程中递增, 同一节点的 seq 与写入顺序一致
+        document.put("seq", ++seq);
+        document.put("username", message.getUsername());
+        document.put("payload", objectMapper.writeValueAsString(message));
+        document.put("createTime", now);
+        return document;
+    }
+
+    private void watchLoop() {
+        BsonDocument resumeToken = null;
+        while (running) {
+            MongoCollection<Document> collection = mongoTemplate.getCollection(COLLECTION_NAME);
+            var changeStream = collection.watch(List.of(Aggregates.match(Filters.eq("operationType", "insert"))));
+            if (resumeToken != null) {
+                changeStream = changeStream.resumeAfter(resumeToken);
+            }
+            try (MongoChangeStreamCursor<ChangeStreamDocument<Document>> changeStreamCursor = changeStream.cursor()) {
+                cursor = changeStreamCursor;
+                while (running) {
+                    ChangeStreamDocument<Document> change = changeStreamCursor.next();
+                    resumeToken = change.getResumeToken();
+                    onInsert(change.getFullDocument());
+                }
+            } catch (Exception e) {
+                if (!running) {
+                    return;
+                }
+                log.warn("SSE broker change stream 中断, 5秒后重试: {}", e.getMessage());
+                ThreadUtil.sleep(5000);
+            }
+        }
+    }
+
+    private void onInsert(Document document) {
+        if (document == null) {
+            return;
+        }
+        String fromNodeId = document.getString("nodeId");
+        if (nodeId.equals(fromNodeId)) {
+            // 本节点的消息已经在发布时推送过了
+            return;
+        }
+        long messageSeq = document.get("seq", Number.class).longValue();
+        String username = document.getString("username");
+        Long last = lastSeqCache.getIfPresent(fromNodeId + username);
+        if (last != null && messageSeq <= last) {
+            return;
+        }
+        lastSeqCache.put(fromNodeId + username, messageSeq);
+        try {
+            consumer.accept(objectMapper.readValue(document.getString("payload"), Message.class));
+        } catch (JsonProcessingException e) {
+            log.warn("SSE broker 消息解析失败: {}", e.getMessage());
+        }
+    }
+}
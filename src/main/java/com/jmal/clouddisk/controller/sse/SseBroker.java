@@ -0,0 +1,47 @@
+package com.jmal.clouddisk.controller.sse;
+
+import java.util.function.Consumer;
+
+/**
+ * SSE 消息分发(SPI)
+ * <p>
+ * 负责把 Message 分发到所有节点, 每个节点再推送给本节点上的连接<br>
+ * 实现类注册为 Spring Bean 即可, 通过 file.sseBroker 按 name() 选择
+ * </p>
+ *
+ * @author jmal
+ */
+public interface SseBroker {
+
+    /**
+     * 名称, 与 file.sseBroker 对应
+     */
+    String name();
+
+    /**
+     * 是否只在本节点内分发
+     */
+    default boolean isLocalOnly() {
+        return false;
+    }
+
+    /**
+     * 启动
+     *
+     * @param consumer 推送给本节点连接的回调, 同一用户的消息需要按发布顺序回调, 且每个节点只回调一次
+     */
+    void start(Consumer<Message> consumer);
+
+    /**
+     * 发布消息到所有节点
+     *
+     * @param message Message
+     */
+    void publish(Message message);
+
+    /**
+     * 停止
+     */
+    default void stop() {
+    }
+}
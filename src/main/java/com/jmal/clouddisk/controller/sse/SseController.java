@@ -1,5 +1,9 @@
 package com.jmal.clouddisk.controller.sse;
 
+import com.jmal.clouddisk.annotation.Permission;
+import com.jmal.clouddisk.util.ResponseResult;
+import com.jmal.clouddisk.util.ResultUtil;
+import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
@@ -9,43 +13,23 @@ import org.springframework.web.bind.annotation.*;
 import org.springframework.web.context.request.async.AsyncRequestTimeoutException;
 import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
 
-import java.io.IOException;
 import java.util.Map;
-import java.util.Set;
-import java.util.concurrent.ConcurrentHashMap;
 
 @RestController
 @Slf4j
+@RequiredArgsConstructor
 public class SseController {
 
-    /**
-     * key: uuid
-     * value: SseEmitter
-     */
-    private final Map<String, SseEmitter> emitters = new ConcurrentHashMap<>();
-
-    /**
-     * key: username
-     * value: uuid list
-     */
-    private final Map<String, Set<String>> users = new ConcurrentHashMap<>();
+    private final SseEventBus sseEventBus;
 
     @GetMapping(value = "/events", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
-    public SseEmitter events(@RequestParam String username, @RequestParam String uuid) {
-        if (users.containsKey(username)) {
-            users.get(username).add(uuid);
-        } else {
-            Set<String> uuids = ConcurrentHashMap.newKeySet(32);
-            if (uuids.size() > 30) {
-                return null;
-            }
-            uuids.add(uuid);
-            users.put(username, uuids);
+    public ResponseEntity<SseEmitter> events(@RequestParam String username, @RequestParam String uuid) {
+        SseEmitter emitter = sseEventBus.register(username, uuid);
+        if (emitter == null) {
+            // 超出连接数限制, 非200的响应会让 EventSource 停止自动重连
+            return ResponseEntity.status(HttpStatus.TOO_MANY_REQUESTS).header(HttpHeaders.RETRY_AFTER, "60").build();
         }
-        SseEmitter emitter = new SseEmitter(30 * 60 * 1000L);
-        emitters.put(uuid, emitter);
-        emitter.onCompletion(() -> emitters.remove(uuid));
-        return emitter;
+        return ResponseEntity.ok(emitter);
     }
 
     @ExceptionHandler(AsyncRequestTimeoutException.class)
@@ -63,36 +47,12 @@ public class SseController {
 
     @PostMapping("/send")
     public void sendEvent(@RequestBody Message message) {
-        String username = message.getUsername();
-        if (users.containsKey(username)) {
-            users.get(username).forEach(uuid -> sendMessage(message, username, uuid));
-        }
+        sseEventBus.publish(message);
     }
 
-    private void sendMessage(Object message, String username, String uuid) {
-        SseEmitter emitter = emitters.get(uuid);
-        if (emitter != null) {
-            try {
-                emitter.send(message);
-            } catch (IllegalStateException e) {
-                if (e.getMessage().contains("completed")) {
-                    removeUuid(username, uuid);
-                }
-            } catch (IOException e) {
-                removeUuid(username, uuid);
-            }
-        }
-    }
-
-    private void removeUuid(String username, String uuid) {
-        emitters.remove(uuid);
-        Set<String> uuids = users.get(username);
-        if (uuids != null) {
-            uuids.remove(uuid);
-            if (uuids.isEmpty()) {
-                users.remove(username);
-            }
-        }
+    @GetMapping("/events/metrics")
+    @Permission(onlyCreator = true)
+    public ResponseResult<Map<String, Object>> metrics() {
+        return ResultUtil.success(sseEventBus.metrics());
     }
 }
-
@@ -0,0 +1,408 @@
+package com.jmal.clouddisk.controller.sse;
+
+import cn.hutool.core.thread.ThreadUtil;
+import com.jmal.clouddisk.config.FileProperties;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * SSE 事件总线
+ * <p>
+ * 1. 每个连接在自己的虚拟线程上发送, 调用方和其他连接都不会被慢客户端阻塞<br>
+ * 2. 每个连接一个有界队列, 同一连接串行发送, 保证顺序<br>
+ * 3. 文件变更事件按用户在时间窗口内合并成一帧发送, 不再丢弃中间事件<br>
+ * 4. 定时心跳, 队列溢出或发送卡住的连接会被剔除<br>
+ * 5. 消息通过 SseBroker 分发到所有节点
+ * </p>
+ *
+ * @author jmal
+ */
+@Component
+@Slf4j
+@RequiredArgsConstructor
+public class SseEventBus {
+
+    private final FileProperties fileProperties;
+
+    private final List<SseBroker> brokers;
+
+    /**
+     * 连接超时时间
+     */
+    public static final long EMITTER_TIMEOUT = 30 * 60 * 1000L;
+
+    /**
+     * 每个用户最多的连接数
+     */
+    private static final int MAX_CONNECTIONS_PER_USER = 32;
+
+    /**
+     * 每个连接的队列容量, 超出时视为慢客户端
+     */
+    private static final int QUEUE_CAPACITY = 256;
+
+    /**
+     * 合并文件变更事件的时间窗口(毫秒)
+     */
+    private static final long BATCH_WINDOW = 300;
+
+    /**
+     * 一帧中最多合并的事件数, 超出后只保留最新的
+     */
+    private static final int MAX_BATCH_SIZE = 500;
+
+    /**
+     * 心跳间隔(秒)
+     */
+    private static final long HEARTBEAT_INTERVAL = 25;
+
+    /**
+     * 单次发送超过该时间(毫秒)仍未完成则剔除连接
+     */
+    private static final long SLOW_CONSUMER_TIMEOUT = 30 * 1000L;
+
+    /**
+     * key: uuid
+     * value: SseConnection
+     */
+    private final Map<String, SseConnection> connections = new ConcurrentHashMap<>();
+
+    /**
+     * key: username
+     * value: uuid set
+     */
+    private final Map<String, Set<String>> users = new ConcurrentHashMap<>();
+
+    /**
+     * 待合并的文件变更事件
+     * key: username + url
+     */
+    private final Map<String, PendingBatch> pendingBatches = new ConcurrentHashMap<>();
+
+    private final AtomicLong sentCount = new AtomicLong();
+    private final AtomicLong batchedCount = new AtomicLong();
+    private final AtomicLong evictedCount = new AtomicLong();
+
+    private ExecutorService senderExecutor;
+
+    private ScheduledExecutorService scheduler;
+
+    private SseBroker broker;
+
+    @PostConstruct
+    public void init() {
+        broker = brokers.stream().filter(b -> b.name().equals(fileProperties.getSseBroker())).findFirst()
+                .orElseGet(() -> brokers.stream().filter(b -> LocalSseBroker.NAME.equals(b.name())).findFirst().orElseThrow());
+        broker.start(this::deliver);
+        // 卡在已断开的 TCP 连接上的发送不会被 complete() 中断, 每次发送用一个虚拟线程, 不占用共享的线程
+        senderExecutor = Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("sseSender-", 0).factory());
+        scheduler = ThreadUtil.createScheduledExecutor(1);
+        scheduler.scheduleWithFixedDelay(this::heartbeat, HEARTBEAT_INTERVAL, HEARTBEAT_INTERVAL, TimeUnit.SECONDS);
+    }
+
+    @PreDestroy
+    public void destroy() {
+        if (broker != null) {
+            broker.stop();
+        }
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+        }
+        if (senderExecutor != null) {
+            senderExecutor.shutdownNow();
+        }
+        connections.values().forEach(connection -> connection.emitter.complete());
+    }
+
+    /**
+     * 注册连接
+     *
+     * @param username username
+     * @param uuid     连接id
+     * @return SseEmitter, 超出连接数限制时返回null, 由调用方返回 429
+     */
+    public SseEmitter register(String username, String uuid) {
+        SseEmitter emitter = new SseEmitter(EMITTER_TIMEOUT);
+        SseConnection connection = new SseConnection(username, uuid, emitter);
+        SseConnection old = connections.put(uuid, connection);
+        boolean[] rejected = {false};
+        // 在同一个 compute 中检查连接数并加入, 避免与 remove 中的 computeIfPresent 交错丢失
+        users.compute(username, (key, uuids) -> {
+            if (uuids == null) {
+                uuids = ConcurrentHashMap.newKeySet(8);
+            }
+            if (uuids.size() >= MAX_CONNECTIONS_PER_USER && !uuids.contains(uuid)) {
+                rejected[0] = true;
+                return uuids.isEmpty() ? null : uuids;
+            }
+            uuids.add(uuid);
+            return uuids;
+        });
+        if (rejected[0]) {
+            connections.remove(uuid, connection);
+            return null;
+        }
+        if (old != null) {
+            old.emitter.complete();
+        }
+        emitter.onCompletion(() -> remove(connection));
+        emitter.onTimeout(() -> remove(connection));
+        emitter.onError(e -> remove(connection));
+        return emitter;
+    }
+
+    /**
+     * 立即(异步)推送消息, 通过 SseBroker 分发到所有节点
+     *
+     * @param message Message
+     */
+    public void publish(Message message) {
+        if (broker.isLocalOnly() && !users.containsKey(message.getUsername())) {
+            return;
+        }
+        broker.publish(message);
+    }
+
+    /**
+     * 推送给本节点上该用户的所有连接
+     *
+     * @param message Message
+     */
+    private void deliver(Message message) {
+        Set<String> uuids = users.get(message.getUsername());
+        if (uuids == null) {
+            return;
+        }
+        for (String uuid : uuids) {
+            SseConnection connection = connections.get(uuid);
+            if (connection != null) {
+                enqueue(connection, message);
+            }
+        }
+    }
+
+    /**
+     * 推送需要合并的消息, 同一用户同一url的消息在时间窗口内合并成一帧
+     *
+     * @param username      username
+     * @param url           url
+     * @param body          消息体
+     * @param spaceSupplier 发送时获取用户已用空间, 每帧只调用一次
+     */
+    public void publishBatched(String username, String url, Object body, Supplier<Long> spaceSupplier) {
+        if (broker.isLocalOnly() && !users.containsKey(username)) {
+            return;
+        }
+        String key = username + ":" + url;
+        PendingBatch batch = pendingBatches.compute(key, (k, pending) -> {
+            if (pending == null) {
+                pending = new PendingBatch(username, url);
+            }
+            pending.add(body, spaceSupplier);
+            return pending;
+        });
+        if (batch.scheduled.compareAndSet(false, true)) {
+            // 获取已用空间(聚合查询)和发布到 broker 都可能较慢, 放到虚拟线程上执行, 不占用发送心跳的调度线程
+            scheduler.schedule(() -> senderExecutor.execute(() -> flushBatch(key)), BATCH_WINDOW, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void flushBatch(String key) {
+        PendingBatch batch = pendingBatches.remove(key);
+        if (batch == null) {
+            return;
+        }
+        List<Object> bodies;
+        Supplier<Long> spaceSupplier;
+        synchronized (batch) {
+            bodies = batch.bodies;
+            spaceSupplier = batch.spaceSupplier;
+        }
+        if (bodies.isEmpty()) {
+            return;
+        }
+        Message msg = new Message();
+        msg.setUsername(batch.username);
+        msg.setUrl(batch.url);
+        // body 保持为最后一条, 兼容只读取 body 的客户端
+        msg.setBody(bodies.get(bodies.size() - 1));
+        if (bodies.size() > 1) {
+            msg.setBatch(bodies);
+            batchedCount.addAndGet(bodies.size() - 1L);
+        }
+        if (spaceSupplier != null) {
+            try {
+                msg.setSpace(spaceSupplier.get());
+            } catch (Exception e) {
+                log.warn("获取已用空间失败: {}", e.getMessage());
+            }
+        }
+        publish(msg);
+    }
+
+    private void enqueue(SseConnection connection, Object event) {
+        if (!connection.queue.offer(event)) {
+            log.warn("SSE 连接队列已满, 剔除慢客户端, username: {}, uuid: {}", connection.username, connection.uuid);
+            evict(connection);
+            return;
+        }
+        scheduleDrain(connection);
+    }
+
+    private void scheduleDrain(SseConnection connection) {
+        if (!connection.draining.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            senderExecutor.execute(() -> drain(connection));
+        } catch (RejectedExecutionException e) {
+            connection.draining.set(false);
+            log.warn("SSE 发送线程池已关闭, uuid: {}", connection.uuid);
+        }
+    }
+
+    private void drain(SseConnection connection) {
+        try {
+            Object event;
+            while (!connection.closed && (event = connection.queue.poll()) != null) {
+                connection.sendStartTime = System.currentTimeMillis();
+                try {
+                    if (event instanceof SseEmitter.SseEventBuilder builder) {
+                        connection.emitter.send(builder);
+                    } else {
+                        connection.emitter.send(event);
+                    }
+                    sentCount.incrementAndGet();
+                } catch (IOException | IllegalStateException e) {
+                    remove(connection);
+                    return;
+                } finally {
+                    connection.sendStartTime = 0;
+                }
+            }
+        } finally {
+            connection.draining.set(false);
+        }
+        if (!connection.closed && !connection.queue.isEmpty()) {
+            scheduleDrain(connection);
+        }
+    }
+
+    private void heartbeat() {
+        long now = System.currentTimeMillis();
+        for (SseConnection connection : connections.values()) {
+            long sendStartTime = connection.sendStartTime;
+            if (sendStartTime > 0 && now - sendStartTime > SLOW_CONSUMER_TIMEOUT) {
+                log.warn("SSE 发送超时, 剔除慢客户端, username: {}, uuid: {}", connection.username, connection.uuid);
+                evict(connection);
+                continue;
+            }
+            if (connection.queue.isEmpty()) {
+                enqueue(connection, SseEmitter.event().comment("heartbeat"));
+            }
+        }
+    }
+
+    private void evict(SseConnection connection) {
+        evictedCount.incrementAndGet();
+        remove(connection);
+        try {
+            connection.emitter.complete();
+        } catch (Exception ignored) {
+            // ignored error
+        }
+    }
+
+    private void remove(SseConnection connection) {
+        connection.closed = true;
+        connection.queue.clear();
+        if (!connections.remove(connection.uuid, connection)) {
+            // 已被同一 uuid 的新连接替换, uuid 属于新连接
+            return;
+        }
+        users.computeIfPresent(connection.username, (k, uuids) -> {
+            // 移除后到这里之间可能已经有同一 uuid 的新连接注册
+            if (!connections.containsKey(connection.uuid)) {
+                uuids.remove(connection.uuid);
+            }
+            return uuids.isEmpty() ? null : uuids;
+        });
+    }
+
+    /**
+     * 统计信息: 活跃连接数, 在线用户数, 各连接队列深度等
+     */
+    public Map<String, Object> metrics() {
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        metrics.put("broker", broker.name());
+        metrics.put("activeConnections", connections.size());
+        metrics.put("onlineUsers", users.size());
+        metrics.put("pendingBatches", pendingBatches.size());
+        metrics.put("sent", sentCount.get());
+        metrics.put("batched", batchedCount.get());
+        metrics.put("evicted", evictedCount.get());
+        int maxQueueDepth = 0;
+        long totalQueueDepth = 0;
+        Map<String, Integer> userQueueDepth = new TreeMap<>();
+        for (SseConnection connection : connections.values()) {
+            int depth = connection.queue.size();
+            maxQueueDepth = Math.max(maxQueueDepth, depth);
+            totalQueueDepth += depth;
+            userQueueDepth.merge(connection.username, depth, Integer::sum);
+        }
+        metrics.put("maxQueueDepth", maxQueueDepth);
+        metrics.put("totalQueueDepth", totalQueueDepth);
+        metrics.put("userQueueDepth", userQueueDepth);
+        return metrics;
+    }
+
+    private static class SseConnection {
+        private final String username;
+        private final String uuid;
+        private final SseEmitter emitter;
+        private final BlockingQueue<Object> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+        private final AtomicBoolean draining = new AtomicBoolean(false);
+        private volatile long sendStartTime;
+        private volatile boolean closed;
+
+        SseConnection(String username, String uuid, SseEmitter emitter) {
+            this.username = username;
+            this.uuid = uuid;
+            this.emitter = emitter;
+        }
+    }
+
+    private static class PendingBatch {
+        private final String username;
+        private final String url;
+        private final List<Object> bodies = new ArrayList<>();
+        private final AtomicBoolean scheduled = new AtomicBoolean(false);
+        private Supplier<Long> spaceSupplier;
+
+        PendingBatch(String username, String url) {
+            this.username = username;
+            this.url = url;
+        }
+
+        synchronized void add(Object body, Supplier<Long> spaceSupplier) {
+            if (bodies.size() >= MAX_BATCH_SIZE) {
+                bodies.remove(0);
+            }
+            bodies.add(body);
+            if (spaceSupplier != null) {
+                this.spaceSupplier = spaceSupplier;
+            }
+        }
+    }
+}
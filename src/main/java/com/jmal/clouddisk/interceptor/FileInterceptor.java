@@ -1,43 +1,37 @@
 package com.jmal.clouddisk.interceptor;
 
-import cn.hutool.core.convert.Convert;
 import cn.hutool.core.io.FileUtil;
 import cn.hutool.core.net.URLDecoder;
 import cn.hutool.core.text.CharSequenceUtil;
 import cn.hutool.core.util.BooleanUtil;
 import com.jmal.clouddisk.config.FileProperties;
+import com.jmal.clouddisk.media.ImageDerivativeService;
 import com.jmal.clouddisk.model.FileDocument;
 import com.jmal.clouddisk.model.ShareDO;
 import com.jmal.clouddisk.oss.web.WebOssService;
 import com.jmal.clouddisk.service.Constants;
 import com.jmal.clouddisk.service.IFileService;
 import com.jmal.clouddisk.service.IShareService;
+import com.jmal.clouddisk.service.impl.UserLoginHolder;
 import com.jmal.clouddisk.util.CaffeineUtil;
 import com.jmal.clouddisk.util.FileContentTypeUtils;
+import com.jmal.clouddisk.util.HttpCacheUtil;
 import com.jmal.clouddisk.util.MyFileUtils;
-import com.luciad.imageio.webp.WebPWriteParam;
-import jakarta.servlet.ServletOutputStream;
+import com.jmal.clouddisk.util.TimeUntils;
 import jakarta.servlet.http.HttpServletRequest;
 import jakarta.servlet.http.HttpServletResponse;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
-import net.coobird.thumbnailator.Thumbnails;
-import net.coobird.thumbnailator.tasks.UnsupportedFormatException;
+import org.apache.catalina.connector.ClientAbortException;
 import org.jetbrains.annotations.NotNull;
 import org.springframework.http.ContentDisposition;
 import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
 import org.springframework.stereotype.Component;
 import org.springframework.web.servlet.HandlerInterceptor;
 import org.springframework.web.servlet.HandlerMapping;
 import org.springframework.web.util.UriUtils;
 
-import javax.imageio.IIOImage;
-import javax.imageio.ImageIO;
-import javax.imageio.ImageWriteParam;
-import javax.imageio.ImageWriter;
-import javax.imageio.stream.FileCacheImageOutputStream;
-import java.awt.image.BufferedImage;
-import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.net.URLEncoder;
@@ -87,6 +81,14 @@ public class FileInterceptor implements HandlerInterceptor {
      * 路径最小层级
      */
     private static final int MIN_COUNT = 2;
+    /***
+     * 占用的下载流, request attribute
+     */
+    private static final String STREAM_KEY = "streamKey";
+    /***
+     * 当前请求的 FileDocument, request attribute
+     */
+    private static final String FILE_DOCUMENT = "fileDocument";
 
     private final FileProperties fileProperties;
 
@@ -98,14 +100,57 @@ public class FileInterceptor implements HandlerInterceptor {
 
     private final WebOssService webOssService;
 
+    private final ImageDerivativeService imageDerivativeService;
+
+    private final StreamLimiter streamLimiter;
+
+    private final UserLoginHolder userLoginHolder;
+
     @Override
     public boolean preHandle(@NotNull HttpServletRequest request, @NotNull HttpServletResponse response, @NotNull Object handler) {
         if (fileAuthError(request, response)) {
             return false;
         }
+        String operation = request.getParameter(OPERATION);
+        if (!isStream(operation)) {
+            return handle(request, response, operation);
+        }
+        String streamKey = StreamLimiter.getKey(request, userLoginHolder.getUsername());
+        if (!streamLimiter.tryAcquire(streamKey)) {
+            response.setStatus(HttpStatus.TOO_MANY_REQUESTS.value());
+            return false;
+        }
+        boolean next = false;
+        try {
+            next = handle(request, response, operation);
+        } finally {
+            if (next) {
+                // 由静态资源处理器输出, 在 afterCompletion 中释放
+                request.setAttribute(STREAM_KEY, streamKey);
+            } else {
+                streamLimiter.release(streamKey);
+            }
+        }
+        return next;
+    }
+
+    @Override
+    public void afterCompletion(@NotNull HttpServletRequest request, @NotNull HttpServletResponse response, @NotNull Object handler, Exception ex) {
+        if (request.getAttribute(STREAM_KEY) instanceof String streamKey) {
+            streamLimiter.release(streamKey);
+        }
+    }
+
+    /**
+     * 下载/预览原文件时占用下载流, 缩略图等衍生文件不占用
+     */
+    private static boolean isStream(String operation) {
+        return CharSequenceUtil.isBlank(operation) || DOWNLOAD.equals(operation) || PREVIEW.equals(operation);
+    }
+
+    private boolean handle(HttpServletRequest request, HttpServletResponse response, String operation) {
         Path path = Paths.get(request.getRequestURI());
         String encodedFilename = URLEncoder.encode(String.valueOf(path.getFileName()), StandardCharsets.UTF_8);
-        String operation = request.getParameter(OPERATION);
         setCacheControl(request, response);
         if (!CharSequenceUtil.isBlank(operation)) {
             switch (operation) {
@@ -121,17 +166,36 @@ public class FileInterceptor implements HandlerInterceptor {
                 case PREVIEW -> {
                     if (previewOssFile(request, response, path, encodedFilename)) return false;
                 }
-                case CROP -> handleCrop(request, response);
-                case THUMBNAIL -> thumbnail(request, response);
-                case WEBP -> webp(request, response);
+                case CROP -> {
+                    return !handleCrop(request, response);
+                }
+                case THUMBNAIL -> {
+                    return !thumbnail(request, response);
+                }
+                case WEBP -> {
+                    return !webp(request, response);
+                }
                 default -> {
                     return true;
                 }
             }
-        } else {
-            return !previewOssFile(request, response, path, encodedFilename);
+        } else if (previewOssFile(request, response, path, encodedFilename)) {
+            return false;
         }
-        return true;
+        // 本地文件由静态资源处理器输出(含 Range), 这里只处理 ETag
+        return !checkNotModified(request, response);
+    }
+
+    /**
+     * 本地文件的 ETag, 未修改时返回 304
+     */
+    private boolean checkNotModified(HttpServletRequest request, HttpServletResponse response) {
+        File file = getFileByRequest(request);
+        if (!file.isFile()) {
+            return false;
+        }
+        String eTag = getETag(getFileId(request, file), file, "");
+        return HttpCacheUtil.checkNotModified(request, response, eTag, file.lastModified());
     }
 
     private void setCacheControl(@NotNull HttpServletRequest request, @NotNull HttpServletResponse response) {
@@ -186,7 +250,7 @@ public class FileInterceptor implements HandlerInterceptor {
             if (!CharSequenceUtil.isBlank(username) && username.equals(uriPath.getName(1).toString())) {
                 return false;
             }
-            return isNotAllowAccess(getFileDocument(uriPath), request);
+            return isNotAllowAccess(getFileDocument(request, uriPath), request);
         }
     }
 
@@ -194,7 +258,7 @@ public class FileInterceptor implements HandlerInterceptor {
         FileDocument fileDocument = fileService.getById(shareKey);
         if (!isNotAllowAccess(fileDocument, request)) {
             // 判断当前uri所属的文件是否为已分享的文件或其子文件
-            FileDocument thisFile = getFileDocument(uriPath);
+            FileDocument thisFile = getFileDocument(request, uriPath);
             if (thisFile.getPath().equals(fileDocument.getPath())) {
                 return false;
             }
@@ -251,47 +315,107 @@ public class FileInterceptor implements HandlerInterceptor {
         return false;
     }
 
-    private void webp(HttpServletRequest request, HttpServletResponse response) {
-        Path uriPath = Paths.get(URLDecoder.decode(request.getRequestURI(), StandardCharsets.UTF_8));
-        uriPath = uriPath.subpath(1, uriPath.getNameCount());
-        try {
-            File file = Paths.get(fileProperties.getRootDir(), uriPath.toString()).toFile();
-            // 从某处获取图像进行编码
-            BufferedImage image = ImageIO.read(file);
-
-            // 获取一个WebP ImageWriter实例
-            ImageWriter writer = ImageIO.getImageWritersByMIMEType("image/webp").next();
-            responseHeader(response, file.getName() + ".webp", new byte[1]);
-            // 配置编码参数
-            WebPWriteParam writeParam = new WebPWriteParam(writer.getLocale());
-            writeParam.setCompressionMode(ImageWriteParam.MODE_DEFAULT);
-            // 在ImageWriter上配置输出
-            FileCacheImageOutputStream output = new FileCacheImageOutputStream(response.getOutputStream(), null);
-            writer.setOutput(output);
-            // 编码
-            writer.write(null, new IIOImage(image, null, null), writeParam);
-        } catch (IOException e) {
-            log.error(e.getMessage(), e);
+    /**
+     * @return 是否已输出
+     */
+    private boolean webp(HttpServletRequest request, HttpServletResponse response) {
+        File file = getFileByRequest(request);
+        if (!file.isFile()) {
+            return false;
         }
-
+        // 原文件未修改时不需要生成
+        String eTag = getETag(getFileId(request, file), file, WEBP);
+        if (derivativeNotModified(request, response, eTag, file.lastModified())) {
+            return true;
+        }
+        File webpFile = imageDerivativeService.webp(file);
+        if (webpFile != null) {
+            HttpCacheUtil.setCacheHeaders(response, eTag, file.lastModified());
+            responseWriteFile(request, response, file.getName() + Constants.POINT_SUFFIX_WEBP, webpFile, eTag, file.lastModified());
+            return true;
+        }
+        return false;
     }
 
-    private void thumbnail(HttpServletRequest request, HttpServletResponse response) {
+    /**
+     * @return 是否已输出
+     */
+    private boolean thumbnail(HttpServletRequest request, HttpServletResponse response) {
         Path uriPath = Paths.get(URLDecoder.decode(request.getRequestURI(), StandardCharsets.UTF_8));
         if (uriPath.getNameCount() < MIN_COUNT) {
-            return;
+            return false;
         }
-        FileDocument fileDocument = getFileDocument(uriPath);
+        FileDocument fileDocument = getFileDocument(request, uriPath);
         Path relativePath = uriPath.subpath(1, uriPath.getNameCount());
+        if (fileDocument == null) {
+            return false;
+        }
+        if (fileDocument.getContent() == null) {
+            File file = Paths.get(fileProperties.getRootDir(), relativePath.toString()).toFile();
+            if (!file.exists()) {
+                return false;
+            }
+            String eTag = getETag(fileDocument.getId(), file, THUMBNAIL);
+            if (derivativeNotModified(request, response, eTag, file.lastModified())) {
+                return true;
+            }
+            // 没有缩略图时, 生成缩略图, 生成失败则返回原文件, 使用原文件自己的 ETag
+            File thumbnailFile = imageDerivativeService.thumbnail(file);
+            if (thumbnailFile == null) {
+                thumbnailFile = file;
+                eTag = getETag(fileDocument.getId(), file, "");
+            }
+            HttpCacheUtil.setCacheHeaders(response, eTag, file.lastModified());
+            responseWriteFile(request, response, fileDocument.getName(), thumbnailFile, eTag, file.lastModified());
+            return true;
+        }
+        byte[] content = fileDocument.getContent();
+        long lastModified = fileDocument.getUpdateDate() != null ? TimeUntils.getMilli(fileDocument.getUpdateDate()) : 0;
+        String eTag = HttpCacheUtil.strongETag(fileDocument.getId() + THUMBNAIL, content.length, lastModified);
+        if (!HttpCacheUtil.checkNotModified(request, response, eTag, lastModified)) {
+            responseWritImage(request, response, fileDocument.getName(), content, eTag, lastModified);
+        }
+        return true;
+    }
+
+    /**
+     * 同一个请求中鉴权和生成 ETag 都要用到 FileDocument, 只查询一次
+     */
+    private FileDocument getFileDocument(HttpServletRequest request, Path uriPath) {
+        if (request.getAttribute(FILE_DOCUMENT) instanceof FileDocument fileDocument) {
+            return fileDocument;
+        }
+        FileDocument fileDocument = getFileDocument(uriPath);
         if (fileDocument != null) {
-            if (fileDocument.getContent() == null) {
-                File file = Paths.get(fileProperties.getRootDir(), relativePath.toString()).toFile();
-                if (file.exists()) {
-                    fileDocument.setContent(FileUtil.readBytes(file));
-                }
+            request.setAttribute(FILE_DOCUMENT, fileDocument);
+        }
+        return fileDocument;
+    }
+
+    /**
+     * @return 文件id, 没有 FileDocument 时用文件路径
+     */
+    private String getFileId(HttpServletRequest request, File file) {
+        Path uriPath = Paths.get(URLDecoder.decode(request.getRequestURI(), StandardCharsets.UTF_8));
+        if (uriPath.getNameCount() >= MIN_COUNT) {
+            FileDocument fileDocument = getFileDocument(request, uriPath);
+            if (fileDocument != null) {
+                return fileDocument.getId();
             }
-            responseWritImage(response, fileDocument.getName(), fileDocument.getContent());
         }
+        return file.getAbsolutePath();
+    }
+
+    /**
+     * 原文件和各个衍生文件的 ETag 都由 (文件id + 操作, 原文件大小, 原文件修改时间) 生成
+     * <p>
+     * 原文件被替换后, 原文件和所有衍生文件的 ETag 都会变化
+     * </p>
+     *
+     * @param operation 操作及其参数, 原文件为空字符串
+     */
+    private static String getETag(String fileId, File file, String operation) {
+        return HttpCacheUtil.strongETag(fileId + operation, file.length(), file.lastModified());
     }
 
     private FileDocument getFileDocument(Path uriPath) {
@@ -304,15 +428,46 @@ public class FileInterceptor implements HandlerInterceptor {
         return fileService.getFileDocumentByPathAndName(path, name, username);
     }
 
-    private void handleCrop(HttpServletRequest request, HttpServletResponse response) {
+    /**
+     * @return 是否已输出
+     */
+    private boolean handleCrop(HttpServletRequest request, HttpServletResponse response) {
         File file = getFileByRequest(request);
+        if (!file.isFile()) {
+            return false;
+        }
         String q = request.getParameter("q");
         String w = request.getParameter("w");
         String h = request.getParameter("h");
-        byte[] img = imageCrop(file, q, w, h);
-        if (img.length > 0) {
-            responseWritImage(response, file.getName(), img);
+        String eTag = getETag(getFileId(request, file), file, CROP + "-" + q + "-" + w + "-" + h);
+        if (derivativeNotModified(request, response, eTag, file.lastModified())) {
+            return true;
+        }
+        File cropFile = imageDerivativeService.crop(file, q, w, h);
+        if (cropFile != null) {
+            HttpCacheUtil.setCacheHeaders(response, eTag, file.lastModified());
+            responseWriteFile(request, response, file.getName(), cropFile, eTag, file.lastModified());
+            return true;
         }
+        return false;
+    }
+
+    /**
+     * 衍生文件(webp/缩略图/剪裁)的条件请求, 只比较 ETag
+     * <p>
+     * ETag 在衍生文件生成后才设置, 生成失败时返回的原文件不带衍生文件的 ETag<br>
+     * 原文件的 Last-Modified 和衍生文件相同, 不能用 If-Modified-Since 区分客户端缓存的是哪一个
+     * </p>
+     *
+     * @return 未修改时返回 true, 已设置状态码 304
+     */
+    private static boolean derivativeNotModified(HttpServletRequest request, HttpServletResponse response, String eTag, long lastModified) {
+        if (!HttpCacheUtil.isNotModified(request, eTag, 0)) {
+            return false;
+        }
+        HttpCacheUtil.setCacheHeaders(response, eTag, lastModified);
+        response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+        return true;
     }
 
     private @NotNull File getFileByRequest(HttpServletRequest request) {
@@ -321,73 +476,36 @@ public class FileInterceptor implements HandlerInterceptor {
         return Paths.get(fileProperties.getRootDir(), uriPath.toString()).toFile();
     }
 
-    private void responseWritImage(HttpServletResponse response, String fileName, byte[] img) {
-        responseHeader(response, fileName, img);
-        try (ServletOutputStream outputStream = response.getOutputStream()) {
-            outputStream.write(img);
+    private void responseWritImage(HttpServletRequest request, HttpServletResponse response, String fileName, byte[] img, String eTag, long lastModified) {
+        responseHeader(response, fileName);
+        try {
+            HttpCacheUtil.writeBytes(request, response, img, eTag, lastModified);
+        } catch (ClientAbortException ignored) {
+            // ignored error
+        } catch (IOException e) {
+            log.error(e.getMessage(), e);
+        }
+    }
+
+    private void responseWriteFile(HttpServletRequest request, HttpServletResponse response, String fileName, File file, String eTag, long lastModified) {
+        responseHeader(response, fileName);
+        try {
+            HttpCacheUtil.writeFile(request, response, file, eTag, lastModified);
+        } catch (ClientAbortException ignored) {
+            // ignored error
         } catch (IOException e) {
             log.error(e.getMessage(), e);
         }
     }
 
-    private void responseHeader(HttpServletResponse response, String fileName, byte[] img) {
+    private void responseHeader(HttpServletResponse response, String fileName) {
         if (!CharSequenceUtil.isBlank(fileName)) {
             response.setHeader(HttpHeaders.CONTENT_DISPOSITION, "fileName=" + ContentDisposition.builder("attachment")
                     .filename(UriUtils.encode(fileName, StandardCharsets.UTF_8)));
             response.setHeader(HttpHeaders.CONTENT_TYPE, FileContentTypeUtils.getContentType(FileUtil.extName(fileName)));
         }
-        if (img != null) {
-            response.setHeader(HttpHeaders.CONTENT_LENGTH, String.valueOf(img.length));
-        }
-        response.setHeader(HttpHeaders.CONNECTION, "close");
         response.setHeader(HttpHeaders.CONTENT_ENCODING, "utf-8");
         response.setHeader(HttpHeaders.CACHE_CONTROL, "max-age=2592000");
     }
 
-    /**
-     * 剪裁图片
-     *
-     * @param srcFile 源文件
-     * @param q       剪裁后的质量
-     * @param w       剪裁后的宽度
-     * @param h       剪裁后的高度
-     * @return 剪裁后的文件
-     */
-    public static byte[] imageCrop(File srcFile, String q, String w, String h) {
-        try {
-            Thumbnails.Builder<? extends File> thumbnail = Thumbnails.of(srcFile);
-            //获取图片信息
-            BufferedImage bim = ImageIO.read(srcFile);
-            if (bim == null) {
-                return new byte[0];
-            }
-            int srcWidth = bim.getWidth();
-            int srcHeight = bim.getHeight();
-            double quality = Convert.toDouble(q, 0.8);
-            if (quality >= 0 && quality <= 1) {
-                thumbnail.outputQuality(quality);
-            }
-            int width = Convert.toInt(w, -1);
-            int height = Convert.toInt(h, -1);
-            if (width > 0 && srcWidth > width) {
-                if (height <= 0 || srcHeight <= height) {
-                    height = (int) (width / (double) srcWidth * srcHeight);
-                    height = height == 0 ? width : height;
-                }
-                thumbnail.size(width, height);
-            } else {
-                //宽高均小，指定原大小
-                thumbnail.size(srcWidth, srcHeight);
-            }
-            ByteArrayOutputStream out = new ByteArrayOutputStream();
-            thumbnail.toOutputStream(out);
-            return out.toByteArray();
-        } catch (UnsupportedFormatException e) {
-            log.warn(e.getMessage(), e);
-        } catch (IOException e) {
-            log.error(e.getMessage(), e);
-        }
-        return new byte[0];
-    }
-
 }
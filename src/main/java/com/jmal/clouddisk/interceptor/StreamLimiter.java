@@ -0,0 +1,119 @@
+package com.jmal.clouddisk.interceptor;
+
+import cn.hutool.core.text.CharSequenceUtil;
+import cn.hutool.extra.servlet.JakartaServletUtil;
+import com.jmal.clouddisk.config.FileProperties;
+import jakarta.servlet.http.HttpServletRequest;
+import lombok.RequiredArgsConstructor;
+import org.jetbrains.annotations.NotNull;
+import org.springframework.stereotype.Component;
+import org.springframework.web.context.request.NativeWebRequest;
+import org.springframework.web.context.request.async.CallableProcessingInterceptor;
+import org.springframework.web.context.request.async.WebAsyncUtils;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * 限制每个用户同时进行的下载流数量
+ * <p>
+ * 登录用户按用户名计数, 未登录的(如分享链接)按客户端IP计数<br>
+ * file.max-streams-per-user 为 0 时不限制
+ * </p>
+ *
+ * @author jmal
+ */
+@Component
+@RequiredArgsConstructor
+public class StreamLimiter {
+
+    private final FileProperties fileProperties;
+
+    /**
+     * 正在进行的下载流数量
+     * key: 用户名或 ip:客户端IP
+     */
+    private final Map<String, Integer> streams = new ConcurrentHashMap<>();
+
+    /**
+     * 计数用的key
+     *
+     * @param request  HttpServletRequest
+     * @param username 当前登录的用户名, 可以为空
+     * @return key
+     */
+    public static String getKey(HttpServletRequest request, String username) {
+        if (CharSequenceUtil.isNotBlank(username)) {
+            return username;
+        }
+        return "ip:" + JakartaServletUtil.getClientIP(request);
+    }
+
+    /**
+     * 占用一个下载流
+     *
+     * @param key getKey
+     * @return 超过上限时返回 false
+     */
+    public boolean tryAcquire(String key) {
+        int max = fileProperties.getMaxStreamsPerUser();
+        if (max <= 0) {
+            return true;
+        }
+        boolean[] acquired = {false};
+        streams.compute(key, (k, count) -> {
+            int current = count == null ? 0 : count;
+            if (current >= max) {
+                return count;
+            }
+            acquired[0] = true;
+            return current + 1;
+        });
+        return acquired[0];
+    }
+
+    /**
+     * 释放一个下载流
+     *
+     * @param key getKey
+     */
+    public void release(String key) {
+        streams.computeIfPresent(key, (k, count) -> count <= 1 ? null : count - 1);
+    }
+
+    /**
+     * 已占用下载流的 StreamingResponseBody, 写完后释放
+     * <p>
+     * writeTo 没有执行时(线程池拒绝, 客户端在开始输出前断开), 由异步请求结束(完成/超时/出错)时释放, 只释放一次
+     * </p>
+     *
+     * @param request      HttpServletRequest
+     * @param key          getKey
+     * @param responseBody StreamingResponseBody
+     * @return StreamingResponseBody
+     */
+    public StreamingResponseBody releaseAfter(HttpServletRequest request, String key, StreamingResponseBody responseBody) {
+        AtomicBoolean released = new AtomicBoolean();
+        Runnable releaseOnce = () -> {
+            if (released.compareAndSet(false, true)) {
+                release(key);
+            }
+        };
+        WebAsyncUtils.getAsyncManager(request).registerCallableInterceptor(StreamLimiter.class.getName(), new CallableProcessingInterceptor() {
+            @Override
+            public <T> void afterCompletion(@NotNull NativeWebRequest webRequest, @NotNull Callable<T> task) {
+                releaseOnce.run();
+            }
+        });
+        return outputStream -> {
+            try {
+                responseBody.writeTo(outputStream);
+            } finally {
+                releaseOnce.run();
+            }
+        };
+    }
+}
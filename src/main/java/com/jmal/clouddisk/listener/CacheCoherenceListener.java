@@ -0,0 +1,156 @@
+package com.jmal.clouddisk.listener;
+
+import cn.hutool.core.thread.ThreadUtil;
+import com.jmal.clouddisk.config.FileProperties;
+import com.jmal.clouddisk.oss.OssConfigService;
+import com.jmal.clouddisk.oss.web.model.OssConfigDO;
+import com.jmal.clouddisk.service.impl.MenuService;
+import com.jmal.clouddisk.service.impl.RoleService;
+import com.jmal.clouddisk.service.impl.UserServiceImpl;
+import com.jmal.clouddisk.util.CaffeineUtil;
+import com.mongodb.client.MongoChangeStreamCursor;
+import com.mongodb.client.model.Aggregates;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.changestream.ChangeStreamDocument;
+import com.mongodb.client.model.changestream.FullDocument;
+import com.mongodb.client.model.changestream.OperationType;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.bson.BsonDocument;
+import org.bson.BsonValue;
+import org.bson.Document;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.stereotype.Component;
+
+import java.util.List;
+
+/**
+ * 多节点缓存一致性
+ * <p>
+ * 监听 user, role, menu, OssConfig 集合的 change stream, 在每个节点上删除对应的本地缓存<br>
+ * 1. user 变化: 删除该用户的用户信息/权限/userId/username 缓存<br>
+ * 2. role, menu 变化: 删除所有用户的权限缓存<br>
+ * 3. OssConfig 变化: 重新加载或销毁对应的 OSS 挂载<br>
+ * 需要 MongoDB 以副本集方式运行, 通过 file.cacheCoherence 开启
+ * </p>
+ *
+ * @author jmal
+ */
+@Component
+@Slf4j
+@RequiredArgsConstructor
+public class CacheCoherenceListener {
+
+    private static final List<String> WATCH_COLLECTIONS = List.of(UserServiceImpl.COLLECTION_NAME, RoleService.COLLECTION_NAME, MenuService.COLLECTION_NAME, OssConfigService.COLLECTION_NAME);
+
+    private final FileProperties fileProperties;
+
+    private final MongoTemplate mongoTemplate;
+
+    private final OssConfigService ossConfigService;
+
+    private volatile boolean running;
+
+    private volatile MongoChangeStreamCursor<ChangeStreamDocument<Document>> cursor;
+
+    @PostConstruct
+    public void init() {
+        if (!Boolean.TRUE.equals(fileProperties.getCacheCoherence())) {
+            return;
+        }
+        running = true;
+        ThreadUtil.newThread(this::watchLoop, "cacheCoherenceWatch", true).start();
+    }
+
+    @PreDestroy
+    public void destroy() {
+        running = false;
+        MongoChangeStreamCursor<ChangeStreamDocument<Document>> current = cursor;
+        if (current != null) {
+            current.close();
+        }
+    }
+
+    private void watchLoop() {
+        BsonDocument resumeToken = null;
+        while (running) {
+            var changeStream = mongoTemplate.getDb()
+                    .watch(List.of(Aggregates.match(Filters.in("ns.coll", WATCH_COLLECTIONS))))
+                    .fullDocument(FullDocument.UPDATE_LOOKUP);
+            if (resumeToken != null) {
+                changeStream = changeStream.resumeAfter(resumeToken);
+            } else {
+                // 没有续传点, 监听开始前的变化可能已经错过
+                CaffeineUtil.invalidateAllUsers();
+            }
+            try (MongoChangeStreamCursor<ChangeStreamDocument<Document>> changeStreamCursor = changeStream.cursor()) {
+                cursor = changeStreamCursor;
+                while (running) {
+                    ChangeStreamDocument<Document> change = changeStreamCursor.next();
+                    resumeToken = change.getResumeToken();
+                    onChange(change);
+                }
+            } catch (Exception e) {
+                if (!running) {
+                    return;
+                }
+                log.warn("缓存一致性 change stream 中断, 5秒后重试: {}", e.getMessage());
+                ThreadUtil.sleep(5000);
+            }
+        }
+    }
+
+    private void onChange(ChangeStreamDocument<Document> change) {
+        if (change.getNamespace() == null) {
+            if (change.getOperationType() == OperationType.INVALIDATE || change.getOperationType() == OperationType.DROP_DATABASE) {
+                CaffeineUtil.invalidateAllUsers();
+            }
+            return;
+        }
+        String collection = change.getNamespace().getCollectionName();
+        String id = getId(change.getDocumentKey());
+        Document fullDocument = change.getFullDocument();
+        try {
+            switch (collection) {
+                case UserServiceImpl.COLLECTION_NAME -> {
+                    if (id == null) {
+                        CaffeineUtil.invalidateAllUsers();
+                    } else {
+                        CaffeineUtil.invalidateUser(id, fullDocument == null ? null : fullDocument.getString("username"));
+                    }
+                }
+                case RoleService.COLLECTION_NAME, MenuService.COLLECTION_NAME -> CaffeineUtil.invalidateAllAuthorities();
+                case OssConfigService.COLLECTION_NAME -> {
+                    if (id != null) {
+                        OssConfigDO ossConfigDO = fullDocument == null ? null : mongoTemplate.getConverter().read(OssConfigDO.class, fullDocument);
+                        ossConfigService.syncOssConfig(id, ossConfigDO);
+                    }
+                }
+                default -> {
+                    // ignore
+                }
+            }
+        } catch (Exception e) {
+            log.error("缓存同步失败, collection: {}, id: {}", collection, id, e);
+        }
+    }
+
+    private static String getId(BsonDocument documentKey) {
+        if (documentKey == null) {
+            return null;
+        }
+        BsonValue id = documentKey.get("_id");
+        if (id == null) {
+            return null;
+        }
+        if (id.isObjectId()) {
+            return id.asObjectId().getValue().toHexString();
+        }
+        if (id.isString()) {
+            return id.asString().getValue();
+        }
+        return id.toString();
+    }
+}
@@ -209,14 +209,15 @@ public class FileMonitor {
     /**
      * 定时清理临时目录
      * 每天凌晨2点执行
-     * 清理临时目录中7天前的文件
+     * 清理临时目录中7天前的文件, 站点地图缓存目录除外
      */
     @Scheduled(cron = "0 0 2 * * ?")
     private void cleanTempDir() {
         // 临时目录
         Path tempPath = Paths.get(fileProperties.getRootDir(), fileProperties.getChunkFileDir());
         for (File username : FileUtil.ls(tempPath.toString())) {
-            if (username.isDirectory()) {
+            // 站点地图只在文章修改时重新生成, 不能按时间清理
+            if (username.isDirectory() && !fileProperties.getSitemapCache().equals(username.getName())) {
                 for (File file : FileUtil.ls(username.getAbsolutePath())) {
                     // 是否为七天前的文件
                     boolean sevenDayAgo = file.lastModified() < (System.currentTimeMillis() - DateUnit.DAY.getMillis() * 7);
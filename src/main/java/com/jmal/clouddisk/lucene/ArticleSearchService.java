@@ -0,0 +1,319 @@
+package com.jmal.clouddisk.lucene;
+
+import cn.hutool.core.thread.ThreadUtil;
+import cn.hutool.core.util.ReUtil;
+import cn.hutool.core.util.StrUtil;
+import com.jmal.clouddisk.config.FileProperties;
+import com.jmal.clouddisk.model.FileDocument;
+import com.jmal.clouddisk.service.Constants;
+import com.jmal.clouddisk.service.IUserService;
+import com.jmal.clouddisk.service.impl.CommonFileService;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.document.*;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.StoredFields;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.queryparser.classic.MultiFieldQueryParser;
+import org.apache.lucene.queryparser.classic.ParseException;
+import org.apache.lucene.queryparser.classic.QueryParser;
+import org.apache.lucene.search.*;
+import org.apache.lucene.search.highlight.*;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+
+/**
+ * 已发布文章的全文检索
+ * <p>
+ * 与网盘文件的索引分开, 单独保存在 articleIndexDir 目录, 只包含已发布的文章(不含独立页面)<br>
+ * 使用 LuceneConfig 中的分词器(smartcn), 按相关性排序, 返回高亮的摘要<br>
+ * 在 editMarkdown, deleteDraft, 删除, 重命名, 移动文章时增量更新, 启动时文章数和数据库不一致则从数据库重建<br>
+ * 重建和增量更新互斥, 重建过程中的修改不会被 deleteAll 覆盖
+ * </p>
+ *
+ * @author jmal
+ */
+@Service
+@Slf4j
+@RequiredArgsConstructor
+public class ArticleSearchService {
+
+    private static final String FIELD_ID = "id";
+
+    private static final String FIELD_TITLE = "title";
+
+    private static final String FIELD_CONTENT = "content";
+
+    /**
+     * 摘要长度
+     */
+    private static final int FRAGMENT_SIZE = 120;
+
+    /**
+     * 摘要的最大片段数
+     */
+    private static final int MAX_FRAGMENTS = 2;
+
+    private static final Map<String, Float> BOOSTS = Map.of(FIELD_TITLE, 3.0f, FIELD_CONTENT, 1.0f);
+
+    private final FileProperties fileProperties;
+
+    private final Analyzer analyzer;
+
+    private final MongoTemplate mongoTemplate;
+
+    private Directory directory;
+
+    private IndexWriter indexWriter;
+
+    private SearcherManager searcherManager;
+
+    @PostConstruct
+    public void init() throws IOException {
+        Path indexDir = Paths.get(fileProperties.getRootDir(), fileProperties.getArticleIndexDir());
+        directory = FSDirectory.open(indexDir);
+        indexWriter = new IndexWriter(directory, new IndexWriterConfig(analyzer));
+        searcherManager = new SearcherManager(indexWriter, true, true, new SearcherFactory());
+        ThreadUtil.execute(() -> {
+            // 停机期间或其他途径的修改没有同步到索引时, 文章数会不一致
+            long articleCount = mongoTemplate.count(getArticleQuery(), CommonFileService.COLLECTION_NAME);
+            if (indexWriter.getDocStats().numDocs != articleCount) {
+                rebuild();
+            }
+        });
+    }
+
+    @PreDestroy
+    public void destroy() {
+        try {
+            searcherManager.close();
+            indexWriter.close();
+            directory.close();
+        } catch (IOException e) {
+            log.error("关闭文章索引失败: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * 文章修改后更新索引, 未发布的文章和独立页面从索引中删除
+     *
+     * @param fileId 文章id
+     */
+    public synchronized void updateArticle(String fileId) {
+        if (fileId == null) {
+            return;
+        }
+        FileDocument fileDocument = mongoTemplate.findById(fileId, FileDocument.class, CommonFileService.COLLECTION_NAME);
+        try {
+            if (isSearchable(fileDocument)) {
+                indexWriter.updateDocument(new Term(FIELD_ID, fileId), toDocument(fileDocument));
+            } else {
+                indexWriter.deleteDocuments(new Term(FIELD_ID, fileId));
+            }
+            commit();
+        } catch (IOException e) {
+            log.error("更新文章索引失败, fileId: {}, {}", fileId, e.getMessage(), e);
+        }
+    }
+
+    /**
+     * 删除文章索引
+     *
+     * @param fileIds 文章id
+     */
+    public synchronized void deleteArticles(Collection<String> fileIds) {
+        if (fileIds == null || fileIds.isEmpty()) {
+            return;
+        }
+        try {
+            indexWriter.deleteDocuments(fileIds.stream().map(fileId -> new Term(FIELD_ID, fileId)).toArray(Term[]::new));
+            commit();
+        } catch (IOException e) {
+            log.error("删除文章索引失败, fileIds: {}, {}", fileIds, e.getMessage(), e);
+        }
+    }
+
+    /**
+     * 文件夹重命名/移动后, 更新其下所有已发布文章的索引, 移出文章目录的从索引中删除
+     *
+     * @param userId     userId
+     * @param pathPrefix 文件夹的新路径, 以 / 结尾
+     */
+    public synchronized void updateArticles(String userId, String pathPrefix) {
+        Query query = new Query();
+        query.addCriteria(Criteria.where(IUserService.USER_ID).is(userId));
+        query.addCriteria(Criteria.where("path").regex("^" + ReUtil.escape(pathPrefix)));
+        query.addCriteria(Criteria.where(Constants.SUFFIX).is("md"));
+        query.addCriteria(Criteria.where(Constants.RELEASE).is(true));
+        query.fields().include("_id");
+        for (org.bson.Document document : mongoTemplate.find(query, org.bson.Document.class, CommonFileService.COLLECTION_NAME)) {
+            updateArticle(document.getObjectId("_id").toHexString());
+        }
+    }
+
+    /**
+     * 从数据库重建文章索引
+     */
+    public synchronized void rebuild() {
+        long start = System.currentTimeMillis();
+        try {
+            indexWriter.deleteAll();
+            Query query = getArticleQuery();
+            query.fields().include("name", Constants.SUFFIX, "contentText", Constants.RELEASE, Constants.ALONE_PAGE, "path");
+            int count = 0;
+            try (var stream = mongoTemplate.stream(query, FileDocument.class, CommonFileService.COLLECTION_NAME)) {
+                for (FileDocument fileDocument : (Iterable<FileDocument>) stream::iterator) {
+                    indexWriter.addDocument(toDocument(fileDocument));
+                    count++;
+                }
+            }
+            commit();
+            log.info("文章索引重建完成, 文章数: {}, 耗时: {}ms", count, System.currentTimeMillis() - start);
+        } catch (Exception e) {
+            log.error("文章索引重建失败: {}", e.getMessage(), e);
+        }
+    }
+
+    /**
+     * 搜索文章
+     *
+     * @param keyword  关键字
+     * @param page     页码, 从1开始
+     * @param pageSize 每页条数
+     * @return 当前页的命中结果和总数
+     */
+    public SearchResult search(String keyword, int page, int pageSize) {
+        if (StrUtil.isBlank(keyword)) {
+            return new SearchResult(Collections.emptyList(), 0);
+        }
+        page = Math.max(page, 1);
+        IndexSearcher indexSearcher = null;
+        try {
+            searcherManager.maybeRefresh();
+            indexSearcher = searcherManager.acquire();
+            org.apache.lucene.search.Query query = getQuery(keyword);
+            int count = indexSearcher.count(query);
+            int start = (page - 1) * pageSize;
+            if (start >= count) {
+                return new SearchResult(Collections.emptyList(), count);
+            }
+            TopDocs topDocs = indexSearcher.search(query, start + pageSize);
+            QueryScorer scorer = new QueryScorer(query, FIELD_CONTENT);
+            Highlighter highlighter = new Highlighter(new SimpleHTMLFormatter("<mark>", "</mark>"), new SimpleHTMLEncoder(), scorer);
+            highlighter.setTextFragmenter(new SimpleSpanFragmenter(scorer, FRAGMENT_SIZE));
+            StoredFields storedFields = indexSearcher.storedFields();
+            List<Hit> hits = new ArrayList<>(pageSize);
+            for (int i = start; i < topDocs.scoreDocs.length; i++) {
+                Document document = storedFields.document(topDocs.scoreDocs[i].doc);
+                hits.add(new Hit(document.get(FIELD_ID), getHighlight(highlighter, document.get(FIELD_CONTENT))));
+            }
+            return new SearchResult(hits, count);
+        } catch (IOException | ParseException e) {
+            log.error("搜索文章失败, keyword: {}, {}", keyword, e.getMessage(), e);
+            return new SearchResult(Collections.emptyList(), 0);
+        } finally {
+            if (indexSearcher != null) {
+                try {
+                    searcherManager.release(indexSearcher);
+                } catch (IOException e) {
+                    log.error(e.getMessage(), e);
+                }
+            }
+        }
+    }
+
+    private org.apache.lucene.search.Query getQuery(String keyword) throws ParseException {
+        MultiFieldQueryParser parser = new MultiFieldQueryParser(new String[]{FIELD_TITLE, FIELD_CONTENT}, analyzer, BOOSTS);
+        parser.setDefaultOperator(QueryParser.Operator.AND);
+        return parser.parse(QueryParser.escape(keyword.trim()));
+    }
+
+    private String getHighlight(Highlighter highlighter, String content) {
+        if (StrUtil.isBlank(content)) {
+            return null;
+        }
+        try {
+            String fragments = highlighter.getBestFragments(analyzer.tokenStream(FIELD_CONTENT, content), content, MAX_FRAGMENTS, " ... ");
+            if (StrUtil.isNotBlank(fragments)) {
+                return fragments;
+            }
+        } catch (IOException | InvalidTokenOffsetsException e) {
+            log.warn("生成高亮摘要失败: {}", e.getMessage());
+        }
+        // 只有标题命中时取正文开头
+        return new SimpleHTMLEncoder().encodeText(StrUtil.subPre(content, FRAGMENT_SIZE));
+    }
+
+    private void commit() throws IOException {
+        indexWriter.commit();
+        searcherManager.maybeRefresh();
+    }
+
+    private static Query getArticleQuery() {
+        Query query = new Query();
+        query.addCriteria(Criteria.where(Constants.SUFFIX).is("md"));
+        query.addCriteria(Criteria.where("path").regex("^" + ReUtil.escape("/Document")));
+        query.addCriteria(Criteria.where(Constants.RELEASE).is(true));
+        query.addCriteria(Criteria.where(Constants.ALONE_PAGE).exists(false));
+        return query;
+    }
+
+    /**
+     * 与文章列表的查询条件保持一致
+     */
+    private static boolean isSearchable(FileDocument fileDocument) {
+        return fileDocument != null
+                && "md".equals(fileDocument.getSuffix())
+                && fileDocument.getPath() != null && fileDocument.getPath().startsWith("/Document")
+                && Boolean.TRUE.equals(fileDocument.getRelease())
+                && fileDocument.getAlonePage() == null;
+    }
+
+    private static Document toDocument(FileDocument fileDocument) {
+        Document document = new Document();
+        document.add(new StringField(FIELD_ID, fileDocument.getId(), Field.Store.YES));
+        String name = fileDocument.getName();
+        if (name != null && fileDocument.getSuffix() != null && name.endsWith("." + fileDocument.getSuffix())) {
+            name = name.substring(0, name.length() - fileDocument.getSuffix().length() - 1);
+        }
+        if (StrUtil.isNotBlank(name)) {
+            document.add(new TextField(FIELD_TITLE, name, Field.Store.YES));
+        }
+        if (StrUtil.isNotBlank(fileDocument.getContentText())) {
+            // 保存原文用于生成高亮摘要
+            document.add(new TextField(FIELD_CONTENT, fileDocument.getContentText(), Field.Store.YES));
+        }
+        return document;
+    }
+
+    /**
+     * 命中的文章
+     *
+     * @param id        文章id
+     * @param highlight 高亮摘要(已转义的html)
+     */
+    public record Hit(String id, String highlight) {
+    }
+
+    /**
+     * 搜索结果
+     *
+     * @param hits  当前页命中的文章
+     * @param total 总数
+     */
+    public record SearchResult(List<Hit> hits, int total) {
+    }
+}
@@ -3,6 +3,7 @@ package com.jmal.clouddisk.lucene;
 import cn.hutool.core.io.FileTypeUtil;
 import cn.hutool.core.io.FileUtil;
 import cn.hutool.core.thread.ThreadUtil;
+import cn.hutool.core.util.ReUtil;
 import cn.hutool.core.util.StrUtil;
 import com.jmal.clouddisk.config.FileProperties;
 import com.jmal.clouddisk.model.*;
@@ -25,6 +26,7 @@ import org.apache.lucene.index.Term;
 import org.apache.lucene.queryparser.classic.ParseException;
 import org.apache.lucene.queryparser.classic.QueryParser;
 import org.apache.lucene.search.*;
+import org.apache.lucene.util.BytesRef;
 import org.bson.types.ObjectId;
 import org.mozilla.universalchardet.UniversalDetector;
 import org.springframework.data.mongodb.core.MongoTemplate;
@@ -41,6 +43,7 @@ import java.time.LocalDateTime;
 import java.util.*;
 import java.util.concurrent.*;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Stream;
 
 /**
  * @author jmal
@@ -67,6 +70,11 @@ public class LuceneService {
     private final RebuildIndexTaskService rebuildIndexTaskService;
 
     public final static String MONGO_INDEX_FIELD = "index";
+
+    /**
+     * 文件所在目录, 用 BinaryDocValues 保存, 目录重命名/移动后用 updateDocValues 改写
+     */
+    public final static String PATH_FIELD = "dirPath";
     private final UserLoginHolder userLoginHolder;
 
     /**
@@ -92,6 +100,11 @@ public class LuceneService {
      */
     private final static int CREATE_INDEX_QUEUE_SIZE = 512;
 
+    /**
+     * 按路径前缀从 mongodb 分批读取文件的批大小
+     */
+    private final static int PATH_QUERY_BATCH_SIZE = 1000;
+
     /**
      * 新建索引文件缓冲队列
      */
@@ -107,6 +120,11 @@ public class LuceneService {
      */
     private final ReentrantLock toBeIndexedLock = new ReentrantLock();
 
+    /**
+     * 改写索引中path的锁, 补全和重命名/移动后的改写按顺序执行, 后读取数据库的覆盖先读取的
+     */
+    private final ReentrantLock pathLock = new ReentrantLock();
+
     @PostConstruct
     public void init() {
         if (executorCreateIndexService == null) {
@@ -135,6 +153,7 @@ public class LuceneService {
         if (executorUpdateBigContentIndexService == null) {
             executorUpdateBigContentIndexService = ThreadUtil.newFixedExecutor(2, 100, "updateBigContentIndexTask", true);
         }
+        executorCreateIndexService.execute(this::backfillPath);
     }
 
     /**
@@ -383,6 +402,56 @@ public class LuceneService {
     }
 
 
+    /**
+     * 为复制出来的目录下的所有文件创建索引
+     * <p>
+     * 复制后的文件都是新的id, 这里按路径前缀分批读取文件信息, 直接创建不含内容的索引, 最后只提交一次<br>
+     * 有内容的文件每批一次性标记为待索引, 由待索引任务读取内容, 不再逐个推送到新建索引队列
+     * </p>
+     *
+     * @param userId    userId
+     * @param newPrefix 复制后的路径前缀, 以 / 结尾
+     */
+    public void createIndexByPathPrefix(String userId, String newPrefix) {
+        executorCreateIndexService.execute(() -> {
+            String username = userService.getUserNameById(userId);
+            org.springframework.data.mongodb.core.query.Query query = new org.springframework.data.mongodb.core.query.Query();
+            query.addCriteria(Criteria.where(IUserService.USER_ID).is(userId));
+            query.addCriteria(Criteria.where("path").regex("^" + ReUtil.escape(newPrefix)));
+            query.fields().exclude("contentText");
+            query.cursorBatchSize(PATH_QUERY_BATCH_SIZE);
+            List<FileIntroVO> batch = new ArrayList<>(PATH_QUERY_BATCH_SIZE);
+            try (Stream<FileIntroVO> stream = mongoTemplate.stream(query, FileIntroVO.class, CommonFileService.COLLECTION_NAME)) {
+                stream.forEach(fileIntroVO -> {
+                    batch.add(fileIntroVO);
+                    if (batch.size() >= PATH_QUERY_BATCH_SIZE) {
+                        createIndexes(username, batch);
+                        batch.clear();
+                    }
+                });
+                createIndexes(username, batch);
+                indexWriter.commit();
+            } catch (Exception e) {
+                log.error("批量创建索引失败, path: {}, {}", newPrefix, e.getMessage(), e);
+            }
+        });
+    }
+
+    private void createIndexes(String username, List<FileIntroVO> fileIntroVOList) {
+        List<String> contentFileIds = new ArrayList<>();
+        for (FileIntroVO fileIntroVO : fileIntroVOList) {
+            File file = Paths.get(fileProperties.getRootDir(), username, fileIntroVO.getPath(), fileIntroVO.getName()).toFile();
+            FileIndex fileIndex = new FileIndex(file, fileIntroVO);
+            fileIndex.setTagName(getTagName(fileIntroVO));
+            setFileIndex(fileIndex);
+            updateIndexDocument(indexWriter, fileIndex, null);
+            if (!Boolean.TRUE.equals(fileIntroVO.getIsFolder()) && checkFileContent(file)) {
+                contentFileIds.add(fileIntroVO.getId());
+            }
+        }
+        addToBeIndexedFlagOfDoc(contentFileIds);
+    }
+
     public void deleteIndexDocuments(List<String> fileIds) {
         try {
             for (String fileId : fileIds) {
@@ -426,7 +495,7 @@ public class LuceneService {
                 newDocument.add(new IntPoint("isFavorite", isFavorite ? 1 : 0));
             }
             if (path != null) {
-                newDocument.add(new StringField("path", path, Field.Store.NO));
+                newDocument.add(new BinaryDocValuesField(PATH_FIELD, new BytesRef(path)));
             }
             if (StrUtil.isNotBlank(tagName)) {
                 newDocument.add(new StringField("tag", tagName.toLowerCase(), Field.Store.NO));
@@ -595,9 +664,7 @@ public class LuceneService {
     private void otherQueryParams(SearchDTO searchDTO, BooleanQuery.Builder builder) {
         boolean queryPath = StrUtil.isNotBlank(searchDTO.getCurrentDirectory()) && searchDTO.getCurrentDirectory().length() > 1;
         if (queryPath) {
-            Term prefixTerm = new Term("path", searchDTO.getCurrentDirectory());
-            PrefixQuery prefixQuery = new PrefixQuery(prefixTerm);
-            builder.add(prefixQuery, BooleanClause.Occur.MUST);
+            builder.add(getPathQuery(searchDTO.getCurrentDirectory()), BooleanClause.Occur.FILTER);
         }
         if (!queryPath && StrUtil.isNotBlank(searchDTO.getType())) {
             builder.add(new TermQuery(new Term("type", searchDTO.getType())), BooleanClause.Occur.MUST);
@@ -616,6 +683,99 @@ public class LuceneService {
         }
     }
 
+    /**
+     * 目录下所有文件的查询
+     *
+     * @param currentDirectory 目录, 如 /a/b
+     * @return Query
+     */
+    private static Query getPathQuery(String currentDirectory) {
+        String prefix = currentDirectory.endsWith("/") ? currentDirectory : currentDirectory + "/";
+        return new PathPrefixQuery(PATH_FIELD, prefix);
+    }
+
+    /**
+     * 目录重命名/移动后, 改写该目录下所有文件索引中的path
+     * <p>
+     * 只改写 DocValues, 不重建文档, 已索引的内容不受影响
+     * </p>
+     *
+     * @param userId    userId
+     * @param newPrefix 新的路径前缀, 以 / 结尾
+     */
+    public void updatePathPrefix(String userId, String newPrefix) {
+        executorCreateIndexService.execute(() -> {
+            org.springframework.data.mongodb.core.query.Query query = new org.springframework.data.mongodb.core.query.Query();
+            query.addCriteria(Criteria.where(IUserService.USER_ID).is(userId));
+            query.addCriteria(Criteria.where("path").regex("^" + ReUtil.escape(newPrefix)));
+            pathLock.lock();
+            try {
+                long count = updatePathDocValues(query);
+                indexWriter.commit();
+                log.debug("改写索引中的path, path: {}, 文件数: {}", newPrefix, count);
+            } catch (Exception e) {
+                log.error("改写索引中的path失败, path: {}, {}", newPrefix, e.getMessage(), e);
+            } finally {
+                pathLock.unlock();
+            }
+        });
+    }
+
+    /**
+     * 补全索引中缺少的path
+     * <p>
+     * 之前版本的索引中没有 PATH_FIELD, 从数据库读取所有文件的path补全<br>
+     * 补全后仍然没有path的文档在数据库中已不存在, 直接删除, 避免每次启动都重新补全
+     * </p>
+     */
+    private void backfillPath() {
+        pathLock.lock();
+        try {
+            searcherManager.maybeRefresh();
+            IndexSearcher indexSearcher = searcherManager.acquire();
+            int missing;
+            try {
+                missing = indexSearcher.getIndexReader().numDocs() - indexSearcher.count(new FieldExistsQuery(PATH_FIELD));
+            } finally {
+                searcherManager.release(indexSearcher);
+            }
+            if (missing <= 0) {
+                return;
+            }
+            long start = System.currentTimeMillis();
+            long count = updatePathDocValues(new org.springframework.data.mongodb.core.query.Query());
+            indexWriter.deleteDocuments(new BooleanQuery.Builder()
+                    .add(new MatchAllDocsQuery(), BooleanClause.Occur.MUST)
+                    .add(new FieldExistsQuery(PATH_FIELD), BooleanClause.Occur.MUST_NOT)
+                    .build());
+            indexWriter.commit();
+            log.info("补全索引中的path, 缺少path的文档数: {}, 文件数: {}, 耗时: {}ms", missing, count, System.currentTimeMillis() - start);
+        } catch (Exception e) {
+            log.error("补全索引中的path失败, {}", e.getMessage(), e);
+        } finally {
+            pathLock.unlock();
+        }
+    }
+
+    private long updatePathDocValues(org.springframework.data.mongodb.core.query.Query query) throws IOException {
+        query.fields().include("_id").include("path");
+        query.cursorBatchSize(PATH_QUERY_BATCH_SIZE);
+        long count = 0;
+        try (Stream<org.bson.Document> stream = mongoTemplate.stream(query, org.bson.Document.class, CommonFileService.COLLECTION_NAME)) {
+            Iterator<org.bson.Document> iterator = stream.iterator();
+            while (iterator.hasNext()) {
+                org.bson.Document document = iterator.next();
+                String path = document.getString("path");
+                if (path == null) {
+                    continue;
+                }
+                indexWriter.updateDocValues(new Term("id", document.get("_id").toString()), new BinaryDocValuesField(PATH_FIELD, new BytesRef(path)));
+                count++;
+            }
+        }
+        return count;
+    }
+
     public List<FileIntroVO> getFileIntroVOs(List<String> fileIdList) {
         List<ObjectId> objectIds = fileIdList.stream()
                 .filter(ObjectId::isValid)
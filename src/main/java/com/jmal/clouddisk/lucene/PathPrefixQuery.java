@@ -0,0 +1,85 @@
+package com.jmal.clouddisk.lucene;
+
+import org.apache.lucene.index.BinaryDocValues;
+import org.apache.lucene.index.DocValues;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.search.*;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.StringHelper;
+
+import java.io.IOException;
+import java.util.Objects;
+
+/**
+ * 按 BinaryDocValues 中保存的 path 做前缀过滤
+ * <p>
+ * path 用 BinaryDocValues 保存, 目录重命名/移动后可以用 updateDocValues 直接改写, 不用重建整个文档(索引中不保存content)<br>
+ * DocValues 不能按前缀查找词项, 这里只在其他条件命中的文档上逐个比较, 应和 userId 等条件一起作为过滤条件使用
+ * </p>
+ *
+ * @author jmal
+ */
+final class PathPrefixQuery extends Query {
+
+    private final String field;
+
+    private final BytesRef prefix;
+
+    PathPrefixQuery(String field, String prefix) {
+        this.field = Objects.requireNonNull(field);
+        this.prefix = new BytesRef(prefix);
+    }
+
+    @Override
+    public Weight createWeight(IndexSearcher searcher, ScoreMode scoreMode, float boost) {
+        return new ConstantScoreWeight(this, boost) {
+            @Override
+            public Scorer scorer(LeafReaderContext context) throws IOException {
+                BinaryDocValues values = context.reader().getBinaryDocValues(field);
+                if (values == null) {
+                    return null;
+                }
+                TwoPhaseIterator iterator = new TwoPhaseIterator(values) {
+                    @Override
+                    public boolean matches() throws IOException {
+                        return StringHelper.startsWith(values.binaryValue(), prefix);
+                    }
+
+                    @Override
+                    public float matchCost() {
+                        return prefix.length;
+                    }
+                };
+                return new ConstantScoreScorer(this, score(), scoreMode, iterator);
+            }
+
+            @Override
+            public boolean isCacheable(LeafReaderContext ctx) {
+                // 有 updateDocValues 更新过的段不能缓存
+                return DocValues.isCacheable(ctx, field);
+            }
+        };
+    }
+
+    @Override
+    public void visit(QueryVisitor visitor) {
+        if (visitor.acceptField(field)) {
+            visitor.visitLeaf(this);
+        }
+    }
+
+    @Override
+    public String toString(String field) {
+        return (this.field.equals(field) ? "" : this.field + ":") + prefix.utf8ToString() + "*";
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        return sameClassAs(obj) && field.equals(((PathPrefixQuery) obj).field) && prefix.equals(((PathPrefixQuery) obj).prefix);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(classHash(), field, prefix);
+    }
+}
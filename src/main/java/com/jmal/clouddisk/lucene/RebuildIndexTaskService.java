@@ -21,7 +21,9 @@ import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.lucene.index.IndexWriter;
 import org.apache.lucene.index.Term;
-import org.apache.lucene.search.PrefixQuery;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.TermQuery;
 import org.jetbrains.annotations.Nullable;
 import org.springframework.data.mongodb.core.MongoTemplate;
 import org.springframework.data.mongodb.core.query.Criteria;
@@ -208,17 +210,20 @@ public class RebuildIndexTaskService {
 
     /**
      * 删除path下的所有索引
-     * @param path path
+     * @param userId userId
+     * @param path   path
      */
-    private void deleteAllIndex(String path) {
+    private void deleteAllIndex(String userId, String path) {
         if (StrUtil.isBlank(path)) {
             path = "/";
         }
-        // 查询path下的所有索引
-        Term prefixTerm = new Term("path", path);
-        PrefixQuery prefixQuery = new PrefixQuery(prefixTerm);
+        BooleanQuery.Builder builder = new BooleanQuery.Builder();
+        if (StrUtil.isNotBlank(userId)) {
+            builder.add(new TermQuery(new Term("userId", userId)), BooleanClause.Occur.FILTER);
+        }
+        builder.add(new PathPrefixQuery(LuceneService.PATH_FIELD, path), BooleanClause.Occur.FILTER);
         try {
-            indexWriter.deleteDocuments(prefixQuery);
+            indexWriter.deleteDocuments(builder.build());
             indexWriter.commit();
         } catch (IOException e) {
             log.error(e.getMessage(), e);
@@ -566,7 +571,7 @@ public class RebuildIndexTaskService {
         update.set("delete", 1);
         mongoTemplate.updateMulti(query, update, CommonFileService.COLLECTION_NAME);
         // 删除索引
-        deleteAllIndex(path);
+        deleteAllIndex(userId, path);
     }
 
     /**
@@ -0,0 +1,461 @@
+package com.jmal.clouddisk.media;
+
+import cn.hutool.core.convert.Convert;
+import cn.hutool.core.io.FileUtil;
+import cn.hutool.core.thread.ThreadUtil;
+import cn.hutool.crypto.SecureUtil;
+import com.jmal.clouddisk.config.FileProperties;
+import com.jmal.clouddisk.service.Constants;
+import com.jmal.clouddisk.util.FastImageInfo;
+import com.jmal.clouddisk.util.HttpCacheUtil;
+import com.luciad.imageio.webp.WebPWriteParam;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import net.coobird.thumbnailator.Thumbnails;
+import org.springframework.stereotype.Service;
+
+import javax.imageio.*;
+import javax.imageio.stream.FileImageOutputStream;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.*;
+
+/**
+ * 图片衍生文件(剪裁/缩略图/webp)服务
+ * <p>
+ * 1. 相同的(文件, 参数)同一时刻只会生成一次, 其余请求等待同一个结果
+ * 2. 解码在有界线程池中进行, 并受内存预算限制, 队列已满时直接拒绝, 不阻塞请求线程
+ * 3. 请求线程最多等待几秒, 超时或被拒绝时返回null, 由调用方返回原文件, 生成任务继续在后台完成
+ * 4. 大尺寸jpeg按目标尺寸降采样解码
+ * 5. 生成结果以文件ETag为key缓存在磁盘上
+ *
+ * @author jmal
+ */
+@Service
+@Slf4j
+@RequiredArgsConstructor
+public class ImageDerivativeService {
+
+    private final FileProperties fileProperties;
+
+    /**
+     * 缩略图尺寸
+     */
+    public static final int THUMBNAIL_SIZE = 256;
+
+    /**
+     * 请求线程等待衍生文件生成的最长时间(秒), 超时后返回原文件, 生成结果留给之后的请求
+     */
+    private static final long WAIT_TIMEOUT = 3;
+
+    /**
+     * 解码线程池的队列长度
+     */
+    private static final int QUEUE_SIZE = 256;
+
+    /**
+     * 解码线程池
+     */
+    private ExecutorService decodeExecutor;
+
+    /**
+     * 解码内存预算, 单位KB
+     */
+    private Semaphore memoryBudget;
+
+    private int memoryBudgetKb;
+
+    /**
+     * 正在生成中的衍生文件
+     * key: 缓存文件名
+     * value: 生成结果
+     */
+    private final Map<String, CompletableFuture<File>> inflight = new ConcurrentHashMap<>();
+
+    @PostConstruct
+    public void init() {
+        int processors = Runtime.getRuntime().availableProcessors() / 2;
+        if (fileProperties.getImageDerivativeThreads() != null) {
+            processors = fileProperties.getImageDerivativeThreads();
+        }
+        if (processors < 1) {
+            processors = 1;
+        }
+        long budget = Runtime.getRuntime().maxMemory() / 4;
+        if (fileProperties.getImageDerivativeMemoryBudget() != null) {
+            budget = fileProperties.getImageDerivativeMemoryBudget() * 1024L * 1024L;
+        }
+        memoryBudgetKb = (int) Math.max(budget / 1024, 1024);
+        memoryBudget = new Semaphore(memoryBudgetKb, true);
+        log.info("imageDerivative 线程数: {}, 内存预算: {}MB", processors, memoryBudgetKb / 1024);
+        // 队列已满时抛出 RejectedExecutionException, 不阻塞提交任务的请求线程
+        decodeExecutor = ThreadUtil.newFixedExecutor(processors, QUEUE_SIZE, "imageDerivative", false);
+    }
+
+    /**
+     * 剪裁图片
+     *
+     * @param srcFile 源文件
+     * @param q       剪裁后的质量
+     * @param w       剪裁后的宽度
+     * @param h       剪裁后的高度
+     * @return 剪裁后的文件, 失败返回null
+     */
+    public File crop(File srcFile, String q, String w, String h) {
+        double quality = Convert.toDouble(q, 0.8);
+        int width = Convert.toInt(w, -1);
+        int height = Convert.toInt(h, -1);
+        String params = "crop_" + quality + "_" + width + "_" + height;
+        return getDerivative(srcFile, params, FileUtil.extName(srcFile), cacheFile -> writeCrop(srcFile, cacheFile, quality, width, height));
+    }
+
+    /**
+     * 剪裁图片并写入指定文件, 不缓存结果
+     * <p>
+     * 用于源文件只是临时文件的场景(如从 MinIO 下载到本地的对象), 同样在解码线程池中执行并受内存预算限制<br>
+     * 去重和缓存由调用方负责, 调用线程会一直等到生成结束
+     * </p>
+     *
+     * @param srcFile    源文件
+     * @param outputFile 输出文件, 可以和源文件相同
+     * @param q          剪裁后的质量
+     * @param w          剪裁后的宽度
+     * @param h          剪裁后的高度
+     * @return 是否写入成功, 队列已满时返回false
+     */
+    public boolean cropTo(File srcFile, File outputFile, String q, String w, String h) {
+        if (srcFile == null || !srcFile.isFile()) {
+            return false;
+        }
+        double quality = Convert.toDouble(q, 0.8);
+        int width = Convert.toInt(w, -1);
+        int height = Convert.toInt(h, -1);
+        Future<Boolean> future;
+        try {
+            future = decodeExecutor.submit(() -> writeAtomically(outputFile, tempFile -> writeCrop(srcFile, tempFile, quality, width, height)));
+        } catch (RejectedExecutionException e) {
+            log.warn("图片衍生文件生成队列已满, file: {}", srcFile.getAbsolutePath());
+            return false;
+        }
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            log.warn("剪裁图片失败, file: {}, {}", srcFile.getAbsolutePath(), e.getCause() != null ? e.getCause().getMessage() : e.getMessage());
+        }
+        return false;
+    }
+
+    /**
+     * 缩略图
+     *
+     * @param srcFile 源文件
+     * @return 缩略图文件, 失败返回null
+     */
+    public File thumbnail(File srcFile) {
+        String params = "thumbnail_" + THUMBNAIL_SIZE;
+        return getDerivative(srcFile, params, FileUtil.extName(srcFile), cacheFile -> writeThumbnail(srcFile, cacheFile));
+    }
+
+    /**
+     * 转换为webp
+     *
+     * @param srcFile 源文件
+     * @return webp文件, 失败返回null
+     */
+    public File webp(File srcFile) {
+        return getDerivative(srcFile, Constants.SUFFIX_WEBP, Constants.SUFFIX_WEBP, cacheFile -> writeWebp(srcFile, cacheFile));
+    }
+
+    /**
+     * 文件的ETag, 由文件路径、大小、修改时间确定
+     *
+     * @param file File
+     * @return ETag
+     */
+    public static String getETag(File file) {
+        return HttpCacheUtil.getETag(file.getAbsolutePath(), file.length(), file.lastModified());
+    }
+
+    private File getDerivative(File srcFile, String params, String suffix, DerivativeWriter derivativeWriter) {
+        if (srcFile == null || !srcFile.isFile()) {
+            return null;
+        }
+        String key = SecureUtil.md5(getETag(srcFile) + params) + "." + suffix;
+        File cacheFile = getCacheDir().resolve(key).toFile();
+        if (cacheFile.exists()) {
+            // 刷新修改时间, 避免被定时清理
+            cacheFile.setLastModified(System.currentTimeMillis());
+            return cacheFile;
+        }
+        CompletableFuture<File> future = new CompletableFuture<>();
+        CompletableFuture<File> existing = inflight.putIfAbsent(key, future);
+        if (existing == null) {
+            existing = future;
+            try {
+                decodeExecutor.execute(() -> {
+                    try {
+                        future.complete(generate(cacheFile, derivativeWriter));
+                    } catch (Throwable e) {
+                        future.completeExceptionally(e);
+                    } finally {
+                        inflight.remove(key, future);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                inflight.remove(key, future);
+                log.warn("图片衍生文件生成队列已满, 返回原文件, file: {}", srcFile.getAbsolutePath());
+                return null;
+            }
+        }
+        try {
+            return existing.get(WAIT_TIMEOUT, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            log.warn("生成图片衍生文件失败, file: {}, {}", srcFile.getAbsolutePath(), e.getCause() != null ? e.getCause().getMessage() : e.getMessage());
+        } catch (TimeoutException e) {
+            log.warn("生成图片衍生文件超时, file: {}", srcFile.getAbsolutePath());
+        }
+        return null;
+    }
+
+    private File generate(File cacheFile, DerivativeWriter derivativeWriter) throws IOException {
+        if (cacheFile.exists()) {
+            return cacheFile;
+        }
+        return writeAtomically(cacheFile, derivativeWriter) ? cacheFile : null;
+    }
+
+    /**
+     * 先写入临时文件, 再原子移动到目标文件, 避免读到不完整的文件
+     */
+    private static boolean writeAtomically(File outputFile, DerivativeWriter derivativeWriter) throws IOException {
+        Path tempPath = Paths.get(outputFile.getAbsolutePath() + ".tmp");
+        try {
+            if (!derivativeWriter.write(tempPath.toFile())) {
+                return false;
+            }
+            Files.move(tempPath, outputFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            return true;
+        } finally {
+            Files.deleteIfExists(tempPath);
+        }
+    }
+
+    private boolean writeCrop(File srcFile, File outputFile, double quality, int width, int height) throws IOException {
+        FastImageInfo imageInfo = new FastImageInfo(srcFile);
+        int srcWidth = imageInfo.getWidth();
+        int srcHeight = imageInfo.getHeight();
+        int targetWidth = width > 0 && srcWidth > width ? width : -1;
+        DecodedImage decoded = decode(srcFile, imageInfo, targetWidth, -1);
+        if (decoded == null) {
+            return false;
+        }
+        try {
+            BufferedImage bim = decoded.image();
+            // 按原图尺寸计算目标尺寸
+            srcWidth = srcWidth > 0 ? srcWidth : bim.getWidth();
+            srcHeight = srcHeight > 0 ? srcHeight : bim.getHeight();
+            Thumbnails.Builder<BufferedImage> thumbnail = Thumbnails.of(bim).outputFormat(decoded.formatName());
+            if (quality >= 0 && quality <= 1) {
+                thumbnail.outputQuality(quality);
+            }
+            if (width > 0 && srcWidth > width) {
+                if (height <= 0 || srcHeight <= height) {
+                    height = (int) (width / (double) srcWidth * srcHeight);
+                    height = height == 0 ? width : height;
+                }
+                thumbnail.size(width, height);
+            } else {
+                //宽高均小，指定原大小
+                thumbnail.size(bim.getWidth(), bim.getHeight());
+            }
+            try (OutputStream out = new FileOutputStream(outputFile)) {
+                thumbnail.toOutputStream(out);
+            }
+            return true;
+        } finally {
+            decoded.release();
+        }
+    }
+
+    private boolean writeThumbnail(File srcFile, File outputFile) throws IOException {
+        DecodedImage decoded = decode(srcFile, new FastImageInfo(srcFile), THUMBNAIL_SIZE, THUMBNAIL_SIZE);
+        if (decoded == null) {
+            return false;
+        }
+        try {
+            try (OutputStream out = new FileOutputStream(outputFile)) {
+                Thumbnails.of(decoded.image()).size(THUMBNAIL_SIZE, THUMBNAIL_SIZE).outputFormat(decoded.formatName()).toOutputStream(out);
+            }
+            return true;
+        } finally {
+            decoded.release();
+        }
+    }
+
+    private boolean writeWebp(File srcFile, File outputFile) throws IOException {
+        DecodedImage decoded = decode(srcFile, new FastImageInfo(srcFile), -1, -1);
+        if (decoded == null) {
+            return false;
+        }
+        ImageWriter writer = ImageIO.getImageWritersByMIMEType(Constants.CONTENT_TYPE_WEBP).next();
+        try (FileImageOutputStream output = new FileImageOutputStream(outputFile)) {
+            // 配置编码参数
+            WebPWriteParam writeParam = new WebPWriteParam(writer.getLocale());
+            writeParam.setCompressionMode(ImageWriteParam.MODE_DEFAULT);
+            writer.setOutput(output);
+            writer.write(null, new IIOImage(decoded.image(), null, null), writeParam);
+            return true;
+        } finally {
+            writer.dispose();
+            decoded.release();
+        }
+    }
+
+    /**
+     * 在内存预算内解码图片
+     *
+     * @param srcFile      源文件
+     * @param imageInfo    图片尺寸信息
+     * @param targetWidth  目标宽度, 小于等于0表示不限制
+     * @param targetHeight 目标高度, 小于等于0表示不限制
+     * @return DecodedImage, 无法解码时返回null
+     */
+    private DecodedImage decode(File srcFile, FastImageInfo imageInfo, int targetWidth, int targetHeight) throws IOException {
+        try (ImageInputStream input = ImageIO.createImageInputStream(srcFile)) {
+            if (input == null) {
+                return null;
+            }
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(input);
+            if (!readers.hasNext()) {
+                return null;
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(input, true, true);
+                int srcWidth = imageInfo.getWidth() > 0 ? imageInfo.getWidth() : reader.getWidth(0);
+                int srcHeight = imageInfo.getHeight() > 0 ? imageInfo.getHeight() : reader.getHeight(0);
+                ImageReadParam readParam = reader.getDefaultReadParam();
+                int subsampling = getSubsampling("image/jpeg".equals(imageInfo.getMimeType()), srcWidth, srcHeight, targetWidth, targetHeight);
+                if (subsampling > 1) {
+                    readParam.setSourceSubsampling(subsampling, subsampling, 0, 0);
+                }
+                // 按ARGB估算解码后占用的内存
+                long estimateKb = (long) (srcWidth / subsampling) * (srcHeight / subsampling) * 4 / 1024;
+                int permits = (int) Math.min(Math.max(estimateKb, 1), memoryBudgetKb);
+                memoryBudget.acquire(permits);
+                try {
+                    BufferedImage image = reader.read(0, readParam);
+                    return new DecodedImage(image, getFormatName(reader), permits);
+                } catch (IOException | RuntimeException e) {
+                    memoryBudget.release(permits);
+                    throw e;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    /**
+     * 计算降采样系数, 保证降采样后的尺寸不小于目标尺寸
+     */
+    private static int getSubsampling(boolean jpeg, int srcWidth, int srcHeight, int targetWidth, int targetHeight) {
+        if (!jpeg || srcWidth <= 0 || srcHeight <= 0) {
+            return 1;
+        }
+        int factor = Integer.MAX_VALUE;
+        if (targetWidth > 0) {
+            factor = srcWidth / targetWidth;
+        }
+        if (targetHeight > 0) {
+            factor = Math.min(factor, srcHeight / targetHeight);
+        }
+        if (factor == Integer.MAX_VALUE) {
+            return 1;
+        }
+        return Math.max(factor, 1);
+    }
+
+    private static String getFormatName(ImageReader reader) throws IOException {
+        String formatName = reader.getFormatName().toLowerCase();
+        if (ImageIO.getImageWritersByFormatName(formatName).hasNext()) {
+            return formatName;
+        }
+        return "png";
+    }
+
+    private Path getCacheDir() {
+        Path cacheDir = Paths.get(fileProperties.getRootDir(), fileProperties.getChunkFileDir(), fileProperties.getImageDerivativeCache());
+        if (!Files.exists(cacheDir)) {
+            FileUtil.mkdir(cacheDir.toFile());
+        }
+        return cacheDir;
+    }
+
+    @PreDestroy
+    public void destroy() {
+        if (decodeExecutor != null) {
+            decodeExecutor.shutdown();
+        }
+    }
+
+    @FunctionalInterface
+    private interface DerivativeWriter {
+        /**
+         * 写入衍生文件
+         *
+         * @param outputFile 输出文件
+         * @return 是否写入成功
+         */
+        boolean write(File outputFile) throws IOException;
+    }
+
+    /**
+     * 解码后的图片, 使用完后需要释放占用的内存预算
+     */
+    private final class DecodedImage {
+        private final BufferedImage image;
+        private final String formatName;
+        private int permits;
+
+        private DecodedImage(BufferedImage image, String formatName, int permits) {
+            this.image = image;
+            this.formatName = formatName;
+            this.permits = permits;
+        }
+
+        BufferedImage image() {
+            return image;
+        }
+
+        String formatName() {
+            return formatName;
+        }
+
+        void release() {
+            if (permits > 0) {
+                memoryBudget.release(permits);
+                permits = 0;
+            }
+        }
+    }
+}
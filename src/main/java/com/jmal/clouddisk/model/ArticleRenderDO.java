@@ -0,0 +1,25 @@
+package com.jmal.clouddisk.model;
+
+import lombok.Data;
+import org.springframework.data.annotation.Id;
+
+/**
+ * @author jmal
+ * @Description 文章渲染结果, 以内容hash为id, 内容不变则不会修改
+ */
+@Data
+public class ArticleRenderDO {
+    /***
+     * markdown 和 html 的内容hash
+     */
+    @Id
+    private String id;
+    /***
+     * html内容
+     */
+    private String html;
+    /***
+     * 纯文本摘要, 用于页面的 description
+     */
+    private String description;
+}
@@ -19,6 +19,10 @@ public class ArticleVO extends MarkdownBaseFile {
      * html内容
      */
     private String html;
+    /***
+     * 纯文本摘要
+     */
+    private String description;
     /***
      * 是否为独立页，适用于文档类型
      */
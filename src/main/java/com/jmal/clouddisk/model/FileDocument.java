@@ -43,6 +43,14 @@ public class FileDocument extends FileBase {
      * 文件路径(根路径为"/")
      */
     private String path;
+    /***
+     * 上级目录id(根目录下的文件为null)
+     */
+    private String parentId;
+    /***
+     * 所有上级目录id, 从根目录开始
+     */
+    private List<String> ancestors;
     private String rootPath;
     /***
      * updateDate 距离现在的时间
@@ -77,6 +85,10 @@ public class FileDocument extends FileBase {
      * html内容
      */
     private String html;
+    /***
+     * 渲染结果(html, 摘要)的内容hash, 对应 articleRender 集合的 _id
+     */
+    private String renderHash;
     /***
      * 文件后缀名
      */
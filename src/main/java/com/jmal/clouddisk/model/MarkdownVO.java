@@ -21,5 +21,9 @@ public class MarkdownVO extends MarkdownBaseFile {
      * 是否有草稿
      */
     private Boolean draft;
+    /***
+     * 搜索结果的高亮摘要
+     */
+    private String highlight;
 
 }
@@ -147,6 +147,10 @@ public class UploadApiParamDTO {
      * 要查询的排序顺序
      */
     String order;
+    /***
+     * 游标分页的游标, 上一页返回的 nextCursor
+     */
+    String cursor;
     /**
      * 是否显示文件夹大小
      */
@@ -4,6 +4,7 @@ import lombok.Data;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 
 /**
  * @Description UploadResponse
@@ -34,6 +35,10 @@ public class UploadResponse {
      * 上传后是合并完成
      */
     boolean merge;
+    /***
+     * oss 直传时未上传分片的预签名上传地址, key: 分片号, 为空则通过服务端上传
+     */
+    Map<Integer, String> partUrls;
 
     public UploadResponse() {
         this.pass = false;
@@ -3,7 +3,6 @@ package com.jmal.clouddisk.oss;
 import cn.hutool.core.io.FileUtil;
 import cn.hutool.core.io.file.PathUtil;
 import cn.hutool.core.text.CharSequenceUtil;
-import cn.hutool.core.thread.ThreadUtil;
 import com.github.benmanes.caffeine.cache.Cache;
 import com.github.benmanes.caffeine.cache.Caffeine;
 import com.jmal.clouddisk.config.FileProperties;
@@ -36,6 +35,21 @@ import java.util.stream.Collectors;
 @Slf4j
 public class BaseOssService {
 
+    /**
+     * 超过该大小的对象使用分片复制/分片上传
+     */
+    public static final long MULTIPART_THRESHOLD = 64L * 1024 * 1024;
+
+    /**
+     * 最小分片大小
+     */
+    public static final long PART_SIZE = 16L * 1024 * 1024;
+
+    /**
+     * 分片数上限
+     */
+    private static final int MAX_PART_COUNT = 10000;
+
     private final FileProperties fileProperties;
     /**
      * 目录下文件名列表缓存 </br>
@@ -77,10 +91,16 @@ public class BaseOssService {
 
     private final IOssService ossService;
 
-    public BaseOssService(IOssService ossService, String bucketName, FileProperties fileProperties, ScheduledThreadPoolExecutor scheduledThreadPoolExecutor, OssConfigDTO ossConfigDTO) {
+    private final OssMultipartUploader multipartUploader;
+
+    private final OssNamespaceIndex namespaceIndex;
+
+    public BaseOssService(IOssService ossService, String bucketName, FileProperties fileProperties, ScheduledThreadPoolExecutor scheduledThreadPoolExecutor, OssConfigDTO ossConfigDTO, OssMultipartUploader multipartUploader, OssNamespaceIndex namespaceIndex) {
         this.ossService = ossService;
         this.bucketName = bucketName;
         this.fileProperties = fileProperties;
+        this.multipartUploader = multipartUploader;
+        this.namespaceIndex = namespaceIndex;
         scheduledThreadPoolExecutor.scheduleWithFixedDelay(this::checkUpload, 1, 1, TimeUnit.SECONDS);
         this.fileInfoListCache = Caffeine.newBuilder().initialCapacity(128).maximumSize(1024).expireAfterWrite(5, TimeUnit.SECONDS).build();
         this.fileInfoCache = Caffeine.newBuilder().initialCapacity(128).maximumSize(1024).expireAfterWrite(5, TimeUnit.SECONDS).build();
@@ -88,6 +108,12 @@ public class BaseOssService {
         this.tempFileListCache = Caffeine.newBuilder().build();
         this.waitingUploadCache = Caffeine.newBuilder().build();
         log.info("{}配置加载成功, bucket: {}, username: {}, {}", ossService.getPlatform().getValue(), bucketName, ossConfigDTO.getUsername(), ossService.hashCode());
+        // 重启前没有上传完的临时文件
+        scheduledThreadPoolExecutor.execute(() -> multipartUploader.getUnfinished(ossService, bucketName).forEach((objectName, tempFileAbsolutePath) -> {
+            setTempFileCache(objectName, tempFileAbsolutePath);
+            setWaitingUploadCache(objectName, tempFileAbsolutePath);
+        }));
+        namespaceIndex.register(ossService, bucketName);
     }
 
     public String getUploadId(String objectName) {
@@ -117,6 +143,15 @@ public class BaseOssService {
             refresh(path);
         }
         fileInfo = getFileInfoCache(objectName);
+        if (fileInfo == null && namespaceIndex.isEnabled()) {
+            // 使用索引时上级目录的列表就是完整的, 不用再列举一次
+            // 目录下的文件很多时, 列举结果写入缓存后可能已被淘汰, 直接按 key 查询索引
+            fileInfo = namespaceIndex.get(ossService, bucketName, objectName);
+            if (fileInfo != null) {
+                setFileInfoCache(objectName, fileInfo);
+            }
+            return fileInfo;
+        }
         if (fileInfo == null) {
             refresh(objectName);
         }
@@ -199,7 +234,7 @@ public class BaseOssService {
 
     public List<FileInfo> getFileInfoListCache(String objectName) {
         return fileInfoListCache.get(objectName, key -> {
-            List<FileInfo> fileInfos = ossService.getFileInfoList(objectName);
+            List<FileInfo> fileInfos = listFileInfo(objectName);
             if (fileInfos != null && !fileInfos.isEmpty()) {
                 for (FileInfo fileInfo : fileInfos) {
                     setFileInfoCache(fileInfo.getKey(), fileInfo);
@@ -209,6 +244,25 @@ public class BaseOssService {
         });
     }
 
+    /**
+     * 目录在过期时间内列举过就从索引中获取, 否则从 oss 列举并更新索引
+     * @param objectName objectName
+     * @return object下的文件列表
+     */
+    private List<FileInfo> listFileInfo(String objectName) {
+        boolean isDir = objectName.isEmpty() || objectName.endsWith("/");
+        List<FileInfo> fileInfos = isDir ? namespaceIndex.list(ossService, bucketName, objectName) : null;
+        if (fileInfos != null) {
+            return fileInfos;
+        }
+        Date listedAt = new Date();
+        fileInfos = ossService.getFileInfoList(objectName);
+        if (isDir && fileInfos != null) {
+            namespaceIndex.apply(ossService, bucketName, objectName, fileInfos, listedAt);
+        }
+        return fileInfos;
+    }
+
     public AbstractOssObject getObject(String objectName) {
         Path path = getTempFileCache(objectName);
         if (path != null) {
@@ -235,6 +289,7 @@ public class BaseOssService {
      */
     private void onDeleteSuccess(String objectName) {
         log.info("delete success: {}", objectName);
+        namespaceIndex.remove(ossService, bucketName, objectName);
         FileInfo fileInfo = getFileInfoCache(objectName);
         if (fileInfo != null) {
             clearFileCache(objectName);
@@ -278,8 +333,11 @@ public class BaseOssService {
      */
     public void onUploadSuccess(String objectName, Path tempFileAbsolutePath) {
         log.info("upload success: {}", objectName);
+        // 删除临时文件前获取大小
+        FileInfo fileInfo = newFileInfo(objectName, tempFileAbsolutePath.toFile());
         clearTempFileCache(objectName);
-        setFileInfoCache(objectName, newFileInfo(objectName, tempFileAbsolutePath.toFile()));
+        setFileInfoCache(objectName, fileInfo);
+        namespaceIndex.put(ossService, bucketName, fileInfo);
         clearFileListCache(objectName);
         removeWaitingUploadCache(objectName);
     }
@@ -292,7 +350,9 @@ public class BaseOssService {
     public void onUploadSuccess(String objectName, Long fileSize) {
         log.info("upload success: {}", objectName);
         clearTempFileCache(objectName);
-        setFileInfoCache(objectName, newFileInfo(objectName, fileSize));
+        FileInfo fileInfo = newFileInfo(objectName, fileSize);
+        setFileInfoCache(objectName, fileInfo);
+        namespaceIndex.put(ossService, bucketName, fileInfo);
         clearFileListCache(objectName);
         removeWaitingUploadCache(objectName);
     }
@@ -305,6 +365,7 @@ public class BaseOssService {
     private void onMkdirSuccess(String objectName, FileInfo fileInfo) {
         log.info("mkdir success: {}", objectName);
         setFileInfoCache(objectName, fileInfo);
+        namespaceIndex.put(ossService, bucketName, fileInfo);
         clearFileListCache(objectName);
     }
 
@@ -316,7 +377,7 @@ public class BaseOssService {
         if (objectName.equals("/")) {
             getFileNameList(objectName);
         } else {
-            if (objectName.length() > 1) {
+            if (!objectName.isEmpty()) {
                 getFileNameList(objectName + "/");
             } else {
                 getFileNameList(objectName);
@@ -347,16 +408,15 @@ public class BaseOssService {
 
     /**
      * <p>检查是否有需要上传的文件 </p>
-     * 有等待上传的文件且文件的最后修改时间大于5秒就上传 <br/>
+     * 有等待上传的文件且文件的最后修改时间大于5秒就上传, 大文件分片并发上传(见 OssMultipartUploader) <br/>
      * 该方法每秒执行一次 <br/>
      */
     private void checkUpload() {
         getWaitingUploadCacheMap().forEach((objectName, tempFileAbsolutePath) -> {
             long lastModified = tempFileAbsolutePath.toFile().lastModified();
-            // 临时文件的最后修改时间大于5秒就上传
-            if ((System.currentTimeMillis() - lastModified) > 5000) {
+            // 临时文件的最后修改时间大于5秒就上传, 同一个文件正在上传时等上传完再上传
+            if ((System.currentTimeMillis() - lastModified) > 5000 && multipartUploader.upload(ossService, bucketName, objectName, tempFileAbsolutePath)) {
                 removeWaitingUploadCache(objectName);
-                ThreadUtil.execute(() -> ossService.uploadFile(tempFileAbsolutePath, objectName));
             }
         });
     }
@@ -554,9 +614,21 @@ public class BaseOssService {
     public void clearCache(String objectName) {
         clearFileCache(objectName);
         clearFileListCache(objectName);
+        namespaceIndex.invalidate(ossService, bucketName, objectName);
+    }
+
+    /**
+     * 分片复制/分片上传的分片大小, 不小于 PART_SIZE, 且分片数不超过 10000
+     *
+     * @param size 对象大小
+     * @return 分片大小
+     */
+    public static long getPartSize(long size) {
+        return Math.max(PART_SIZE, (size + MAX_PART_COUNT - 1) / MAX_PART_COUNT);
     }
 
     public void closePrint() {
+        namespaceIndex.unregister(ossService, bucketName);
         log.info("platform: {}, bucketName: {} shutdown... {}", this.ossService.getPlatform().getValue(), bucketName, this.ossService.hashCode());
     }
 }
@@ -6,6 +6,7 @@ import java.net.URL;
 import java.nio.file.Path;
 import java.util.List;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
 
 /**
  * @author jmal
@@ -16,6 +17,21 @@ public interface IOssService {
 
     PlatformOSS getPlatform();
 
+    /**
+     * oss 服务地址, 用来区分同一平台不同服务下的同名 bucket
+     * @return endpoint, 腾讯云为 region
+     */
+    String getEndpoint();
+
+    /**
+     * bucket 的唯一名称, 用于索引、上传任务等按 bucket 区分的记录
+     * @param bucketName bucketName
+     * @return platform:endpoint:bucket
+     */
+    default String getBucketId(String bucketName) {
+        return getPlatform().getKey() + ":" + getEndpoint() + ":" + bucketName;
+    }
+
     /**
      * Webdav 获取FileInfo
      * @param objectName object key
@@ -110,6 +126,14 @@ public interface IOssService {
      */
     List<FileInfo> getAllObjectsWithPrefix(String objectName);
 
+    /**
+     * 按 objectName 升序分页列举包含指定前缀的所有文件, 不会一次性加载所有文件
+     * @param objectName objectName
+     * @param consumer   每页的文件列表
+     * @throws com.jmal.clouddisk.exception.CommonException 列举失败, 已列举的页不完整
+     */
+    void listAllObjectsWithPrefix(String objectName, Consumer<List<FileInfo>> consumer);
+
     /**
      * 创建文件夹
      * @param objectName object key
@@ -206,6 +230,27 @@ public interface IOssService {
      */
     URL getPresignedObjectUrl(String objectName, int expiryTime);
 
+    /**
+     * 生成下载用的预签名URL, 浏览器直接从oss下载
+     *
+     * @param objectName         objectName
+     * @param expiryTime         过期时间(秒)
+     * @param contentDisposition 覆盖响应头 Content-Disposition, 为空则不覆盖
+     * @return 预签名URL, 生成失败返回 null
+     */
+    URL getPresignedDownloadUrl(String objectName, int expiryTime, String contentDisposition);
+
+    /**
+     * 生成上传分片用的预签名URL, 浏览器直接 PUT 分片到oss
+     *
+     * @param objectName objectName
+     * @param uploadId   uploadId
+     * @param partNumber 分片号
+     * @param expiryTime 过期时间(秒)
+     * @return 预签名URL, 生成失败返回 null
+     */
+    URL getPresignedPartUrl(String objectName, String uploadId, int partNumber, int expiryTime);
+
     /**
      * 拷贝对象(相同Bucket之间拷贝)
      *
@@ -226,6 +271,18 @@ public interface IOssService {
      */
     List<String> copyObject(String sourceBucketName, String sourceKey, String destinationBucketName, String destinationKey);
 
+    /**
+     * 服务端复制单个对象, 超过 BaseOssService.MULTIPART_THRESHOLD 时使用分片复制
+     *
+     * @param sourceBucketName      源Bucket
+     * @param sourceKey             源objectName
+     * @param destinationBucketName 目标Bucket
+     * @param destinationKey        目标objectName
+     * @param size                  源对象大小, 未知时为 -1
+     * @throws com.jmal.clouddisk.exception.CommonException 复制失败
+     */
+    void copyObjectFile(String sourceBucketName, String sourceKey, String destinationBucketName, String destinationKey, long size);
+
     /**
      * 锁对象
      * @param objectName objectName
@@ -3,11 +3,13 @@ package com.jmal.clouddisk.oss;
 import cn.hutool.core.io.file.PathUtil;
 import cn.hutool.core.thread.ThreadUtil;
 import cn.hutool.core.util.ReUtil;
+import cn.hutool.crypto.SecureUtil;
 import com.jmal.clouddisk.config.FileProperties;
 import com.jmal.clouddisk.exception.CommonException;
 import com.jmal.clouddisk.exception.ExceptionType;
 import com.jmal.clouddisk.listener.FileMonitor;
 import com.jmal.clouddisk.model.FileDocument;
+import com.jmal.clouddisk.media.ImageDerivativeService;
 import com.jmal.clouddisk.model.rbac.ConsumerDO;
 import com.jmal.clouddisk.oss.aliyun.AliyunOssService;
 import com.jmal.clouddisk.oss.minio.MinIOService;
@@ -45,6 +47,17 @@ public class OssConfigService {
 
     public static final String COLLECTION_NAME = "OssConfig";
     private static final Map<String, IOssService> OSS_SERVICE_MAP = new ConcurrentHashMap<>();
+    /**
+     * 本节点已加载的配置
+     * key: ossConfigId
+     * value: webPathPrefix
+     */
+    private static final Map<String, String> OSS_CONFIG_PREFIX = new ConcurrentHashMap<>();
+    /**
+     * 本节点已加载的配置指纹, 用于忽略本节点自己的修改
+     * key: ossConfigId
+     */
+    private static final Map<String, String> OSS_CONFIG_FINGERPRINT = new ConcurrentHashMap<>();
     private final UserServiceImpl userService;
 
     private final FileProperties fileProperties;
@@ -53,11 +66,20 @@ public class OssConfigService {
 
     private final MongoTemplate mongoTemplate;
 
-    public OssConfigService(FileProperties fileProperties, UserServiceImpl userService, MongoTemplate mongoTemplate, FileMonitor fileMonitor) {
+    private final OssMultipartUploader multipartUploader;
+
+    private final OssNamespaceIndex namespaceIndex;
+
+    private final ImageDerivativeService imageDerivativeService;
+
+    public OssConfigService(FileProperties fileProperties, UserServiceImpl userService, MongoTemplate mongoTemplate, FileMonitor fileMonitor, OssMultipartUploader multipartUploader, OssNamespaceIndex namespaceIndex, ImageDerivativeService imageDerivativeService) {
         this.userService = userService;
         this.mongoTemplate = mongoTemplate;
         this.fileProperties = fileProperties;
         this.fileMonitor = fileMonitor;
+        this.multipartUploader = multipartUploader;
+        this.namespaceIndex = namespaceIndex;
+        this.imageDerivativeService = imageDerivativeService;
     }
 
     @PostConstruct
@@ -66,30 +88,81 @@ public class OssConfigService {
         ThreadUtil.execute(() -> {
             List<OssConfigDO> ossConfigDOList = mongoTemplate.findAll(OssConfigDO.class);
             for (OssConfigDO ossConfigDO : ossConfigDOList) {
-                String userId = ossConfigDO.getUserId();
-                ConsumerDO consumerDO = userService.userInfoById(userId);
-                if (consumerDO == null) {
-                    continue;
-                }
-                OssConfigDTO ossConfigDTO = ossConfigDO.toOssConfigDTO(userService.userInfoById(userId));
-                ossConfigDTO.setUsername(consumerDO.getUsername());
-                IOssService ossService = null;
-                try {
-                    ossService = newOssService(fileProperties, ossConfigDO.getPlatform(), ossConfigDTO);
-                    if (ossService != null) {
-                        setBucketInfoCache(ossConfigDO.getPlatform(), ossConfigDTO, ossService);
-                    }
-                } catch (Exception e) {
-                    log.error(ossConfigDO.getPlatform().getValue() + " 配置加载失败!");
-                    log.error(e.getMessage(), e);
-                    if (ossService != null) {
-                        ossService.close();
-                    }
-                }
+                loadOssConfig(ossConfigDO);
             }
         });
     }
 
+    /**
+     * 加载OSS配置
+     * @param ossConfigDO OssConfigDO
+     */
+    private void loadOssConfig(OssConfigDO ossConfigDO) {
+        String userId = ossConfigDO.getUserId();
+        ConsumerDO consumerDO = userService.userInfoById(userId);
+        if (consumerDO == null) {
+            return;
+        }
+        OssConfigDTO ossConfigDTO = ossConfigDO.toOssConfigDTO(consumerDO);
+        ossConfigDTO.setUsername(consumerDO.getUsername());
+        IOssService ossService = null;
+        try {
+            ossService = newOssService(fileProperties, ossConfigDO.getPlatform(), ossConfigDTO);
+            if (ossService != null) {
+                setBucketInfoCache(ossConfigDO.getPlatform(), ossConfigDTO, ossService);
+                recordOssConfig(ossConfigDO, ossConfigDTO.getUsername());
+            }
+        } catch (Exception e) {
+            log.error(ossConfigDO.getPlatform().getValue() + " 配置加载失败!");
+            log.error(e.getMessage(), e);
+            if (ossService != null) {
+                ossService.close();
+            }
+        }
+    }
+
+    /**
+     * 记录本节点已加载的配置
+     */
+    private static void recordOssConfig(OssConfigDO ossConfigDO, String username) {
+        if (ossConfigDO.getId() == null) {
+            return;
+        }
+        OSS_CONFIG_PREFIX.put(ossConfigDO.getId(), MyWebdavServlet.getPathDelimiter(username, ossConfigDO.getFolderName()));
+        OSS_CONFIG_FINGERPRINT.put(ossConfigDO.getId(), fingerprint(ossConfigDO));
+    }
+
+    private static String fingerprint(OssConfigDO ossConfigDO) {
+        return SecureUtil.md5(ossConfigDO.getPlatform() + ":" + ossConfigDO.getFolderName() + ":" + ossConfigDO.getEndpoint()
+                + ":" + ossConfigDO.getBucket() + ":" + ossConfigDO.getRegion() + ":" + ossConfigDO.getAccessKey()
+                + ":" + ossConfigDO.getSecretKey() + ":" + ossConfigDO.getUserId());
+    }
+
+    /**
+     * 同步其他节点修改的OSS配置, 本节点已经加载过的相同配置会被忽略
+     *
+     * @param id          ossConfigId
+     * @param ossConfigDO 最新的配置, 为null表示已删除
+     */
+    public synchronized void syncOssConfig(String id, OssConfigDO ossConfigDO) {
+        String oldPrefix = OSS_CONFIG_PREFIX.get(id);
+        if (ossConfigDO == null) {
+            OSS_CONFIG_PREFIX.remove(id);
+            OSS_CONFIG_FINGERPRINT.remove(id);
+            if (oldPrefix != null) {
+                destroyOssService(oldPrefix);
+            }
+            return;
+        }
+        if (fingerprint(ossConfigDO).equals(OSS_CONFIG_FINGERPRINT.get(id))) {
+            return;
+        }
+        if (oldPrefix != null) {
+            destroyOssService(oldPrefix);
+        }
+        loadOssConfig(ossConfigDO);
+    }
+
     public void setOssServiceMap(String key, IOssService ossService) {
         OSS_SERVICE_MAP.put(key, ossService);
     }
@@ -149,12 +222,12 @@ public class OssConfigService {
      * @param ossConfigDTO    OssConfigDTO
      * @return IOssService 对象
      */
-    private static IOssService newOssService(FileProperties fileProperties, PlatformOSS platformOSS, OssConfigDTO ossConfigDTO) {
+    private IOssService newOssService(FileProperties fileProperties, PlatformOSS platformOSS, OssConfigDTO ossConfigDTO) {
         IOssService ossService = null;
         switch (platformOSS) {
-            case ALIYUN -> ossService = new AliyunOssService(fileProperties, ossConfigDTO);
-            case TENCENT -> ossService = new TencentOssService(fileProperties, ossConfigDTO);
-            case MINIO -> ossService = new MinIOService(fileProperties, ossConfigDTO);
+            case ALIYUN -> ossService = new AliyunOssService(fileProperties, ossConfigDTO, multipartUploader, namespaceIndex);
+            case TENCENT -> ossService = new TencentOssService(fileProperties, ossConfigDTO, multipartUploader, namespaceIndex);
+            case MINIO -> ossService = new MinIOService(fileProperties, ossConfigDTO, multipartUploader, namespaceIndex, imageDerivativeService);
         }
         return ossService;
     }
@@ -260,6 +333,10 @@ public class OssConfigService {
         update.set("bucket", ossConfigDO.getBucket());
         update.set("userId", ossConfigDO.getUserId());
         mongoTemplate.upsert(query, update, COLLECTION_NAME);
+        OssConfigDO saved = mongoTemplate.findOne(query, OssConfigDO.class);
+        if (saved != null) {
+            recordOssConfig(saved, ossConfigDTO.getUsername());
+        }
     }
 
     /**
@@ -290,6 +367,8 @@ public class OssConfigService {
         Query query = new Query();
         query.addCriteria(Criteria.where("_id").is(id));
         OssConfigDO ossConfigDO = mongoTemplate.findAndRemove(query, OssConfigDO.class);
+        OSS_CONFIG_PREFIX.remove(id);
+        OSS_CONFIG_FINGERPRINT.remove(id);
         if (ossConfigDO != null) {
             // 销毁IOssService
             String username = userService.getUserNameById(ossConfigDO.getUserId());
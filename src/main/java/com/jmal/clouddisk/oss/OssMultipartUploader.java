@@ -0,0 +1,278 @@
+package com.jmal.clouddisk.oss;
+
+import cn.hutool.core.io.file.PathUtil;
+import cn.hutool.core.thread.ThreadUtil;
+import cn.hutool.crypto.SecureUtil;
+import com.google.common.io.ByteStreams;
+import com.jmal.clouddisk.config.FileProperties;
+import com.jmal.clouddisk.util.RetryUtil;
+import com.mongodb.client.model.ReplaceOptions;
+import jakarta.annotation.PreDestroy;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.bson.Document;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * 上传临时文件到 oss
+ * <p>
+ * 小文件直接上传, 大文件切分为分片并发上传; 每个 bucket 一个固定大小的线程池, 限制同时上传的文件/分片数<br>
+ * uploadId 和已上传的分片号记录在 ossUploadTask 中, 节点重启后临时文件重新加入等待上传列表, 上传时跳过已上传的分片<br>
+ * 分片重试后仍失败时取消分片上传, 改为整个文件上传
+ * </p>
+ *
+ * @author jmal
+ */
+@Service
+@Slf4j
+@RequiredArgsConstructor
+public class OssMultipartUploader {
+
+    public static final String COLLECTION_NAME = "ossUploadTask";
+
+    private static final String PLATFORM = "platform";
+
+    private static final String ENDPOINT = "endpoint";
+
+    private static final String BUCKET = "bucket";
+
+    private static final String OBJECT_NAME = "objectName";
+
+    private static final String TEMP_FILE = "tempFile";
+
+    private static final String SIZE = "size";
+
+    private static final String LAST_MODIFIED = "lastModified";
+
+    private static final String UPLOAD_ID = "uploadId";
+
+    private static final String PART_SIZE = "partSize";
+
+    private static final String PARTS = "parts";
+
+    private final MongoTemplate mongoTemplate;
+
+    private final FileProperties fileProperties;
+
+    /**
+     * 每个 bucket 的线程池
+     * key: platform:endpoint:bucket
+     */
+    private final Map<String, ExecutorService> executors = new ConcurrentHashMap<>();
+
+    /**
+     * 正在上传的文件
+     */
+    private final Set<String> uploading = ConcurrentHashMap.newKeySet();
+
+    @PreDestroy
+    public void destroy() {
+        executors.values().forEach(ExecutorService::shutdownNow);
+    }
+
+    /**
+     * 上传临时文件, 成功后由 ossService 调用 BaseOssService.onUploadSuccess 删除临时文件
+     *
+     * @param ossService           ossService
+     * @param bucketName           bucketName
+     * @param objectName           objectName
+     * @param tempFileAbsolutePath 临时文件绝对路径
+     * @return 该文件正在上传时返回 false, 需要稍后再上传
+     */
+    public boolean upload(IOssService ossService, String bucketName, String objectName, Path tempFileAbsolutePath) {
+        String taskId = getTaskId(ossService, bucketName, objectName);
+        if (!uploading.add(taskId)) {
+            return false;
+        }
+        ExecutorService executor = getExecutor(ossService, bucketName);
+        long size = tempFileAbsolutePath.toFile().length();
+        if (size < BaseOssService.MULTIPART_THRESHOLD) {
+            executor.execute(() -> {
+                try {
+                    ossService.uploadFile(tempFileAbsolutePath, objectName);
+                } finally {
+                    uploading.remove(taskId);
+                }
+            });
+            return true;
+        }
+        try {
+            uploadParts(ossService, bucketName, objectName, tempFileAbsolutePath, taskId, executor);
+        } catch (Exception e) {
+            log.error("分片上传失败, 改为整个文件上传, objectName: {}, {}", objectName, e.getMessage());
+            executor.execute(() -> fallback(ossService, objectName, tempFileAbsolutePath, taskId, null));
+        }
+        return true;
+    }
+
+    /**
+     * 未完成的上传任务, 临时文件还在的重新加入等待上传列表, 不在的删除记录
+     *
+     * @param ossService ossService
+     * @param bucketName bucketName
+     * @return key: objectName, value: 临时文件绝对路径
+     */
+    public Map<String, Path> getUnfinished(IOssService ossService, String bucketName) {
+        Query query = new Query();
+        query.addCriteria(Criteria.where(PLATFORM).is(ossService.getPlatform().getKey()));
+        query.addCriteria(Criteria.where(ENDPOINT).is(ossService.getEndpoint()));
+        query.addCriteria(Criteria.where(BUCKET).is(bucketName));
+        Map<String, Path> unfinished = new HashMap<>();
+        for (Document task : mongoTemplate.find(query, Document.class, COLLECTION_NAME)) {
+            Path tempFile = Paths.get(task.getString(TEMP_FILE));
+            if (PathUtil.exists(tempFile, false)) {
+                unfinished.put(task.getString(OBJECT_NAME), tempFile);
+            } else {
+                removeTask(task.getString("_id"));
+            }
+        }
+        if (!unfinished.isEmpty()) {
+            log.info("{} 有 {} 个未完成的分片上传, bucket: {}", ossService.getPlatform().getValue(), unfinished.size(), bucketName);
+        }
+        return unfinished;
+    }
+
+    private void uploadParts(IOssService ossService, String bucketName, String objectName, Path tempFileAbsolutePath, String taskId, ExecutorService executor) throws IOException {
+        long size = Files.size(tempFileAbsolutePath);
+        long lastModified = Files.getLastModifiedTime(tempFileAbsolutePath).toMillis();
+        long partSize = BaseOssService.getPartSize(size);
+        Document task = mongoTemplate.findById(taskId, Document.class, COLLECTION_NAME);
+        Set<Integer> done = new HashSet<>();
+        String uploadId = null;
+        if (task != null && Objects.equals(task.getLong(SIZE), size) && Objects.equals(task.getLong(LAST_MODIFIED), lastModified)
+                && Objects.equals(task.getLong(PART_SIZE), partSize)) {
+            // 同一个临时文件, 继续上传
+            uploadId = task.getString(UPLOAD_ID);
+            List<Integer> parts = task.getList(PARTS, Integer.class);
+            if (parts != null) {
+                done.addAll(parts);
+            }
+        } else if (task != null) {
+            // 临时文件已经变了, 之前的分片作废
+            ossService.abortMultipartUpload(objectName, task.getString(UPLOAD_ID));
+        }
+        if (uploadId == null) {
+            uploadId = ossService.initiateMultipartUpload(objectName);
+            if (uploadId == null) {
+                throw new IOException("初始化分片上传失败");
+            }
+            saveTask(taskId, ossService, bucketName, objectName, tempFileAbsolutePath, size, lastModified, uploadId, partSize);
+        } else {
+            log.info("继续分片上传 {}, 已上传分片: {}", objectName, done.size());
+        }
+        String finalUploadId = uploadId;
+        List<CompletableFuture<Void>> futures = new ArrayList<>();
+        int partNumber = 1;
+        for (long offset = 0; offset < size; offset += partSize, partNumber++) {
+            if (done.contains(partNumber)) {
+                continue;
+            }
+            long position = offset;
+            long length = Math.min(partSize, size - offset);
+            int number = partNumber;
+            futures.add(CompletableFuture.runAsync(() -> uploadPart(ossService, objectName, tempFileAbsolutePath, finalUploadId, taskId, position, length, number), executor));
+        }
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).whenComplete((result, throwable) -> {
+            if (throwable != null) {
+                log.error("分片上传失败, 改为整个文件上传, objectName: {}, {}", objectName, throwable.getMessage());
+                fallback(ossService, objectName, tempFileAbsolutePath, taskId, finalUploadId);
+                return;
+            }
+            try {
+                ossService.completeMultipartUpload(objectName, finalUploadId, size);
+            } catch (Exception e) {
+                // 合并失败时和分片失败一样改为整个文件上传, 不留下任务记录和临时文件
+                log.error("合并分片失败, 改为整个文件上传, objectName: {}, {}", objectName, e.getMessage(), e);
+                fallback(ossService, objectName, tempFileAbsolutePath, taskId, finalUploadId);
+                return;
+            }
+            try {
+                removeTask(taskId);
+            } finally {
+                uploading.remove(taskId);
+            }
+        });
+    }
+
+    private void uploadPart(IOssService ossService, String objectName, Path tempFileAbsolutePath, String uploadId, String taskId, long position, long length, int partNumber) {
+        try {
+            RetryUtil.retry(fileProperties.getOssUploadRetries(), () -> {
+                try (FileChannel channel = FileChannel.open(tempFileAbsolutePath, StandardOpenOption.READ);
+                     InputStream inputStream = ByteStreams.limit(Channels.newInputStream(channel.position(position)), length)) {
+                    if (!ossService.uploadPart(inputStream, objectName, (int) length, partNumber, uploadId)) {
+                        throw new IOException("上传分片失败, partNumber: " + partNumber);
+                    }
+                }
+            });
+        } catch (Exception e) {
+            throw new IllegalStateException(e.getMessage(), e);
+        }
+        mongoTemplate.updateFirst(Query.query(Criteria.where("_id").is(taskId)), new Update().addToSet(PARTS, partNumber), COLLECTION_NAME);
+    }
+
+    /**
+     * 取消分片上传, 整个文件上传
+     */
+    private void fallback(IOssService ossService, String objectName, Path tempFileAbsolutePath, String taskId, String uploadId) {
+        try {
+            if (uploadId != null) {
+                ossService.abortMultipartUpload(objectName, uploadId);
+            }
+            removeTask(taskId);
+            ossService.uploadFile(tempFileAbsolutePath, objectName);
+        } catch (Exception e) {
+            // 在 whenComplete 中执行, 异常不会被抛出, 只能在这里记录
+            log.error("整个文件上传失败, objectName: {}, {}", objectName, e.getMessage(), e);
+        } finally {
+            uploading.remove(taskId);
+        }
+    }
+
+    private ExecutorService getExecutor(IOssService ossService, String bucketName) {
+        return executors.computeIfAbsent(ossService.getBucketId(bucketName), key -> {
+            int concurrency = Math.max(1, fileProperties.getOssUploadConcurrency());
+            return ThreadUtil.newExecutor(concurrency, concurrency, Integer.MAX_VALUE);
+        });
+    }
+
+    private static String getTaskId(IOssService ossService, String bucketName, String objectName) {
+        return SecureUtil.md5(ossService.getBucketId(bucketName) + ":" + objectName);
+    }
+
+    private void saveTask(String taskId, IOssService ossService, String bucketName, String objectName, Path tempFileAbsolutePath, long size, long lastModified, String uploadId, long partSize) {
+        Document task = new Document("_id", taskId)
+                .append(PLATFORM, ossService.getPlatform().getKey())
+                .append(ENDPOINT, ossService.getEndpoint())
+                .append(BUCKET, bucketName)
+                .append(OBJECT_NAME, objectName)
+                .append(TEMP_FILE, tempFileAbsolutePath.toString())
+                .append(SIZE, size)
+                .append(LAST_MODIFIED, lastModified)
+                .append(UPLOAD_ID, uploadId)
+                .append(PART_SIZE, partSize)
+                .append(PARTS, new ArrayList<Integer>())
+                .append("createdAt", new Date());
+        mongoTemplate.getCollection(COLLECTION_NAME).replaceOne(new Document("_id", taskId), task, new ReplaceOptions().upsert(true));
+    }
+
+    private void removeTask(String taskId) {
+        mongoTemplate.remove(Query.query(Criteria.where("_id").is(taskId)), COLLECTION_NAME);
+    }
+}
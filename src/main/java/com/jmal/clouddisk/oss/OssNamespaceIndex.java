@@ -0,0 +1,576 @@
+package com.jmal.clouddisk.oss;
+
+import cn.hutool.core.thread.ThreadUtil;
+import cn.hutool.core.util.ReUtil;
+import cn.hutool.crypto.SecureUtil;
+import com.jmal.clouddisk.config.FileProperties;
+import jakarta.annotation.PreDestroy;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.bson.Document;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.index.Index;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.stereotype.Service;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * oss 命名空间索引
+ * <p>
+ * 每个 bucket 的目录和文件记录在 ossNamespace 中, 列目录和获取文件信息先查索引, 目录在 file.oss-index-ttl 秒内列举过就不再请求 oss<br>
+ * 后台定时全量列举 bucket, 按页和索引中同一范围的记录比较, 只写入有变化的对象(ETag, LastModified, 大小); 本系统的上传、新建、删除直接更新索引, 复制等其他写操作使所在目录过期<br>
+ * bucket 按 platform:endpoint:bucket 区分, 不同服务下的同名 bucket 互不影响
+ * </p>
+ *
+ * @author jmal
+ */
+@Service
+@Slf4j
+@RequiredArgsConstructor
+public class OssNamespaceIndex {
+
+    public static final String COLLECTION_NAME = "ossNamespace";
+
+    private static final String PLATFORM = "platform";
+
+    private static final String ENDPOINT = "endpoint";
+
+    private static final String BUCKET = "bucket";
+
+    private static final String KEY = "key";
+
+    private static final String PARENT = "parent";
+
+    private static final String FOLDER = "folder";
+
+    private static final String ETAG = "eTag";
+
+    private static final String SIZE = "size";
+
+    private static final String LAST_MODIFIED = "lastModified";
+
+    /**
+     * 目录最后一次列举的时间
+     */
+    private static final String LISTED_AT = "listedAt";
+
+    /**
+     * 目录最后一次过期的时间
+     */
+    private static final String INVALIDATED_AT = "invalidatedAt";
+
+    /**
+     * 本系统最后一次写入的时间
+     */
+    private static final String UPDATED_AT = "updatedAt";
+
+    private static final String SEPARATOR = "/";
+
+    /**
+     * 每批写入的数量
+     */
+    private static final int BATCH_SIZE = 1000;
+
+    private final MongoTemplate mongoTemplate;
+
+    private final FileProperties fileProperties;
+
+    private final ScheduledThreadPoolExecutor scheduledThreadPoolExecutor = ThreadUtil.createScheduledExecutor(1);
+
+    /**
+     * 已注册的 bucket
+     * key: platform:endpoint:bucket
+     */
+    private final Map<String, IOssService> ossServices = new ConcurrentHashMap<>();
+
+    private final Map<String, ScheduledFuture<?>> crawlers = new ConcurrentHashMap<>();
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void initAfterStartup() {
+        mongoTemplate.indexOps(COLLECTION_NAME).ensureIndex(new Index().on(PLATFORM, Sort.Direction.ASC).on(ENDPOINT, Sort.Direction.ASC).on(BUCKET, Sort.Direction.ASC).on(PARENT, Sort.Direction.ASC));
+        mongoTemplate.indexOps(COLLECTION_NAME).ensureIndex(new Index().on(PLATFORM, Sort.Direction.ASC).on(ENDPOINT, Sort.Direction.ASC).on(BUCKET, Sort.Direction.ASC).on(KEY, Sort.Direction.ASC));
+    }
+
+    @PreDestroy
+    public void destroy() {
+        scheduledThreadPoolExecutor.shutdownNow();
+    }
+
+    /**
+     * 是否使用索引
+     */
+    public boolean isEnabled() {
+        return getTtlMillis() > 0;
+    }
+
+    /**
+     * 注册 bucket, 定时全量列举
+     *
+     * @param ossService ossService
+     * @param bucketName bucketName
+     */
+    public void register(IOssService ossService, String bucketName) {
+        if (!isEnabled()) {
+            return;
+        }
+        String name = ossService.getBucketId(bucketName);
+        ossServices.put(name, ossService);
+        crawlers.computeIfAbsent(name, key -> {
+            // 在目录过期前重新列举
+            long delay = Math.max(30, fileProperties.getOssIndexTtl() / 2);
+            return scheduledThreadPoolExecutor.scheduleWithFixedDelay(() -> crawl(key, bucketName), 10, delay, TimeUnit.SECONDS);
+        });
+    }
+
+    /**
+     * 取消注册, 配置被修改或删除时
+     *
+     * @param ossService ossService
+     * @param bucketName bucketName
+     */
+    public void unregister(IOssService ossService, String bucketName) {
+        String name = ossService.getBucketId(bucketName);
+        if (ossServices.remove(name, ossService)) {
+            ScheduledFuture<?> crawler = crawlers.remove(name);
+            if (crawler != null) {
+                crawler.cancel(false);
+            }
+        }
+    }
+
+    /**
+     * 目录下的文件列表
+     *
+     * @param ossService ossService
+     * @param bucketName bucketName
+     * @param prefix     目录, 以 / 结尾, 空为根目录
+     * @return 目录没有列举过或已过期时为null
+     */
+    public List<FileInfo> list(IOssService ossService, String bucketName, String prefix) {
+        if (!isEnabled() || !isListed(ossService, bucketName, prefix)) {
+            return null;
+        }
+        Query query = bucketQuery(ossService, bucketName);
+        query.addCriteria(Criteria.where(PARENT).is(prefix));
+        return mongoTemplate.find(query, Document.class, COLLECTION_NAME).stream().map(document -> toFileInfo(document, bucketName)).toList();
+    }
+
+    /**
+     * 按 objectName 查询
+     *
+     * @param ossService ossService
+     * @param bucketName bucketName
+     * @param objectName objectName, 目录可以不以 / 结尾
+     * @return 不存在, 或所在目录没有列举过或已过期时为null
+     */
+    public FileInfo get(IOssService ossService, String bucketName, String objectName) {
+        String key = objectName.endsWith(SEPARATOR) ? objectName.substring(0, objectName.length() - 1) : objectName;
+        if (!isEnabled() || key.isEmpty() || !isListed(ossService, bucketName, getParent(key))) {
+            return null;
+        }
+        Query query = bucketQuery(ossService, bucketName);
+        query.addCriteria(Criteria.where(KEY).in(key, key + SEPARATOR));
+        Document document = mongoTemplate.findOne(query, Document.class, COLLECTION_NAME);
+        return document == null ? null : toFileInfo(document, bucketName);
+    }
+
+    /**
+     * 用列举的结果更新目录, 只写入有变化的对象
+     *
+     * @param ossService   ossService
+     * @param bucketName   bucketName
+     * @param prefix       目录, 以 / 结尾, 空为根目录
+     * @param fileInfoList 目录下的文件列表
+     * @param listedAt     开始列举的时间
+     */
+    public void apply(IOssService ossService, String bucketName, String prefix, List<FileInfo> fileInfoList, Date listedAt) {
+        if (!isEnabled()) {
+            return;
+        }
+        Query query = bucketQuery(ossService, bucketName);
+        query.addCriteria(Criteria.where(PARENT).is(prefix));
+        Map<String, Document> existing = new HashMap<>();
+        for (Document document : mongoTemplate.find(query, Document.class, COLLECTION_NAME)) {
+            existing.put(document.getString("_id"), document);
+        }
+        if (fileInfoList.isEmpty() && !existing.isEmpty()) {
+            // 列举失败时也会返回空列表, 不能据此清空目录, 也不标记为已列举
+            return;
+        }
+        Batch batch = new Batch();
+        for (FileInfo fileInfo : fileInfoList) {
+            String id = getId(ossService, bucketName, fileInfo.getKey());
+            if (isChanged(existing.remove(id), fileInfo)) {
+                batch.upsert(id, entryUpdate(ossService, bucketName, fileInfo));
+            }
+        }
+        // 列举之后本系统写入的不删除
+        existing.values().stream().filter(document -> !isAfter(document.getDate(UPDATED_AT), listedAt)).forEach(document -> batch.remove(document.getString("_id")));
+        batch.upsert(getId(ossService, bucketName, prefix), folderUpdate(ossService, bucketName, prefix).set(LISTED_AT, listedAt));
+        batch.execute();
+    }
+
+    /**
+     * 本系统上传或新建后写入索引, 并补全上级目录
+     *
+     * @param ossService ossService
+     * @param bucketName bucketName
+     * @param fileInfo   FileInfo
+     */
+    public void put(IOssService ossService, String bucketName, FileInfo fileInfo) {
+        if (!isEnabled()) {
+            return;
+        }
+        Batch batch = new Batch();
+        batch.upsert(getId(ossService, bucketName, fileInfo.getKey()), entryUpdate(ossService, bucketName, fileInfo).set(UPDATED_AT, new Date()));
+        for (String parent = getParent(fileInfo.getKey()); !parent.isEmpty(); parent = getParent(parent)) {
+            batch.upsert(getId(ossService, bucketName, parent), folderUpdate(ossService, bucketName, parent));
+        }
+        batch.execute();
+    }
+
+    /**
+     * 本系统删除后从索引中删除, 目录连同其下所有文件
+     *
+     * @param ossService ossService
+     * @param bucketName bucketName
+     * @param objectName objectName
+     */
+    public void remove(IOssService ossService, String bucketName, String objectName) {
+        if (!isEnabled()) {
+            return;
+        }
+        Query query = bucketQuery(ossService, bucketName);
+        if (objectName.endsWith(SEPARATOR)) {
+            query.addCriteria(Criteria.where(KEY).regex("^" + ReUtil.escape(objectName)));
+        } else {
+            query.addCriteria(Criteria.where(KEY).is(objectName));
+        }
+        mongoTemplate.remove(query, COLLECTION_NAME);
+    }
+
+    /**
+     * 使 objectName 所在目录过期, 是目录时其下所有目录也过期, 下次访问时重新列举
+     *
+     * @param ossService ossService
+     * @param bucketName bucketName
+     * @param objectName objectName
+     */
+    public void invalidate(IOssService ossService, String bucketName, String objectName) {
+        if (!isEnabled()) {
+            return;
+        }
+        String key = objectName.endsWith(SEPARATOR) ? objectName.substring(0, objectName.length() - 1) : objectName;
+        List<Criteria> criteria = new ArrayList<>();
+        criteria.add(Criteria.where(KEY).is(getParent(key)));
+        if (!key.isEmpty()) {
+            criteria.add(Criteria.where(KEY).regex("^" + ReUtil.escape(key + SEPARATOR)));
+        }
+        Query query = bucketQuery(ossService, bucketName);
+        query.addCriteria(Criteria.where(FOLDER).is(true));
+        query.addCriteria(new Criteria().orOperator(criteria));
+        mongoTemplate.updateMulti(query, new Update().set(INVALIDATED_AT, new Date()), COLLECTION_NAME);
+    }
+
+    /**
+     * 全量列举 bucket, 只写入有变化的对象, 删除已不存在的对象, 所有目录标记为已列举
+     * <p>
+     * 列举结果和索引都按 key 升序, 每页只读取索引中同一范围(上一页最后一个key, 本页最后一个key]的记录比较, 不会一次性加载整个 bucket
+     * </p>
+     */
+    private void crawl(String name, String bucketName) {
+        IOssService ossService = ossServices.get(name);
+        if (ossService == null) {
+            return;
+        }
+        try {
+            long start = System.currentTimeMillis();
+            Crawler crawler = new Crawler(ossService, bucketName, new Date(start));
+            ossService.listAllObjectsWithPrefix("", crawler::accept);
+            if (crawler.objects == 0 && mongoTemplate.count(bucketQuery(ossService, bucketName), COLLECTION_NAME) > 1) {
+                // 列举不到对象时不能据此清空索引
+                log.warn("{} 列举 bucket: {} 没有对象, 跳过本次更新", ossService.getPlatform().getValue(), bucketName);
+                return;
+            }
+            crawler.finish();
+            log.info("{} 索引 bucket: {} 完成, 对象数: {}, 变化: {}, 删除: {}, 耗时: {}ms", ossService.getPlatform().getValue(), bucketName, crawler.objects, crawler.changed, crawler.removed, System.currentTimeMillis() - start);
+        } catch (Exception e) {
+            log.error("{} 索引 bucket: {} 失败: {}", ossService.getPlatform().getValue(), bucketName, e.getMessage(), e);
+        }
+    }
+
+    private boolean isListed(IOssService ossService, String bucketName, String prefix) {
+        Document folder = mongoTemplate.findById(getId(ossService, bucketName, prefix), Document.class, COLLECTION_NAME);
+        return folder != null && isListed(folder);
+    }
+
+    /**
+     * 目录在过期时间内列举过, 且之后没有过期
+     */
+    private boolean isListed(Document folder) {
+        Date listedAt = folder.getDate(LISTED_AT);
+        return isFresh(listedAt) && !isAfter(folder.getDate(INVALIDATED_AT), listedAt);
+    }
+
+    private boolean isFresh(Date date) {
+        return date != null && System.currentTimeMillis() - date.getTime() < getTtlMillis();
+    }
+
+    private static boolean isAfter(Date date, Date when) {
+        return date != null && date.after(when);
+    }
+
+    private long getTtlMillis() {
+        Long ttl = fileProperties.getOssIndexTtl();
+        return ttl == null ? 0 : ttl * 1000;
+    }
+
+    /**
+     * 目录只比较是否存在, 没有目录对象的目录每次列举的修改时间都不同
+     */
+    private static boolean isChanged(Document document, FileInfo fileInfo) {
+        if (document == null) {
+            return true;
+        }
+        if (fileInfo.isFolder()) {
+            return false;
+        }
+        return !Objects.equals(document.getString(ETAG), fileInfo.getETag())
+                || !Objects.equals(document.get(SIZE, Number.class).longValue(), fileInfo.getSize())
+                || !Objects.equals(document.getDate(LAST_MODIFIED), fileInfo.getLastModified());
+    }
+
+    private Update entryUpdate(IOssService ossService, String bucketName, FileInfo fileInfo) {
+        String key = fileInfo.getKey();
+        return new Update()
+                .set(PLATFORM, ossService.getPlatform().getKey())
+                .set(ENDPOINT, ossService.getEndpoint())
+                .set(BUCKET, bucketName)
+                .set(KEY, key)
+                .set(PARENT, getParent(key))
+                .set(FOLDER, fileInfo.isFolder())
+                .set(ETAG, fileInfo.getETag())
+                .set(SIZE, fileInfo.getSize())
+                .set(LAST_MODIFIED, fileInfo.getLastModified());
+    }
+
+    private Update folderUpdate(IOssService ossService, String bucketName, String key) {
+        return new Update()
+                .setOnInsert(PLATFORM, ossService.getPlatform().getKey())
+                .setOnInsert(ENDPOINT, ossService.getEndpoint())
+                .setOnInsert(BUCKET, bucketName)
+                .setOnInsert(KEY, key)
+                .setOnInsert(PARENT, key.isEmpty() ? null : getParent(key))
+                .setOnInsert(FOLDER, true)
+                .setOnInsert(SIZE, 0L)
+                .setOnInsert(LAST_MODIFIED, new Date());
+    }
+
+    private static FileInfo toFileInfo(Document document, String bucketName) {
+        FileInfo fileInfo = new FileInfo(document.getString(KEY), document.getString(ETAG), document.get(SIZE, Number.class).longValue(), document.getDate(LAST_MODIFIED));
+        fileInfo.setBucketName(bucketName);
+        return fileInfo;
+    }
+
+    private static Query bucketQuery(IOssService ossService, String bucketName) {
+        Query query = new Query();
+        query.addCriteria(Criteria.where(PLATFORM).is(ossService.getPlatform().getKey()));
+        query.addCriteria(Criteria.where(ENDPOINT).is(ossService.getEndpoint()));
+        query.addCriteria(Criteria.where(BUCKET).is(bucketName));
+        return query;
+    }
+
+    /**
+     * 上级目录
+     *
+     * @param key objectName
+     * @return 以 / 结尾, 根目录为空
+     */
+    private static String getParent(String key) {
+        String name = key.endsWith(SEPARATOR) ? key.substring(0, key.length() - 1) : key;
+        int index = name.lastIndexOf(SEPARATOR);
+        return index < 0 ? "" : name.substring(0, index + 1);
+    }
+
+    private static String getId(IOssService ossService, String bucketName, String key) {
+        return SecureUtil.md5(ossService.getBucketId(bucketName) + ":" + key);
+    }
+
+    /**
+     * 分页比较列举结果和索引
+     * <p>
+     * 列举结果按 key 升序, 没有目录对象的上级目录在第一个子对象之前补上, 补上的目录仍然有序:
+     * 上级目录已经补过或列举过, 当且仅当上一个key以它开头
+     * </p>
+     */
+    private class Crawler {
+
+        private final IOssService ossService;
+
+        private final String bucketName;
+
+        private final Date crawledAt;
+
+        private final Batch batch = new Batch();
+
+        /**
+         * 本页的对象, key: _id, 补上的上级目录 value 为null
+         */
+        private final Map<String, String> pageKeys = new LinkedHashMap<>();
+
+        private final Map<String, FileInfo> page = new HashMap<>();
+
+        /**
+         * 上一个对象的key
+         */
+        private String lastKey = "";
+
+        /**
+         * 上一页最后一个对象的key, 为null时是第一页
+         */
+        private String lowerKey;
+
+        private long objects;
+
+        private long changed;
+
+        private long removed;
+
+        Crawler(IOssService ossService, String bucketName, Date crawledAt) {
+            this.ossService = ossService;
+            this.bucketName = bucketName;
+            this.crawledAt = crawledAt;
+        }
+
+        void accept(List<FileInfo> fileInfoList) {
+            for (FileInfo fileInfo : fileInfoList) {
+                objects++;
+                String key = fileInfo.getKey();
+                if (fileInfo.isFolder() && lastKey.startsWith(key)) {
+                    continue;
+                }
+                List<String> parents = new ArrayList<>();
+                for (String parent = getParent(key); !parent.isEmpty() && !lastKey.startsWith(parent); parent = getParent(parent)) {
+                    parents.add(parent);
+                }
+                for (int i = parents.size() - 1; i >= 0; i--) {
+                    pageKeys.put(getId(ossService, bucketName, parents.get(i)), parents.get(i));
+                }
+                String id = getId(ossService, bucketName, key);
+                pageKeys.put(id, key);
+                page.put(id, fileInfo);
+                lastKey = key;
+            }
+            if (pageKeys.size() >= BATCH_SIZE) {
+                flush(lastKey);
+            }
+        }
+
+        /**
+         * 比较最后一页, 删除最后一个key之后的记录, 所有目录标记为已列举
+         */
+        void finish() {
+            flush(null);
+            batch.upsert(getId(ossService, bucketName, ""), folderUpdate(ossService, bucketName, ""));
+            batch.execute();
+            Query folderQuery = bucketQuery(ossService, bucketName);
+            folderQuery.addCriteria(Criteria.where(FOLDER).is(true));
+            mongoTemplate.updateMulti(folderQuery, new Update().set(LISTED_AT, crawledAt), COLLECTION_NAME);
+        }
+
+        /**
+         * 和索引中 (lowerKey, upperKey] 范围的记录比较
+         *
+         * @param upperKey 本页最后一个key, 为null时不限制
+         */
+        private void flush(String upperKey) {
+            Query query = bucketQuery(ossService, bucketName);
+            Criteria keyCriteria = Criteria.where(KEY);
+            if (lowerKey != null) {
+                keyCriteria.gt(lowerKey);
+            } else {
+                // 根目录不参与比较
+                keyCriteria.gt("");
+            }
+            if (upperKey != null) {
+                keyCriteria.lte(upperKey);
+            }
+            query.addCriteria(keyCriteria);
+            query.fields().include(ETAG).include(SIZE).include(LAST_MODIFIED).include(FOLDER).include(UPDATED_AT);
+            Map<String, Document> existing = new HashMap<>();
+            for (Document document : mongoTemplate.find(query, Document.class, COLLECTION_NAME)) {
+                existing.put(document.getString("_id"), document);
+            }
+            pageKeys.forEach((id, key) -> {
+                Document document = existing.remove(id);
+                FileInfo fileInfo = page.get(id);
+                if (fileInfo == null) {
+                    // 没有目录对象的目录
+                    if (document == null) {
+                        batch.upsert(id, folderUpdate(ossService, bucketName, key));
+                    }
+                } else if (isChanged(document, fileInfo)) {
+                    batch.upsert(id, entryUpdate(ossService, bucketName, fileInfo));
+                    changed++;
+                }
+            });
+            // 列举之后本系统写入的不删除
+            existing.values().stream().filter(document -> !isAfter(document.getDate(UPDATED_AT), crawledAt)).forEach(document -> {
+                batch.remove(document.getString("_id"));
+                removed++;
+            });
+            pageKeys.clear();
+            page.clear();
+            lowerKey = upperKey;
+        }
+    }
+
+    /**
+     * 分批写入
+     */
+    private class Batch {
+
+        private BulkOperations bulkOperations = newBulkOperations();
+
+        private int pending;
+
+        void upsert(String id, Update update) {
+            bulkOperations.upsert(Query.query(Criteria.where("_id").is(id)), update);
+            flush();
+        }
+
+        void remove(String id) {
+            bulkOperations.remove(Query.query(Criteria.where("_id").is(id)));
+            flush();
+        }
+
+        void execute() {
+            if (pending > 0) {
+                bulkOperations.execute();
+                bulkOperations = newBulkOperations();
+                pending = 0;
+            }
+        }
+
+        private void flush() {
+            if (++pending >= BATCH_SIZE) {
+                execute();
+            }
+        }
+
+        private BulkOperations newBulkOperations() {
+            return mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, COLLECTION_NAME);
+        }
+    }
+}
@@ -3,11 +3,14 @@ package com.jmal.clouddisk.oss.aliyun;
 import cn.hutool.core.io.file.PathUtil;
 import cn.hutool.core.thread.ThreadUtil;
 import com.aliyun.oss.ClientException;
+import com.aliyun.oss.HttpMethod;
 import com.aliyun.oss.OSS;
 import com.aliyun.oss.OSSClientBuilder;
 import com.aliyun.oss.OSSException;
 import com.aliyun.oss.model.*;
 import com.jmal.clouddisk.config.FileProperties;
+import com.jmal.clouddisk.exception.CommonException;
+import com.jmal.clouddisk.exception.ExceptionType;
 import com.jmal.clouddisk.oss.*;
 import com.jmal.clouddisk.oss.web.model.OssConfigDTO;
 import lombok.extern.slf4j.Slf4j;
@@ -22,6 +25,7 @@ import java.util.Date;
 import java.util.List;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.function.Consumer;
 
 @Slf4j
 public class AliyunOssService implements IOssService {
@@ -34,15 +38,17 @@ public class AliyunOssService implements IOssService {
 
     private final ScheduledThreadPoolExecutor scheduledThreadPoolExecutor;
 
-    public AliyunOssService(FileProperties fileProperties, OssConfigDTO ossConfigDTO) {
-        String endpoint = ossConfigDTO.getEndpoint();
+    private final String endpoint;
+
+    public AliyunOssService(FileProperties fileProperties, OssConfigDTO ossConfigDTO, OssMultipartUploader multipartUploader, OssNamespaceIndex namespaceIndex) {
+        this.endpoint = ossConfigDTO.getEndpoint();
         String accessKeyId = ossConfigDTO.getAccessKey();
         String accessKeySecret = ossConfigDTO.getSecretKey();
         this.bucketName = ossConfigDTO.getBucket();
         // 创建OSSClient实例。
         this.ossClient = new OSSClientBuilder().build(endpoint, accessKeyId, accessKeySecret);
         scheduledThreadPoolExecutor = ThreadUtil.createScheduledExecutor(1);
-        this.baseOssService = new BaseOssService(this, bucketName, fileProperties, scheduledThreadPoolExecutor, ossConfigDTO);
+        this.baseOssService = new BaseOssService(this, bucketName, fileProperties, scheduledThreadPoolExecutor, ossConfigDTO, multipartUploader, namespaceIndex);
         ThreadUtil.execute(this::getMultipartUploads);
     }
 
@@ -51,6 +57,11 @@ public class AliyunOssService implements IOssService {
         return PlatformOSS.ALIYUN;
     }
 
+    @Override
+    public String getEndpoint() {
+        return endpoint;
+    }
+
     @Override
     public FileInfo getFileInfo(String objectName) {
         return baseOssService.getFileInfo(objectName);
@@ -204,6 +215,25 @@ public class AliyunOssService implements IOssService {
         return fileInfoList;
     }
 
+    @Override
+    public void listAllObjectsWithPrefix(String objectName, Consumer<List<FileInfo>> consumer) {
+        String nextMarker = null;
+        ObjectListing objectListing;
+        try {
+            do {
+                ListObjectsRequest listObjectsRequest = new ListObjectsRequest(bucketName).withPrefix(objectName).withMarker(nextMarker).withMaxKeys(1000);
+                objectListing = ossClient.listObjects(listObjectsRequest);
+                List<FileInfo> page = objectListing.getObjectSummaries().stream().map(ossObjectSummary -> new FileInfo(ossObjectSummary.getKey(), ossObjectSummary.getETag(), ossObjectSummary.getSize(), ossObjectSummary.getLastModified())).toList();
+                if (!page.isEmpty()) {
+                    consumer.accept(page);
+                }
+                nextMarker = objectListing.getNextMarker();
+            } while (objectListing.isTruncated());
+        } catch (OSSException | ClientException e) {
+            throw new CommonException(ExceptionType.SYSTEM_ERROR.getCode(), "列举失败: " + e.getMessage());
+        }
+    }
+
     @Override
     public List<FileInfo> getFileInfoListCache(String objectName) {
         return baseOssService.getFileInfoListCache(objectName);
@@ -444,7 +474,7 @@ public class AliyunOssService implements IOssService {
                     if (!objectListing.getObjectSummaries().isEmpty()) {
                         objectListing.getObjectSummaries().parallelStream().forEach(ossObjectSummary -> {
                             String destKey = destinationKey + ossObjectSummary.getKey().substring(sourceKey.length());
-                            copyObjectFile(ossObjectSummary.getBucketName(), ossObjectSummary.getKey(), destinationBucketName, destKey);
+                            copyObjectFile(ossObjectSummary.getBucketName(), ossObjectSummary.getKey(), destinationBucketName, destKey, ossObjectSummary.getSize());
                             copiedList.add(destKey);
                         });
                     }
@@ -452,14 +482,12 @@ public class AliyunOssService implements IOssService {
                 } while (objectListing.isTruncated());
             } else {
                 // 复制文件
-                copyObjectFile(sourceBucketName, sourceKey, destinationBucketName, destinationKey);
+                copyObjectFile(sourceBucketName, sourceKey, destinationBucketName, destinationKey, -1);
                 copiedList.add(destinationKey);
             }
             return copiedList;
-        } catch (OSSException oe) {
-            log.error(oe.getMessage(), oe);
-        } catch (ClientException ce) {
-            log.error(ce.getMessage(), ce);
+        } catch (OSSException | ClientException | CommonException e) {
+            log.error(e.getMessage(), e);
         } finally {
             baseOssService.removeObjectNameLock(sourceBucketName);
             baseOssService.removeObjectNameLock(destinationBucketName);
@@ -467,19 +495,26 @@ public class AliyunOssService implements IOssService {
         return copiedList;
     }
 
-    private void copyObjectFile(String sourceBucketName, String sourceKey, String destinationBucketName, String destinationKey) {
+    @Override
+    public void copyObjectFile(String sourceBucketName, String sourceKey, String destinationBucketName, String destinationKey, long size) {
         baseOssService.printOperation(getPlatform().getKey(), "copyObject start" + "destinationKey: " + destinationKey, "sourceKey:" + sourceKey);
-        ObjectMetadata objectMetadata = ossClient.getObjectMetadata(sourceBucketName, sourceKey);
-        // 获取被拷贝文件的大小。
-        long contentLength = objectMetadata.getContentLength();
-
-        if (contentLength < 1024 * 1024 * 10L) {
-            // 小文件执行普通拷贝
-            ossClient.copyObject(sourceBucketName, sourceKey, destinationBucketName, destinationKey);
+        try {
+            // 获取被拷贝文件的大小。
+            long contentLength = size >= 0 ? size : ossClient.getObjectMetadata(sourceBucketName, sourceKey).getContentLength();
+            if (contentLength < BaseOssService.MULTIPART_THRESHOLD) {
+                // 小文件执行普通拷贝
+                ossClient.copyObject(sourceBucketName, sourceKey, destinationBucketName, destinationKey);
+            } else {
+                copyObjectMultipart(sourceBucketName, sourceKey, destinationBucketName, destinationKey, contentLength);
+            }
+        } catch (OSSException | ClientException e) {
+            throw new CommonException(ExceptionType.SYSTEM_ERROR.getCode(), e.getMessage());
         }
+        baseOssService.printOperation(getPlatform().getKey(), "copyObject complete" + "destinationKey: " + destinationKey, "sourceKey:" + sourceKey);
+    }
 
-        // 设置分片大小为10 MB。单位为字节。
-        long partSize = 1024 * 1024 * 10L;
+    private void copyObjectMultipart(String sourceBucketName, String sourceKey, String destinationBucketName, String destinationKey, long contentLength) {
+        long partSize = BaseOssService.getPartSize(contentLength);
 
         // 计算分片总数。
         int partCount = (int) (contentLength / partSize);
@@ -492,27 +527,32 @@ public class AliyunOssService implements IOssService {
         InitiateMultipartUploadResult initiateMultipartUploadResult = ossClient.initiateMultipartUpload(initiateMultipartUploadRequest);
         String uploadId = initiateMultipartUploadResult.getUploadId();
 
-        // 分片拷贝。
-        List<PartETag> partETags = new ArrayList<>();
-        for (int i = 0; i < partCount; i++) {
-            // 计算每个分片的大小。
-            long skipBytes = partSize * i;
-            long size = Math.min(partSize, contentLength - skipBytes);
-            // 创建UploadPartCopyRequest。可以通过UploadPartCopyRequest指定限定条件。
-            UploadPartCopyRequest uploadPartCopyRequest = new UploadPartCopyRequest(sourceBucketName, sourceKey, destinationBucketName, destinationKey);
-            uploadPartCopyRequest.setUploadId(uploadId);
-            uploadPartCopyRequest.setPartSize(size);
-            uploadPartCopyRequest.setBeginIndex(skipBytes);
-            uploadPartCopyRequest.setPartNumber(i + 1);
-            UploadPartCopyResult uploadPartCopyResult = ossClient.uploadPartCopy(uploadPartCopyRequest);
-            // 将返回的分片ETag保存到partETags中。
-            partETags.add(uploadPartCopyResult.getPartETag());
+        try {
+            // 分片拷贝。
+            List<PartETag> partETags = new ArrayList<>();
+            for (int i = 0; i < partCount; i++) {
+                // 计算每个分片的大小。
+                long skipBytes = partSize * i;
+                long size = Math.min(partSize, contentLength - skipBytes);
+                // 创建UploadPartCopyRequest。可以通过UploadPartCopyRequest指定限定条件。
+                UploadPartCopyRequest uploadPartCopyRequest = new UploadPartCopyRequest(sourceBucketName, sourceKey, destinationBucketName, destinationKey);
+                uploadPartCopyRequest.setUploadId(uploadId);
+                uploadPartCopyRequest.setPartSize(size);
+                uploadPartCopyRequest.setBeginIndex(skipBytes);
+                uploadPartCopyRequest.setPartNumber(i + 1);
+                UploadPartCopyResult uploadPartCopyResult = ossClient.uploadPartCopy(uploadPartCopyRequest);
+                // 将返回的分片ETag保存到partETags中。
+                partETags.add(uploadPartCopyResult.getPartETag());
+            }
+            // 提交分片拷贝任务。
+            CompleteMultipartUploadRequest completeMultipartUploadRequest = new CompleteMultipartUploadRequest(
+                    destinationBucketName, destinationKey, uploadId, partETags);
+            ossClient.completeMultipartUpload(completeMultipartUploadRequest);
+        } catch (OSSException | ClientException e) {
+            // 失败时取消, 不留下碎片
+            ossClient.abortMultipartUpload(new AbortMultipartUploadRequest(destinationBucketName, destinationKey, uploadId));
+            throw e;
         }
-        // 提交分片拷贝任务。
-        CompleteMultipartUploadRequest completeMultipartUploadRequest = new CompleteMultipartUploadRequest(
-                destinationBucketName, destinationKey, uploadId, partETags);
-        ossClient.completeMultipartUpload(completeMultipartUploadRequest);
-        baseOssService.printOperation(getPlatform().getKey(), "copyObject complete" + "destinationKey: " + destinationKey, "sourceKey:" + sourceKey);
     }
 
     @Override
@@ -529,6 +569,35 @@ public class AliyunOssService implements IOssService {
         return null;
     }
 
+    @Override
+    public URL getPresignedDownloadUrl(String objectName, int expiryTime, String contentDisposition) {
+        GeneratePresignedUrlRequest request = new GeneratePresignedUrlRequest(bucketName, objectName, HttpMethod.GET);
+        if (contentDisposition != null) {
+            ResponseHeaderOverrides responseHeaders = new ResponseHeaderOverrides();
+            responseHeaders.setContentDisposition(contentDisposition);
+            request.setResponseHeaders(responseHeaders);
+        }
+        return generatePresignedUrl(request, expiryTime);
+    }
+
+    @Override
+    public URL getPresignedPartUrl(String objectName, String uploadId, int partNumber, int expiryTime) {
+        GeneratePresignedUrlRequest request = new GeneratePresignedUrlRequest(bucketName, objectName, HttpMethod.PUT);
+        request.addQueryParameter("uploadId", uploadId);
+        request.addQueryParameter("partNumber", String.valueOf(partNumber));
+        return generatePresignedUrl(request, expiryTime);
+    }
+
+    private URL generatePresignedUrl(GeneratePresignedUrlRequest request, int expiryTime) {
+        try {
+            request.setExpiration(new Date(System.currentTimeMillis() + expiryTime * 1000L));
+            return ossClient.generatePresignedUrl(request);
+        } catch (OSSException | ClientException e) {
+            log.error(e.getMessage(), e);
+        }
+        return null;
+    }
+
     @Override
     public void clearCache(String objectName) {
         baseOssService.clearCache(objectName);
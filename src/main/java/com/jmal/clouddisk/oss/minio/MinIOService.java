@@ -6,7 +6,9 @@ import cn.hutool.core.thread.ThreadUtil;
 import cn.hutool.core.util.BooleanUtil;
 import com.google.common.collect.HashMultimap;
 import com.jmal.clouddisk.config.FileProperties;
-import com.jmal.clouddisk.interceptor.FileInterceptor;
+import com.jmal.clouddisk.exception.CommonException;
+import com.jmal.clouddisk.exception.ExceptionType;
+import com.jmal.clouddisk.media.ImageDerivativeService;
 import com.jmal.clouddisk.oss.*;
 import com.jmal.clouddisk.oss.web.model.OssConfigDTO;
 import io.minio.*;
@@ -15,6 +17,7 @@ import io.minio.http.Method;
 import io.minio.messages.DeleteError;
 import io.minio.messages.DeleteObject;
 import io.minio.messages.Item;
+import io.minio.messages.ListPartsResult;
 import io.minio.messages.Part;
 import lombok.extern.slf4j.Slf4j;
 import org.jetbrains.annotations.NotNull;
@@ -24,13 +27,10 @@ import java.net.URL;
 import java.nio.file.Path;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
-import java.util.ArrayList;
-import java.util.Date;
-import java.util.LinkedList;
-import java.util.List;
+import java.util.*;
 import java.util.concurrent.CopyOnWriteArrayList;
-import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
 
 /**
@@ -49,12 +49,22 @@ public class MinIOService implements IOssService {
 
     private final ScheduledThreadPoolExecutor scheduledThreadPoolExecutor;
 
-    public MinIOService(FileProperties fileProperties, OssConfigDTO ossConfigDTO) {
-        String endpoint = ossConfigDTO.getEndpoint();
+    private final ImageDerivativeService imageDerivativeService;
+
+    private final String endpoint;
+
+    /**
+     * 分页列举时每页的数量
+     */
+    private static final int LIST_PAGE_SIZE = 1000;
+
+    public MinIOService(FileProperties fileProperties, OssConfigDTO ossConfigDTO, OssMultipartUploader multipartUploader, OssNamespaceIndex namespaceIndex, ImageDerivativeService imageDerivativeService) {
+        this.endpoint = ossConfigDTO.getEndpoint();
         String region = ossConfigDTO.getRegion();
         String accessKeyId = ossConfigDTO.getAccessKey();
         String accessKeySecret = ossConfigDTO.getSecretKey();
         this.bucketName = ossConfigDTO.getBucket();
+        this.imageDerivativeService = imageDerivativeService;
         // 创建ossClient实例。
         this.minIoClient = new MinIoClient(MinioAsyncClient.builder()
                 .endpoint(endpoint)
@@ -62,7 +72,7 @@ public class MinIOService implements IOssService {
                 .credentials(accessKeyId, accessKeySecret)
                 .build());
         scheduledThreadPoolExecutor = ThreadUtil.createScheduledExecutor(1);
-        this.baseOssService = new BaseOssService(this, bucketName, fileProperties, scheduledThreadPoolExecutor, ossConfigDTO);
+        this.baseOssService = new BaseOssService(this, bucketName, fileProperties, scheduledThreadPoolExecutor, ossConfigDTO, multipartUploader, namespaceIndex);
         ThreadUtil.execute(this::getMultipartUploads);
     }
 
@@ -71,6 +81,11 @@ public class MinIOService implements IOssService {
         return PlatformOSS.MINIO;
     }
 
+    @Override
+    public String getEndpoint() {
+        return endpoint;
+    }
+
     @Override
     public FileInfo getFileInfo(String objectName) {
         return baseOssService.getFileInfo(objectName);
@@ -233,6 +248,31 @@ public class MinIOService implements IOssService {
         return fileInfoList;
     }
 
+    @Override
+    public void listAllObjectsWithPrefix(String objectName, Consumer<List<FileInfo>> consumer) {
+        ListObjectsArgs listObjectsArgs = ListObjectsArgs.builder().bucket(bucketName).prefix(objectName).recursive(true).includeVersions(false).build();
+        List<FileInfo> page = new ArrayList<>(LIST_PAGE_SIZE);
+        try {
+            for (Result<Item> result : this.minIoClient.listObjects(listObjectsArgs)) {
+                Item item = result.get();
+                if (item == null) {
+                    continue;
+                }
+                Date lastModified = Date.from(item.lastModified().toInstant());
+                page.add(baseOssService.getFileInfo(new S3ObjectSummary(item.size(), item.objectName(), item.etag(), lastModified, bucketName)));
+                if (page.size() >= LIST_PAGE_SIZE) {
+                    consumer.accept(page);
+                    page = new ArrayList<>(LIST_PAGE_SIZE);
+                }
+            }
+        } catch (Exception e) {
+            throw new CommonException(ExceptionType.SYSTEM_ERROR.getCode(), "列举失败: " + e.getMessage());
+        }
+        if (!page.isEmpty()) {
+            consumer.accept(page);
+        }
+    }
+
     private Date getLastModified(String objectName) throws ServerException, InsufficientDataException, ErrorResponseException, IOException, NoSuchAlgorithmException, InvalidKeyException, InvalidResponseException, XmlParserException, InternalException {
         StatObjectResponse statObjectResponse = this.minIoClient.statObject(bucketName, objectName);
         return Date.from(statObjectResponse.lastModified().toInstant());
@@ -365,8 +405,14 @@ public class MinIOService implements IOssService {
     private List<Part> getPartsList(String objectName, String uploadId) {
         List<Part> listParts = new ArrayList<>();
         try {
-            ListPartsResponse partResult = this.minIoClient.listMultipart(bucketName, null, objectName, 1000, 0, uploadId);
-            return partResult.result().partList();
+            // 每次最多列出1000个分片
+            int partNumberMarker = 0;
+            ListPartsResult result;
+            do {
+                result = this.minIoClient.listMultipart(bucketName, null, objectName, 1000, partNumberMarker, uploadId).result();
+                listParts.addAll(result.partList());
+                partNumberMarker = result.nextPartNumberMarker();
+            } while (result.isTruncated());
         } catch (Exception e) {
             log.error(e.getMessage(), e);
         }
@@ -407,6 +453,8 @@ public class MinIOService implements IOssService {
             baseOssService.onUploadSuccess(objectName, fileTotalSize);
         } catch (Exception e) {
             log.error(e.getMessage(), e);
+            // 和其他平台一样抛出, 调用方据此取消或改为整个文件上传
+            throw new CommonException(ExceptionType.SYSTEM_ERROR.getCode(), e.getMessage());
         }
     }
 
@@ -414,8 +462,10 @@ public class MinIOService implements IOssService {
     public FileInfo getThumbnail(String objectName, File file, int width) {
         try {
             this.minIoClient.downloadObject(bucketName, objectName, file);
-            byte[] bytes = FileInterceptor.imageCrop(file, "80", String.valueOf(width), null);
-            FileUtil.writeBytes(bytes, file);
+            // 在 imageDerivative 线程池中按内存预算剪裁, 去重和缓存由 OssDerivativeService 负责
+            if (!imageDerivativeService.cropTo(file, file, "80", String.valueOf(width), null)) {
+                return null;
+            }
             return baseOssService.getFileInfo(objectName);
         } catch (Exception e) {
             log.error(e.getMessage(), e);
@@ -441,18 +491,15 @@ public class MinIOService implements IOssService {
                 for (Result<Item> result : results1) {
                     Item item = result.get();
                     String destKey = destinationKey + item.objectName().substring(sourceKey.length());
-                    copyObjectFile(sourceBucketName, item.objectName(), destinationBucketName, destKey);
+                    copyObjectFile(sourceBucketName, item.objectName(), destinationBucketName, destKey, item.size());
                     copiedList.add(destKey);
                 }
             } else {
                 // 复制文件
-                copyObjectFile(sourceBucketName, sourceKey, destinationBucketName, destinationKey);
+                copyObjectFile(sourceBucketName, sourceKey, destinationBucketName, destinationKey, -1);
                 copiedList.add(destinationKey);
             }
             return copiedList;
-        } catch (InterruptedException e) {
-            log.error(e.getMessage(), e);
-            Thread.currentThread().interrupt();
         } catch (Exception e) {
             log.error(e.getMessage(), e);
         } finally {
@@ -462,16 +509,45 @@ public class MinIOService implements IOssService {
         return copiedList;
     }
 
-    private void copyObjectFile(String sourceBucketName, String sourceKey, String destinationBucketName, String destinationKey) throws InsufficientDataException, IOException, NoSuchAlgorithmException, InvalidKeyException, XmlParserException, InternalException, ExecutionException, InterruptedException {
+    @Override
+    public void copyObjectFile(String sourceBucketName, String sourceKey, String destinationBucketName, String destinationKey, long size) {
         baseOssService.printOperation(getPlatform().getKey(), "copyObject start" + "destinationKey: " + destinationKey, "sourceKey:" + sourceKey);
-        this.minIoClient.copyObject(
-                CopyObjectArgs.builder()
-                        .bucket(destinationBucketName)
-                        .object(destinationKey)
-                        .source(CopySource.builder()
-                                .bucket(sourceBucketName)
-                                .object(sourceKey)
-                                .build()).build()).get();
+        try {
+            long contentLength = size >= 0 ? size : this.minIoClient.statObject(sourceBucketName, sourceKey).size();
+            if (contentLength < BaseOssService.MULTIPART_THRESHOLD) {
+                this.minIoClient.copyObject(
+                        CopyObjectArgs.builder()
+                                .bucket(destinationBucketName)
+                                .object(destinationKey)
+                                .source(CopySource.builder()
+                                        .bucket(sourceBucketName)
+                                        .object(sourceKey)
+                                        .build()).build()).get();
+            } else {
+                // 大文件按分片范围组合, 服务端逐片 UploadPartCopy
+                long partSize = BaseOssService.getPartSize(contentLength);
+                List<ComposeSource> sources = new ArrayList<>();
+                for (long offset = 0; offset < contentLength; offset += partSize) {
+                    sources.add(ComposeSource.builder()
+                            .bucket(sourceBucketName)
+                            .object(sourceKey)
+                            .offset(offset)
+                            .length(Math.min(partSize, contentLength - offset))
+                            .build());
+                }
+                this.minIoClient.composeObject(
+                        ComposeObjectArgs.builder()
+                                .bucket(destinationBucketName)
+                                .object(destinationKey)
+                                .sources(sources)
+                                .build()).get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CommonException(ExceptionType.SYSTEM_ERROR.getCode(), "复制被中断: " + sourceKey);
+        } catch (Exception e) {
+            throw new CommonException(ExceptionType.SYSTEM_ERROR.getCode(), e.getMessage());
+        }
         baseOssService.printOperation(getPlatform().getKey(), "copyObject complete" + "destinationKey: " + destinationKey, "sourceKey:" + sourceKey);
     }
 
@@ -492,6 +568,40 @@ public class MinIOService implements IOssService {
         return null;
     }
 
+    @Override
+    public URL getPresignedDownloadUrl(String objectName, int expiryTime, String contentDisposition) {
+        Map<String, String> queryParams = new HashMap<>();
+        if (contentDisposition != null) {
+            queryParams.put("response-content-disposition", contentDisposition);
+        }
+        return getPresignedUrl(Method.GET, objectName, expiryTime, queryParams);
+    }
+
+    @Override
+    public URL getPresignedPartUrl(String objectName, String uploadId, int partNumber, int expiryTime) {
+        Map<String, String> queryParams = new HashMap<>();
+        queryParams.put("uploadId", uploadId);
+        queryParams.put("partNumber", String.valueOf(partNumber));
+        return getPresignedUrl(Method.PUT, objectName, expiryTime, queryParams);
+    }
+
+    private URL getPresignedUrl(Method method, String objectName, int expiryTime, Map<String, String> queryParams) {
+        try {
+            String url = this.minIoClient.getPresignedObjectUrl(
+                    GetPresignedObjectUrlArgs.builder()
+                            .method(method)
+                            .bucket(bucketName)
+                            .object(objectName)
+                            .expiry(expiryTime)
+                            .extraQueryParams(queryParams)
+                            .build());
+            return new URL(url);
+        } catch (Exception e) {
+            log.error(e.getMessage(), e);
+        }
+        return null;
+    }
+
     @Override
     public void lock(String objectName) {
         baseOssService.setObjectNameLock(objectName);
@@ -5,6 +5,8 @@ import cn.hutool.core.thread.ThreadUtil;
 import com.aliyun.oss.ClientException;
 import com.aliyun.oss.OSSException;
 import com.jmal.clouddisk.config.FileProperties;
+import com.jmal.clouddisk.exception.CommonException;
+import com.jmal.clouddisk.exception.ExceptionType;
 import com.jmal.clouddisk.oss.*;
 import com.jmal.clouddisk.oss.web.model.OssConfigDTO;
 import com.qcloud.cos.COSClient;
@@ -31,6 +33,7 @@ import java.util.Date;
 import java.util.List;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.function.Consumer;
 
 @Slf4j
 public class TencentOssService implements IOssService {
@@ -47,7 +50,7 @@ public class TencentOssService implements IOssService {
 
     private final ScheduledThreadPoolExecutor scheduledThreadPoolExecutor;
 
-    public TencentOssService(FileProperties fileProperties, OssConfigDTO ossConfigDTO) {
+    public TencentOssService(FileProperties fileProperties, OssConfigDTO ossConfigDTO, OssMultipartUploader multipartUploader, OssNamespaceIndex namespaceIndex) {
         // 创建COSClient实例。
         String accessKeyId = ossConfigDTO.getAccessKey();
         String accessKeySecret = ossConfigDTO.getSecretKey();
@@ -58,7 +61,7 @@ public class TencentOssService implements IOssService {
         clientConfig.setHttpProtocol(HttpProtocol.https);
         this.cosClient = new COSClient(cred, clientConfig);
         scheduledThreadPoolExecutor = ThreadUtil.createScheduledExecutor(1);
-        this.baseOssService = new BaseOssService(this, bucketName, fileProperties, scheduledThreadPoolExecutor, ossConfigDTO);
+        this.baseOssService = new BaseOssService(this, bucketName, fileProperties, scheduledThreadPoolExecutor, ossConfigDTO, multipartUploader, namespaceIndex);
         ThreadUtil.execute(this::getMultipartUploads);
         this.transferManager = new TransferManager(cosClient);
         createTransferManager();
@@ -72,10 +75,10 @@ public class TencentOssService implements IOssService {
         // 对于使用公网传输且网络带宽质量不高的情况，建议减小该值，避免因网速过慢，造成请求超时。
         // 传入一个 threadpool, 若不传入线程池，默认 TransferManager 中会生成一个单线程的线程池。
         // 设置高级接口的配置项
-        // 分块复制阈值和分块大小分别为 5MB 和 1MB
+        // 分块复制阈值和分块大小与其他平台一致
         TransferManagerConfiguration transferManagerConfiguration = new TransferManagerConfiguration();
-        transferManagerConfiguration.setMultipartCopyThreshold(5L * 1024L * 1024L);
-        transferManagerConfiguration.setMultipartCopyPartSize(1024L * 1024L);
+        transferManagerConfiguration.setMultipartCopyThreshold(BaseOssService.MULTIPART_THRESHOLD);
+        transferManagerConfiguration.setMultipartCopyPartSize(BaseOssService.PART_SIZE);
         this.transferManager.setConfiguration(transferManagerConfiguration);
     }
 
@@ -84,6 +87,11 @@ public class TencentOssService implements IOssService {
         return PlatformOSS.TENCENT;
     }
 
+    @Override
+    public String getEndpoint() {
+        return region.getRegionName();
+    }
+
     @Override
     public FileInfo getFileInfo(String objectName) {
         return baseOssService.getFileInfo(objectName);
@@ -255,6 +263,27 @@ public class TencentOssService implements IOssService {
         return fileInfoList;
     }
 
+    @Override
+    public void listAllObjectsWithPrefix(String objectName, Consumer<List<FileInfo>> consumer) {
+        ListObjectsRequest listObjectsRequest = new ListObjectsRequest();
+        listObjectsRequest.setBucketName(bucketName);
+        listObjectsRequest.setPrefix(objectName);
+        listObjectsRequest.setMaxKeys(1000);
+        ObjectListing objectListing;
+        try {
+            do {
+                objectListing = cosClient.listObjects(listObjectsRequest);
+                List<FileInfo> page = objectListing.getObjectSummaries().stream().map(cosObjectSummary -> new FileInfo(cosObjectSummary.getKey(), cosObjectSummary.getETag(), cosObjectSummary.getSize(), cosObjectSummary.getLastModified())).toList();
+                if (!page.isEmpty()) {
+                    consumer.accept(page);
+                }
+                listObjectsRequest.setMarker(objectListing.getNextMarker());
+            } while (objectListing.isTruncated());
+        } catch (CosClientException e) {
+            throw new CommonException(ExceptionType.SYSTEM_ERROR.getCode(), "列举失败: " + e.getMessage());
+        }
+    }
+
     @Override
     public List<FileInfo> getFileInfoListCache(String objectName) {
         return baseOssService.getFileInfoListCache(objectName);
@@ -420,13 +449,8 @@ public class TencentOssService implements IOssService {
                     List<COSObjectSummary> cosObjectSummaries = objectListing.getObjectSummaries();
                     cosObjectSummaries.parallelStream().forEach(cosObjectSummary -> {
                         String destKey = destinationKey + cosObjectSummary.getKey().substring(sourceKey.length());
-                        try {
-                            copyObjectFile(cosObjectSummary.getBucketName(), cosObjectSummary.getKey(), destinationBucketName, destKey);
-                            copiedList.add(destKey);
-                        } catch (InterruptedException e) {
-                            log.error(e.getMessage(), e);
-                            Thread.currentThread().interrupt();
-                        }
+                        copyObjectFile(cosObjectSummary.getBucketName(), cosObjectSummary.getKey(), destinationBucketName, destKey, cosObjectSummary.getSize());
+                        copiedList.add(destKey);
                     });
                     // 标记下一次开始的位置
                     String nextMarker = objectListing.getNextMarker();
@@ -434,15 +458,12 @@ public class TencentOssService implements IOssService {
                 } while (objectListing.isTruncated());
             } else {
                 // 复制文件
-                copyObjectFile(sourceBucketName, sourceKey, destinationBucketName, destinationKey);
+                copyObjectFile(sourceBucketName, sourceKey, destinationBucketName, destinationKey, -1);
                 copiedList.add(destinationKey);
             }
             return copiedList;
-        } catch (CosClientException e) {
+        } catch (CosClientException | CommonException e) {
             log.error(e.getMessage(), e);
-        } catch (InterruptedException e) {
-            log.error(e.getMessage(), e);
-            Thread.currentThread().interrupt();
         } finally {
             baseOssService.removeObjectNameLock(sourceBucketName);
             baseOssService.removeObjectNameLock(destinationBucketName);
@@ -450,13 +471,21 @@ public class TencentOssService implements IOssService {
         return copiedList;
     }
 
-    public void copyObjectFile(String sourceBucketName, String sourceKey, String destinationBucketName, String destinationKey) throws InterruptedException {
+    @Override
+    public void copyObjectFile(String sourceBucketName, String sourceKey, String destinationBucketName, String destinationKey, long size) {
         CopyObjectRequest copyObjectRequest = new CopyObjectRequest(region, sourceBucketName, sourceKey, destinationBucketName, destinationKey);
         baseOssService.printOperation(getPlatform().getKey(), "copyObject start" + "destinationKey: " + destinationKey, "sourceKey:" + sourceKey);
-        Copy copy = transferManager.copy(copyObjectRequest);
-        // 高级接口会返回一个异步结果 Copy
-        // 可同步的调用 waitForCopyResult 等待复制结束, 成功返回 CopyResult, 失败抛出异常
-        copy.waitForCopyResult();
+        try {
+            // 高级接口会返回一个异步结果 Copy, 超过分片阈值时自动使用分片复制
+            // 可同步的调用 waitForCopyResult 等待复制结束, 成功返回 CopyResult, 失败抛出异常
+            Copy copy = transferManager.copy(copyObjectRequest);
+            copy.waitForCopyResult();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CommonException(ExceptionType.SYSTEM_ERROR.getCode(), "复制被中断: " + sourceKey);
+        } catch (CosClientException e) {
+            throw new CommonException(ExceptionType.SYSTEM_ERROR.getCode(), e.getMessage());
+        }
     }
 
     @Override
@@ -535,6 +564,35 @@ public class TencentOssService implements IOssService {
         return null;
     }
 
+    @Override
+    public URL getPresignedDownloadUrl(String objectName, int expiryTime, String contentDisposition) {
+        GeneratePresignedUrlRequest request = new GeneratePresignedUrlRequest(bucketName, objectName, HttpMethodName.GET);
+        if (contentDisposition != null) {
+            ResponseHeaderOverrides responseHeaders = new ResponseHeaderOverrides();
+            responseHeaders.setContentDisposition(contentDisposition);
+            request.setResponseHeaders(responseHeaders);
+        }
+        return generatePresignedUrl(request, expiryTime);
+    }
+
+    @Override
+    public URL getPresignedPartUrl(String objectName, String uploadId, int partNumber, int expiryTime) {
+        GeneratePresignedUrlRequest request = new GeneratePresignedUrlRequest(bucketName, objectName, HttpMethodName.PUT);
+        request.addRequestParameter("uploadId", uploadId);
+        request.addRequestParameter("partNumber", String.valueOf(partNumber));
+        return generatePresignedUrl(request, expiryTime);
+    }
+
+    private URL generatePresignedUrl(GeneratePresignedUrlRequest request, int expiryTime) {
+        try {
+            request.setExpiration(new Date(System.currentTimeMillis() + expiryTime * 1000L));
+            return cosClient.generatePresignedUrl(request);
+        } catch (CosClientException e) {
+            log.error(e.getMessage(), e);
+        }
+        return null;
+    }
+
     @Override
     public void clearCache(String objectName) {
         baseOssService.clearCache(objectName);
@@ -0,0 +1,360 @@
+package com.jmal.clouddisk.oss.web;
+
+import cn.hutool.core.io.FileUtil;
+import cn.hutool.crypto.SecureUtil;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.jmal.clouddisk.config.FileProperties;
+import com.jmal.clouddisk.media.ImageDerivativeService;
+import com.jmal.clouddisk.oss.AbstractOssObject;
+import com.jmal.clouddisk.oss.FileInfo;
+import com.jmal.clouddisk.oss.IOssService;
+import com.jmal.clouddisk.oss.PlatformOSS;
+import com.jmal.clouddisk.video.FFMPEGCommand;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Service;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * oss 文件的衍生文件(缩略图/视频封面)
+ * <p>
+ * 尽量只读取需要的部分: MinIO 上的大 jpeg 用范围请求读取文件头中 exif 内嵌的缩略图, 视频只读取 moov 和第一个关键帧<br>
+ * 结果以 platform + bucket + objectName + ETag 为 key 缓存在本地磁盘, 超过 file.oss-derivative-cache-size 后删除最久没有使用的
+ * </p>
+ *
+ * @author jmal
+ */
+@Service
+@Slf4j
+@RequiredArgsConstructor
+public class OssDerivativeService {
+
+    /**
+     * 读取 exif 缩略图时请求的文件头大小, APP1 段不超过 64KB
+     */
+    private static final int EXIF_HEAD_SIZE = 128 * 1024;
+
+    /**
+     * 小于该大小的图片直接整个读取后生成缩略图
+     */
+    private static final long EXIF_MIN_OBJECT_SIZE = 1024 * 1024;
+
+    private static final byte[] EXIF_HEADER = "Exif\0\0".getBytes(StandardCharsets.ISO_8859_1);
+
+    private final FileProperties fileProperties;
+
+    /**
+     * 生成失败的衍生文件, 一段时间内不再生成
+     */
+    private final Cache<String, Boolean> failedCache = Caffeine.newBuilder().maximumSize(10000).expireAfterWrite(10, TimeUnit.MINUTES).build();
+
+    /**
+     * 正在生成中的衍生文件
+     * key: 缓存文件名
+     */
+    private final Map<String, CompletableFuture<File>> inflight = new ConcurrentHashMap<>();
+
+    /**
+     * 缓存目录的总大小, 第一次使用时统计
+     */
+    private volatile long cacheSize = -1;
+
+    /**
+     * 缩略图
+     *
+     * @param ossService ossService
+     * @param fileInfo   FileInfo
+     * @return 缩略图文件, 失败返回null
+     */
+    public File thumbnail(IOssService ossService, FileInfo fileInfo) {
+        String params = "thumbnail_" + ImageDerivativeService.THUMBNAIL_SIZE;
+        return getDerivative(ossService, fileInfo, params, FileUtil.extName(fileInfo.getKey()), outputFile -> writeThumbnail(ossService, fileInfo, outputFile));
+    }
+
+    /**
+     * 视频封面
+     *
+     * @param ossService ossService
+     * @param fileInfo   FileInfo
+     * @return 封面文件, 失败返回null
+     */
+    public File videoCover(IOssService ossService, FileInfo fileInfo) {
+        return getDerivative(ossService, fileInfo, "cover", "png", outputFile -> writeVideoCover(ossService, fileInfo, outputFile));
+    }
+
+    private File getDerivative(IOssService ossService, FileInfo fileInfo, String params, String suffix, DerivativeWriter derivativeWriter) {
+        String key = SecureUtil.md5(ossService.getPlatform().getKey() + ":" + fileInfo.getBucketName() + ":" + fileInfo.getKey() + ":"
+                + fileInfo.getETag() + ":" + fileInfo.getSize() + ":" + params) + "." + suffix;
+        File cacheFile = getCacheDir().resolve(key).toFile();
+        if (cacheFile.exists()) {
+            // 刷新修改时间, 最久没有使用的先删除
+            cacheFile.setLastModified(System.currentTimeMillis());
+            return cacheFile;
+        }
+        if (failedCache.getIfPresent(key) != null) {
+            return null;
+        }
+        CompletableFuture<File> future = new CompletableFuture<>();
+        CompletableFuture<File> existing = inflight.putIfAbsent(key, future);
+        if (existing != null) {
+            return existing.join();
+        }
+        try {
+            File result = generate(cacheFile, derivativeWriter);
+            if (result == null) {
+                failedCache.put(key, true);
+            }
+            future.complete(result);
+        } catch (Exception e) {
+            log.warn("生成 oss 衍生文件失败, objectName: {}, {}", fileInfo.getKey(), e.getMessage());
+            failedCache.put(key, true);
+            future.complete(null);
+        } finally {
+            inflight.remove(key, future);
+        }
+        return future.join();
+    }
+
+    /**
+     * 先写入临时文件, 再原子移动到缓存文件, 临时文件保留后缀名
+     */
+    private File generate(File cacheFile, DerivativeWriter derivativeWriter) throws IOException, InterruptedException {
+        Path tempPath = cacheFile.toPath().resolveSibling("tmp_" + cacheFile.getName());
+        try {
+            if (!derivativeWriter.write(tempPath.toFile()) || !Files.exists(tempPath) || Files.size(tempPath) == 0) {
+                return null;
+            }
+            long size = Files.size(tempPath);
+            Files.move(tempPath, cacheFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            addCacheSize(size);
+            return cacheFile;
+        } finally {
+            Files.deleteIfExists(tempPath);
+        }
+    }
+
+    private boolean writeThumbnail(IOssService ossService, FileInfo fileInfo, File outputFile) throws IOException {
+        String objectName = fileInfo.getKey();
+        String suffix = FileUtil.extName(objectName).toLowerCase();
+        // 阿里云, 腾讯云在服务端缩放, MinIO 需要整个下载
+        if (ossService.getPlatform() == PlatformOSS.MINIO && fileInfo.getSize() >= EXIF_MIN_OBJECT_SIZE && ("jpg".equals(suffix) || "jpeg".equals(suffix))) {
+            byte[] exifThumbnail = getExifThumbnail(readHead(ossService, objectName));
+            if (exifThumbnail != null) {
+                FileUtil.writeBytes(exifThumbnail, outputFile);
+                return true;
+            }
+        }
+        return ossService.getThumbnail(objectName, outputFile, ImageDerivativeService.THUMBNAIL_SIZE) != null;
+    }
+
+    private boolean writeVideoCover(IOssService ossService, FileInfo fileInfo, File outputFile) throws IOException, InterruptedException {
+        if (FFMPEGCommand.hasNoFFmpeg()) {
+            return false;
+        }
+        URL url = ossService.getPresignedObjectUrl(fileInfo.getKey(), 60);
+        if (url == null) {
+            return false;
+        }
+        return FFMPEGCommand.firstKeyFrame(url.toString(), outputFile.getAbsolutePath());
+    }
+
+    private static byte[] readHead(IOssService ossService, String objectName) throws IOException {
+        try (AbstractOssObject abstractOssObject = ossService.getAbstractOssObject(objectName, 0L, (long) EXIF_HEAD_SIZE - 1)) {
+            if (abstractOssObject == null) {
+                return new byte[0];
+            }
+            try (InputStream inputStream = abstractOssObject.getInputStream()) {
+                return inputStream.readNBytes(EXIF_HEAD_SIZE);
+            }
+        }
+    }
+
+    /**
+     * jpeg 文件头中 exif(APP1) 的 IFD1 内嵌的缩略图
+     * <p>
+     * 文件头来自用户上传的文件, 所有偏移和长度都先检查范围再读取, 用 long 计算避免溢出
+     * </p>
+     *
+     * @param head 文件头
+     * @return 缩略图(jpeg), 没有、不在文件头内或格式错误时返回null
+     */
+    static byte[] getExifThumbnail(byte[] head) {
+        if (head.length < 4 || (head[0] & 0xFF) != 0xFF || (head[1] & 0xFF) != 0xD8) {
+            return null;
+        }
+        int pos = 2;
+        while (pos + 4 <= head.length) {
+            if ((head[pos] & 0xFF) != 0xFF) {
+                return null;
+            }
+            int marker = head[pos + 1] & 0xFF;
+            if (marker == 0xFF) {
+                // 填充字节
+                pos++;
+                continue;
+            }
+            if (marker == 0xDA || marker == 0xD9) {
+                // 图像数据开始, 没有 exif
+                return null;
+            }
+            int length = readShort(head, pos + 2, false);
+            if (length < 2) {
+                return null;
+            }
+            int start = pos + 4;
+            int end = pos + 2 + length;
+            if (marker == 0xE1 && start + EXIF_HEADER.length <= head.length
+                    && Arrays.equals(head, start, start + EXIF_HEADER.length, EXIF_HEADER, 0, EXIF_HEADER.length)) {
+                return end > head.length ? null : getIfd1Thumbnail(head, start + EXIF_HEADER.length, end);
+            }
+            pos = end;
+        }
+        return null;
+    }
+
+    /**
+     * @param data 文件头
+     * @param tiff TIFF 头的位置
+     * @param end  APP1 段的结束位置, 不超过 data.length
+     */
+    private static byte[] getIfd1Thumbnail(byte[] data, int tiff, int end) {
+        if (tiff < 0 || end > data.length || end - tiff < 8) {
+            return null;
+        }
+        boolean littleEndian;
+        if (data[tiff] == 'I' && data[tiff + 1] == 'I') {
+            littleEndian = true;
+        } else if (data[tiff] == 'M' && data[tiff + 1] == 'M') {
+            littleEndian = false;
+        } else {
+            return null;
+        }
+        long ifd0 = tiff + readUnsignedInt(data, tiff + 4, littleEndian);
+        if (ifd0 + 2 > end) {
+            return null;
+        }
+        long next = ifd0 + 2 + readShort(data, (int) ifd0, littleEndian) * 12L;
+        if (next + 4 > end) {
+            return null;
+        }
+        long ifd1Offset = readUnsignedInt(data, (int) next, littleEndian);
+        long ifd1 = tiff + ifd1Offset;
+        if (ifd1Offset == 0 || ifd1 + 2 > end) {
+            return null;
+        }
+        int count = readShort(data, (int) ifd1, littleEndian);
+        long offset = -1;
+        long length = -1;
+        for (int i = 0; i < count; i++) {
+            long entry = ifd1 + 2 + i * 12L;
+            if (entry + 12 > end) {
+                return null;
+            }
+            int tag = readShort(data, (int) entry, littleEndian);
+            // 类型为 SHORT 时值在前两个字节
+            long value = readShort(data, (int) entry + 2, littleEndian) == 3 ? readShort(data, (int) entry + 8, littleEndian) : readUnsignedInt(data, (int) entry + 8, littleEndian);
+            if (tag == 0x0201) {
+                offset = value;
+            } else if (tag == 0x0202) {
+                length = value;
+            }
+        }
+        if (offset <= 0 || length < 2) {
+            return null;
+        }
+        long start = tiff + offset;
+        if (start >= end || length > end - start) {
+            return null;
+        }
+        if ((data[(int) start] & 0xFF) != 0xFF || (data[(int) start + 1] & 0xFF) != 0xD8) {
+            return null;
+        }
+        return Arrays.copyOfRange(data, (int) start, (int) (start + length));
+    }
+
+    private static int readShort(byte[] data, int pos, boolean littleEndian) {
+        int b0 = data[pos] & 0xFF;
+        int b1 = data[pos + 1] & 0xFF;
+        return littleEndian ? (b1 << 8) | b0 : (b0 << 8) | b1;
+    }
+
+    private static long readUnsignedInt(byte[] data, int pos, boolean littleEndian) {
+        long high = readShort(data, littleEndian ? pos + 2 : pos, littleEndian);
+        long low = readShort(data, littleEndian ? pos : pos + 2, littleEndian);
+        return (high << 16) | low;
+    }
+
+    /**
+     * 缓存超过上限后删除最久没有使用的, 直到不超过上限的 90%
+     */
+    private synchronized void addCacheSize(long size) {
+        Path cacheDir = getCacheDir();
+        if (cacheSize < 0) {
+            cacheSize = listCacheFiles(cacheDir).stream().mapToLong(File::length).sum();
+        } else {
+            cacheSize += size;
+        }
+        long limit = fileProperties.getOssDerivativeCacheSize() * 1024L * 1024L;
+        if (cacheSize <= limit) {
+            return;
+        }
+        List<File> files = listCacheFiles(cacheDir).stream().sorted(Comparator.comparingLong(File::lastModified)).toList();
+        long target = limit / 10 * 9;
+        for (File file : files) {
+            if (cacheSize <= target) {
+                break;
+            }
+            long length = file.length();
+            if (FileUtil.del(file)) {
+                cacheSize -= length;
+            }
+        }
+        log.info("oss 衍生文件缓存超过 {}MB, 清理后: {}MB", fileProperties.getOssDerivativeCacheSize(), cacheSize / 1024 / 1024);
+    }
+
+    private static List<File> listCacheFiles(Path cacheDir) {
+        try (Stream<Path> stream = Files.list(cacheDir)) {
+            return stream.map(Path::toFile).filter(file -> file.isFile() && !file.getName().startsWith("tmp_")).toList();
+        } catch (IOException e) {
+            log.warn(e.getMessage());
+            return List.of();
+        }
+    }
+
+    private Path getCacheDir() {
+        Path cacheDir = Paths.get(fileProperties.getRootDir(), fileProperties.getChunkFileDir(), fileProperties.getOssDerivativeCache());
+        if (!Files.exists(cacheDir)) {
+            FileUtil.mkdir(cacheDir.toFile());
+        }
+        return cacheDir;
+    }
+
+    @FunctionalInterface
+    private interface DerivativeWriter {
+        /**
+         * 写入衍生文件
+         *
+         * @param outputFile 输出文件
+         * @return 是否写入成功
+         */
+        boolean write(File outputFile) throws IOException, InterruptedException;
+    }
+}
@@ -0,0 +1,323 @@
+package com.jmal.clouddisk.oss.web;
+
+import cn.hutool.core.thread.ThreadUtil;
+import cn.hutool.crypto.SecureUtil;
+import com.jmal.clouddisk.config.FileProperties;
+import com.jmal.clouddisk.exception.CommonException;
+import com.jmal.clouddisk.exception.ExceptionType;
+import com.jmal.clouddisk.oss.AbstractOssObject;
+import com.jmal.clouddisk.oss.BaseOssService;
+import com.jmal.clouddisk.oss.FileInfo;
+import com.jmal.clouddisk.oss.IOssService;
+import com.jmal.clouddisk.oss.PlatformOSS;
+import com.jmal.clouddisk.util.RetryUtil;
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.client.model.InsertManyOptions;
+import jakarta.annotation.PreDestroy;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.bson.Document;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.index.Index;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * oss 之间复制文件/文件夹
+ * <p>
+ * 同一服务(平台和 endpoint 相同)使用服务端复制(大文件分片复制), 其他经本机流式转存(大文件按范围读取分片上传)<br>
+ * 每个平台一个固定大小的线程池, 限制同时复制的对象数; 单个对象失败后按指数退避加随机抖动重试<br>
+ * 已复制的对象记录在 ossTransferObject 中, 中断后重新复制同一个文件/文件夹时跳过已复制的对象
+ * </p>
+ *
+ * @author jmal
+ */
+@Service
+@Slf4j
+@RequiredArgsConstructor
+public class OssTransferService {
+
+    public static final String COLLECTION_NAME = "ossTransferTask";
+
+    private static final String OBJECT_COLLECTION_NAME = "ossTransferObject";
+
+    private static final String TASK_ID = "taskId";
+
+    private static final String KEY = "key";
+
+    /**
+     * 每批记录的已复制对象数
+     */
+    private static final int PROGRESS_BATCH_SIZE = 200;
+
+    private final MongoTemplate mongoTemplate;
+
+    private final FileProperties fileProperties;
+
+    private final Map<PlatformOSS, ExecutorService> executors = new ConcurrentHashMap<>();
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void initAfterStartup() {
+        mongoTemplate.indexOps(OBJECT_COLLECTION_NAME).ensureIndex(new Index().on(TASK_ID, Sort.Direction.ASC).on(KEY, Sort.Direction.ASC));
+        long unfinished = mongoTemplate.count(new Query(), COLLECTION_NAME);
+        if (unfinished > 0) {
+            log.info("有 {} 个未完成的 oss 复制任务, 重新复制同一文件/文件夹时继续", unfinished);
+        }
+    }
+
+    @PreDestroy
+    public void destroy() {
+        executors.values().forEach(ExecutorService::shutdownNow);
+    }
+
+    /**
+     * 是否有中断的复制任务, 有时目标已存在也可以继续复制
+     */
+    public boolean hasUnfinished(IOssService from, String fromBucket, String sourceKey, IOssService to, String toBucket, String destinationKey) {
+        String taskId = getTaskId(from, fromBucket, sourceKey, to, toBucket, destinationKey);
+        return mongoTemplate.exists(Query.query(Criteria.where("_id").is(taskId)), COLLECTION_NAME);
+    }
+
+    /**
+     * 复制文件/文件夹
+     *
+     * @param from           源ossService
+     * @param fromBucket     源Bucket
+     * @param sourceKey      源objectName, 文件夹以 / 结尾, 空为根目录
+     * @param to             目标ossService
+     * @param toBucket       目标Bucket
+     * @param destinationKey 目标objectName
+     * @return 本次复制成功和失败的对象
+     */
+    public TransferResult copy(IOssService from, String fromBucket, String sourceKey, IOssService to, String toBucket, String destinationKey) {
+        // 空的 sourceKey 为 bucket 根目录
+        boolean isFolder = sourceKey.isEmpty() || sourceKey.endsWith("/");
+        // 服务端复制只能在同一个服务内
+        boolean sameService = from.getPlatform() == to.getPlatform() && Objects.equals(from.getEndpoint(), to.getEndpoint());
+        String taskId = getTaskId(from, fromBucket, sourceKey, to, toBucket, destinationKey);
+        from.lock(sourceKey);
+        try {
+            List<FileInfo> objects = listObjects(from, sourceKey, isFolder);
+            Set<String> done = getDone(taskId);
+            List<FileInfo> pending = objects.stream().filter(fileInfo -> !done.contains(fileInfo.getKey())).toList();
+            saveTask(taskId, from, fromBucket, sourceKey, to, toBucket, destinationKey, objects.size());
+            if (!done.isEmpty()) {
+                log.info("继续复制 {} -> {}, 已复制: {}, 剩余: {}", sourceKey, destinationKey, done.size(), pending.size());
+            }
+            long start = System.currentTimeMillis();
+            TransferResult result;
+            if (sameService) {
+                result = run(taskId, to.getPlatform(), pending, sourceKey, destinationKey,
+                        (fileInfo, destKey) -> retry(() -> from.copyObjectFile(fromBucket, fileInfo.getKey(), toBucket, destKey, fileInfo.getSize())));
+            } else {
+                if (isFolder && !to.mkdir(destinationKey)) {
+                    throw new CommonException(ExceptionType.SYSTEM_ERROR.getCode(), "创建文件夹失败: " + destinationKey);
+                }
+                // 先创建文件夹, 再复制文件
+                result = run(taskId, to.getPlatform(), pending.stream().filter(FileInfo::isFolder).toList(), sourceKey, destinationKey,
+                        (fileInfo, destKey) -> retry(() -> mkdir(to, destKey)));
+                result = result.merge(run(taskId, to.getPlatform(), pending.stream().filter(fileInfo -> !fileInfo.isFolder()).toList(), sourceKey, destinationKey,
+                        (fileInfo, destKey) -> transfer(from, to, fileInfo, destKey)));
+            }
+            if (result.failed().isEmpty()) {
+                removeTask(taskId);
+            }
+            log.info("复制 {} -> {} 完成, 对象数: {}, 失败: {}, 耗时: {}ms", sourceKey, destinationKey, result.copied().size(), result.failed().size(), System.currentTimeMillis() - start);
+            return result;
+        } finally {
+            from.unlock(sourceKey);
+        }
+    }
+
+    private static List<FileInfo> listObjects(IOssService from, String sourceKey, boolean isFolder) {
+        List<FileInfo> objects = from.getAllObjectsWithPrefix(sourceKey);
+        if (isFolder) {
+            return objects;
+        }
+        // 前缀列举会包含以该文件名开头的其他文件
+        List<FileInfo> file = objects.stream().filter(fileInfo -> sourceKey.equals(fileInfo.getKey())).toList();
+        if (file.isEmpty()) {
+            throw new CommonException(ExceptionType.FILE_NOT_FIND);
+        }
+        return file;
+    }
+
+    /**
+     * 在平台的线程池中复制对象, 每完成一批记录一次进度
+     */
+    private TransferResult run(String taskId, PlatformOSS platform, List<FileInfo> objects, String sourceKey, String destinationKey, ObjectTransfer objectTransfer) {
+        TransferResult result = new TransferResult(new ArrayList<>(objects.size()), new ArrayList<>());
+        if (objects.isEmpty()) {
+            return result;
+        }
+        CompletionService<ObjectResult> completionService = new ExecutorCompletionService<>(getExecutor(platform));
+        for (FileInfo fileInfo : objects) {
+            String destKey = destinationKey + fileInfo.getKey().substring(sourceKey.length());
+            completionService.submit(() -> {
+                try {
+                    objectTransfer.transfer(fileInfo, destKey);
+                    return new ObjectResult(fileInfo.getKey(), destKey, null);
+                } catch (Exception e) {
+                    return new ObjectResult(fileInfo.getKey(), destKey, e);
+                }
+            });
+        }
+        List<String> batch = new ArrayList<>(PROGRESS_BATCH_SIZE);
+        try {
+            for (int i = 0; i < objects.size(); i++) {
+                ObjectResult objectResult = completionService.take().get();
+                if (objectResult.error() != null) {
+                    log.error("复制失败 {} -> {}: {}", objectResult.key(), objectResult.destinationKey(), objectResult.error().getMessage());
+                    result.failed().add(objectResult.key());
+                    continue;
+                }
+                result.copied().add(objectResult.destinationKey());
+                batch.add(objectResult.key());
+                if (batch.size() >= PROGRESS_BATCH_SIZE) {
+                    saveProgress(taskId, batch);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CommonException(ExceptionType.SYSTEM_ERROR.getCode(), "复制被中断");
+        } catch (ExecutionException e) {
+            throw new CommonException(ExceptionType.SYSTEM_ERROR.getCode(), e.getMessage());
+        } finally {
+            saveProgress(taskId, batch);
+        }
+        return result;
+    }
+
+    /**
+     * 不同服务间复制单个文件
+     * 小文件整个读取后上传, 大文件按范围读取后分片上传, 每个分片单独重试
+     */
+    private void transfer(IOssService from, IOssService to, FileInfo fileInfo, String destKey) throws Exception {
+        long size = fileInfo.getSize();
+        if (size < BaseOssService.MULTIPART_THRESHOLD) {
+            retry(() -> {
+                try (AbstractOssObject abstractOssObject = from.getAbstractOssObject(fileInfo.getKey());
+                     InputStream inputStream = abstractOssObject.getInputStream()) {
+                    to.uploadFile(inputStream, destKey, abstractOssObject.getContentLength());
+                }
+            });
+            return;
+        }
+        String uploadId = to.initiateMultipartUpload(destKey);
+        if (uploadId == null) {
+            throw new IOException("初始化分片上传失败: " + destKey);
+        }
+        try {
+            long partSize = BaseOssService.getPartSize(size);
+            int partNumber = 1;
+            for (long offset = 0; offset < size; offset += partSize, partNumber++) {
+                long rangeStart = offset;
+                long rangeEnd = Math.min(offset + partSize, size) - 1;
+                int number = partNumber;
+                retry(() -> {
+                    try (AbstractOssObject abstractOssObject = from.getAbstractOssObject(fileInfo.getKey(), rangeStart, rangeEnd);
+                         InputStream inputStream = abstractOssObject.getInputStream()) {
+                        if (!to.uploadPart(inputStream, destKey, (int) (rangeEnd - rangeStart + 1), number, uploadId)) {
+                            throw new IOException("上传分片失败: " + destKey + ", partNumber: " + number);
+                        }
+                    }
+                });
+            }
+            to.completeMultipartUpload(destKey, uploadId, size);
+        } catch (Exception e) {
+            to.abortMultipartUpload(destKey, uploadId);
+            throw e;
+        }
+    }
+
+    private static void mkdir(IOssService to, String destKey) throws IOException {
+        if (!to.mkdir(destKey)) {
+            throw new IOException("创建文件夹失败: " + destKey);
+        }
+    }
+
+    private void retry(RetryUtil.Attempt attempt) throws Exception {
+        RetryUtil.retry(fileProperties.getOssCopyRetries(), attempt);
+    }
+
+    private ExecutorService getExecutor(PlatformOSS platform) {
+        return executors.computeIfAbsent(platform, key -> {
+            int concurrency = Math.max(1, fileProperties.getOssCopyConcurrency());
+            return ThreadUtil.newExecutor(concurrency, concurrency, Integer.MAX_VALUE);
+        });
+    }
+
+    private static String getTaskId(IOssService from, String fromBucket, String sourceKey, IOssService to, String toBucket, String destinationKey) {
+        return SecureUtil.md5(from.getBucketId(fromBucket) + ":" + sourceKey + " -> " + to.getBucketId(toBucket) + ":" + destinationKey);
+    }
+
+    private Set<String> getDone(String taskId) {
+        Set<String> done = new HashSet<>();
+        for (Document document : mongoTemplate.getCollection(OBJECT_COLLECTION_NAME).find(new Document(TASK_ID, taskId)).projection(new Document(KEY, 1))) {
+            done.add(document.getString(KEY));
+        }
+        return done;
+    }
+
+    private void saveTask(String taskId, IOssService from, String fromBucket, String sourceKey, IOssService to, String toBucket, String destinationKey, int total) {
+        Update update = new Update();
+        update.setOnInsert("source", new Document("platform", from.getPlatform().getKey()).append("endpoint", from.getEndpoint()).append("bucket", fromBucket).append(KEY, sourceKey));
+        update.setOnInsert("destination", new Document("platform", to.getPlatform().getKey()).append("endpoint", to.getEndpoint()).append("bucket", toBucket).append(KEY, destinationKey));
+        update.setOnInsert("createdAt", new Date());
+        update.set("total", total);
+        update.set("updatedAt", new Date());
+        mongoTemplate.upsert(Query.query(Criteria.where("_id").is(taskId)), update, COLLECTION_NAME);
+    }
+
+    private void saveProgress(String taskId, List<String> keys) {
+        if (keys.isEmpty()) {
+            return;
+        }
+        List<Document> documents = keys.stream().map(key -> new Document(TASK_ID, taskId).append(KEY, key)).toList();
+        try {
+            mongoTemplate.getCollection(OBJECT_COLLECTION_NAME).insertMany(documents, new InsertManyOptions().ordered(false));
+        } catch (MongoBulkWriteException e) {
+            // 只影响续传时是否重复复制
+            log.warn("记录复制进度失败: {}", e.getMessage());
+        }
+        keys.clear();
+    }
+
+    private void removeTask(String taskId) {
+        mongoTemplate.remove(Query.query(Criteria.where(TASK_ID).is(taskId)), OBJECT_COLLECTION_NAME);
+        mongoTemplate.remove(Query.query(Criteria.where("_id").is(taskId)), COLLECTION_NAME);
+    }
+
+    @FunctionalInterface
+    private interface ObjectTransfer {
+        void transfer(FileInfo fileInfo, String destKey) throws Exception;
+    }
+
+    private record ObjectResult(String key, String destinationKey, Exception error) {
+    }
+
+    /**
+     * 复制结果
+     *
+     * @param copied 本次复制成功的目标objectName
+     * @param failed 复制失败的源objectName
+     */
+    public record TransferResult(List<String> copied, List<String> failed) {
+
+        TransferResult merge(TransferResult other) {
+            copied.addAll(other.copied());
+            failed.addAll(other.failed());
+            return this;
+        }
+    }
+}
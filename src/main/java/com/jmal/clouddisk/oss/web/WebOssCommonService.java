@@ -43,6 +43,12 @@ public class WebOssCommonService {
     @Autowired
     CommonFileService commonFileService;
 
+    @Autowired
+    OssTransferService ossTransferService;
+
+    @Autowired
+    OssDerivativeService ossDerivativeService;
+
     public void notifyCreateFile(String username, String objectName, String ossRootFolderName) {
         FileIntroVO fileIntroVO = new FileIntroVO();
         fileIntroVO.setPath(getPathByObjectName(ossRootFolderName, objectName));
@@ -61,28 +61,23 @@ public class WebOssCopyFileService extends WebOssCommonService {
             objectNameTo += MyWebdavServlet.PATH_DELIMITER;
         }
 
-        // 判断目标文件/夹是否存在
-        if (ossServiceTo.doesObjectExist(objectNameTo)) {
+        // 判断目标文件/夹是否存在, 之前中断的复制可以继续
+        boolean resume = ossTransferService.hasUnfinished(ossServiceFrom, bucketInfoFrom.getBucketName(), objectNameFrom, ossServiceTo, bucketInfoTo.getBucketName(), objectNameTo);
+        if (!resume && ossServiceTo.doesObjectExist(objectNameTo)) {
             return ResultUtil.warning(Constants.COPY_EXISTS_FILE);
         }
 
-        if (ossServiceFrom.getPlatform() == ossServiceTo.getPlatform()) {
-            // 同平台间复制
-            List<String> copiedList = ossServiceFrom.copyObject(bucketInfoFrom.getBucketName(), objectNameFrom, bucketInfoTo.getBucketName(), objectNameTo);
-            for (String objectName : copiedList) {
-                afterUploadComplete(objectName, ossPathTo, null);
-            }
-            if (copiedList.isEmpty()) {
-                throw new CommonException(ExceptionType.SYSTEM_ERROR.getCode(), "复制失败");
-            }
-        } else {
-            if (isFolder) {
-                // 复制文件夹
-                copyDir(ossServiceFrom, ossServiceTo, objectNameFrom, objectNameTo, ossPathTo);
-            } else {
-                // 复制文件
-                copyFile(ossServiceFrom, ossServiceTo, objectNameFrom, objectNameTo, ossPathTo);
-            }
+        // 同平台间服务端复制, 不同平台间流式转存
+        OssTransferService.TransferResult result = ossTransferService.copy(ossServiceFrom, bucketInfoFrom.getBucketName(), objectNameFrom, ossServiceTo, bucketInfoTo.getBucketName(), objectNameTo);
+        for (String objectName : result.copied()) {
+            afterUploadComplete(objectName, ossPathTo, null);
+        }
+        if (!result.failed().isEmpty()) {
+            ossServiceTo.clearCache(objectNameTo);
+            throw new CommonException(ExceptionType.SYSTEM_ERROR.getCode(), "复制失败, " + result.failed().size() + " 个文件未复制, 重新复制将从中断处继续");
+        }
+        if (result.copied().isEmpty() && !resume) {
+            throw new CommonException(ExceptionType.SYSTEM_ERROR.getCode(), "复制失败");
         }
         String finalObjectNameTo = objectNameTo;
         // 复制成功
@@ -95,81 +90,6 @@ public class WebOssCopyFileService extends WebOssCommonService {
         return ResultUtil.success();
     }
 
-    /**
-     * 不同oss平台间的文件夹复制
-     * 复制完成需要解锁 源objectName
-     *
-     * @param ossServiceFrom 源ossService
-     * @param ossServiceTo   目标ossService
-     * @param objectNameFrom 源objectName
-     * @param objectNameTo   目标objectName
-     * @param ossPathTo      目标ossPath
-     */
-    private void copyDir(IOssService ossServiceFrom, IOssService ossServiceTo, String objectNameFrom, String objectNameTo, String ossPathTo) {
-        // 锁对象
-        ossServiceFrom.lock(objectNameFrom);
-        try {
-            // 首先在目标oss创建文件夹
-            if (ossServiceTo.mkdir(objectNameTo)) {
-                // 列出源objectName下的所有文件/文件夹
-                List<FileInfo> fileInfoList = ossServiceFrom.getAllObjectsWithPrefix(objectNameFrom);
-                // 先创建文件夹
-                fileInfoList.stream().filter(FileInfo::isFolder).parallel().forEach(fileInfo -> {
-                    String relativePath = fileInfo.getKey().substring(objectNameFrom.length());
-                    // 目标objectName
-                    String destObjectName = objectNameTo + relativePath;
-                    ossServiceTo.mkdir(destObjectName);
-                    afterUploadComplete(destObjectName, ossPathTo, null);
-                });
-                // 再复制文件
-                fileInfoList.stream().filter(fileInfo -> !fileInfo.isFolder()).parallel().forEach(fileInfo -> {
-                    String relativePath = fileInfo.getKey().substring(objectNameFrom.length());
-                    // 目标objectName
-                    String destObjectName = objectNameTo + relativePath;
-                    try (AbstractOssObject abstractOssObject = ossServiceFrom.getAbstractOssObject(fileInfo.getKey());
-                         InputStream inputStream = abstractOssObject.getInputStream()) {
-                        // 上传文件
-                        ossServiceTo.uploadFile(inputStream, destObjectName, abstractOssObject.getContentLength());
-                        afterUploadComplete(destObjectName, ossPathTo, null);
-                    } catch (Exception e) {
-                        throw new CommonException(ExceptionType.SYSTEM_ERROR.getCode(), e.getMessage());
-                    }
-                });
-            }
-        } catch (Exception e) {
-            throw new CommonException(ExceptionType.SYSTEM_ERROR.getCode(), e.getMessage());
-        } finally {
-            // 解锁对象
-            ossServiceFrom.unlock(objectNameFrom);
-        }
-    }
-
-    /**
-     * 不同oss平台间的文件复制
-     * 复制完成需要解锁 源objectName
-     *
-     * @param ossServiceFrom 源ossService
-     * @param ossServiceTo   目标ossService
-     * @param objectNameFrom 源objectName
-     * @param objectNameTo   目标objectName
-     * @param ossPathTo      目标ossPath
-     */
-    private void copyFile(IOssService ossServiceFrom, IOssService ossServiceTo, String objectNameFrom, String objectNameTo, String ossPathTo) {
-        // 锁对象
-        ossServiceFrom.lock(objectNameFrom);
-        try (AbstractOssObject abstractOssObject = ossServiceFrom.getAbstractOssObject(objectNameFrom);
-             InputStream inputStream = abstractOssObject.getInputStream()) {
-            // 上传文件
-            ossServiceTo.uploadFile(inputStream, objectNameTo, abstractOssObject.getContentLength());
-            afterUploadComplete(objectNameTo, ossPathTo, null);
-        } catch (Exception e) {
-            throw new CommonException(ExceptionType.SYSTEM_ERROR.getCode(), e.getMessage());
-        } finally {
-            // 解锁对象
-            ossServiceFrom.unlock(objectNameFrom);
-        }
-    }
-
     /**
      * 从oss复制文件/夹到本地存储
      *
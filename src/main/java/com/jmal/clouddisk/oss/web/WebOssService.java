@@ -9,7 +9,6 @@ import cn.hutool.core.text.CharSequenceUtil;
 import cn.hutool.core.util.BooleanUtil;
 import cn.hutool.core.util.ReUtil;
 import cn.hutool.core.util.URLUtil;
-import cn.hutool.crypto.SecureUtil;
 import com.github.benmanes.caffeine.cache.Cache;
 import com.github.benmanes.caffeine.cache.Caffeine;
 import com.jmal.clouddisk.exception.CommonException;
@@ -34,7 +33,6 @@ import org.bson.Document;
 import org.jetbrains.annotations.NotNull;
 import org.springframework.data.mongodb.core.query.Criteria;
 import org.springframework.data.mongodb.core.query.Query;
-import org.springframework.data.mongodb.core.query.Update;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
@@ -43,6 +41,7 @@ import org.springframework.web.multipart.MultipartFile;
 import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
 import java.io.*;
+import java.net.URL;
 import java.net.URLEncoder;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
@@ -341,6 +340,11 @@ public class WebOssService extends WebOssCommonService {
         IOssService ossService = OssConfigService.getOssStorageService(ossPath);
         String objectName = getObjectName(prePth, ossPath, false);
         String uploadId = ossService.getUploadId(objectName);
+        boolean directTransfer = BooleanUtil.isTrue(fileProperties.getOssDirectTransfer());
+        if (directTransfer) {
+            // 直传的分片不经过服务端, 缓存不准确
+            removeListPartsCache(uploadId);
+        }
         // 已上传的分片号
         List<Integer> chunks = LIST_PARTS_CACHE.get(uploadId, key -> ossService.getListParts(objectName, uploadId));
         // 返回已存在的分片
@@ -354,11 +358,33 @@ public class WebOssService extends WebOssCommonService {
             notifyCreateFile(upload.getUsername(), objectName, getOssRootFolderName(ossPath));
             FileDocument fileDocument = getFileDocumentByOssPath(ossPath, upload, objectName);
             afterUploadComplete(objectName, ossPath, fileDocument);
+        } else if (directTransfer) {
+            uploadResponse.setPartUrls(getPresignedPartUrls(ossService, objectName, uploadId, upload.getTotalChunks(), chunks));
         }
         uploadResponse.setUpload(true);
         return uploadResponse;
     }
 
+    /**
+     * 未上传分片的预签名上传地址, 浏览器直接 PUT 分片到oss, 全部上传完后调用 merge 合并
+     *
+     * @return 有分片生成失败时返回 null, 改为通过服务端上传
+     */
+    private Map<Integer, String> getPresignedPartUrls(IOssService ossService, String objectName, String uploadId, int totalChunks, List<Integer> chunks) {
+        Map<Integer, String> partUrls = new HashMap<>(totalChunks);
+        for (int partNumber = 1; partNumber <= totalChunks; partNumber++) {
+            if (chunks.contains(partNumber)) {
+                continue;
+            }
+            URL url = ossService.getPresignedPartUrl(objectName, uploadId, partNumber, fileProperties.getOssPresignedExpiry());
+            if (url == null) {
+                return null;
+            }
+            partUrls.put(partNumber, url.toString());
+        }
+        return partUrls;
+    }
+
     private static FileDocument getFileDocumentByOssPath(String ossPath, UploadApiParamDTO upload, String objectName) {
         FileInfo fileInfo = new FileInfo(objectName, upload.getIdentifier(), upload.getTotalSize(), new Date());
         return fileInfo.toFileDocument(ossPath, upload.getUserId());
@@ -370,7 +396,16 @@ public class WebOssService extends WebOssCommonService {
         IOssService ossService = OssConfigService.getOssStorageService(ossPath);
         String objectName = getObjectName(prePth, ossPath, false);
         String uploadId = ossService.getUploadId(objectName);
-        ossService.completeMultipartUpload(objectName, ossService.getUploadId(objectName), upload.getTotalSize());
+        if (BooleanUtil.isTrue(fileProperties.getOssDirectTransfer())) {
+            // 直传的分片由浏览器上传, 合并前确认分片都已上传, 缺少的返回给浏览器重新上传
+            List<Integer> chunks = ossService.getListParts(objectName, uploadId);
+            if (chunks.size() < upload.getTotalChunks()) {
+                uploadResponse.setResume(chunks);
+                uploadResponse.setPartUrls(getPresignedPartUrls(ossService, objectName, uploadId, upload.getTotalChunks(), chunks));
+                return uploadResponse;
+            }
+        }
+        ossService.completeMultipartUpload(objectName, uploadId, upload.getTotalSize());
         // 清除缓存
         removeListPartsCache(uploadId);
         notifyCreateFile(upload.getUsername(), objectName, getOssRootFolderName(ossPath));
@@ -456,14 +491,14 @@ public class WebOssService extends WebOssCommonService {
         } else {
             destinationObjectName = getObjectName(newFilePath, ossPath, true);
         }
-        // 复制
-        List<String> copiedList = ossService.copyObject(objectName, destinationObjectName);
-        if (!copiedList.isEmpty()) {
-            // 删除
-            ossService.delete(objectName);
-        } else {
+        // 复制, 全部复制成功后再删除
+        String bucketName = CaffeineUtil.getOssDiameterPrefixCache(ossPath).getBucketName();
+        OssTransferService.TransferResult result = ossTransferService.copy(ossService, bucketName, objectName, ossService, bucketName, destinationObjectName);
+        if (!result.failed().isEmpty() || result.copied().isEmpty()) {
             throw new CommonException(ExceptionType.SYSTEM_ERROR.getCode(), "重命名失败");
         }
+        // 删除
+        ossService.delete(objectName);
         // 修改历史文件中的filename
         String username = getUsernameByOssPath(ossPath);
         String sourceFileId = getFileId(getOssRootFolderName(ossPath), objectName, username);
@@ -587,40 +622,49 @@ public class WebOssService extends WebOssCommonService {
     }
 
     public ResponseEntity<Object> thumbnail(String ossPath, String pathName) {
-        Optional<FileDocument> file = Optional.empty();
-        FileDocument fileDocument = mongoTemplate.findById(pathName, FileDocument.class);
-        if (fileDocument != null && fileDocument.getContent() != null) {
-            file = Optional.of(fileDocument);
-        } else {
-            IOssService ossService = OssConfigService.getOssStorageService(ossPath);
-            String objectName = pathName.substring(ossPath.length());
-            String tempFileName = SecureUtil.md5(pathName) + Paths.get(pathName).getFileName();
-            File tempFile = Paths.get(fileProperties.getRootDir(), fileProperties.getChunkFileDir(), tempFileName).toFile();
-            try {
-                FileInfo fileInfo = ossService.getThumbnail(objectName, tempFile, 256);
-                String username = getUsernameByOssPath(ossPath);
-                FileDocument thumbnailDoc = fileInfo.toFileDocument(ossPath, userService.getUserIdByUserName(username));
-                thumbnailDoc.setContent(FileUtil.readBytes(tempFile));
-                if (fileDocument != null) {
-                    Query query = new Query().addCriteria(Criteria.where("_id").is(pathName));
-                    Update update = new Update();
-                    update.set("content", thumbnailDoc.getContent());
-                    mongoTemplate.upsert(query, update, FileDocument.class);
-                } else {
-                    mongoTemplate.save(thumbnailDoc);
-                }
-                if (thumbnailDoc.getContent() != null) {
-                    file = Optional.of(thumbnailDoc);
-                }
-            } catch (Exception e) {
-                log.error(e.getMessage(), e);
-            } finally {
-                if (tempFile.exists()) {
-                    FileUtil.del(tempFile);
-                }
-            }
+        IOssService ossService = OssConfigService.getOssStorageService(ossPath);
+        String objectName = pathName.substring(ossPath.length());
+        FileInfo fileInfo = ossService.getFileInfo(objectName);
+        if (fileInfo == null) {
+            return ResponseEntity.status(HttpStatus.NOT_FOUND).body("找不到该文件");
+        }
+        // 缩略图缓存在本地, 文件修改(ETag变化)后重新生成
+        File thumbnail = ossDerivativeService.thumbnail(ossService, fileInfo);
+        if (thumbnail == null) {
+            return ResponseEntity.status(HttpStatus.NOT_FOUND).body("找不到该文件");
+        }
+        String username = getUsernameByOssPath(ossPath);
+        FileDocument thumbnailDoc = fileInfo.toFileDocument(ossPath, userService.getUserIdByUserName(username));
+        thumbnailDoc.setContent(FileUtil.readBytes(thumbnail));
+        return commonFileService.getObjectResponseEntity(thumbnailDoc);
+    }
+
+    /**
+     * 视频封面, 缓存在本地, 不写入数据库
+     *
+     * @param ossPath  ossPath
+     * @param pathName pathName
+     * @return 不是视频时返回null, 生成失败时content为null
+     */
+    public FileDocument videoCover(String ossPath, String pathName) {
+        String objectName = pathName.substring(ossPath.length());
+        if (!FileContentTypeUtils.getContentType(FileUtil.extName(objectName)).contains(Constants.VIDEO)) {
+            return null;
+        }
+        IOssService ossService = OssConfigService.getOssStorageService(ossPath);
+        FileInfo fileInfo = ossService.getFileInfo(objectName);
+        if (fileInfo == null) {
+            return null;
+        }
+        String username = getUsernameByOssPath(ossPath);
+        FileDocument fileDocument = fileInfo.toFileDocument(ossPath, userService.getUserIdByUserName(username));
+        File cover = ossDerivativeService.videoCover(ossService, fileInfo);
+        if (cover != null) {
+            fileDocument.setContent(FileUtil.readBytes(cover));
         }
-        return file.map(commonFileService::getObjectResponseEntity).orElseGet(() -> ResponseEntity.status(HttpStatus.NOT_FOUND).body("找不到该文件"));
+        fileDocument.setContentType("image/png");
+        fileDocument.setName("cover");
+        return fileDocument;
     }
 
     public FileIntroVO addFile(String ossPath, Boolean isFolder, Path prePth) {
@@ -683,6 +727,9 @@ public class WebOssService extends WebOssCommonService {
     public void download(String ossPath, Path prePth, HttpServletRequest request, HttpServletResponse response) {
         IOssService ossService = OssConfigService.getOssStorageService(ossPath);
         String objectName = getObjectName(prePth, ossPath, false);
+        if (redirectToPresignedUrl(ossService, objectName, response)) {
+            return;
+        }
         try (AbstractOssObject abstractOssObject = ossService.getAbstractOssObject(objectName);
              InputStream inputStream = abstractOssObject.getInputStream();
              InputStream inStream = new BufferedInputStream(inputStream, 2048);
@@ -709,6 +756,31 @@ public class WebOssService extends WebOssCommonService {
         }
     }
 
+    /**
+     * 开启oss直传时重定向到预签名URL, 由浏览器直接从oss下载, Range 请求也由oss处理
+     *
+     * @return 是否已重定向, 生成预签名URL失败时返回 false, 仍由服务端中转
+     */
+    private boolean redirectToPresignedUrl(IOssService ossService, String objectName, HttpServletResponse response) {
+        if (!BooleanUtil.isTrue(fileProperties.getOssDirectTransfer())) {
+            return false;
+        }
+        String contentDisposition = response.getHeader(HttpHeaders.CONTENT_DISPOSITION);
+        URL url = ossService.getPresignedDownloadUrl(objectName, fileProperties.getOssPresignedExpiry(), contentDisposition);
+        if (url == null) {
+            return false;
+        }
+        try {
+            // 预签名URL会过期, 不能缓存重定向
+            response.setHeader(HttpHeaders.CACHE_CONTROL, "no-store");
+            response.sendRedirect(url.toString());
+            return true;
+        } catch (IOException e) {
+            log.error(e.getMessage());
+            return false;
+        }
+    }
+
     /**
      * 处理 Range 请求
      *
@@ -127,6 +127,13 @@ public interface IFileService {
      */
     ResponseResult<Object> listFiles(UploadApiParamDTO upload);
 
+    /**
+     * 游标分页的文件列表, 适用于滚动加载
+     * @param upload UploadApiParamDTO, cursor 为上一页返回的 props.nextCursor, 第一页为空
+     * @return ResponseResult, props.nextCursor 为空时没有下一页
+     */
+    ResponseResult<Object> listFilesByCursor(UploadApiParamDTO upload);
+
     /**
      * 用户占用空间
      * @param userId 用户id
@@ -32,14 +32,6 @@ public interface IMarkdownService {
      * @return Page
      */
     Page<List<MarkdownVO>> getArticles(Integer page, Integer pageSize);
-    /***
-     * 获取已发布文章的完整url
-     */
-    Urlset getSitemapXml();
-    /***
-     * 获取已发布文章的完整url
-     */
-    String getSitemapTxt();
 
     /***
      * 获取独立页面列表
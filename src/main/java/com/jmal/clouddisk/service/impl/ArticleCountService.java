@@ -0,0 +1,251 @@
+package com.jmal.clouddisk.service.impl;
+
+import cn.hutool.core.thread.ThreadUtil;
+import com.jmal.clouddisk.model.FileDocument;
+import com.jmal.clouddisk.service.Constants;
+import com.mongodb.client.AggregateIterable;
+import com.mongodb.client.model.Accumulators;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.Projections;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.bson.Document;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.index.Index;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.stereotype.Service;
+
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.mongodb.client.model.Aggregates.*;
+
+/**
+ * 标签和分类的文章数
+ * <p>
+ * 文章数保存在 articleCounts 集合中, _id 为 tag:标签id 或 category:分类id<br>
+ * 启动时用一次 $unwind/$group 聚合重新统计, 之后在文章发布, 删除, 修改标签或分类时增量更新<br>
+ * 读取时使用内存中的快照, 只有文章数变化后才重新加载
+ * </p>
+ *
+ * @author jmal
+ */
+@Service
+@Slf4j
+@RequiredArgsConstructor
+public class ArticleCountService {
+
+    public static final String COLLECTION_NAME = "articleCounts";
+
+    public static final String TYPE_TAG = "tag";
+
+    public static final String TYPE_CATEGORY = "category";
+
+    private static final String TYPE = "type";
+
+    private static final String REF_ID = "refId";
+
+    private static final String COUNT = "count";
+
+    private final MongoTemplate mongoTemplate;
+
+    /**
+     * 文章数快照, key: type, value: (refId, 文章数)
+     */
+    private volatile Map<String, Map<String, Long>> snapshot;
+
+    private final Object snapshotLock = new Object();
+
+    /**
+     * 文章数变化的次数, 加载快照期间发生变化则不保存该快照
+     */
+    private final AtomicLong version = new AtomicLong();
+
+    private ExecutorService executorService;
+
+    @PostConstruct
+    public void init() {
+        mongoTemplate.indexOps(COLLECTION_NAME).ensureIndex(new Index().on(TYPE, Sort.Direction.ASC));
+        executorService = ThreadUtil.newSingleExecutor();
+        recomputeAsync();
+    }
+
+    @PreDestroy
+    public void destroy() {
+        if (executorService != null) {
+            executorService.shutdown();
+        }
+    }
+
+    /**
+     * 标签的文章数
+     *
+     * @return key: 标签id, value: 文章数
+     */
+    public Map<String, Long> getTagCounts() {
+        return getSnapshot().getOrDefault(TYPE_TAG, Collections.emptyMap());
+    }
+
+    /**
+     * 分类的文章数(不包含子分类)
+     *
+     * @return key: 分类id, value: 文章数
+     */
+    public Map<String, Long> getCategoryCounts() {
+        return getSnapshot().getOrDefault(TYPE_CATEGORY, Collections.emptyMap());
+    }
+
+    private Map<String, Map<String, Long>> getSnapshot() {
+        Map<String, Map<String, Long>> current = snapshot;
+        if (current != null) {
+            return current;
+        }
+        // 不与统计共用锁, 重新统计期间仍然可以读取
+        synchronized (snapshotLock) {
+            current = snapshot;
+            if (current == null) {
+                long loadVersion = version.get();
+                current = loadSnapshot();
+                if (version.get() == loadVersion) {
+                    snapshot = current;
+                }
+            }
+            return current;
+        }
+    }
+
+    private void invalidateSnapshot() {
+        version.incrementAndGet();
+        snapshot = null;
+    }
+
+    private Map<String, Map<String, Long>> loadSnapshot() {
+        Map<String, Map<String, Long>> counts = new HashMap<>(4);
+        Query query = new Query();
+        query.addCriteria(Criteria.where(COUNT).gt(0));
+        for (Document document : mongoTemplate.find(query, Document.class, COLLECTION_NAME)) {
+            counts.computeIfAbsent(document.getString(TYPE), key -> new HashMap<>())
+                    .put(document.getString(REF_ID), document.get(COUNT, Number.class).longValue());
+        }
+        return counts;
+    }
+
+    /**
+     * 文章发布状态, 标签或分类变化后增量更新文章数
+     *
+     * @param before 修改前的文章, 新建时为null
+     * @param after  修改后的文章, 删除时为null
+     */
+    public void onArticleChanged(FileDocument before, FileDocument after) {
+        Set<String> beforeRefs = getRefs(before);
+        Set<String> afterRefs = getRefs(after);
+        Map<String, Integer> deltas = new HashMap<>();
+        afterRefs.stream().filter(ref -> !beforeRefs.contains(ref)).forEach(ref -> deltas.put(ref, 1));
+        beforeRefs.stream().filter(ref -> !afterRefs.contains(ref)).forEach(ref -> deltas.put(ref, -1));
+        if (deltas.isEmpty()) {
+            return;
+        }
+        synchronized (this) {
+            BulkOperations bulkOperations = mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, COLLECTION_NAME);
+            deltas.forEach((ref, delta) -> {
+                int index = ref.indexOf(':');
+                Update update = new Update().inc(COUNT, delta).set(TYPE, ref.substring(0, index)).set(REF_ID, ref.substring(index + 1));
+                bulkOperations.upsert(Query.query(Criteria.where("_id").is(ref)), update);
+            });
+            bulkOperations.execute();
+            invalidateSnapshot();
+        }
+    }
+
+    /**
+     * 删除标签或分类的文章数
+     *
+     * @param type   {@link #TYPE_TAG} 或 {@link #TYPE_CATEGORY}
+     * @param refIds 标签或分类id
+     */
+    public synchronized void remove(String type, Collection<String> refIds) {
+        Query query = new Query();
+        query.addCriteria(Criteria.where("_id").in(refIds.stream().map(refId -> type + ":" + refId).toList()));
+        mongoTemplate.remove(query, COLLECTION_NAME);
+        invalidateSnapshot();
+    }
+
+    /**
+     * 批量修改文章后(如删除用户)在后台重新统计
+     */
+    public void recomputeAsync() {
+        executorService.execute(this::recompute);
+    }
+
+    /**
+     * 用一次聚合重新统计所有标签和分类的文章数
+     */
+    public synchronized void recompute() {
+        long start = System.currentTimeMillis();
+        try {
+            Document tagRefs = refsExpression(Constants.TAG_IDS, TYPE_TAG);
+            Document categoryRefs = refsExpression("categoryIds", TYPE_CATEGORY);
+            AggregateIterable<Document> aggregateIterable = mongoTemplate.getCollection(CommonFileService.COLLECTION_NAME).aggregate(List.of(
+                    match(Filters.eq(Constants.RELEASE, true)),
+                    // 同一篇文章重复的id只统计一次
+                    project(Projections.fields(Projections.excludeId(), Projections.computed("refs", new Document("$setUnion", List.of(tagRefs, categoryRefs))))),
+                    unwind("$refs"),
+                    group("$refs", Accumulators.sum(COUNT, 1))
+            )).allowDiskUse(true);
+            BulkOperations bulkOperations = mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, COLLECTION_NAME);
+            List<String> refs = new ArrayList<>();
+            for (Document document : aggregateIterable) {
+                String ref = document.getString("_id");
+                int index = ref.indexOf(':');
+                Update update = new Update().set(COUNT, document.get(COUNT, Number.class).longValue()).set(TYPE, ref.substring(0, index)).set(REF_ID, ref.substring(index + 1));
+                bulkOperations.upsert(Query.query(Criteria.where("_id").is(ref)), update);
+                refs.add(ref);
+            }
+            if (!refs.isEmpty()) {
+                bulkOperations.execute();
+            }
+            // 没有已发布文章的标签和分类
+            Query query = new Query();
+            query.addCriteria(Criteria.where("_id").nin(refs));
+            mongoTemplate.remove(query, COLLECTION_NAME);
+            invalidateSnapshot();
+            log.info("标签和分类文章数统计完成, 数量: {}, 耗时: {}ms", refs.size(), System.currentTimeMillis() - start);
+        } catch (Exception e) {
+            log.error("标签和分类文章数统计失败: {}", e.getMessage(), e);
+        }
+    }
+
+    /**
+     * 把数组字段转换为 type:id 数组的表达式
+     */
+    private static Document refsExpression(String field, String type) {
+        return new Document("$map", new Document("input", new Document("$ifNull", Arrays.asList("$" + field, List.of())))
+                .append("as", "id")
+                .append("in", new Document("$concat", List.of(type + ":", new Document("$toString", "$$id")))));
+    }
+
+    private static Set<String> getRefs(FileDocument fileDocument) {
+        if (fileDocument == null || !Boolean.TRUE.equals(fileDocument.getRelease())) {
+            return Collections.emptySet();
+        }
+        Set<String> refs = new HashSet<>();
+        if (fileDocument.getTagIds() != null) {
+            for (String tagId : fileDocument.getTagIds()) {
+                refs.add(TYPE_TAG + ":" + tagId);
+            }
+        }
+        if (fileDocument.getCategoryIds() != null) {
+            for (String categoryId : fileDocument.getCategoryIds()) {
+                refs.add(TYPE_CATEGORY + ":" + categoryId);
+            }
+        }
+        return refs;
+    }
+}
@@ -0,0 +1,251 @@
+package com.jmal.clouddisk.service.impl;
+
+import cn.hutool.crypto.SecureUtil;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.RemovalCause;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+import com.jmal.clouddisk.config.FileProperties;
+import jakarta.annotation.PostConstruct;
+import jakarta.servlet.http.HttpServletRequest;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 公开文章页面的渲染结果缓存
+ * <p>
+ * 缓存渲染后的整页(或pjax片段), key 为 url + pjax 等影响渲染结果的标记<br>
+ * 每个页面在渲染时通过 {@link #tag(HttpServletRequest, String...)} 记录依赖的标签(文章, 分类, 标签, 列表, 布局)<br>
+ * 文章, 分类, 标签, 网站设置修改时按标签删除对应的页面<br>
+ * 缓存和失效都只在本节点内, 其他节点的页面在 articlePageCacheTtl 到期后更新
+ * </p>
+ *
+ * @author jmal
+ */
+@Component
+@Slf4j
+@RequiredArgsConstructor
+public class ArticlePageCache {
+
+    /**
+     * 所有页面都依赖的标签
+     */
+    public static final String TAG_SITE = "site";
+
+    /**
+     * 完整页面(非pjax)依赖的布局标签, 包含独立页面导航等
+     */
+    public static final String TAG_LAYOUT = "layout";
+
+    /**
+     * 文章列表类的页面: 首页, 归档, 分类, 标签, 作者等
+     */
+    public static final String TAG_LIST = "list";
+
+    public static final String TAG_ARTICLE_PREFIX = "article:";
+
+    public static final String TAG_SLUG_PREFIX = "slug:";
+
+    public static final String TAG_CATEGORY_PREFIX = "category:";
+
+    public static final String TAG_TAG_PREFIX = "tag:";
+
+    private static final String REQUEST_TAGS_ATTRIBUTE = ArticlePageCache.class.getName() + ".tags";
+
+    private final FileProperties fileProperties;
+
+    private Cache<String, CachedPage> pageCache;
+
+    /**
+     * key: 标签, value: 依赖该标签的页面key
+     */
+    private final Map<String, Set<String>> tagIndex = new ConcurrentHashMap<>();
+
+    /**
+     * 每次失效都递增, 渲染期间发生过失效的页面不放入缓存
+     */
+    private final AtomicLong generation = new AtomicLong();
+
+    @PostConstruct
+    public void init() {
+        long maxBytes = (fileProperties.getArticlePageCacheSize() == null ? 64L : fileProperties.getArticlePageCacheSize()) * 1024 * 1024;
+        long ttl = fileProperties.getArticlePageCacheTtl() == null ? 300L : fileProperties.getArticlePageCacheTtl();
+        pageCache = Caffeine.newBuilder()
+                .maximumWeight(maxBytes)
+                .weigher((String key, CachedPage page) -> page.body().length + key.length())
+                .expireAfterWrite(ttl, TimeUnit.SECONDS)
+                // 超时和容量淘汰时清理标签索引, 主动删除时由 invalidate 清理
+                .executor(Runnable::run)
+                .removalListener((String key, CachedPage page, RemovalCause cause) -> {
+                    if (cause.wasEvicted() && key != null && page != null) {
+                        unindexEvicted(key, page);
+                    }
+                })
+                .recordStats()
+                .build();
+    }
+
+    public boolean isEnabled() {
+        return !Boolean.FALSE.equals(fileProperties.getArticlePageCache());
+    }
+
+    /**
+     * 记录当前请求渲染的页面依赖的标签
+     *
+     * @param request HttpServletRequest
+     * @param tags    标签
+     */
+    @SuppressWarnings("unchecked")
+    public static void tag(HttpServletRequest request, String... tags) {
+        Set<String> requestTags = (Set<String>) request.getAttribute(REQUEST_TAGS_ATTRIBUTE);
+        if (requestTags == null) {
+            requestTags = new HashSet<>();
+            request.setAttribute(REQUEST_TAGS_ATTRIBUTE, requestTags);
+        }
+        for (String tag : tags) {
+            if (tag != null) {
+                requestTags.add(tag);
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    public static Set<String> getRequestTags(HttpServletRequest request) {
+        Set<String> requestTags = (Set<String>) request.getAttribute(REQUEST_TAGS_ATTRIBUTE);
+        return requestTags == null ? Collections.emptySet() : requestTags;
+    }
+
+    public long generation() {
+        return generation.get();
+    }
+
+    public CachedPage get(String key) {
+        return pageCache.getIfPresent(key);
+    }
+
+    /**
+     * 放入缓存
+     *
+     * @param key              页面key
+     * @param page             渲染结果
+     * @param renderGeneration 开始渲染时的 {@link #generation()}
+     */
+    public void put(String key, CachedPage page, long renderGeneration) {
+        for (String tag : page.tags()) {
+            tagIndex.computeIfAbsent(tag, k -> ConcurrentHashMap.newKeySet()).add(key);
+        }
+        if (generation.get() != renderGeneration) {
+            // 渲染期间数据发生了变化, 结果可能是旧的
+            unindex(key, page.tags());
+            return;
+        }
+        pageCache.put(key, page);
+        if (generation.get() != renderGeneration) {
+            pageCache.invalidate(key);
+        }
+    }
+
+    /**
+     * 按标签删除页面
+     *
+     * @param tags 标签
+     */
+    public void invalidate(String... tags) {
+        generation.incrementAndGet();
+        for (String tag : tags) {
+            if (tag == null) {
+                continue;
+            }
+            Set<String> keys = tagIndex.remove(tag);
+            if (keys != null) {
+                pageCache.invalidateAll(keys);
+            }
+        }
+    }
+
+    /**
+     * 文章修改后删除相关的页面
+     *
+     * @param articleId 文章id
+     * @param slugs     文章的slug(修改前后)
+     */
+    public void invalidateArticle(String articleId, String... slugs) {
+        List<String> tags = new ArrayList<>();
+        tags.add(TAG_LIST);
+        tags.add(TAG_LAYOUT);
+        if (articleId != null) {
+            tags.add(TAG_ARTICLE_PREFIX + articleId);
+        }
+        for (String slug : slugs) {
+            if (slug != null) {
+                tags.add(TAG_SLUG_PREFIX + slug);
+            }
+        }
+        invalidate(tags.toArray(new String[0]));
+    }
+
+    public void invalidateAll() {
+        generation.incrementAndGet();
+        pageCache.invalidateAll();
+        tagIndex.clear();
+    }
+
+    /**
+     * 淘汰通知在删除之后才执行, 期间同一个key可能已经放入了新的页面, 新页面仍依赖的标签不能删
+     */
+    private void unindexEvicted(String key, CachedPage page) {
+        CachedPage current = pageCache.asMap().get(key);
+        if (current == null) {
+            unindex(key, page.tags());
+            return;
+        }
+        Set<String> tags = new HashSet<>(page.tags());
+        tags.removeAll(current.tags());
+        unindex(key, tags);
+    }
+
+    private void unindex(String key, Set<String> tags) {
+        for (String tag : tags) {
+            tagIndex.computeIfPresent(tag, (k, keys) -> {
+                keys.remove(key);
+                return keys.isEmpty() ? null : keys;
+            });
+        }
+    }
+
+    public static String etag(byte[] body) {
+        return "\"" + SecureUtil.md5().digestHex(body) + "\"";
+    }
+
+    public Map<String, Object> stats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        CacheStats cacheStats = pageCache.stats();
+        stats.put("size", pageCache.estimatedSize());
+        stats.put("tags", tagIndex.size());
+        stats.put("hitCount", cacheStats.hitCount());
+        stats.put("missCount", cacheStats.missCount());
+        stats.put("hitRate", cacheStats.hitRate());
+        stats.put("evictionCount", cacheStats.evictionCount());
+        return stats;
+    }
+
+    /**
+     * 渲染结果
+     *
+     * @param body            页面内容
+     * @param contentType     Content-Type
+     * @param etag            ETag
+     * @param tags            依赖的标签
+     * @param operationModule 日志的操作模块
+     * @param operationFun    日志的操作功能
+     */
+    public record CachedPage(byte[] body, String contentType, String etag, Set<String> tags,
+                             String operationModule, String operationFun) {
+    }
+}
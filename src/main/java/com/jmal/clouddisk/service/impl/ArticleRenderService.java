@@ -0,0 +1,145 @@
+package com.jmal.clouddisk.service.impl;
+
+import cn.hutool.core.text.CharSequenceUtil;
+import cn.hutool.http.HtmlUtil;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.jmal.clouddisk.model.ArticleRenderDO;
+import com.jmal.clouddisk.model.FileDocument;
+import com.jmal.clouddisk.util.CalcMd5;
+import jakarta.annotation.PostConstruct;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.index.Index;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.stereotype.Service;
+
+/**
+ * 文章渲染结果
+ * <p>
+ * 发布文章时把 html 和纯文本摘要保存到 articleRender 集合, _id 为内容hash, fileDocument 只保存 renderHash<br>
+ * 内容相同的渲染结果不会变化, 所以内存中按hash缓存不需要失效, 文章页面不再从 fileDocument 读取 html<br>
+ * 旧文章没有 renderHash 时在第一次访问时生成
+ * </p>
+ *
+ * @author jmal
+ */
+@Service
+@Slf4j
+@RequiredArgsConstructor
+public class ArticleRenderService {
+
+    public static final String COLLECTION_NAME = "articleRender";
+
+    public static final String RENDER_HASH = "renderHash";
+
+    /**
+     * 摘要长度
+     */
+    private static final int DESCRIPTION_LENGTH = 200;
+
+    /**
+     * 内存缓存的最大字符数
+     */
+    private static final long CACHE_MAX_WEIGHT = 16L * 1024 * 1024;
+
+    private final MongoTemplate mongoTemplate;
+
+    private final Cache<String, ArticleRenderDO> cache = Caffeine.newBuilder()
+            .maximumWeight(CACHE_MAX_WEIGHT)
+            .<String, ArticleRenderDO>weigher((hash, render) -> render.getHtml() == null ? 1 : render.getHtml().length() + 1)
+            .build();
+
+    @PostConstruct
+    public void init() {
+        mongoTemplate.indexOps(CommonFileService.COLLECTION_NAME).ensureIndex(new Index().on(RENDER_HASH, Sort.Direction.ASC).sparse().named(RENDER_HASH + "_1"));
+    }
+
+    /**
+     * 保存渲染结果
+     *
+     * @param markdown markdown内容
+     * @param html     html内容
+     * @return 内容hash
+     */
+    public String save(String markdown, String html) {
+        String hash = CalcMd5.getMd5(CharSequenceUtil.nullToEmpty(markdown) + '\0' + CharSequenceUtil.nullToEmpty(html));
+        if (cache.getIfPresent(hash) != null) {
+            return hash;
+        }
+        ArticleRenderDO render = new ArticleRenderDO();
+        render.setId(hash);
+        render.setHtml(html);
+        render.setDescription(getDescription(html));
+        Update update = new Update();
+        update.setOnInsert("html", render.getHtml());
+        update.setOnInsert("description", render.getDescription());
+        mongoTemplate.upsert(Query.query(Criteria.where("_id").is(hash)), update, COLLECTION_NAME);
+        cache.put(hash, render);
+        return hash;
+    }
+
+    /**
+     * 获取文章的渲染结果
+     *
+     * @param fileDocument 文章, 至少包含 id 和 renderHash
+     * @return ArticleRenderDO
+     */
+    public ArticleRenderDO get(FileDocument fileDocument) {
+        String hash = fileDocument.getRenderHash();
+        if (hash != null) {
+            ArticleRenderDO render = cache.get(hash, key -> mongoTemplate.findById(key, ArticleRenderDO.class, COLLECTION_NAME));
+            if (render != null) {
+                return render;
+            }
+        }
+        return create(fileDocument.getId());
+    }
+
+    /**
+     * 旧文章第一次访问时生成渲染结果
+     */
+    private ArticleRenderDO create(String fileId) {
+        Query query = Query.query(Criteria.where("_id").is(fileId));
+        query.fields().include("contentText").include("html");
+        FileDocument fileDocument = mongoTemplate.findOne(query, FileDocument.class, CommonFileService.COLLECTION_NAME);
+        if (fileDocument == null) {
+            return null;
+        }
+        String hash = save(fileDocument.getContentText(), fileDocument.getHtml());
+        mongoTemplate.updateFirst(query, new Update().set(RENDER_HASH, hash), CommonFileService.COLLECTION_NAME);
+        return cache.getIfPresent(hash);
+    }
+
+    /**
+     * 文章修改或删除后, 删除不再被引用的渲染结果
+     *
+     * @param hash 旧的内容hash
+     */
+    public void release(String hash) {
+        if (hash == null) {
+            return;
+        }
+        if (mongoTemplate.exists(Query.query(Criteria.where(RENDER_HASH).is(hash)), CommonFileService.COLLECTION_NAME)) {
+            return;
+        }
+        mongoTemplate.remove(Query.query(Criteria.where("_id").is(hash)), COLLECTION_NAME);
+        cache.invalidate(hash);
+    }
+
+    /**
+     * html 转为纯文本摘要
+     */
+    private static String getDescription(String html) {
+        if (CharSequenceUtil.isBlank(html)) {
+            return "";
+        }
+        String text = HtmlUtil.unescape(HtmlUtil.cleanHtmlTag(html));
+        text = text.replaceAll("\\s+", " ").trim();
+        return CharSequenceUtil.subPre(text, DESCRIPTION_LENGTH);
+    }
+}
@@ -4,7 +4,6 @@ import cn.hutool.core.convert.Convert;
 import cn.hutool.core.text.CharSequenceUtil;
 import com.jmal.clouddisk.model.CategoryDO;
 import com.jmal.clouddisk.model.CategoryDTO;
-import com.jmal.clouddisk.service.Constants;
 import com.jmal.clouddisk.service.IUserService;
 import com.jmal.clouddisk.util.MongoUtil;
 import com.jmal.clouddisk.util.ResponseResult;
@@ -34,6 +33,12 @@ public class CategoryService {
     @Autowired
     private MongoTemplate mongoTemplate;
 
+    @Autowired
+    private ArticlePageCache articlePageCache;
+
+    @Autowired
+    private ArticleCountService articleCountService;
+
     private static final String COLLECTION_NAME = "category";
 
     /***
@@ -73,12 +78,10 @@ public class CategoryService {
     /***
      * 获取分类的文章数
      * @param categoryDTO categoryDTO
+     * @param categoryCounts 分类的文章数
      */
-    private void getCategoryArticlesNum(CategoryDTO categoryDTO) {
-        Query query = new Query();
-        query.addCriteria(Criteria.where("categoryIds").is(categoryDTO.getId()));
-        query.addCriteria(Criteria.where(Constants.RELEASE).is(true));
-        long count = mongoTemplate.count(query, FileServiceImpl.COLLECTION_NAME);
+    private static void getCategoryArticlesNum(CategoryDTO categoryDTO, Map<String, Long> categoryCounts) {
+        long count = categoryCounts.getOrDefault(categoryDTO.getId(), 0L);
         categoryDTO.setArticleNum(Convert.toInt(count));
         categoryDTO.setValue(Convert.toInt(count));
     }
@@ -97,11 +100,12 @@ public class CategoryService {
             query.addCriteria(Criteria.where(IUserService.USER_ID).exists(false));
         }
         List<CategoryDO> categoryDOList = mongoTemplate.find(query, CategoryDO.class, COLLECTION_NAME);
-        List<CategoryDTO> categoryDTOList = categoryDOList.parallelStream().map(category -> {
+        Map<String, Long> categoryCounts = statArticleNum ? articleCountService.getCategoryCounts() : null;
+        List<CategoryDTO> categoryDTOList = categoryDOList.stream().map(category -> {
             CategoryDTO categoryDTO = new CategoryDTO();
             BeanUtils.copyProperties(category, categoryDTO);
             if (statArticleNum) {
-                getCategoryArticlesNum(categoryDTO);
+                getCategoryArticlesNum(categoryDTO, categoryCounts);
             }
             return categoryDTO;
         }).collect(Collectors.toList());
@@ -272,6 +276,7 @@ public class CategoryService {
         BeanUtils.copyProperties(categoryDTO, categoryDO);
         categoryDO.setId(null);
         mongoTemplate.save(categoryDO, COLLECTION_NAME);
+        articlePageCache.invalidate(ArticlePageCache.TAG_LIST);
         return ResultUtil.success();
     }
 
@@ -298,6 +303,7 @@ public class CategoryService {
         query.addCriteria(Criteria.where("_id").is(categoryDTO.getId()));
         Update update = MongoUtil.getUpdate(categoryDO);
         mongoTemplate.upsert(query, update, COLLECTION_NAME);
+        articlePageCache.invalidate(ArticlePageCache.TAG_LIST, ArticlePageCache.TAG_CATEGORY_PREFIX + categoryDTO.getId());
         return ResultUtil.success();
     }
 
@@ -347,6 +353,11 @@ public class CategoryService {
         Query query = new Query();
         query.addCriteria(Criteria.where("_id").in(categoryIds));
         mongoTemplate.remove(query, COLLECTION_NAME);
+        List<String> tags = new ArrayList<>();
+        tags.add(ArticlePageCache.TAG_LIST);
+        categoryIds.forEach(categoryId -> tags.add(ArticlePageCache.TAG_CATEGORY_PREFIX + categoryId));
+        articlePageCache.invalidate(tags.toArray(new String[0]));
+        articleCountService.remove(ArticleCountService.TYPE_CATEGORY, categoryIds);
         // 删除所有关联的文章
         // Query query1 = new Query();
         // query.addCriteria(Criteria.where("categoryIds").in(categoryIds));
@@ -9,10 +9,9 @@ import cn.hutool.core.util.BooleanUtil;
 import cn.hutool.core.util.StrUtil;
 import com.alibaba.fastjson2.JSONObject;
 import com.github.benmanes.caffeine.cache.Cache;
-import com.github.benmanes.caffeine.cache.Caffeine;
 import com.jmal.clouddisk.config.FileProperties;
 import com.jmal.clouddisk.controller.sse.Message;
-import com.jmal.clouddisk.controller.sse.SseController;
+import com.jmal.clouddisk.controller.sse.SseEventBus;
 import com.jmal.clouddisk.exception.CommonException;
 import com.jmal.clouddisk.exception.ExceptionType;
 import com.jmal.clouddisk.lucene.LuceneService;
@@ -105,7 +104,13 @@ public class CommonFileService {
     FileProperties fileProperties;
 
     @Autowired
-    private SseController sseController;
+    private SseEventBus sseEventBus;
+
+    @Autowired
+    FolderCountCache folderCountCache;
+
+    @Autowired
+    FileTreeService fileTreeService;
 
     @Autowired
     private VideoProcessService videoProcessService;
@@ -113,8 +118,6 @@ public class CommonFileService {
     @Autowired
     public LuceneService luceneService;
 
-    private final Cache<String, Map<String, ThrottleExecutor>> throttleExecutorCache = Caffeine.newBuilder().build();
-
     /**
      * 上传文件夹的写入锁缓存
      */
@@ -353,8 +356,13 @@ public class CommonFileService {
                 // 检查目录是否为OSS目录
                 checkOSSPath(username, relativePath, fileName, update);
             }
+            List<String> ancestors = fileTreeService.setTree(update, userId, relativePath);
             // 检查该文件的上级目录是否有已经分享的目录
-            checkShareBase(update, relativePath);
+            if (ancestors != null) {
+                checkShareBase(update, fileTreeService.getShareBase(ancestors));
+            } else {
+                checkShareBase(update, relativePath);
+            }
             updateResult = mongoTemplate.upsert(query, update, COLLECTION_NAME);
             pushMessage(username, update.getUpdateObject(), Constants.CREATE_FILE);
             // 添加文件索引
@@ -601,17 +609,15 @@ public class CommonFileService {
      * @param url url
      */
     public void pushMessage(String username, Object message, String url) {
+        if (Constants.CREATE_FILE.equals(url) || Constants.DELETE_FILE.equals(url) || Constants.OPERATION_FILE.equals(url)) {
+            folderCountCache.invalidate(userService.getUserIdByUserName(username));
+        }
         if (timelyPush(username, message, url)) return;
         if (Constants.CREATE_FILE.equals(url) || Constants.DELETE_FILE.equals(url)) {
-            Map<String, ThrottleExecutor> throttleExecutorMap = throttleExecutorCache.get(username, key -> new HashMap<>(8));
-            if (throttleExecutorMap != null) {
-                ThrottleExecutor throttleExecutor = throttleExecutorMap.get(url);
-                if (throttleExecutor == null) {
-                    throttleExecutor = new ThrottleExecutor(300);
-                    throttleExecutorMap.put(url, throttleExecutor);
-                }
-                throttleExecutor.schedule(() -> pushMsg(username, message, url));
-            }
+            // 文件变更事件按用户合并后异步发送, 已用空间在发送时计算一次
+            String userId = getPushUserId(username);
+            sseEventBus.publishBatched(username, url, message == null ? new Document() : message,
+                    CharSequenceUtil.isBlank(userId) ? null : () -> occupiedSpace(userId));
         } else {
             pushMsg(username, message, url);
         }
@@ -635,10 +641,7 @@ public class CommonFileService {
 
     private void pushMsg(String username, Object message, String url) {
         Message msg = new Message();
-        String userId = userLoginHolder.getUserId();
-        if (CharSequenceUtil.isBlank(userId)) {
-            userId = userService.getUserIdByUserName(username);
-        }
+        String userId = getPushUserId(username);
         if (!CharSequenceUtil.isBlank(userId)) {
             long takeUpSpace = occupiedSpace(userId);
             msg.setSpace(takeUpSpace);
@@ -649,7 +652,15 @@ public class CommonFileService {
         msg.setUrl(url);
         msg.setUsername(username);
         msg.setBody(message);
-        sseController.sendEvent(msg);
+        sseEventBus.publish(msg);
+    }
+
+    private String getPushUserId(String username) {
+        String userId = userLoginHolder.getUserId();
+        if (CharSequenceUtil.isBlank(userId)) {
+            userId = userService.getUserIdByUserName(username);
+        }
+        return userId;
     }
 
     public void pushMessageOperationFileError(String username, String message, String operation) {
@@ -714,7 +725,10 @@ public class CommonFileService {
     }
 
     public void checkShareBase(Update update, String relativePath) {
-        Document shareDocument = getShareBaseDocument(relativePath);
+        checkShareBase(update, getShareBaseDocument(relativePath));
+    }
+
+    void checkShareBase(Update update, Document shareDocument) {
         if (shareDocument == null) {
             return;
         }
@@ -0,0 +1,177 @@
+package com.jmal.clouddisk.service.impl;
+
+import cn.hutool.core.util.ReUtil;
+import com.jmal.clouddisk.lucene.LuceneService;
+import com.jmal.clouddisk.model.FileDocument;
+import com.jmal.clouddisk.service.Constants;
+import com.jmal.clouddisk.service.IUserService;
+import com.jmal.clouddisk.util.FileCloneUtil;
+import com.mongodb.client.model.InsertManyOptions;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.stream.Stream;
+
+/**
+ * 复制文件/目录
+ * <p>
+ * 文件用 reflink 或流式复制(见 {@link FileCloneUtil}), 文件信息直接从源文件批量克隆(新的id, path, ancestors)<br>
+ * 缩略图, exif, 视频信息, 音乐信息, 文本内容等和内容相关的数据直接带过去, 不再对每个文件重新读取exif, 调用ffmpeg, 生成缩略图<br>
+ * 分享, 收藏, 文章, 标签等和文件本身相关的属性不复制
+ * </p>
+ *
+ * @author jmal
+ */
+@Service
+@Slf4j
+@RequiredArgsConstructor
+public class FileCopyService {
+
+    private static final String COLLECTION_NAME = CommonFileService.COLLECTION_NAME;
+
+    private static final String SEPARATOR = "/";
+
+    private static final int INSERT_BATCH_SIZE = 500;
+
+    /**
+     * 不复制的属性
+     */
+    private static final List<String> EXCLUDED_FIELDS = List.of(
+            "isShare", Constants.SHARE_ID, Constants.SHARE_BASE, Constants.EXPIRES_AT, Constants.EXTRACTION_CODE,
+            Constants.IS_PRIVACY, Constants.OPERATION_PERMISSION_LIST, "isPublic",
+            Constants.RELEASE, Constants.ALONE_PAGE, "pageSort", Constants.DRAFT, "slug", ArticleRenderService.RENDER_HASH,
+            "html", "categoryIds", "tagIds", "tags", "ossFolder", "ossPlatform", "m3u8", LuceneService.MONGO_INDEX_FIELD
+    );
+
+    private final MongoTemplate mongoTemplate;
+
+    private final FileTreeService fileTreeService;
+
+    private final LuceneService luceneService;
+
+    /**
+     * 复制文件/目录
+     *
+     * @param source     源文件
+     * @param sourceFile 源文件的绝对路径
+     * @param toUserId   目标用户
+     * @param toPath     目标目录, 如 /a/b/
+     * @param targetFile 复制后的绝对路径, 不能已存在
+     * @return 复制后的文件信息查询条件(其本身和其下的所有文件)
+     */
+    public Criteria copy(FileDocument source, Path sourceFile, String toUserId, String toPath, Path targetFile) throws IOException {
+        ObjectId rootId = new ObjectId();
+        String newPrefix = toPath + source.getName() + SEPARATOR;
+        Criteria copied = new Criteria().orOperator(Criteria.where("_id").is(rootId),
+                Criteria.where(IUserService.USER_ID).is(toUserId).and("path").regex("^" + ReUtil.escape(newPrefix)));
+        // 先写入文件信息, 文件监控再发现这些文件时已存在, 不会重复创建
+        long count = cloneDocuments(source, rootId, toUserId, toPath);
+        try {
+            FileCloneUtil.copy(sourceFile, targetFile);
+        } catch (IOException e) {
+            mongoTemplate.remove(new Query(copied), COLLECTION_NAME);
+            throw e;
+        }
+        if (Boolean.TRUE.equals(source.getIsFolder())) {
+            luceneService.createIndexByPathPrefix(toUserId, newPrefix);
+        }
+        luceneService.pushCreateIndexQueue(rootId.toHexString());
+        log.debug("复制 {} -> {}, 文件数: {}", sourceFile, targetFile, count);
+        return copied;
+    }
+
+    private long cloneDocuments(FileDocument source, ObjectId rootId, String toUserId, String toPath) {
+        Date now = new Date();
+        List<String> targetAncestors = fileTreeService.getAncestorIds(toUserId, toPath);
+        if (targetAncestors == null) {
+            fileTreeService.incomplete();
+        }
+        Document root = mongoTemplate.findById(source.getId(), Document.class, COLLECTION_NAME);
+        if (root == null) {
+            return 0;
+        }
+        prepare(root, rootId, toUserId, toPath, targetAncestors, now);
+        List<Document> batch = new ArrayList<>(INSERT_BATCH_SIZE);
+        batch.add(root);
+        long count = 1;
+        if (Boolean.TRUE.equals(source.getIsFolder())) {
+            String oldPrefix = source.getPath() + source.getName() + SEPARATOR;
+            String newPrefix = toPath + source.getName() + SEPARATOR;
+            // 新目录的id, key: 目录下文件的path, 子文件和目录本身无论谁先读到都使用同一个id
+            Map<String, ObjectId> folderIds = new HashMap<>();
+            folderIds.put(newPrefix, rootId);
+            Map<String, List<String>> ancestorsByPath = new HashMap<>();
+            Query query = new Query(fileTreeService.subtree(source));
+            query.cursorBatchSize(INSERT_BATCH_SIZE);
+            try (Stream<Document> stream = mongoTemplate.stream(query, Document.class, COLLECTION_NAME)) {
+                Iterator<Document> iterator = stream.iterator();
+                while (iterator.hasNext()) {
+                    Document document = iterator.next();
+                    String path = newPrefix + document.getString("path").substring(oldPrefix.length());
+                    ObjectId id = new ObjectId();
+                    if (Boolean.TRUE.equals(document.getBoolean(Constants.IS_FOLDER))) {
+                        id = folderIds.computeIfAbsent(path + document.getString("name") + SEPARATOR, key -> new ObjectId());
+                    }
+                    List<String> ancestors = targetAncestors == null ? null : ancestorsByPath.computeIfAbsent(path,
+                            key -> getAncestors(targetAncestors, newPrefix, key, folderIds));
+                    prepare(document, id, toUserId, path, ancestors, now);
+                    batch.add(document);
+                    count++;
+                    if (batch.size() >= INSERT_BATCH_SIZE) {
+                        insert(batch);
+                    }
+                }
+            }
+        }
+        insert(batch);
+        return count;
+    }
+
+    /**
+     * 复制后文件的 ancestors, 目标目录的 ancestors + 复制的目录 + 中间的每一级目录
+     */
+    private static List<String> getAncestors(List<String> targetAncestors, String newPrefix, String path, Map<String, ObjectId> folderIds) {
+        List<String> ancestors = new ArrayList<>(targetAncestors);
+        int index = newPrefix.length() - 1;
+        while (index >= 0 && index < path.length()) {
+            String folderPath = path.substring(0, index + 1);
+            ancestors.add(folderIds.computeIfAbsent(folderPath, key -> new ObjectId()).toHexString());
+            index = path.indexOf(SEPARATOR, index + 1);
+        }
+        return ancestors;
+    }
+
+    private static void prepare(Document document, ObjectId id, String userId, String path, List<String> ancestors, Date now) {
+        EXCLUDED_FIELDS.forEach(document::remove);
+        document.put("_id", id);
+        document.put(IUserService.USER_ID, userId);
+        document.put("path", path);
+        document.put(Constants.IS_FAVORITE, false);
+        document.put("uploadDate", now);
+        document.put("updateDate", now);
+        if (ancestors == null) {
+            document.remove(FileTreeService.PARENT_ID);
+            document.remove(FileTreeService.ANCESTORS);
+        } else {
+            document.put(FileTreeService.PARENT_ID, ancestors.isEmpty() ? null : ancestors.get(ancestors.size() - 1));
+            document.put(FileTreeService.ANCESTORS, ancestors);
+        }
+    }
+
+    private void insert(List<Document> batch) {
+        if (batch.isEmpty()) {
+            return;
+        }
+        mongoTemplate.getCollection(COLLECTION_NAME).insertMany(batch, new InsertManyOptions().ordered(false));
+        batch.clear();
+    }
+}
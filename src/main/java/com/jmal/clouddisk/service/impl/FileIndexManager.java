@@ -0,0 +1,262 @@
+package com.jmal.clouddisk.service.impl;
+
+import cn.hutool.core.thread.ThreadUtil;
+import com.jmal.clouddisk.service.Constants;
+import jakarta.annotation.PreDestroy;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.bson.Document;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.index.CompoundIndexDefinition;
+import org.springframework.data.mongodb.core.index.IndexInfo;
+import org.springframework.data.mongodb.core.index.PartialIndexFilter;
+import org.springframework.stereotype.Service;
+
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.regex.Pattern;
+
+/**
+ * fileDocument 集合的索引管理
+ * <p>
+ * 文件列表, 收藏, 标签, 按类型查询, 共享检查等查询需要的复合索引和部分索引都在这里声明, 启动后在后台创建缺少的索引<br>
+ * 创建完成后用 $indexStats 统计未使用的索引, 用 explain() 检查每种查询的执行计划, 出现 COLLSCAN 时打印警告<br>
+ * 实体类上 @CompoundIndex 声明的索引仍由 FileMonitor 创建
+ * </p>
+ *
+ * @author jmal
+ */
+@Service
+@Slf4j
+@RequiredArgsConstructor
+public class FileIndexManager {
+
+    private static final String COLLECTION_NAME = CommonFileService.COLLECTION_NAME;
+
+    private static final String USER_ID = "userId";
+
+    private static final String PATH = "path";
+
+    private static final String NAME = "name";
+
+    private static final String ID = "_id";
+
+    private static final String COLLSCAN = "COLLSCAN";
+
+    /**
+     * 需要的索引
+     */
+    private static final List<IndexSpec> INDEXES = List.of(
+            // 文件列表, 默认排序和按字段排序(游标分页)
+            new IndexSpec("user_path_isFolder_name_id", new Document(USER_ID, 1).append(PATH, 1).append(Constants.IS_FOLDER, -1).append(NAME, 1).append(ID, 1), null),
+            new IndexSpec("user_path_name_id", new Document(USER_ID, 1).append(PATH, 1).append(NAME, 1).append(ID, 1), null),
+            new IndexSpec("user_path_size_id", new Document(USER_ID, 1).append(PATH, 1).append("size", 1).append(ID, 1), null),
+            new IndexSpec("user_path_updateDate_id", new Document(USER_ID, 1).append(PATH, 1).append("updateDate", 1).append(ID, 1), null),
+            new IndexSpec("user_path_uploadDate_id", new Document(USER_ID, 1).append(PATH, 1).append("uploadDate", 1).append(ID, 1), null),
+            // 标签筛选
+            new IndexSpec("user_tags", new Document(USER_ID, 1).append("tags.tagId", 1), null),
+            // 按后缀查询(文本, 文档)
+            new IndexSpec("user_suffix", new Document(USER_ID, 1).append(Constants.SUFFIX, 1), null),
+            // 目录树, 子文件列表和子树(目录大小, 删除, 共享)查询
+            new IndexSpec("parentId_isFolder_name", new Document(FileTreeService.PARENT_ID, 1).append(Constants.IS_FOLDER, -1).append(NAME, 1), null),
+            new IndexSpec("ancestors", new Document(FileTreeService.ANCESTORS, 1), null),
+            // 子树查询中没有 ancestors 的文件按 path 前缀匹配
+            new IndexSpec("user_ancestors_path", new Document(USER_ID, 1).append(FileTreeService.ANCESTORS, 1).append(PATH, 1), null),
+            // 收藏列表, 只索引已收藏的文件
+            new IndexSpec("user_favorite_isFolder_name", new Document(USER_ID, 1).append(Constants.IS_FOLDER, -1).append(NAME, 1), new Document(Constants.IS_FAVORITE, true)),
+            // 共享检查, 只索引共享的根目录/文件
+            new IndexSpec("shareBase_path_name", new Document(PATH, 1).append(NAME, 1), new Document(Constants.SHARE_BASE, true))
+    );
+
+    /**
+     * 需要检查执行计划的查询
+     */
+    private static final List<QueryShape> QUERY_SHAPES = List.of(
+            new QueryShape("文件列表", new Document(USER_ID, "").append(PATH, "/"), new Document(Constants.IS_FOLDER, -1).append(NAME, 1).append(ID, 1)),
+            new QueryShape("文件列表(按大小)", new Document(USER_ID, "").append(PATH, "/"), new Document("size", 1).append(ID, 1)),
+            new QueryShape("文件列表(按修改时间)", new Document(USER_ID, "").append(PATH, "/"), new Document("updateDate", -1).append(ID, -1)),
+            new QueryShape("文件夹", new Document(USER_ID, "").append(Constants.IS_FOLDER, true), null),
+            new QueryShape("子目录", new Document(FileTreeService.ANCESTORS, "").append(Constants.IS_FOLDER, false), null),
+            new QueryShape("收藏", new Document(USER_ID, "").append(Constants.IS_FAVORITE, true), new Document(Constants.IS_FOLDER, -1).append(NAME, 1)),
+            new QueryShape("标签", new Document(USER_ID, "").append("tags.tagId", ""), null),
+            new QueryShape("文件类型", new Document(USER_ID, "").append(Constants.CONTENT_TYPE, Pattern.compile("^video")), null),
+            new QueryShape("文件后缀", new Document(USER_ID, "").append(Constants.SUFFIX, new Document("$in", List.of("txt", "md"))), null),
+            new QueryShape("共享检查", new Document("$or", List.of(new Document(PATH, "/").append(NAME, ""))).append(Constants.SHARE_BASE, true), null)
+    );
+
+    private final MongoTemplate mongoTemplate;
+
+    private ExecutorService executorService;
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void initAfterStartup() {
+        executorService = ThreadUtil.newSingleExecutor();
+        executorService.execute(() -> {
+            ensureIndexes();
+            logReport(report());
+        });
+    }
+
+    @PreDestroy
+    public void destroy() {
+        if (executorService != null) {
+            executorService.shutdownNow();
+        }
+    }
+
+    /**
+     * 创建缺少的索引
+     */
+    public void ensureIndexes() {
+        Set<String> existing = getIndexNames();
+        for (IndexSpec spec : INDEXES) {
+            if (existing.contains(spec.name())) {
+                continue;
+            }
+            long start = System.currentTimeMillis();
+            try {
+                CompoundIndexDefinition index = new CompoundIndexDefinition(spec.keys());
+                index.named(spec.name()).background();
+                if (spec.partialFilter() != null) {
+                    index.partial(PartialIndexFilter.of(spec.partialFilter()));
+                }
+                mongoTemplate.indexOps(COLLECTION_NAME).ensureIndex(index);
+                log.info("创建索引 {}.{} 完成, 耗时: {}ms", COLLECTION_NAME, spec.name(), System.currentTimeMillis() - start);
+            } catch (Exception e) {
+                log.error("创建索引 {}.{} 失败: {}", COLLECTION_NAME, spec.name(), e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * 索引报告
+     *
+     * @return 缺少的索引, 未使用的索引, 每种查询使用的索引
+     */
+    public IndexReport report() {
+        Set<String> existing = getIndexNames();
+        List<String> missing = INDEXES.stream().map(IndexSpec::name).filter(name -> !existing.contains(name)).toList();
+        List<Map<String, Object>> unused = new ArrayList<>();
+        try {
+            for (Document stats : mongoTemplate.getCollection(COLLECTION_NAME).aggregate(List.of(new Document("$indexStats", new Document())))) {
+                Document accesses = stats.get("accesses", Document.class);
+                Number ops = accesses == null ? null : accesses.get("ops", Number.class);
+                if (ops != null && ops.longValue() == 0 && !"_id_".equals(stats.getString(NAME))) {
+                    Map<String, Object> item = new LinkedHashMap<>(4);
+                    item.put(NAME, stats.getString(NAME));
+                    item.put("since", accesses.get("since"));
+                    unused.add(item);
+                }
+            }
+        } catch (Exception e) {
+            log.warn("获取索引使用统计失败: {}", e.getMessage());
+        }
+        Map<String, String> plans = new LinkedHashMap<>(QUERY_SHAPES.size());
+        List<String> collectionScans = new ArrayList<>();
+        for (QueryShape shape : QUERY_SHAPES) {
+            String plan = explain(shape);
+            plans.put(shape.name(), plan);
+            if (plan.contains(COLLSCAN)) {
+                collectionScans.add(shape.name());
+            }
+        }
+        return new IndexReport(missing, unused, collectionScans, plans);
+    }
+
+    private void logReport(IndexReport report) {
+        if (!report.missing().isEmpty()) {
+            log.warn("{} 缺少索引: {}", COLLECTION_NAME, report.missing());
+        }
+        if (!report.unused().isEmpty()) {
+            log.info("{} 未使用的索引: {}", COLLECTION_NAME, report.unused());
+        }
+        if (!report.collectionScans().isEmpty()) {
+            log.warn("{} 以下查询为全表扫描: {}, 执行计划: {}", COLLECTION_NAME, report.collectionScans(), report.plans());
+        }
+    }
+
+    /**
+     * 只生成执行计划, 不执行查询
+     *
+     * @return 执行计划中的 stage, 如 FETCH > IXSCAN(user_path_isFolder_name_id)
+     */
+    private String explain(QueryShape shape) {
+        Document find = new Document("find", COLLECTION_NAME).append("filter", shape.filter());
+        if (shape.sort() != null) {
+            find.append("sort", shape.sort());
+        }
+        try {
+            Document result = mongoTemplate.getDb().runCommand(new Document("explain", find).append("verbosity", "queryPlanner"));
+            Document queryPlanner = result.get("queryPlanner", Document.class);
+            Object winningPlan = queryPlanner == null ? null : queryPlanner.get("winningPlan");
+            List<String> stages = new ArrayList<>();
+            collectStages(winningPlan, stages);
+            return String.join(" > ", stages);
+        } catch (Exception e) {
+            log.warn("获取执行计划失败, {}: {}", shape.name(), e.getMessage());
+            return "";
+        }
+    }
+
+    /**
+     * 兼容经典执行引擎和 SBE 的执行计划格式
+     */
+    private static void collectStages(Object plan, List<String> stages) {
+        if (plan instanceof Document document) {
+            Object stage = document.get("stage");
+            if (stage != null) {
+                Object indexName = document.get("indexName");
+                stages.add(indexName == null ? stage.toString() : stage + "(" + indexName + ")");
+            }
+            for (Object value : document.values()) {
+                collectStages(value, stages);
+            }
+        } else if (plan instanceof List<?> list) {
+            for (Object value : list) {
+                collectStages(value, stages);
+            }
+        }
+    }
+
+    private Set<String> getIndexNames() {
+        Set<String> names = new HashSet<>();
+        for (IndexInfo indexInfo : mongoTemplate.indexOps(COLLECTION_NAME).getIndexInfo()) {
+            names.add(indexInfo.getName());
+        }
+        return names;
+    }
+
+    /**
+     * 索引声明
+     *
+     * @param name          索引名称
+     * @param keys          索引字段
+     * @param partialFilter 部分索引的条件, 为 null 时为普通索引
+     */
+    record IndexSpec(String name, Document keys, Document partialFilter) {
+    }
+
+    /**
+     * 需要检查执行计划的查询
+     *
+     * @param name   查询名称
+     * @param filter 查询条件, 值只用于生成执行计划
+     * @param sort   排序
+     */
+    record QueryShape(String name, Document filter, Document sort) {
+    }
+
+    /**
+     * 索引报告
+     *
+     * @param missing         缺少的索引
+     * @param unused          自统计开始(since)没有使用过的索引
+     * @param collectionScans 全表扫描的查询
+     * @param plans           每种查询的执行计划
+     */
+    public record IndexReport(List<String> missing, List<Map<String, Object>> unused, List<String> collectionScans,
+                              Map<String, String> plans) {
+    }
+}
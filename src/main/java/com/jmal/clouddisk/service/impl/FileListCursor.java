@@ -0,0 +1,158 @@
+package com.jmal.clouddisk.service.impl;
+
+import cn.hutool.core.codec.Base64;
+import cn.hutool.core.text.CharSequenceUtil;
+import com.alibaba.fastjson.JSON;
+import com.alibaba.fastjson.JSONArray;
+import com.jmal.clouddisk.exception.CommonException;
+import com.jmal.clouddisk.exception.ExceptionType;
+import com.jmal.clouddisk.model.FileDocument;
+import com.jmal.clouddisk.service.Constants;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.query.Criteria;
+
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * 文件列表的游标分页
+ * <p>
+ * 按 (排序字段, _id) 定位上一页的最后一条, 下一页直接从该位置开始读取, 不再 skip 之前的所有文档<br>
+ * 游标为上一页最后一条的排序字段值和 _id, JSON 数组后 Base64 编码
+ * </p>
+ *
+ * @author jmal
+ */
+final class FileListCursor {
+
+    private static final String ID = "_id";
+
+    private static final String UPDATE_DATE = "updateDate";
+
+    private static final String UPLOAD_DATE = "uploadDate";
+
+    /**
+     * 可排序的字段, 每个都有对应的 (userId, path, 字段, _id) 索引
+     */
+    private static final Map<String, Function<FileDocument, Object>> SORTABLE = Map.of(
+            "name", FileDocument::getName,
+            "size", FileDocument::getSize,
+            UPDATE_DATE, fileDocument -> toMilli(fileDocument.getUpdateDate()),
+            UPLOAD_DATE, fileDocument -> toMilli(fileDocument.getUploadDate()),
+            Constants.IS_FOLDER, FileDocument::getIsFolder
+    );
+
+    private FileListCursor() {
+    }
+
+    record SortKey(String field, Sort.Direction direction) {
+    }
+
+    /**
+     * 排序条件, 没有指定时文件夹在前, 再按文件名排序
+     *
+     * @param sortableProp 排序字段
+     * @param order        ascending / descending
+     * @return 排序字段, 不包含 _id
+     */
+    static List<SortKey> getSortKeys(String sortableProp, String order) {
+        if (CharSequenceUtil.isBlank(sortableProp) || CharSequenceUtil.isBlank(order)) {
+            return List.of(new SortKey(Constants.IS_FOLDER, Sort.Direction.DESC), new SortKey("name", Sort.Direction.ASC));
+        }
+        if (!SORTABLE.containsKey(sortableProp)) {
+            throw new CommonException(ExceptionType.PARAMETERS_VALUE.getCode(), ExceptionType.PARAMETERS_VALUE.getMsg() + "sortableProp");
+        }
+        Sort.Direction direction = "descending".equals(order) ? Sort.Direction.DESC : Sort.Direction.ASC;
+        return List.of(new SortKey(sortableProp, direction));
+    }
+
+    static Sort toSort(List<SortKey> sortKeys) {
+        List<Sort.Order> orders = new ArrayList<>(sortKeys.size() + 1);
+        sortKeys.forEach(sortKey -> orders.add(new Sort.Order(sortKey.direction(), sortKey.field())));
+        orders.add(new Sort.Order(sortKeys.get(sortKeys.size() - 1).direction(), ID));
+        return Sort.by(orders);
+    }
+
+    /**
+     * 上一页最后一条的游标
+     */
+    static String encode(List<SortKey> sortKeys, FileDocument last) {
+        JSONArray values = new JSONArray(sortKeys.size() + 1);
+        sortKeys.forEach(sortKey -> values.add(SORTABLE.get(sortKey.field()).apply(last)));
+        values.add(last.getId());
+        return Base64.encodeUrlSafe(values.toJSONString());
+    }
+
+    /**
+     * 排在游标之后的查询条件
+     * <p>
+     * (k1 > v1) or (k1 = v1 and k2 > v2) or ... or (k1 = v1 and ... and _id > id)
+     * </p>
+     */
+    static Criteria after(List<SortKey> sortKeys, String cursor) {
+        JSONArray values;
+        try {
+            values = JSON.parseArray(Base64.decodeStr(cursor));
+        } catch (Exception e) {
+            throw new CommonException(ExceptionType.PARAMETERS_VALUE.getCode(), ExceptionType.PARAMETERS_VALUE.getMsg() + "cursor");
+        }
+        if (values == null || values.size() != sortKeys.size() + 1 || values.getString(sortKeys.size()) == null) {
+            throw new CommonException(ExceptionType.PARAMETERS_VALUE.getCode(), ExceptionType.PARAMETERS_VALUE.getMsg() + "cursor");
+        }
+        List<SortKey> keys = new ArrayList<>(sortKeys);
+        keys.add(new SortKey(ID, sortKeys.get(sortKeys.size() - 1).direction()));
+        List<Criteria> branches = new ArrayList<>(keys.size());
+        for (int i = 0; i < keys.size(); i++) {
+            Criteria beyond = beyond(keys.get(i), getValue(keys.get(i), values, i));
+            if (beyond == null) {
+                continue;
+            }
+            List<Criteria> and = new ArrayList<>(i + 1);
+            for (int j = 0; j < i; j++) {
+                and.add(Criteria.where(keys.get(j).field()).is(getValue(keys.get(j), values, j)));
+            }
+            and.add(beyond);
+            branches.add(and.size() == 1 ? beyond : new Criteria().andOperator(and));
+        }
+        return new Criteria().orOperator(branches);
+    }
+
+    /**
+     * 按排序方向排在 value 之后, null 排在最小
+     */
+    private static Criteria beyond(SortKey sortKey, Object value) {
+        String field = sortKey.field();
+        if (sortKey.direction().isAscending()) {
+            return value == null ? Criteria.where(field).ne(null) : Criteria.where(field).gt(value);
+        }
+        if (value == null) {
+            return null;
+        }
+        return new Criteria().orOperator(Criteria.where(field).lt(value), Criteria.where(field).is(null));
+    }
+
+    private static Object getValue(SortKey sortKey, JSONArray values, int index) {
+        Object value = values.get(index);
+        if (value == null) {
+            return null;
+        }
+        return switch (sortKey.field()) {
+            case UPDATE_DATE, UPLOAD_DATE -> new Date(values.getLongValue(index));
+            case "size" -> values.getLongValue(index);
+            case Constants.IS_FOLDER -> values.getBooleanValue(index);
+            default -> values.getString(index);
+        };
+    }
+
+    /**
+     * 与 Spring Data 读写 LocalDateTime 时使用的时区一致
+     */
+    private static Long toMilli(LocalDateTime localDateTime) {
+        return localDateTime == null ? null : localDateTime.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+    }
+}
@@ -15,6 +15,7 @@ import cn.hutool.crypto.symmetric.AES;
 import com.jmal.clouddisk.exception.CommonException;
 import com.jmal.clouddisk.exception.ExceptionType;
 import com.jmal.clouddisk.interceptor.AuthInterceptor;
+import com.jmal.clouddisk.lucene.ArticleSearchService;
 import com.jmal.clouddisk.lucene.LuceneService;
 import com.jmal.clouddisk.model.*;
 import com.jmal.clouddisk.model.query.SearchDTO;
@@ -30,6 +31,7 @@ import com.jmal.clouddisk.video.VideoInfo;
 import com.jmal.clouddisk.video.VideoProcessService;
 import com.jmal.clouddisk.webdav.MyWebdavServlet;
 import com.mongodb.client.AggregateIterable;
+import com.mongodb.client.result.UpdateResult;
 import jakarta.servlet.http.HttpServletRequest;
 import jakarta.servlet.http.HttpServletResponse;
 import lombok.extern.slf4j.Slf4j;
@@ -102,8 +104,36 @@ public class FileServiceImpl extends CommonFileService implements IFileService {
     @Autowired
     LuceneService luceneService;
 
+    @Autowired
+    PackageDownloadService packageDownloadService;
+
+    @Autowired
+    ArticlePageCache articlePageCache;
+
+    @Autowired
+    ArticleCountService articleCountService;
+
+    @Autowired
+    ArticleSearchService articleSearchService;
+
+    @Autowired
+    SitemapService sitemapService;
+
+    @Autowired
+    ArticleRenderService articleRenderService;
+
+    @Autowired
+    FileCopyService fileCopyService;
+
     private static final AES aes = SecureUtil.aes();
 
+    /**
+     * 游标分页默认每页条数
+     */
+    private static final int CURSOR_PAGE_SIZE = 50;
+
+    private static final int CURSOR_MAX_PAGE_SIZE = 500;
+
     @Override
     public ResponseResult<Object> listFiles(UploadApiParamDTO upload) throws CommonException {
         ResponseResult<Object> result = ResultUtil.genResult();
@@ -118,6 +148,23 @@ public class FileServiceImpl extends CommonFileService implements IFileService {
             return listFiles(upload);
         }
 
+        Criteria criteria = getListCriteria(upload, currentDirectory);
+        List<FileIntroVO> list = getFileDocuments(upload, criteria);
+        result.setData(list);
+        result.setCount(getFileDocumentsCount(upload, criteria));
+        if (upload.getProps() != null) {
+            result.setProps(upload.getProps());
+        }
+        return result;
+    }
+
+    /**
+     * 文件列表的查询条件
+     * @param upload 查询参数
+     * @param currentDirectory 当前目录
+     * @return 查询条件
+     */
+    private Criteria getListCriteria(UploadApiParamDTO upload, String currentDirectory) {
         Criteria criteria;
         String queryFileType = upload.getQueryFileType();
         if (!CharSequenceUtil.isBlank(queryFileType)) {
@@ -146,12 +193,43 @@ public class FileServiceImpl extends CommonFileService implements IFileService {
                 }
             }
         }
-        List<FileIntroVO> list = getFileDocuments(upload, criteria);
-        result.setData(list);
-        result.setCount(getFileDocumentsCount(upload, criteria));
-        if (upload.getProps() != null) {
-            result.setProps(upload.getProps());
+        return criteria;
+    }
+
+    @Override
+    public ResponseResult<Object> listFilesByCursor(UploadApiParamDTO upload) {
+        Path path = Paths.get(upload.getUsername(), upload.getCurrentDirectory());
+        if (CaffeineUtil.getOssPath(path) != null) {
+            // oss 目录没有游标分页
+            return listFiles(upload);
+        }
+        String currentDirectory = getUserDirectory(upload.getCurrentDirectory());
+        if (!CharSequenceUtil.isBlank(upload.getFolder()) && checkMountParam(upload, currentDirectory)) {
+            return listFilesByCursor(upload);
+        }
+        Criteria criteria = getListCriteria(upload, currentDirectory);
+        List<FileListCursor.SortKey> sortKeys = FileListCursor.getSortKeys(upload.getSortableProp(), upload.getOrder());
+        int pageSize = upload.getPageSize() == null ? CURSOR_PAGE_SIZE : Math.min(Math.max(upload.getPageSize(), 1), CURSOR_MAX_PAGE_SIZE);
+        Query query = getQuery(upload, new Criteria[]{criteria});
+        if (!CharSequenceUtil.isBlank(upload.getCursor())) {
+            query.addCriteria(FileListCursor.after(sortKeys, upload.getCursor()));
+        }
+        // 多查一条, 判断是否还有下一页
+        query.with(FileListCursor.toSort(sortKeys)).limit(pageSize + 1);
+        query.fields().exclude("content").exclude("music.coverBase64");
+        List<FileDocument> list = mongoTemplate.find(query, FileDocument.class, COLLECTION_NAME);
+        String nextCursor = null;
+        if (list.size() > pageSize) {
+            list = list.subList(0, pageSize);
+            nextCursor = FileListCursor.encode(sortKeys, list.get(pageSize - 1));
         }
+        ResponseResult<Object> result = ResultUtil.genResult();
+        result.setData(toFileIntroVOList(upload, list));
+        result.setCount(getFileDocumentsCount(upload, criteria));
+        Map<String, Object> props = upload.getProps() == null ? new HashMap<>(2) : new HashMap<>(upload.getProps());
+        props.put("nextCursor", nextCursor);
+        result.setProps(props);
+        pushConfigInfo(upload);
         return result;
     }
 
@@ -201,7 +279,7 @@ public class FileServiceImpl extends CommonFileService implements IFileService {
         for (Criteria criteria : criteriaList) {
             query.addCriteria(criteria);
         }
-        return mongoTemplate.count(query, COLLECTION_NAME);
+        return folderCountCache.count(upload.getUserId(), query.getQueryObject(), () -> mongoTemplate.count(query, COLLECTION_NAME));
     }
 
     private List<FileIntroVO> getFileDocuments(UploadApiParamDTO upload, Criteria... criteriaList) {
@@ -220,22 +298,25 @@ public class FileServiceImpl extends CommonFileService implements IFileService {
         }
         query.fields().exclude("content").exclude("music.coverBase64");
         List<FileDocument> list = mongoTemplate.find(query, FileDocument.class, COLLECTION_NAME);
+        fileIntroVOList = toFileIntroVOList(upload, list);
+        pushConfigInfo(upload);
+        return sortByFileName(upload, fileIntroVOList, order);
+    }
+
+    private List<FileIntroVO> toFileIntroVOList(UploadApiParamDTO upload, List<FileDocument> list) {
         long now = System.currentTimeMillis();
-        fileIntroVOList = list.parallelStream().map(fileDocument -> {
+        return list.parallelStream().map(fileDocument -> {
             LocalDateTime updateDate = fileDocument.getUpdateDate();
             long update = TimeUntils.getMilli(updateDate);
             fileDocument.setAgoTime(now - update);
             if (BooleanUtil.isTrue(fileDocument.getIsFolder()) && BooleanUtil.isTrue(upload.getShowFolderSize())) {
-                String path = fileDocument.getPath() + fileDocument.getName() + File.separator;
-                long size = getFolderSize(fileDocument.getUserId(), path);
+                long size = getFolderSize(fileDocument);
                 fileDocument.setSize(size);
             }
             FileIntroVO fileIntroVO = new FileIntroVO();
             BeanUtils.copyProperties(fileDocument, fileIntroVO);
             return fileIntroVO;
         }).toList();
-        pushConfigInfo(upload);
-        return sortByFileName(upload, fileIntroVOList, order);
     }
 
     private void pushConfigInfo(UploadApiParamDTO upload) {
@@ -469,11 +550,10 @@ public class FileServiceImpl extends CommonFileService implements IFileService {
     /***
      * 统计文件夹的大小
      */
-    private long getFolderSize(String userId, String path) {
+    private long getFolderSize(FileDocument folder) {
         List<Bson> list = Arrays.asList(new Document("$match",
-                        new Document(USER_ID, userId)
-                                .append(Constants.IS_FOLDER, false)
-                                .append("path", new Document("$regex", "^" + ReUtil.escape(path)))),
+                        fileTreeService.subtree(folder).getCriteriaObject()
+                                .append(Constants.IS_FOLDER, false)),
                 new Document("$group",
                         new Document("_id",
                                 new BsonNull())
@@ -620,6 +700,14 @@ public class FileServiceImpl extends CommonFileService implements IFileService {
 
     @Override
     public Optional<FileDocument> coverOfMedia(String id, String username) throws CommonException {
+        String ossPath = CaffeineUtil.getOssPath(Paths.get(id));
+        if (ossPath != null) {
+            // S3存储的视频封面缓存在本地
+            FileDocument videoCover = webOssService.videoCover(ossPath, id);
+            if (videoCover != null) {
+                return Optional.of(videoCover);
+            }
+        }
         FileDocument fileDocument = getFileDocumentById(id);
         if (fileDocument != null && fileDocument.getContent() != null) {
             return Optional.of(fileDocument);
@@ -629,7 +717,6 @@ public class FileServiceImpl extends CommonFileService implements IFileService {
         } else {
             CaffeineUtil.setThumbnailRequestCache(id);
         }
-        String ossPath = CaffeineUtil.getOssPath(Paths.get(id));
         if (ossPath != null) {
             // S3存储
             if (fileDocument == null) {
@@ -715,11 +802,7 @@ public class FileServiceImpl extends CommonFileService implements IFileService {
             return Paths.get(fileProperties.getRootDir(), fileUsername, fileDoc.getPath(), fileDoc.getName());
         }).toList();
         // 压缩传输
-        try {
-            CompressUtils.compress(selectFileList, response.getOutputStream());
-        } catch (IOException e) {
-            log.error(e.getMessage(), e);
-        }
+        packageDownloadService.download(request, response, selectFileList);
     }
 
     /***
@@ -830,29 +913,18 @@ public class FileServiceImpl extends CommonFileService implements IFileService {
             toPath = Paths.get(currentDirectory, newFileName);
             String filePath = fileProperties.getRootDir() + File.separator + username + currentDirectory;
             File file = new File(filePath + fileDocument.getName());
-            if (Boolean.TRUE.equals(fileDocument.getIsFolder())) {
-                Query query = new Query();
-                String searchPath = currentDirectory + fileDocument.getName();
-                String newPath = currentDirectory + newFileName;
-                query.addCriteria(Criteria.where(USER_ID).is(userService.getUserIdByUserName(username)));
-                query.addCriteria(Criteria.where("path").regex("^" + ReUtil.escape(searchPath)));
-                List<FileDocument> documentList = mongoTemplate.find(query, FileDocument.class, COLLECTION_NAME);
-                // 修改该文件夹下的所有文件的path
-                documentList.parallelStream().forEach(rep -> {
-                    String path = rep.getPath();
-                    String newFilePath = replaceStart(path, searchPath, newPath);
-                    Update update = new Update();
-                    update.set("path", newFilePath);
-                    Query query1 = new Query();
-                    query1.addCriteria(Criteria.where("_id").is(rep.getId()));
-                    mongoTemplate.upsert(query1, update, COLLECTION_NAME);
-                    luceneService.pushCreateIndexQueue(rep.getId());
-                });
-            }
             if (renameFileError(newFileName, id, filePath, file)) {
                 pushMessageOperationFileError(operator, "重命名失败", "重命名");
                 return;
             }
+            if (Boolean.TRUE.equals(fileDocument.getIsFolder())) {
+                // 修改该文件夹下的所有文件的path
+                String newPrefix = currentDirectory + newFileName + fileProperties.getSeparator();
+                moveSubtree(fileDocument.getUserId(), currentDirectory + fileDocument.getName() + fileProperties.getSeparator(), newPrefix);
+                articleSearchService.updateArticles(fileDocument.getUserId(), newPrefix);
+            } else {
+                articleSearchService.updateArticle(id);
+            }
             fileDocument.setName(newFileName);
             pushMessage(operator, fileDocument, Constants.CREATE_FILE);
         } else {
@@ -863,6 +935,31 @@ public class FileServiceImpl extends CommonFileService implements IFileService {
         afterRenameFile(id, newFileName);
     }
 
+    /**
+     * 修改目录下所有文件的path(重命名/移动目录)
+     * <p>
+     * 用 aggregation pipeline 的 updateMany 在服务端一次改写, 走 (userId, path) 索引, 不再逐个查询和更新<br>
+     * 前缀以 / 结尾, 不会匹配到名称以原目录名开头的兄弟目录<br>
+     * 索引中的 path 保存在 DocValues 中, 之后在后台直接改写, 不重建文档
+     * </p>
+     *
+     * @param userId    userId
+     * @param oldPrefix 原目录, 如 /a/b/
+     * @param newPrefix 新目录, 如 /a/c/
+     */
+    private void moveSubtree(String userId, String oldPrefix, String newPrefix) {
+        int prefixLength = oldPrefix.codePointCount(0, oldPrefix.length());
+        Document filter = new Document(USER_ID, userId).append("path", new Document("$regex", "^" + ReUtil.escape(oldPrefix)));
+        Document newPath = new Document("$concat", Arrays.asList(newPrefix,
+                new Document("$substrCP", Arrays.asList("$path", prefixLength,
+                        new Document("$subtract", Arrays.asList(new Document("$strLenCP", "$path"), prefixLength))))));
+        UpdateResult result = mongoTemplate.getCollection(COLLECTION_NAME).updateMany(filter, List.of(new Document("$set", new Document("path", newPath))));
+        log.debug("修改目录下文件的path, {} -> {}, 文件数: {}", oldPrefix, newPrefix, result.getModifiedCount());
+        if (result.getModifiedCount() > 0) {
+            luceneService.updatePathPrefix(userId, newPrefix);
+        }
+    }
+
     /**
      * 重命名文件后修改关联配置
      * @param fileId fileId
@@ -899,11 +996,16 @@ public class FileServiceImpl extends CommonFileService implements IFileService {
                 if (!upload.getUsername().equals(formUsername)) {
                     checkPermissionUsername(formUsername, formFileDocument.getOperationPermissionList(), OperationPermission.DELETE);
                 }
+                // 本地存储内直接移动, 其余的复制后删除
+                List<String> copyFroms = froms.stream().filter(from -> !moveLocal(upload, from, to)).toList();
+                if (copyFroms.isEmpty()) {
+                    return;
+                }
                 // 复制成功
-                getCopyResult(upload, froms, to, true);
-                String currentDirectory = getOssFileCurrentDirectory(upload, froms);
+                getCopyResult(upload, copyFroms, to, true);
+                String currentDirectory = getOssFileCurrentDirectory(upload, copyFroms);
                 // 删除
-                delete(upload.getUsername(), currentDirectory, froms, upload.getUsername());
+                delete(upload.getUsername(), currentDirectory, copyFroms, upload.getUsername());
             } catch (CommonException e) {
                 pushMessageOperationFileError(upload.getUsername(), Convert.toStr(e.getMsg(), Constants.UNKNOWN_ERROR), "移动");
             } catch (Exception e) {
@@ -913,6 +1015,79 @@ public class FileServiceImpl extends CommonFileService implements IFileService {
         return ResultUtil.success();
     }
 
+    /**
+     * 同一用户本地存储内的移动
+     * <p>
+     * 直接移动文件或目录(同一文件系统内只是重命名), 目录下的文件只改写path, 不再逐个复制后删除
+     * </p>
+     *
+     * @param upload UploadApiParamDTO
+     * @param from   来源文件id
+     * @param to     目标文件夹id
+     * @return 不能直接移动(oss, 挂载, 跨用户, 目标已存在等)时返回false, 由复制+删除处理
+     */
+    private boolean moveLocal(UploadApiParamDTO upload, String from, String to) {
+        if (CaffeineUtil.getOssPath(Paths.get(from)) != null || CaffeineUtil.getOssPath(Paths.get(to)) != null) {
+            return false;
+        }
+        String userId = upload.getUserId();
+        FileDocument fromFileDocument = getOriginalFileDocumentById(from);
+        if (fromFileDocument == null || fromFileDocument.getOssFolder() != null || !userId.equals(fromFileDocument.getUserId())) {
+            return false;
+        }
+        FileDocument toFileDocument;
+        if (Constants.REGION_DEFAULT.equals(to)) {
+            toFileDocument = new FileDocument();
+            toFileDocument.setPath("/");
+            toFileDocument.setName("");
+            toFileDocument.setUserId(userId);
+        } else {
+            toFileDocument = getOriginalFileDocumentById(to);
+        }
+        if (toFileDocument == null || toFileDocument.getOssFolder() != null || !userId.equals(toFileDocument.getUserId())) {
+            return false;
+        }
+        if (CommonFileService.isLock(fromFileDocument)) {
+            throw new CommonException(ExceptionType.LOCKED_RESOURCES);
+        }
+        String fromDirectory = getUserDirectory(fromFileDocument.getPath());
+        String toDirectory = getRelativePath(toFileDocument);
+        String fromFolder = fromDirectory + fromFileDocument.getName() + fileProperties.getSeparator();
+        // 原目录, 移动到自身或其子目录, 目标已存在
+        if (fromDirectory.equals(toDirectory) || toDirectory.startsWith(fromFolder) || isExistsOfToCopy(fromFileDocument, toDirectory)) {
+            return false;
+        }
+        String username = upload.getUsername();
+        Path source = Paths.get(getUserDir(username), fromDirectory, fromFileDocument.getName());
+        Path target = Paths.get(getUserDir(username), toDirectory, fromFileDocument.getName());
+        try {
+            Files.move(source, target);
+        } catch (IOException e) {
+            log.warn("移动失败, 改为复制后删除, {} -> {}, {}", source, target, e.getMessage());
+            return false;
+        }
+        Query query = new Query();
+        query.addCriteria(Criteria.where("_id").is(fromFileDocument.getId()));
+        Update update = new Update();
+        update.set("path", toDirectory);
+        update.set("updateDate", LocalDateTime.now(TimeUntils.ZONE_ID));
+        mongoTemplate.updateFirst(query, update, COLLECTION_NAME);
+        if (Boolean.TRUE.equals(fromFileDocument.getIsFolder())) {
+            String newPrefix = toDirectory + fromFileDocument.getName() + fileProperties.getSeparator();
+            moveSubtree(userId, fromFolder, newPrefix);
+            articleSearchService.updateArticles(userId, newPrefix);
+        } else {
+            articleSearchService.updateArticle(fromFileDocument.getId());
+        }
+        fileTreeService.move(fromFileDocument, fileTreeService.getAncestorIds(userId, toDirectory));
+        luceneService.pushCreateIndexQueue(fromFileDocument.getId());
+        pushMessage(username, fromFileDocument, Constants.DELETE_FILE);
+        fromFileDocument.setPath(toDirectory);
+        pushMessage(username, fromFileDocument, Constants.CREATE_FILE);
+        pushMessageOperationFileSuccess(Paths.get(fromDirectory, fromFileDocument.getName()).toString(), toDirectory, username, "移动");
+        return true;
+    }
+
     private String getOssFileCurrentDirectory(UploadApiParamDTO upload, List<String> froms) {
         String currentDirectory = "/";
         String from = froms.get(0);
@@ -1041,8 +1216,7 @@ public class FileServiceImpl extends CommonFileService implements IFileService {
             if (BooleanUtil.isTrue(fileDocument.getIsFolder())) {
                 // 删除文件夹及其下的所有文件
                 Query query1 = new Query();
-                query1.addCriteria(Criteria.where(USER_ID).is(userId));
-                query1.addCriteria(Criteria.where("path").regex("^" + ReUtil.escape(fileDocument.getPath() + fileDocument.getName())));
+                query1.addCriteria(fileTreeService.subtree(fileDocument));
                 mongoTemplate.remove(query1, FileDocument.class);
                 luceneService.deleteIndexDocuments(Collections.singletonList(fileDocument.getId()));
             }
@@ -1270,6 +1444,8 @@ public class FileServiceImpl extends CommonFileService implements IFileService {
             query.addCriteria(Criteria.where(USER_ID).in(userId));
             mongoTemplate.remove(query, COLLECTION_NAME);
         });
+        articleCountService.recomputeAsync();
+        sitemapService.refresh();
     }
 
     @Override
@@ -1280,8 +1456,7 @@ public class FileServiceImpl extends CommonFileService implements IFileService {
         Query query = new Query();
         if (Boolean.TRUE.equals(file.getIsFolder())) {
             // 共享文件夹及其下的所有文件
-            query.addCriteria(Criteria.where(USER_ID).is(userLoginHolder.getUserId()));
-            query.addCriteria(Criteria.where("path").regex("^" + ReUtil.escape(file.getPath() + file.getName())));
+            query.addCriteria(fileTreeService.subtree(file));
             // 设置共享属性
             setShareAttribute(file, expiresAt, share, query);
         } else {
@@ -1306,8 +1481,7 @@ public class FileServiceImpl extends CommonFileService implements IFileService {
         }
         if (Boolean.TRUE.equals(file.getIsFolder())) {
             // 解除共享文件夹及其下的所有文件
-            query.addCriteria(Criteria.where(USER_ID).is(userLoginHolder.getUserId()));
-            query.addCriteria(Criteria.where("path").regex("^" + ReUtil.escape(file.getPath() + file.getName())));
+            query.addCriteria(fileTreeService.subtree(file));
             // 解除共享属性
             unsetShareAttribute(file, query);
         } else {
@@ -1518,8 +1692,7 @@ public class FileServiceImpl extends CommonFileService implements IFileService {
                 String toFilePath = Paths.get(getUserDir(toUsername) , toPath).toString();
 
                 Path pathTo = Paths.get(toFileDocument.getPath(), toFileDocument.getName());
-                formFileDocument.setUserId(toFileDocument.getUserId());
-                ResponseResult<Object> result1 = copyFile(formFileDocument, fromPath, fromFilePath, toPath, toFilePath);
+                ResponseResult<Object> result1 = copyFile(formFileDocument, fromFilePath, toFileDocument.getUserId(), toUsername, toPath, toFilePath);
                 if (result1 != null) return result1;
                 String operation = move ? "移动" : "复制";
                 // 复制成功
@@ -1530,40 +1703,32 @@ public class FileServiceImpl extends CommonFileService implements IFileService {
         return ResultUtil.error("复制失败");
     }
 
-    private ResponseResult<Object> copyFile(FileDocument formFileDocument, String fromPath, String fromFilePath, String toPath, String toFilePath) {
-        FileUtil.copy(fromFilePath, toFilePath, true);
-        FileDocument copyFileDocument = copyFileDocument(formFileDocument, toPath);
-        if (Boolean.TRUE.equals(formFileDocument.getIsFolder())) {
-            // 复制文件夹
-            // 复制其本身
-            if (isExistsOfToCopy(copyFileDocument, toPath)) {
-                return ResultUtil.warning(Constants.COPY_EXISTS_FILE);
-            }
-            saveFileDocument(copyFileDocument);
-            // 复制其下的子文件或目录
-            Query query = new Query();
-            query.addCriteria(Criteria.where(USER_ID).is(userLoginHolder.getUserId()));
-            query.addCriteria(Criteria.where("path").regex("^" + ReUtil.escape(fromPath)));
-            List<FileDocument> formList = mongoTemplate.find(query, FileDocument.class, COLLECTION_NAME);
-            List<FileDocument> list = new ArrayList<>();
-            for (FileDocument fileDocument : formList) {
-                String oldPath = fileDocument.getPath();
-                String newPath = toPath + oldPath.substring(1);
-                copyFileDocument(fileDocument, newPath);
-                list.add(fileDocument);
-            }
-            formList = list;
-            for (FileDocument fileDocument : formList) {
-                saveFileDocument(fileDocument);
-            }
-        } else {
-            // 复制文件
-            // 复制其本身
-            if (isExistsOfToCopy(copyFileDocument, toPath)) {
-                return ResultUtil.warning(Constants.COPY_EXISTS_FILE);
-            }
-            saveFileDocument(copyFileDocument);
+    private ResponseResult<Object> copyFile(FileDocument formFileDocument, String fromFilePath, String toUserId, String toUsername, String toPath, String toFilePath) {
+        if (Paths.get(toFilePath).startsWith(Paths.get(fromFilePath))) {
+            return ResultUtil.warning("不能复制到自身或其子目录");
         }
+        Query query = new Query();
+        query.addCriteria(Criteria.where(USER_ID).is(toUserId));
+        query.addCriteria(Criteria.where("path").is(toPath));
+        query.addCriteria(Criteria.where("name").is(formFileDocument.getName()));
+        if (mongoTemplate.exists(query, COLLECTION_NAME)) {
+            return ResultUtil.warning(Constants.COPY_EXISTS_FILE);
+        }
+        Criteria copied;
+        try {
+            copied = fileCopyService.copy(formFileDocument, Paths.get(fromFilePath), toUserId, toPath, Paths.get(toFilePath, formFileDocument.getName()));
+        } catch (IOException e) {
+            log.error("复制失败, {}: {}", fromFilePath, e.getMessage(), e);
+            return ResultUtil.error("复制失败");
+        }
+        // 目标目录在共享目录下
+        List<String> ancestors = fileTreeService.getAncestorIds(toUserId, toPath);
+        Update update = new Update();
+        checkShareBase(update, ancestors == null ? getShareBaseDocument(toPath) : fileTreeService.getShareBase(ancestors));
+        if (!update.getUpdateObject().isEmpty()) {
+            mongoTemplate.updateMulti(new Query(copied), update, COLLECTION_NAME);
+        }
+        pushMessage(toUsername, new Document("path", toPath).append("name", formFileDocument.getName()).append(Constants.IS_FOLDER, formFileDocument.getIsFolder()), Constants.CREATE_FILE);
         return null;
     }
 
@@ -1606,18 +1771,6 @@ public class FileServiceImpl extends CommonFileService implements IFileService {
         return null;
     }
 
-    /***
-     * 复制更新数据
-     * @param formFileDocument FileDocument
-     * @param toPath toPath
-     */
-    private FileDocument copyFileDocument(FileDocument formFileDocument, String toPath) {
-        formFileDocument.setId(null);
-        formFileDocument.setPath(toPath);
-        formFileDocument.setUpdateDate(LocalDateTime.now(TimeUntils.ZONE_ID));
-        return formFileDocument;
-    }
-
     /***
      * 目标目录是否存该文件
      * @param formFileDocument FileDocument
@@ -1631,10 +1784,6 @@ public class FileServiceImpl extends CommonFileService implements IFileService {
         return mongoTemplate.exists(query, COLLECTION_NAME);
     }
 
-    private static String replaceStart(String str, CharSequence searchStr, CharSequence replacement) {
-        return replacement + str.substring(searchStr.length());
-    }
-
     private boolean renameFileError(String newFileName, String fileId, String filePath, File file) {
         if (file.renameTo(new File(filePath + newFileName))) {
             Query query = new Query();
@@ -1876,14 +2025,15 @@ public class FileServiceImpl extends CommonFileService implements IFileService {
             if (Boolean.TRUE.equals(fileDocument.getIsFolder())) {
                 // 删除文件夹及其下的所有文件
                 Query query1 = new Query();
-                query1.addCriteria(Criteria.where(USER_ID).is(userLoginHolder.getUserId()));
-                query1.addCriteria(Criteria.where("path").regex("^" + ReUtil.escape(fileDocument.getPath() + fileDocument.getName())));
+                query1.addCriteria(fileTreeService.subtree(fileDocument));
                 List<FileDocument> delFileDocumentList = mongoTemplate.findAllAndRemove(query1, FileDocument.class, COLLECTION_NAME);
                 // 提取出delFileDocumentList中文件id
                 List<String> delFileIds = delFileDocumentList.stream().map(FileDocument::getId).collect(Collectors.toList());
                 deleteDependencies(username, delFileIds);
+                delFileDocumentList.forEach(this::invalidateArticlePage);
                 isDel = true;
             }
+            invalidateArticlePage(fileDocument);
             pushMessage(username, fileDocument, Constants.DELETE_FILE);
         }
         if (isDel) {
@@ -1895,6 +2045,20 @@ public class FileServiceImpl extends CommonFileService implements IFileService {
         return ResultUtil.success();
     }
 
+    /**
+     * 删除已发布的文章时删除文章页面缓存, 文章索引, 更新标签/分类的文章数和站点地图, 删除渲染结果
+     * @param fileDocument FileDocument
+     */
+    private void invalidateArticlePage(FileDocument fileDocument) {
+        if (Boolean.TRUE.equals(fileDocument.getRelease())) {
+            articlePageCache.invalidateArticle(fileDocument.getId(), fileDocument.getSlug());
+            articleCountService.onArticleChanged(fileDocument, null);
+            articleSearchService.deleteArticles(List.of(fileDocument.getId()));
+            sitemapService.refresh();
+            articleRenderService.release(fileDocument.getRenderHash());
+        }
+    }
+
     /**
      * 删除文件所依赖的数据
      * @param username username
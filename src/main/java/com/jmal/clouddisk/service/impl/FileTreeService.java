@@ -0,0 +1,298 @@
+package com.jmal.clouddisk.service.impl;
+
+import cn.hutool.core.text.CharSequenceUtil;
+import cn.hutool.core.thread.ThreadUtil;
+import cn.hutool.core.util.ReUtil;
+import com.jmal.clouddisk.model.FileDocument;
+import com.jmal.clouddisk.service.Constants;
+import com.jmal.clouddisk.service.IUserService;
+import jakarta.annotation.PreDestroy;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.stereotype.Service;
+
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * 文件的目录树
+ * <p>
+ * 每个文件除了 path 外还记录上级目录id(parentId)和所有上级目录id(ancestors)<br>
+ * 目录下的所有文件(子树)用 ancestors 等值查询, 不再用 path 的前缀正则; 重命名目录时 ancestors 不变, 移动目录时只替换 ancestors 的前缀<br>
+ * 旧数据在启动后后台补全, 补全完成前子树查询仍使用 path 前缀<br>
+ * 补全完成后仍可能有没有 ancestors 的文件(新建时上级目录不存在, 其他节点移动后清空), 子树查询对这些文件仍按 path 前缀匹配
+ * </p>
+ *
+ * @author jmal
+ */
+@Service
+@Slf4j
+@RequiredArgsConstructor
+public class FileTreeService {
+
+    public static final String PARENT_ID = "parentId";
+
+    public static final String ANCESTORS = "ancestors";
+
+    private static final String COLLECTION_NAME = CommonFileService.COLLECTION_NAME;
+
+    private static final String SEPARATOR = "/";
+
+    /**
+     * 补全时每批写入的数量
+     */
+    private static final int BACKFILL_BATCH_SIZE = 1000;
+
+    private final MongoTemplate mongoTemplate;
+
+    private ExecutorService executorService;
+
+    /**
+     * 所有文件的 parentId, ancestors 是否都已补全
+     */
+    private volatile boolean ready;
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void initAfterStartup() {
+        executorService = ThreadUtil.newSingleExecutor();
+        executorService.execute(() -> {
+            try {
+                backfill();
+            } catch (Exception e) {
+                log.error("补全目录树失败: {}", e.getMessage(), e);
+            }
+        });
+    }
+
+    @PreDestroy
+    public void destroy() {
+        if (executorService != null) {
+            executorService.shutdownNow();
+        }
+    }
+
+    public boolean isReady() {
+        return ready;
+    }
+
+    /**
+     * 有文件没有 ancestors, 子树查询改回 path 前缀, 直到下次启动时补全
+     */
+    public void incomplete() {
+        ready = false;
+    }
+
+    /**
+     * 获取目录的所有上级目录id和其本身的id
+     *
+     * @param userId userId
+     * @param path   目录, 如 /a/b/
+     * @return 从根目录开始的目录id, 根目录为空列表, 目录不存在时为null
+     */
+    public List<String> getAncestorIds(String userId, String path) {
+        if (CharSequenceUtil.isBlank(path)) {
+            return Collections.emptyList();
+        }
+        String dir = CharSequenceUtil.removeSuffix(path, SEPARATOR);
+        if (dir.isEmpty()) {
+            return Collections.emptyList();
+        }
+        int index = dir.lastIndexOf(SEPARATOR);
+        String parentPath = dir.substring(0, index + 1);
+        String name = dir.substring(index + 1);
+        Query query = new Query();
+        query.addCriteria(Criteria.where(IUserService.USER_ID).is(userId));
+        query.addCriteria(Criteria.where("path").is(parentPath));
+        query.addCriteria(Criteria.where("name").is(name));
+        query.addCriteria(Criteria.where(Constants.IS_FOLDER).is(true));
+        query.fields().include("_id").include(ANCESTORS);
+        Document folder = mongoTemplate.findOne(query, Document.class, COLLECTION_NAME);
+        if (folder == null) {
+            return null;
+        }
+        List<String> ancestors = folder.getList(ANCESTORS, String.class);
+        if (ancestors == null) {
+            // 上级目录还没有补全
+            ancestors = getAncestorIds(userId, parentPath);
+            if (ancestors == null) {
+                return null;
+            }
+        }
+        List<String> ids = new ArrayList<>(ancestors.size() + 1);
+        ids.addAll(ancestors);
+        ids.add(folder.get("_id").toString());
+        return ids;
+    }
+
+    /**
+     * 设置新文件的 parentId, ancestors
+     *
+     * @param update Update
+     * @param userId userId
+     * @param path   文件所在目录
+     * @return ancestors, 上级目录不存在时为null, 此时不设置, 子树查询按 path 前缀匹配该文件
+     */
+    public List<String> setTree(Update update, String userId, String path) {
+        List<String> ancestors = getAncestorIds(userId, path);
+        if (ancestors == null) {
+            return null;
+        }
+        update.set(PARENT_ID, ancestors.isEmpty() ? null : ancestors.get(ancestors.size() - 1));
+        update.set(ANCESTORS, ancestors);
+        return ancestors;
+    }
+
+    /**
+     * 目录下的所有文件
+     *
+     * @param folder 目录
+     * @return 查询条件
+     */
+    public Criteria subtree(FileDocument folder) {
+        Criteria byPath = Criteria.where(IUserService.USER_ID).is(folder.getUserId());
+        if (!ready) {
+            return byPath.and("path").regex(pathPrefix(folder));
+        }
+        // 没有 ancestors 的文件仍按 path 前缀, 走 user_ancestors_path 索引, 只扫描 ancestors 为空的文件
+        byPath.and(ANCESTORS).exists(false).and("path").regex(pathPrefix(folder));
+        return new Criteria().orOperator(Criteria.where(ANCESTORS).is(folder.getId()), byPath);
+    }
+
+    private static String pathPrefix(FileDocument folder) {
+        return "^" + ReUtil.escape(folder.getPath() + folder.getName() + SEPARATOR);
+    }
+
+    /**
+     * 离 path 最近的共享的上级目录
+     *
+     * @param ancestors 上级目录id
+     * @return 共享的根目录, 没有时为null
+     */
+    public Document getShareBase(List<String> ancestors) {
+        List<ObjectId> objectIds = ancestors.stream().filter(ObjectId::isValid).map(ObjectId::new).toList();
+        if (objectIds.isEmpty()) {
+            return null;
+        }
+        Document filter = new Document("_id", new Document("$in", objectIds)).append(Constants.SHARE_BASE, true);
+        Map<String, Document> shareBases = new HashMap<>();
+        for (Document document : mongoTemplate.getCollection(COLLECTION_NAME).find(filter)) {
+            shareBases.put(document.get("_id").toString(), document);
+        }
+        for (int i = ancestors.size() - 1; i >= 0; i--) {
+            Document document = shareBases.get(ancestors.get(i));
+            if (document != null) {
+                return document;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 移动文件/目录后更新其 parentId, ancestors 和其下所有文件的 ancestors
+     *
+     * @param fileDocument 移动前的文件
+     * @param newAncestors 新的上级目录id, 为null时清空, 由补全任务重新计算
+     */
+    public void move(FileDocument fileDocument, List<String> newAncestors) {
+        Query query = new Query();
+        query.addCriteria(Criteria.where("_id").is(fileDocument.getId()));
+        Update update = new Update();
+        if (newAncestors == null) {
+            update.unset(PARENT_ID).unset(ANCESTORS);
+            incomplete();
+        } else {
+            update.set(PARENT_ID, newAncestors.isEmpty() ? null : newAncestors.get(newAncestors.size() - 1));
+            update.set(ANCESTORS, newAncestors);
+        }
+        mongoTemplate.updateFirst(query, update, COLLECTION_NAME);
+        List<String> oldAncestors = fileDocument.getAncestors();
+        if (!Boolean.TRUE.equals(fileDocument.getIsFolder()) || oldAncestors == null) {
+            return;
+        }
+        if (newAncestors == null) {
+            mongoTemplate.updateMulti(Query.query(Criteria.where(ANCESTORS).is(fileDocument.getId())), new Update().unset(ANCESTORS), COLLECTION_NAME);
+            return;
+        }
+        // 子文件的 ancestors 为 oldAncestors + [目录id, ...], 替换前缀 oldAncestors
+        int prefixSize = oldAncestors.size();
+        Document newTree = new Document("$concatArrays", Arrays.asList(newAncestors,
+                new Document("$slice", Arrays.asList("$" + ANCESTORS, prefixSize,
+                        new Document("$subtract", Arrays.asList(new Document("$size", "$" + ANCESTORS), prefixSize))))));
+        mongoTemplate.getCollection(COLLECTION_NAME).updateMany(new Document(ANCESTORS, fileDocument.getId()),
+                List.of(new Document("$set", new Document(ANCESTORS, newTree))));
+    }
+
+    /**
+     * 补全旧数据的 parentId, ancestors
+     * <p>
+     * 按用户从根目录开始逐层处理, 每个目录一次 (userId, path) 等值的 updateMulti, 批量写入
+     * </p>
+     */
+    public void backfill() {
+        Query missing = new Query();
+        missing.addCriteria(Criteria.where(ANCESTORS).exists(false));
+        missing.addCriteria(Criteria.where("_id").type(7));
+        if (!mongoTemplate.exists(missing, COLLECTION_NAME)) {
+            ready = true;
+            return;
+        }
+        long start = System.currentTimeMillis();
+        List<String> userIds = mongoTemplate.findDistinct(new Query(), IUserService.USER_ID, COLLECTION_NAME, String.class);
+        long folders = 0;
+        for (String userId : userIds) {
+            folders += backfill(userId);
+        }
+        ready = !mongoTemplate.exists(missing, COLLECTION_NAME);
+        log.info("补全目录树完成, 用户数: {}, 目录数: {}, 耗时: {}ms", userIds.size(), folders, System.currentTimeMillis() - start);
+    }
+
+    private long backfill(String userId) {
+        BulkOperations bulkOperations = mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, COLLECTION_NAME);
+        bulkOperations.updateMulti(childrenQuery(userId, SEPARATOR), new Update().set(PARENT_ID, null).set(ANCESTORS, Collections.emptyList()));
+        int pending = 1;
+        long folders = 0;
+        Deque<Map.Entry<String, List<String>>> queue = new ArrayDeque<>();
+        queue.add(Map.entry(SEPARATOR, Collections.emptyList()));
+        while (!queue.isEmpty()) {
+            Map.Entry<String, List<String>> dir = queue.poll();
+            Query query = childrenQuery(userId, dir.getKey());
+            query.addCriteria(Criteria.where(Constants.IS_FOLDER).is(true));
+            query.fields().include("_id").include("name");
+            for (Document folder : mongoTemplate.find(query, Document.class, COLLECTION_NAME)) {
+                String folderId = folder.get("_id").toString();
+                List<String> ancestors = new ArrayList<>(dir.getValue().size() + 1);
+                ancestors.addAll(dir.getValue());
+                ancestors.add(folderId);
+                String childPath = dir.getKey() + folder.getString("name") + SEPARATOR;
+                bulkOperations.updateMulti(childrenQuery(userId, childPath), new Update().set(PARENT_ID, folderId).set(ANCESTORS, ancestors));
+                queue.add(Map.entry(childPath, ancestors));
+                folders++;
+                if (++pending >= BACKFILL_BATCH_SIZE) {
+                    bulkOperations.execute();
+                    bulkOperations = mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, COLLECTION_NAME);
+                    pending = 0;
+                }
+            }
+        }
+        if (pending > 0) {
+            bulkOperations.execute();
+        }
+        return folders;
+    }
+
+    private static Query childrenQuery(String userId, String path) {
+        Query query = new Query();
+        query.addCriteria(Criteria.where(IUserService.USER_ID).is(userId));
+        query.addCriteria(Criteria.where("path").is(path));
+        return query;
+    }
+}
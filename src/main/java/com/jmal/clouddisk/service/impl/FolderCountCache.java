@@ -0,0 +1,75 @@
+package com.jmal.clouddisk.service.impl;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import org.bson.Document;
+import org.springframework.stereotype.Component;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+/**
+ * 文件列表的总数缓存
+ * <p>
+ * key 为 userId + 查询条件, 翻页/滚动加载时不再重复 count<br>
+ * 用户的文件有变化(创建, 删除, 移动, 复制等推送消息)时, 递增该用户的版本号, 该用户之前的缓存全部失效<br>
+ * 没有推送消息的修改由过期时间兜底
+ * </p>
+ *
+ * @author jmal
+ */
+@Component
+public class FolderCountCache {
+
+    private static final long EXPIRE_SECONDS = 60;
+
+    private final Cache<String, Long> cache = Caffeine.newBuilder()
+            .maximumSize(10000)
+            .expireAfterWrite(EXPIRE_SECONDS, TimeUnit.SECONDS)
+            .build();
+
+    /**
+     * 用户的版本号, key: userId
+     */
+    private final Map<String, AtomicLong> versions = new ConcurrentHashMap<>();
+
+    /**
+     * 获取文件数
+     *
+     * @param userId   userId, 为null时(匿名访问, 分享页)不缓存
+     * @param criteria 查询条件
+     * @param counter  没有缓存时的查询
+     * @return 文件数
+     */
+    public long count(String userId, Document criteria, LongSupplier counter) {
+        if (userId == null) {
+            return counter.getAsLong();
+        }
+        long version = versions.computeIfAbsent(userId, key -> new AtomicLong()).get();
+        String key = userId + ':' + version + ':' + criteria.toJson();
+        Long count = cache.getIfPresent(key);
+        if (count == null) {
+            count = counter.getAsLong();
+            // 查询期间有修改则不缓存
+            if (versions.get(userId).get() == version) {
+                cache.put(key, count);
+            }
+        }
+        return count;
+    }
+
+    /**
+     * 用户的文件有变化
+     *
+     * @param userId userId
+     */
+    public void invalidate(String userId) {
+        if (userId == null) {
+            return;
+        }
+        versions.computeIfAbsent(userId, key -> new AtomicLong()).incrementAndGet();
+    }
+}
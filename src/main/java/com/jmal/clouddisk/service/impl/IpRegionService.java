@@ -0,0 +1,254 @@
+package com.jmal.clouddisk.service.impl;
+
+import cn.hutool.core.text.CharSequenceUtil;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.jmal.clouddisk.config.FileProperties;
+import com.jmal.clouddisk.model.LogOperation;
+import com.jmal.clouddisk.service.Constants;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * IP归属地查询
+ * <p>
+ * 把整个 ip2region.xdb 映射到内存(堆外), 查询时直接读取映射的 ByteBuffer, 没有磁盘IO, 可以多线程共用<br>
+ * 同一个区域数据只解析一次, 最近查询的IP结果缓存在 LRU 中
+ * </p>
+ *
+ * @author jmal
+ */
+@Service
+@Slf4j
+@RequiredArgsConstructor
+public class IpRegionService {
+
+    /**
+     * xdb 文件头长度
+     */
+    private static final int HEADER_INFO_LENGTH = 256;
+
+    private static final int VECTOR_INDEX_COLS = 256;
+
+    private static final int VECTOR_INDEX_SIZE = 8;
+
+    private static final int SEGMENT_INDEX_SIZE = 14;
+
+    private static final int REGION_LENGTH = 5;
+
+    /**
+     * 最近查询的IP缓存数量
+     */
+    private static final int IP_CACHE_SIZE = 4096;
+
+    private final FileProperties fileProperties;
+
+    /**
+     * 整个 xdb 文件, 只使用绝对位置读取, 多线程共用
+     */
+    private ByteBuffer buffer;
+
+    /**
+     * 区域数据缓存, key: 区域数据在 xdb 中的位置, 数量不超过 xdb 中区域的个数(几千个)
+     */
+    private final Map<Integer, LogOperation.IpInfo> regionCache = new ConcurrentHashMap<>();
+
+    private final Cache<String, LogOperation.IpInfo> ipCache = Caffeine.newBuilder().maximumSize(IP_CACHE_SIZE).build();
+
+    @PostConstruct
+    public void init() {
+        String ip2regionDbPath = fileProperties.getIp2regionDbPath();
+        if (ip2regionDbPath == null) {
+            return;
+        }
+        try {
+            buffer = load(Paths.get(ip2regionDbPath));
+        } catch (IOException e) {
+            log.error("failed to load ip2region db from {}", ip2regionDbPath, e);
+        }
+    }
+
+    @PreDestroy
+    public void destroy() {
+        buffer = null;
+        regionCache.clear();
+        ipCache.invalidateAll();
+    }
+
+    /**
+     * 映射 xdb 文件, 映射后即可关闭文件
+     *
+     * @param dbPath xdb 文件路径
+     * @return 只读的 ByteBuffer
+     */
+    public static ByteBuffer load(Path dbPath) throws IOException {
+        try (FileChannel channel = FileChannel.open(dbPath, StandardOpenOption.READ)) {
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()).order(ByteOrder.LITTLE_ENDIAN);
+        }
+    }
+
+    public boolean isEnabled() {
+        return buffer != null;
+    }
+
+    /**
+     * 查询IP归属地
+     *
+     * @param ip IPv4地址
+     * @return IpInfo, 不支持的IP或未找到时为null
+     */
+    public LogOperation.IpInfo getIpInfo(String ip) {
+        ByteBuffer db = buffer;
+        if (db == null || CharSequenceUtil.isBlank(ip)) {
+            return null;
+        }
+        LogOperation.IpInfo ipInfo = ipCache.getIfPresent(ip);
+        if (ipInfo != null) {
+            return ipInfo;
+        }
+        long ipLong = ipToLong(ip);
+        if (ipLong < 0) {
+            return null;
+        }
+        long ptr = searchDataPtr(db, ipLong);
+        if (ptr < 0) {
+            return null;
+        }
+        ipInfo = regionCache.computeIfAbsent((int) ptr, dataPtr -> region2IpInfo(readRegion(db, ptr)));
+        ipCache.put(ip, ipInfo);
+        return ipInfo;
+    }
+
+    /**
+     * 不经过缓存查询IP的原始区域数据
+     *
+     * @param ip IPv4地址
+     * @return 区域数据, 格式和 ip2region Searcher.search 的结果相同, 不支持的IP或未找到时为null
+     */
+    public String search(String ip) {
+        ByteBuffer db = buffer;
+        if (db == null || CharSequenceUtil.isBlank(ip)) {
+            return null;
+        }
+        long ipLong = ipToLong(ip);
+        if (ipLong < 0) {
+            return null;
+        }
+        long ptr = searchDataPtr(db, ipLong);
+        return ptr < 0 ? null : readRegion(db, ptr);
+    }
+
+    /**
+     * 查询区域数据的位置, 用IP的前两段在向量索引中定位, 再在段索引中二分查找
+     *
+     * @return 区域数据的位置(低32位)和长度(高32位), 未找到时为-1
+     */
+    static long searchDataPtr(ByteBuffer db, long ip) {
+        int il0 = (int) ((ip >> 24) & 0xFF);
+        int il1 = (int) ((ip >> 16) & 0xFF);
+        int idx = HEADER_INFO_LENGTH + il0 * VECTOR_INDEX_COLS * VECTOR_INDEX_SIZE + il1 * VECTOR_INDEX_SIZE;
+        long sPtr = Integer.toUnsignedLong(db.getInt(idx));
+        long ePtr = Integer.toUnsignedLong(db.getInt(idx + 4));
+        int l = 0;
+        int h = (int) ((ePtr - sPtr) / SEGMENT_INDEX_SIZE);
+        while (l <= h) {
+            int m = (l + h) >>> 1;
+            int p = (int) sPtr + m * SEGMENT_INDEX_SIZE;
+            long sip = Integer.toUnsignedLong(db.getInt(p));
+            if (ip < sip) {
+                h = m - 1;
+                continue;
+            }
+            long eip = Integer.toUnsignedLong(db.getInt(p + 4));
+            if (ip > eip) {
+                l = m + 1;
+                continue;
+            }
+            long dataLen = Short.toUnsignedInt(db.getShort(p + 8));
+            return dataLen << 32 | Integer.toUnsignedLong(db.getInt(p + 10));
+        }
+        return -1;
+    }
+
+    static String readRegion(ByteBuffer db, long ptr) {
+        byte[] bytes = new byte[(int) (ptr >>> 32)];
+        db.get((int) ptr, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * 解析IPv4, 不分配临时对象
+     *
+     * @return 不是IPv4时为-1
+     */
+    static long ipToLong(String ip) {
+        long result = 0;
+        int part = 0;
+        int digits = 0;
+        int dots = 0;
+        for (int i = 0; i < ip.length(); i++) {
+            char c = ip.charAt(i);
+            if (c >= '0' && c <= '9') {
+                part = part * 10 + (c - '0');
+                if (++digits > 3 || part > 255) {
+                    return -1;
+                }
+            } else if (c == '.' && digits > 0 && dots < 3) {
+                result = result << 8 | part;
+                part = 0;
+                digits = 0;
+                dots++;
+            } else {
+                return -1;
+            }
+        }
+        if (dots != 3 || digits == 0) {
+            return -1;
+        }
+        return result << 8 | part;
+    }
+
+    /***
+     * 解析IP区域信息
+     */
+    public static LogOperation.IpInfo region2IpInfo(String region) {
+        LogOperation.IpInfo ipInfo = new LogOperation.IpInfo();
+        String[] r = region.split("\\|");
+        if (r.length != REGION_LENGTH) return ipInfo;
+        String country = r[0];
+        if (!Constants.REGION_DEFAULT.equals(country)) {
+            ipInfo.setCountry(country);
+        }
+        String area = r[1];
+        if (!Constants.REGION_DEFAULT.equals(area)) {
+            ipInfo.setArea(area);
+        }
+        String province = r[2];
+        if (!Constants.REGION_DEFAULT.equals(province)) {
+            ipInfo.setProvince(province);
+        }
+        String city = r[3];
+        if (!Constants.REGION_DEFAULT.equals(city)) {
+            ipInfo.setCity(city);
+        }
+        String operators = r[4];
+        if (!Constants.REGION_DEFAULT.equals(operators)) {
+            ipInfo.setOperators(operators);
+        }
+        return ipInfo;
+    }
+}
@@ -0,0 +1,228 @@
+package com.jmal.clouddisk.service.impl;
+
+import cn.hutool.core.thread.ThreadUtil;
+import cn.hutool.core.util.RandomUtil;
+import com.jmal.clouddisk.config.FileProperties;
+import com.jmal.clouddisk.model.LogOperation;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 操作日志批量写入
+ * <p>
+ * 日志先放入有界队列, 由单独的线程按数量或时间批量 insert<br>
+ * 队列超过高水位后按采样率保留, 队列满时按策略丢弃
+ * </p>
+ *
+ * @author jmal
+ */
+@Component
+@Slf4j
+@RequiredArgsConstructor
+public class LogBatchWriter {
+
+    /**
+     * 丢弃最新的日志(默认)
+     */
+    public static final String DROP_NEWEST = "dropNewest";
+
+    /**
+     * 丢弃最旧的日志
+     */
+    public static final String DROP_OLDEST = "dropOldest";
+
+    /**
+     * 超过高水位后按采样率保留, 队列满时丢弃最新的日志
+     */
+    public static final String SAMPLE = "sample";
+
+    /**
+     * 每批最多写入的条数
+     */
+    private static final int BATCH_SIZE = 500;
+
+    /**
+     * 最长刷新间隔(毫秒)
+     */
+    private static final long FLUSH_INTERVAL = 1000;
+
+    /**
+     * 采样策略的高水位
+     */
+    private static final double HIGH_WATER_MARK = 0.75;
+
+    private final MongoTemplate mongoTemplate;
+
+    private final FileProperties fileProperties;
+
+    private BlockingQueue<LogOperation> queue;
+
+    private int capacity;
+
+    private volatile boolean running;
+
+    private Thread flushThread;
+
+    private final AtomicLong enqueuedCount = new AtomicLong();
+    private final AtomicLong droppedCount = new AtomicLong();
+    private final AtomicLong sampledOutCount = new AtomicLong();
+    private final AtomicLong flushedCount = new AtomicLong();
+    private final AtomicLong flushCount = new AtomicLong();
+    private final AtomicLong failedCount = new AtomicLong();
+    private final AtomicLong totalFlushMillis = new AtomicLong();
+    private volatile long lastFlushMillis;
+    private volatile long maxFlushMillis;
+
+    @PostConstruct
+    public void init() {
+        capacity = fileProperties.getLogQueueCapacity() == null ? 8192 : Math.max(BATCH_SIZE, fileProperties.getLogQueueCapacity());
+        queue = new ArrayBlockingQueue<>(capacity);
+        running = true;
+        flushThread = ThreadUtil.newThread(this::flushLoop, "logBatchWriter", true);
+        flushThread.start();
+    }
+
+    @PreDestroy
+    public void destroy() {
+        running = false;
+        if (flushThread != null) {
+            // 不中断写入线程, 等待当前批次写完
+            try {
+                flushThread.join(5000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        // 写入剩余的日志
+        flushRemaining();
+    }
+
+    /**
+     * 添加日志, 不阻塞调用方
+     *
+     * @param logOperation LogOperation
+     * @return 是否已放入队列
+     */
+    public boolean offer(LogOperation logOperation) {
+        String policy = fileProperties.getLogDropPolicy();
+        if (SAMPLE.equals(policy) && queue.size() >= capacity * HIGH_WATER_MARK) {
+            double sampleRate = fileProperties.getLogSampleRate() == null ? 0.1 : fileProperties.getLogSampleRate();
+            if (RandomUtil.getRandom().nextDouble() >= sampleRate) {
+                sampledOutCount.incrementAndGet();
+                return false;
+            }
+        }
+        if (queue.offer(logOperation)) {
+            enqueuedCount.incrementAndGet();
+            return true;
+        }
+        if (DROP_OLDEST.equals(policy)) {
+            // 腾出位置给最新的日志
+            while (!queue.offer(logOperation)) {
+                if (queue.poll() != null) {
+                    droppedCount.incrementAndGet();
+                }
+            }
+            enqueuedCount.incrementAndGet();
+            return true;
+        }
+        droppedCount.incrementAndGet();
+        return false;
+    }
+
+    private void flushLoop() {
+        List<LogOperation> batch = new ArrayList<>(BATCH_SIZE);
+        while (running) {
+            try {
+                LogOperation first = queue.poll(FLUSH_INTERVAL, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                long deadline = System.currentTimeMillis() + FLUSH_INTERVAL;
+                // 攒够一批或者到达刷新间隔再写入
+                while (batch.size() < BATCH_SIZE) {
+                    queue.drainTo(batch, BATCH_SIZE - batch.size());
+                    long wait = deadline - System.currentTimeMillis();
+                    if (batch.size() >= BATCH_SIZE || wait <= 0) {
+                        break;
+                    }
+                    LogOperation next = queue.poll(wait, TimeUnit.MILLISECONDS);
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                }
+                flush(batch);
+                batch.clear();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        // 退出时手里可能还有未写入的日志
+        Thread.interrupted();
+        flush(batch);
+    }
+
+    private void flushRemaining() {
+        List<LogOperation> batch = new ArrayList<>(BATCH_SIZE);
+        while (queue.drainTo(batch, BATCH_SIZE) > 0) {
+            flush(batch);
+            batch.clear();
+        }
+    }
+
+    private void flush(List<LogOperation> batch) {
+        if (batch.isEmpty()) {
+            return;
+        }
+        long start = System.currentTimeMillis();
+        try {
+            mongoTemplate.insert(batch, LogOperation.class);
+            flushedCount.addAndGet(batch.size());
+        } catch (Exception e) {
+            failedCount.addAndGet(batch.size());
+            log.error("批量写入日志失败, 条数: {}, {}", batch.size(), e.getMessage());
+        }
+        long elapsed = System.currentTimeMillis() - start;
+        lastFlushMillis = elapsed;
+        maxFlushMillis = Math.max(maxFlushMillis, elapsed);
+        totalFlushMillis.addAndGet(elapsed);
+        flushCount.incrementAndGet();
+    }
+
+    /**
+     * 统计信息: 队列深度, 丢弃条数, 写入耗时等
+     */
+    public Map<String, Object> metrics() {
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        long flushes = flushCount.get();
+        metrics.put("queueDepth", queue.size());
+        metrics.put("queueCapacity", capacity);
+        metrics.put("dropPolicy", fileProperties.getLogDropPolicy());
+        metrics.put("enqueued", enqueuedCount.get());
+        metrics.put("dropped", droppedCount.get());
+        metrics.put("sampledOut", sampledOutCount.get());
+        metrics.put("flushed", flushedCount.get());
+        metrics.put("failed", failedCount.get());
+        metrics.put("flushCount", flushes);
+        metrics.put("lastFlushMillis", lastFlushMillis);
+        metrics.put("maxFlushMillis", maxFlushMillis);
+        metrics.put("avgFlushMillis", flushes == 0 ? 0 : totalFlushMillis.get() / flushes);
+        return metrics;
+    }
+}
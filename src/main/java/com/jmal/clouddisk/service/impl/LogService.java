@@ -2,21 +2,19 @@ package com.jmal.clouddisk.service.impl;
 
 import cn.hutool.core.net.URLDecoder;
 import cn.hutool.core.text.CharSequenceUtil;
-import cn.hutool.core.thread.ThreadUtil;
 import cn.hutool.http.useragent.UserAgent;
 import cn.hutool.http.useragent.UserAgentUtil;
-import com.jmal.clouddisk.config.FileProperties;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
 import com.jmal.clouddisk.model.LogOperation;
 import com.jmal.clouddisk.model.LogOperationDTO;
 import com.jmal.clouddisk.service.Constants;
 import com.jmal.clouddisk.util.ResponseResult;
 import com.jmal.clouddisk.util.ResultUtil;
 import com.jmal.clouddisk.util.TimeUntils;
-import jakarta.annotation.PostConstruct;
 import jakarta.servlet.http.HttpServletRequest;
 import jakarta.servlet.http.HttpServletResponse;
 import lombok.extern.slf4j.Slf4j;
-import org.lionsoul.ip2region.xdb.Searcher;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.data.domain.Sort;
 import org.springframework.data.mongodb.core.MongoTemplate;
@@ -27,6 +25,7 @@ import org.springframework.stereotype.Service;
 import java.nio.charset.StandardCharsets;
 import java.time.LocalDateTime;
 import java.util.List;
+import java.util.Map;
 
 /**
  * @author jmal
@@ -37,7 +36,12 @@ import java.util.List;
 @Slf4j
 public class LogService {
 
-    private static final int REGION_LENGTH = 5;
+    /**
+     * UserAgent解析结果缓存
+     * key: User-Agent
+     * value: [操作系统, 设备, 浏览器]
+     */
+    private static final Cache<String, String[]> USER_AGENT_CACHE = Caffeine.newBuilder().maximumSize(4096).build();
 
     @Autowired
     private MongoTemplate mongoTemplate;
@@ -49,26 +53,13 @@ public class LogService {
     private UserServiceImpl userService;
 
     @Autowired
-    private FileProperties fileProperties;
+    private LogBatchWriter logBatchWriter;
 
-    private Searcher ipSearcher = null;
+    @Autowired
+    private VisitCounterService visitCounterService;
 
-    @PostConstruct
-    public void initIpDbSearcher() {
-        String ip2regionDbPath = fileProperties.getIp2regionDbPath();
-        byte[] vIndex;
-        try {
-            vIndex = Searcher.loadVectorIndexFromFile(ip2regionDbPath);
-        } catch (Exception e) {
-            log.error("failed to load vector index from {}\n", ip2regionDbPath, e);
-            return;
-        }
-        try {
-            ipSearcher = Searcher.newWithVectorIndex(ip2regionDbPath, vIndex);
-        } catch (Exception e) {
-            log.error("failed to create vectorIndex cached searcher with {}\n", ip2regionDbPath, e);
-        }
-    }
+    @Autowired
+    private IpRegionService ipRegionService;
 
     /***
      * 存储操作日志前
@@ -85,11 +76,11 @@ public class LogService {
             logOperation.setShowName(userService.getShowNameByUserUsername(username));
         }
         // UserAgent
-        UserAgent userAgent = UserAgentUtil.parse(request.getHeader("User-Agent"));
+        String[] userAgent = parseUserAgent(request.getHeader("User-Agent"));
         if (userAgent != null) {
-            logOperation.setOperatingSystem(userAgent.getOs().getName());
-            logOperation.setDeviceModel(userAgent.getPlatform().getName());
-            logOperation.setBrowser(userAgent.getBrowser().getName() + userAgent.getVersion());
+            logOperation.setOperatingSystem(userAgent[0]);
+            logOperation.setDeviceModel(userAgent[1]);
+            logOperation.setBrowser(userAgent[2]);
         }
         // 请求地址
         logOperation.setUrl(URLDecoder.decode(request.getRequestURI(), StandardCharsets.UTF_8));
@@ -115,7 +106,26 @@ public class LogService {
                 setStatus(logOperation, response);
             }
         }
-        ThreadUtil.execute(() -> addLog(logOperation));
+        addLog(logOperation);
+    }
+
+    /**
+     * 解析UserAgent, 结果按UserAgent字符串缓存
+     * @param userAgentStr User-Agent
+     * @return [操作系统, 设备, 浏览器], 无法解析时返回null
+     */
+    private String[] parseUserAgent(String userAgentStr) {
+        if (CharSequenceUtil.isBlank(userAgentStr)) {
+            return null;
+        }
+        String[] cached = USER_AGENT_CACHE.getIfPresent(userAgentStr);
+        if (cached != null) {
+            return cached.length == 0 ? null : cached;
+        }
+        UserAgent userAgent = UserAgentUtil.parse(userAgentStr);
+        String[] result = userAgent == null ? new String[0] : new String[]{userAgent.getOs().getName(), userAgent.getPlatform().getName(), userAgent.getBrowser().getName() + userAgent.getVersion()};
+        USER_AGENT_CACHE.put(userAgentStr, result);
+        return result.length == 0 ? null : result;
     }
 
     private String getIpAddress(HttpServletRequest request) {
@@ -153,48 +163,12 @@ public class LogService {
      * @param logOperation LogOperation
      */
     private void setIpInfo(LogOperation logOperation, String ip) {
-        if (ipSearcher != null && !CharSequenceUtil.isBlank(ip)) {
-            try {
-                String region = ipSearcher.search(ip);
-                if (!CharSequenceUtil.isBlank(region)) {
-                    logOperation.setIpInfo(region2IpInfo(region));
-                }
-            } catch (Exception ignored) {
-                // log
-            }
+        LogOperation.IpInfo ipInfo = ipRegionService.getIpInfo(ip);
+        if (ipInfo != null) {
+            logOperation.setIpInfo(ipInfo);
         }
     }
 
-    /***
-     * 解析IP区域信息
-     */
-    public LogOperation.IpInfo region2IpInfo(String region) {
-        LogOperation.IpInfo ipInfo = new LogOperation.IpInfo();
-        String[] r = region.split("\\|");
-        if (r.length != REGION_LENGTH) return ipInfo;
-        String country = r[0];
-        if (!Constants.REGION_DEFAULT.equals(country)) {
-            ipInfo.setCountry(country);
-        }
-        String area = r[1];
-        if (!Constants.REGION_DEFAULT.equals(area)) {
-            ipInfo.setArea(area);
-        }
-        String province = r[2];
-        if (!Constants.REGION_DEFAULT.equals(province)) {
-            ipInfo.setProvince(province);
-        }
-        String city = r[3];
-        if (!Constants.REGION_DEFAULT.equals(city)) {
-            ipInfo.setCity(city);
-        }
-        String operators = r[4];
-        if (!Constants.REGION_DEFAULT.equals(operators)) {
-            ipInfo.setOperators(operators);
-        }
-        return ipInfo;
-    }
-
     private void setStatus(LogOperation logOperation, HttpServletResponse response) {
         if (response != null) {
             int status = response.getStatus();
@@ -207,7 +181,17 @@ public class LogService {
 
     public void addLog(LogOperation logOperation) {
         logOperation.setCreateTime(LocalDateTime.now(TimeUntils.ZONE_ID));
-        mongoTemplate.save(logOperation);
+        logBatchWriter.offer(logOperation);
+        visitCounterService.increment(logOperation.getUrl());
+    }
+
+    /**
+     * 日志写入队列的统计信息
+     */
+    public Map<String, Object> writerMetrics() {
+        Map<String, Object> metrics = logBatchWriter.metrics();
+        metrics.put("userAgentCacheSize", USER_AGENT_CACHE.estimatedSize());
+        return metrics;
     }
 
     public ResponseResult<List<LogOperation>> list(LogOperationDTO logOperationDTO) {
@@ -292,8 +276,16 @@ public class LogService {
      * @return 访问次数
      */
     public long getVisitsByUrl(String url) {
-        Query query = new Query();
-        query.addCriteria(Criteria.where("url").is(url));
-        return mongoTemplate.count(query, LogOperation.class);
+        return visitCounterService.getVisits(url);
+    }
+
+    /***
+     * 按天获取url的访问次数
+     * @param url url
+     * @param days 最近天数
+     * @return key: yyyy-MM-dd, value: 访问次数
+     */
+    public Map<String, Long> getDailyVisitsByUrl(String url, int days) {
+        return visitCounterService.getDailyVisits(url, days);
     }
 }
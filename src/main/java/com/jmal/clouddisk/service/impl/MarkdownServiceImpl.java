@@ -1,7 +1,6 @@
 package com.jmal.clouddisk.service.impl;
 
 import cn.hutool.core.convert.Convert;
-import cn.hutool.core.date.LocalDateTimeUtil;
 import cn.hutool.core.io.FileUtil;
 import cn.hutool.core.io.file.PathUtil;
 import cn.hutool.core.text.CharSequenceUtil;
@@ -15,6 +14,7 @@ import com.jmal.clouddisk.config.FileProperties;
 import com.jmal.clouddisk.exception.CommonException;
 import com.jmal.clouddisk.exception.Either;
 import com.jmal.clouddisk.exception.ExceptionType;
+import com.jmal.clouddisk.lucene.ArticleSearchService;
 import com.jmal.clouddisk.lucene.LuceneService;
 import com.jmal.clouddisk.model.*;
 import com.jmal.clouddisk.model.rbac.ConsumerDO;
@@ -70,8 +70,6 @@ public class MarkdownServiceImpl implements IMarkdownService {
 
     private final CategoryService categoryService;
 
-    private final SettingService settingService;
-
     private final TagService tagService;
 
     private final CommonFileService commonFileService;
@@ -80,6 +78,18 @@ public class MarkdownServiceImpl implements IMarkdownService {
 
     private final LuceneService luceneService;
 
+    private final ArticlePageCache articlePageCache;
+
+    private final ArticleCountService articleCountService;
+
+    private final ArticleSearchService articleSearchService;
+
+    private final SitemapService sitemapService;
+
+    private final ArticleRenderService articleRenderService;
+
+    private final FileTreeService fileTreeService;
+
 
     @Override
     public ResponseResult<FileDocument> getMarkDownOne(ArticleDTO articleDTO) {
@@ -107,70 +117,6 @@ public class MarkdownServiceImpl implements IMarkdownService {
         return getArticles(articleDTO);
     }
 
-    @Override
-    public Urlset getSitemapXml() {
-        String siteUrl = getSiteUrl();
-        List<FileDocument> fileDocumentList = getArticlesUrl();
-        Urlset urlset = new Urlset();
-        List<Urlset.Url> urlList = new ArrayList<>();
-        fileDocumentList.forEach(fileDocument -> {
-            Urlset.Url url = new Urlset.Url();
-            String prefix = "/s/";
-            if (fileDocument.getAlonePage() != null && fileDocument.getAlonePage()) {
-                prefix = "/o/";
-            }
-            String slug = fileDocument.getSlug();
-            if (CharSequenceUtil.isBlank(slug)) {
-                slug = fileDocument.getId();
-            }
-            url.setLoc(siteUrl + prefix + slug);
-            url.setLastmod(LocalDateTimeUtil.format(fileDocument.getUpdateDate(), "yyyy-MM-dd"));
-            urlList.add(url);
-        });
-        urlset.setUrl(urlList);
-        return urlset;
-    }
-
-    @Override
-    public String getSitemapTxt() {
-        String siteUrl = getSiteUrl();
-        List<FileDocument> fileDocumentList = getArticlesUrl();
-        StringBuilder stringBuilder = new StringBuilder();
-        fileDocumentList.forEach(fileDocument -> {
-            stringBuilder.append(siteUrl);
-            if (fileDocument.getAlonePage() != null && fileDocument.getAlonePage()) {
-                stringBuilder.append("/o/");
-            } else {
-                stringBuilder.append("/s/");
-            }
-            String slug = fileDocument.getSlug();
-            if (CharSequenceUtil.isBlank(slug)) {
-                stringBuilder.append(fileDocument.getId());
-            } else {
-                stringBuilder.append(slug);
-            }
-            stringBuilder.append("\r\n");
-        });
-        return stringBuilder.toString();
-    }
-
-    private String getSiteUrl() {
-        String siteUrl = settingService.getWebsiteSetting().getSiteUrl();
-        if (siteUrl.endsWith("/")) {
-            siteUrl = siteUrl.substring(0, siteUrl.length() - 1);
-        }
-        return siteUrl;
-    }
-
-    private List<FileDocument> getArticlesUrl() {
-        Query query = new Query();
-        // 查询条件
-        query.skip(0).limit(5000);
-        query.addCriteria(Criteria.where(Constants.SUFFIX).is("md"));
-        query.addCriteria(Criteria.where(Constants.RELEASE).is(true));
-        return mongoTemplate.find(query, FileDocument.class, CommonFileService.COLLECTION_NAME);
-    }
-
     @Override
     public List<MarkdownVO> getAlonePages() {
         ArticleDTO articleDTO = new ArticleDTO();
@@ -210,11 +156,24 @@ public class MarkdownServiceImpl implements IMarkdownService {
 
     @Override
     public Page<List<MarkdownVO>> getArticlesByKeyword(int page, int pageSize, String keyword) {
-        ArticleDTO articleDTO = new ArticleDTO();
-        articleDTO.setPageIndex(page);
-        articleDTO.setPageSize(pageSize);
-        articleDTO.setKeyword(keyword);
-        return getArticles(articleDTO);
+        ArticleSearchService.SearchResult searchResult = articleSearchService.search(keyword, page, pageSize);
+        List<String> ids = searchResult.hits().stream().map(ArticleSearchService.Hit::id).toList();
+        Map<String, FileDocument> fileDocumentMap = new HashMap<>(ids.size());
+        if (!ids.isEmpty()) {
+            Query query = new Query();
+            query.addCriteria(Criteria.where("_id").in(ids));
+            query.fields().exclude("contentText").exclude("html");
+            mongoTemplate.find(query, FileDocument.class, CommonFileService.COLLECTION_NAME).forEach(fileDocument -> fileDocumentMap.put(fileDocument.getId(), fileDocument));
+        }
+        // 按相关性排序
+        List<MarkdownVO> markdownVOList = searchResult.hits().stream().filter(hit -> fileDocumentMap.containsKey(hit.id())).map(hit -> {
+            MarkdownVO markdownVO = getMarkdownVO(fileDocumentMap.get(hit.id()), false);
+            markdownVO.setHighlight(hit.highlight());
+            return markdownVO;
+        }).toList();
+        Page<List<MarkdownVO>> pageResult = new Page<>(page - 1, pageSize, searchResult.total());
+        pageResult.setData(markdownVOList);
+        return pageResult;
     }
 
     @Override
@@ -301,9 +260,14 @@ public class MarkdownServiceImpl implements IMarkdownService {
         }
         Query query = new Query();
         query.addCriteria(Criteria.where("slug").is(slug));
+        // html 从渲染结果中读取
+        query.fields().exclude("html").exclude(Constants.DRAFT);
         fileDocument = mongoTemplate.findOne(query, FileDocument.class, CommonFileService.COLLECTION_NAME);
         if (fileDocument == null) {
-            fileDocument = mongoTemplate.findById(slug, FileDocument.class, CommonFileService.COLLECTION_NAME);
+            query = new Query();
+            query.addCriteria(Criteria.where("_id").is(slug));
+            query.fields().exclude("html").exclude(Constants.DRAFT);
+            fileDocument = mongoTemplate.findOne(query, FileDocument.class, CommonFileService.COLLECTION_NAME);
         }
         if (fileDocument == null) {
             return null;
@@ -314,6 +278,11 @@ public class MarkdownServiceImpl implements IMarkdownService {
         fileDocument.setName(filename.substring(0, filename.length() - fileDocument.getSuffix().length() - 1));
         ArticleVO articleVO = new ArticleVO();
         BeanUtils.copyProperties(fileDocument, articleVO);
+        ArticleRenderDO render = articleRenderService.get(fileDocument);
+        if (render != null) {
+            articleVO.setHtml(render.getHtml());
+            articleVO.setDescription(render.getDescription());
+        }
         setOtherProperties(articleVO);
         return articleVO;
     }
@@ -345,6 +314,7 @@ public class MarkdownServiceImpl implements IMarkdownService {
             update.set("pageSort", doc.getPageSort());
             mongoTemplate.updateFirst(query, update, CommonFileService.COLLECTION_NAME);
         });
+        articlePageCache.invalidate(ArticlePageCache.TAG_LIST, ArticlePageCache.TAG_LAYOUT);
         return ResultUtil.success();
     }
 
@@ -489,6 +459,9 @@ public class MarkdownServiceImpl implements IMarkdownService {
                 throw new CommonException(ExceptionType.LOCKED_RESOURCES);
             }
         }
+        String oldSlug = fileDocument.getSlug();
+        String oldRenderHash = fileDocument.getRenderHash();
+        FileDocument before = isUpdate ? getCountFields(fileDocument) : null;
         String filename = upload.getFilename();
         // 同步文档文件
         String currentDirectory = syncDocFile(upload, uploadDate, fileDocument, filename);
@@ -507,6 +480,10 @@ public class MarkdownServiceImpl implements IMarkdownService {
         fileDocument.setTagIds(tagService.getTagIdsByNames(upload.getTagNames()));
         fileDocument.setIsFolder(false);
         Update update = getUpdate(upload, isDraft, isUpdate, fileDocument);
+        fileTreeService.setTree(update, upload.getUserId(), currentDirectory);
+        if (!Boolean.TRUE.equals(upload.getIsDraft())) {
+            update.set(ArticleRenderService.RENDER_HASH, articleRenderService.save(upload.getContentText(), upload.getHtml()));
+        }
         String fileId = upload.getFileId();
         if (!isUpdate) {
             FileDocument saved = mongoTemplate.save(fileDocument, CommonFileService.COLLECTION_NAME);
@@ -516,9 +493,36 @@ public class MarkdownServiceImpl implements IMarkdownService {
         }
         mongoTemplate.upsert(query, update, CommonFileService.COLLECTION_NAME);
         luceneService.pushCreateIndexQueue(fileId);
+        articleSearchService.updateArticle(fileId);
+        articlePageCache.invalidateArticle(fileId, oldSlug, fileDocument.getSlug());
+        articleCountService.onArticleChanged(before, findCountFields(fileId));
+        sitemapService.refresh();
+        if (!Boolean.TRUE.equals(upload.getIsDraft())) {
+            articleRenderService.release(oldRenderHash);
+        }
         return ResultUtil.success(upload.getFileId());
     }
 
+    /**
+     * 影响标签和分类文章数的字段
+     * @param fileDocument FileDocument
+     * @return 只包含 release, tagIds, categoryIds
+     */
+    private static FileDocument getCountFields(FileDocument fileDocument) {
+        FileDocument countFields = new FileDocument();
+        countFields.setRelease(fileDocument.getRelease());
+        countFields.setTagIds(fileDocument.getTagIds());
+        countFields.setCategoryIds(fileDocument.getCategoryIds());
+        return countFields;
+    }
+
+    private FileDocument findCountFields(String fileId) {
+        Query query = new Query();
+        query.addCriteria(Criteria.where("_id").is(fileId));
+        query.fields().include(Constants.RELEASE).include(Constants.TAG_IDS).include("categoryIds");
+        return mongoTemplate.findOne(query, FileDocument.class, CommonFileService.COLLECTION_NAME);
+    }
+
     @NotNull
     private static Update getUpdate(ArticleParamDTO upload, boolean isDraft, boolean isUpdate, FileDocument fileDocument) {
         if (upload.getIsAlonePage() != null && upload.getIsAlonePage()) {
@@ -610,6 +614,7 @@ public class MarkdownServiceImpl implements IMarkdownService {
         Update update = new Update();
         update.unset(Constants.DRAFT);
         mongoTemplate.upsert(query, update, CommonFileService.COLLECTION_NAME);
+        articleSearchService.updateArticle(fileId);
         return ResultUtil.success();
     }
 
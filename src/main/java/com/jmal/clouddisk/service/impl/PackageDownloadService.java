@@ -0,0 +1,287 @@
+package com.jmal.clouddisk.service.impl;
+
+import cn.hutool.core.collection.ListUtil;
+import cn.hutool.core.io.FileUtil;
+import cn.hutool.core.text.CharSequenceUtil;
+import cn.hutool.core.thread.ThreadUtil;
+import cn.hutool.crypto.SecureUtil;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.jmal.clouddisk.util.HttpCacheUtil;
+import com.jmal.clouddisk.util.ZipPackageWriter;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.catalina.connector.ClientAbortException;
+import org.bson.Document;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.index.Index;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.http.HttpHeaders;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * 打包下载
+ * <p>
+ * 已经压缩过的媒体/压缩包文件直接存储(STORED), 其余文件在线程池中并行压缩(DEFLATED)<br>
+ * 全部为存储条目时可以预先算出Content-Length, 并支持Range断点续传<br>
+ * 存储条目的CRC保存在 packageCrc 集合中, 不在用户文件上写入任何东西
+ * </p>
+ *
+ * @author jmal
+ */
+@Service
+@Slf4j
+@RequiredArgsConstructor
+public class PackageDownloadService {
+
+    /**
+     * 存储条目的CRC, 多个节点和重启后共用
+     * _id: md5(path), 以及 size, modified, crc, time
+     */
+    public static final String CRC_COLLECTION_NAME = "packageCrc";
+
+    /**
+     * 不再压缩, 直接存储的文件后缀
+     */
+    private static final Set<String> STORED_SUFFIX = Set.of(
+            "jpg", "jpeg", "png", "gif", "webp", "heic", "heif", "avif",
+            "mp4", "mov", "mkv", "avi", "webm", "flv", "wmv", "m4v", "ts",
+            "mp3", "aac", "flac", "m4a", "ogg", "opus", "wma",
+            "zip", "rar", "7z", "gz", "tgz", "bz2", "xz", "zst", "jar", "apk", "dmg", "iso",
+            "docx", "xlsx", "pptx", "odt", "ods", "odp", "epub", "pdf");
+
+    /**
+     * 每次下载预读(并行压缩到内存)的字节上限
+     */
+    private static final long READ_AHEAD_BYTES = 32 * 1024 * 1024L;
+
+    /**
+     * 存储条目的CRC缓存, 断点续传时不必重新读取Range之前的文件, 未命中时再查 packageCrc
+     * key: path + size + lastModified
+     */
+    private static final Cache<String, Long> CRC_CACHE = Caffeine.newBuilder().maximumSize(100_000).build();
+
+    /**
+     * packageCrc 中的记录多久没有更新后删除(天)
+     */
+    private static final long CRC_EXPIRE_DAYS = 30;
+
+    /**
+     * 每批查询/写入 packageCrc 的条目数
+     */
+    private static final int CRC_BATCH_SIZE = 1000;
+
+    private final MongoTemplate mongoTemplate;
+
+    private ExecutorService executorService;
+
+    private int processors;
+
+    @PostConstruct
+    public void init() {
+        processors = Math.max(2, Runtime.getRuntime().availableProcessors());
+        executorService = ThreadUtil.newFixedExecutor(processors, 1024, "packageDownload", true);
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void initAfterStartup() {
+        mongoTemplate.indexOps(CRC_COLLECTION_NAME).ensureIndex(new Index().on("time", Sort.Direction.ASC).expire(CRC_EXPIRE_DAYS, TimeUnit.DAYS));
+    }
+
+    @PreDestroy
+    public void destroy() {
+        if (executorService != null) {
+            executorService.shutdown();
+        }
+    }
+
+    /**
+     * 打包下载
+     *
+     * @param request        HttpServletRequest
+     * @param response       HttpServletResponse
+     * @param selectFileList 选中的文件
+     */
+    public void download(HttpServletRequest request, HttpServletResponse response, List<Path> selectFileList) {
+        List<ZipPackageWriter.Entry> entries;
+        try {
+            entries = collectEntries(selectFileList);
+        } catch (IOException e) {
+            log.error(e.getMessage(), e);
+            response.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+            return;
+        }
+        ZipPackageWriter writer = new ZipPackageWriter(entries, executorService, READ_AHEAD_BYTES, processors * 4);
+        try {
+            if (writer.isLengthKnown()) {
+                writeWithRange(request, response, writer, entries);
+            } else {
+                response.setHeader(HttpHeaders.ACCEPT_RANGES, "none");
+                writer.write(response.getOutputStream());
+            }
+        } catch (ClientAbortException ignored) {
+            // ignored error
+        } catch (IOException e) {
+            log.warn("打包下载失败: {}", e.getMessage());
+        } finally {
+            cacheCrc(entries);
+        }
+    }
+
+    private void writeWithRange(HttpServletRequest request, HttpServletResponse response, ZipPackageWriter writer, List<ZipPackageWriter.Entry> entries) throws IOException {
+        long total = writer.computeLength();
+        String eTag = getETag(entries);
+        long lastModified = entries.stream().mapToLong(ZipPackageWriter.Entry::getModified).max().orElse(0);
+        response.setHeader(HttpHeaders.ACCEPT_RANGES, "bytes");
+        HttpCacheUtil.setCacheHeaders(response, eTag, lastModified);
+        String range = request.getHeader(HttpHeaders.RANGE);
+        // If-Range 可以是 ETag 或 HTTP 日期
+        if (CharSequenceUtil.isBlank(range) || !HttpCacheUtil.matchIfRange(request, eTag, lastModified)) {
+            response.setStatus(HttpServletResponse.SC_OK);
+            response.setContentLengthLong(total);
+            writer.write(response.getOutputStream());
+            return;
+        }
+        long[] ranges = HttpCacheUtil.parseRange(range, total);
+        if (ranges.length == 0) {
+            response.setStatus(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+            response.setHeader(HttpHeaders.CONTENT_RANGE, "bytes */" + total);
+            return;
+        }
+        long start = ranges[0];
+        long end = ranges[1];
+        response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+        response.setHeader(HttpHeaders.CONTENT_RANGE, "bytes " + start + "-" + end + "/" + total);
+        response.setContentLengthLong(end - start + 1);
+        writer.write(response.getOutputStream(), start, end + 1);
+    }
+
+    /**
+     * 收集压缩包条目, 选中的文件夹本身不生成条目, 条目名相对于选中文件的父目录
+     */
+    private List<ZipPackageWriter.Entry> collectEntries(List<Path> selectFileList) throws IOException {
+        List<ZipPackageWriter.Entry> entries = new ArrayList<>();
+        for (Path path : selectFileList) {
+            Path rootDir = path.getParent();
+            if (!Files.isDirectory(path)) {
+                entries.add(toEntry(rootDir, path, Files.readAttributes(path, BasicFileAttributes.class)));
+                continue;
+            }
+            // 排序保证同一组文件每次生成的压缩包字节一致
+            try (Stream<Path> stream = Files.walk(path)) {
+                List<Path> children = stream.filter(p -> !p.equals(path)).sorted(Comparator.comparing(Path::toString)).toList();
+                for (Path child : children) {
+                    entries.add(toEntry(rootDir, child, Files.readAttributes(child, BasicFileAttributes.class)));
+                }
+            }
+        }
+        fillCrc(entries);
+        return entries;
+    }
+
+    private static ZipPackageWriter.Entry toEntry(Path rootDir, Path file, BasicFileAttributes attributes) {
+        String name = rootDir.relativize(file).toString().replace("\\", "/");
+        long modified = attributes.lastModifiedTime().toMillis();
+        if (attributes.isDirectory()) {
+            return new ZipPackageWriter.Entry(name, file, true, true, 0, modified, null);
+        }
+        boolean stored = attributes.size() == 0 || STORED_SUFFIX.contains(FileUtil.getSuffix(file.getFileName().toString()).toLowerCase());
+        Long crc = stored ? CRC_CACHE.getIfPresent(crcKey(file, attributes.size(), modified)) : null;
+        return new ZipPackageWriter.Entry(name, file, false, stored, attributes.size(), modified, crc);
+    }
+
+    /**
+     * 内存缓存中没有的CRC, 分批从 packageCrc 中查询, 文件大小或修改时间变化后的记录不使用
+     */
+    private void fillCrc(List<ZipPackageWriter.Entry> entries) {
+        Map<String, ZipPackageWriter.Entry> missing = new LinkedHashMap<>();
+        for (ZipPackageWriter.Entry entry : entries) {
+            if (entry.isStored() && !entry.isDirectory() && entry.getCrc() == null) {
+                missing.put(crcId(entry.getFile()), entry);
+            }
+        }
+        for (List<String> ids : ListUtil.partition(new ArrayList<>(missing.keySet()), CRC_BATCH_SIZE)) {
+            Query query = new Query(Criteria.where("_id").in(ids));
+            for (Document document : mongoTemplate.find(query, Document.class, CRC_COLLECTION_NAME)) {
+                ZipPackageWriter.Entry entry = missing.get(document.getString("_id"));
+                Number size = document.get("size", Number.class);
+                Number modified = document.get("modified", Number.class);
+                Number crc = document.get("crc", Number.class);
+                if (entry == null || size == null || modified == null || crc == null
+                        || size.longValue() != entry.getSize() || modified.longValue() != entry.getModified()) {
+                    continue;
+                }
+                entry.setCrc(crc.longValue());
+                CRC_CACHE.put(crcKey(entry.getFile(), entry.getSize(), entry.getModified()), crc.longValue());
+            }
+        }
+    }
+
+    /**
+     * 保存本次新计算的CRC
+     */
+    private void cacheCrc(List<ZipPackageWriter.Entry> entries) {
+        List<ZipPackageWriter.Entry> computed = new ArrayList<>();
+        for (ZipPackageWriter.Entry entry : entries) {
+            if (entry.isStored() && !entry.isDirectory() && entry.getCrc() != null) {
+                Long old = CRC_CACHE.asMap().put(crcKey(entry.getFile(), entry.getSize(), entry.getModified()), entry.getCrc());
+                if (old == null) {
+                    computed.add(entry);
+                }
+            }
+        }
+        try {
+            for (List<ZipPackageWriter.Entry> batch : ListUtil.partition(computed, CRC_BATCH_SIZE)) {
+                BulkOperations bulkOperations = mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, CRC_COLLECTION_NAME);
+                Date now = new Date();
+                for (ZipPackageWriter.Entry entry : batch) {
+                    Update update = new Update()
+                            .set("path", entry.getFile().toString())
+                            .set("size", entry.getSize())
+                            .set("modified", entry.getModified())
+                            .set("crc", entry.getCrc())
+                            .set("time", now);
+                    bulkOperations.upsert(new Query(Criteria.where("_id").is(crcId(entry.getFile()))), update);
+                }
+                bulkOperations.execute();
+            }
+        } catch (Exception e) {
+            log.warn("保存CRC失败: {}", e.getMessage());
+        }
+    }
+
+    private static String crcId(Path file) {
+        return SecureUtil.md5(file.toString());
+    }
+
+    private static String crcKey(Path file, long size, long modified) {
+        return file.toString() + ":" + size + ":" + modified;
+    }
+
+    private static String getETag(List<ZipPackageWriter.Entry> entries) {
+        StringBuilder builder = new StringBuilder();
+        for (ZipPackageWriter.Entry entry : entries) {
+            builder.append(entry.getName()).append(':').append(entry.getSize()).append(':').append(entry.getModified()).append('\n');
+        }
+        return "\"" + SecureUtil.md5(builder.toString()) + "\"";
+    }
+}
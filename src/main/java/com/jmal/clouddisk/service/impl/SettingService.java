@@ -62,6 +62,12 @@ public class SettingService {
     @Autowired
     private RoleService roleService;
 
+    @Autowired
+    private ArticlePageCache articlePageCache;
+
+    @Autowired
+    private SitemapService sitemapService;
+
     @Autowired
     UserLoginHolder userLoginHolder;
 
@@ -120,6 +126,8 @@ public class SettingService {
         // 添加心语记录
         addHeartwings(websiteSettingDO);
         mongoTemplate.upsert(query, update, COLLECTION_NAME_WEBSITE_SETTING);
+        articlePageCache.invalidateAll();
+        sitemapService.refresh();
         return ResultUtil.success();
     }
 
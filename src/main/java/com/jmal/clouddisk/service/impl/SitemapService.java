@@ -0,0 +1,394 @@
+package com.jmal.clouddisk.service.impl;
+
+import cn.hutool.core.date.LocalDateTimeUtil;
+import cn.hutool.core.io.FileUtil;
+import cn.hutool.core.text.CharSequenceUtil;
+import cn.hutool.core.thread.ThreadUtil;
+import com.jmal.clouddisk.config.FileProperties;
+import com.jmal.clouddisk.model.FileDocument;
+import com.jmal.clouddisk.model.WebsiteSettingDO;
+import com.jmal.clouddisk.service.Constants;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.http.HttpHeaders;
+import org.springframework.stereotype.Service;
+import org.springframework.web.context.request.ServletWebRequest;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * 站点地图
+ * <p>
+ * 文章发布/删除或网站设置修改后, 延迟几秒在后台重新生成站点地图文件(连续修改只生成一次)<br>
+ * 生成时只查询 slug, alonePage, updateDate 字段并以游标方式读取, 边读边写, 不在内存中保存url列表<br>
+ * 超过 50000 个url时拆分为 sitemap-N.xml, sitemap.xml 为 sitemapindex<br>
+ * 请求时直接输出缓存的文件, 支持 Last-Modified 和 gzip
+ * </p>
+ *
+ * @author jmal
+ */
+@Service
+@Slf4j
+@RequiredArgsConstructor
+public class SitemapService {
+
+    /**
+     * 每个站点地图文件最多的url数
+     */
+    private static final int MAX_URLS = 50000;
+
+    /**
+     * 修改后延迟生成的时间(秒)
+     */
+    private static final long REFRESH_DELAY = 5;
+
+    public static final String SITEMAP_XML = "sitemap.xml";
+
+    public static final String SITEMAP_TXT = "sitemap.txt";
+
+    private static final Pattern SITEMAP_NAME = Pattern.compile("sitemap(-\\d{1,5})?\\.(xml|txt)");
+
+    private static final String GZIP_SUFFIX = ".gz";
+
+    private final FileProperties fileProperties;
+
+    private final MongoTemplate mongoTemplate;
+
+    private ScheduledExecutorService scheduler;
+
+    private ScheduledFuture<?> pendingRefresh;
+
+    @PostConstruct
+    public void init() {
+        scheduler = ThreadUtil.createScheduledExecutor(1);
+        if (!Files.exists(getSitemapDir().resolve(SITEMAP_XML))) {
+            refresh();
+        }
+    }
+
+    @PreDestroy
+    public void destroy() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+        }
+    }
+
+    /**
+     * 文章或网站设置修改后重新生成站点地图
+     */
+    public synchronized void refresh() {
+        if (pendingRefresh != null) {
+            // 还未开始的生成任务取消后重新计时, 正在生成的任务不中断, 结束后会再生成一次
+            pendingRefresh.cancel(false);
+        }
+        pendingRefresh = scheduler.schedule(this::generate, REFRESH_DELAY, TimeUnit.SECONDS);
+    }
+
+    /**
+     * 输出站点地图文件
+     *
+     * @param name     文件名, sitemap.xml, sitemap.txt, sitemap-N.xml, sitemap-N.txt
+     * @param request  HttpServletRequest
+     * @param response HttpServletResponse
+     */
+    public void write(String name, HttpServletRequest request, HttpServletResponse response) throws IOException {
+        Path file = SITEMAP_NAME.matcher(name).matches() ? getSitemapDir().resolve(name) : null;
+        if (file == null || !Files.exists(file)) {
+            if (file != null && !Files.exists(getSitemapDir().resolve(SITEMAP_XML))) {
+                // 缓存目录被删除, 重新生成
+                refresh();
+            }
+            response.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return;
+        }
+        long lastModified = Files.getLastModifiedTime(file).toMillis();
+        response.setHeader(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING);
+        if (new ServletWebRequest(request, response).checkNotModified(lastModified)) {
+            return;
+        }
+        response.setContentType(name.endsWith(".xml") ? "application/xml;charset=UTF-8" : "text/plain;charset=UTF-8");
+        Path gzipFile = file.resolveSibling(name + GZIP_SUFFIX);
+        String acceptEncoding = request.getHeader(HttpHeaders.ACCEPT_ENCODING);
+        if (acceptEncoding != null && acceptEncoding.contains("gzip") && Files.exists(gzipFile)) {
+            response.setHeader(HttpHeaders.CONTENT_ENCODING, "gzip");
+            file = gzipFile;
+        }
+        response.setContentLengthLong(Files.size(file));
+        Files.copy(file, response.getOutputStream());
+    }
+
+    /**
+     * 生成站点地图, 先写入临时目录, 全部完成后再替换
+     */
+    private void generate() {
+        long start = System.currentTimeMillis();
+        Path sitemapDir = getSitemapDir();
+        Path tempDir = sitemapDir.resolveSibling(sitemapDir.getFileName() + ".tmp");
+        try {
+            FileUtil.del(tempDir);
+            Files.createDirectories(tempDir);
+            String siteUrl = getSiteUrl();
+            int total = 0;
+            int shards = 0;
+            ShardWriter shardWriter = null;
+            try (Stream<FileDocument> stream = mongoTemplate.stream(getQuery(), FileDocument.class, CommonFileService.COLLECTION_NAME)) {
+                for (FileDocument fileDocument : (Iterable<FileDocument>) stream::iterator) {
+                    if (shardWriter == null || shardWriter.count >= MAX_URLS) {
+                        if (shardWriter != null) {
+                            shardWriter.close();
+                        }
+                        shards++;
+                        shardWriter = new ShardWriter(tempDir, "sitemap-" + shards);
+                    }
+                    shardWriter.write(getUrl(siteUrl, fileDocument), fileDocument);
+                    total++;
+                }
+            } finally {
+                if (shardWriter != null) {
+                    shardWriter.close();
+                }
+            }
+            if (shards <= 1) {
+                // 只有一个文件时不需要索引
+                Path xml = tempDir.resolve("sitemap-1.xml");
+                if (shards == 0) {
+                    new ShardWriter(tempDir, "sitemap-1").close();
+                }
+                Files.move(xml, tempDir.resolve(SITEMAP_XML));
+                Files.move(tempDir.resolve("sitemap-1.txt"), tempDir.resolve(SITEMAP_TXT));
+                Files.move(tempDir.resolve("sitemap-1.xml" + GZIP_SUFFIX), tempDir.resolve(SITEMAP_XML + GZIP_SUFFIX));
+                Files.move(tempDir.resolve("sitemap-1.txt" + GZIP_SUFFIX), tempDir.resolve(SITEMAP_TXT + GZIP_SUFFIX));
+            } else {
+                writeIndex(tempDir, siteUrl, shards);
+            }
+            replaceDir(tempDir, sitemapDir);
+            log.info("站点地图生成完成, url数: {}, 文件数: {}, 耗时: {}ms", total, Math.max(shards, 1), System.currentTimeMillis() - start);
+        } catch (Exception e) {
+            log.error("站点地图生成失败: {}", e.getMessage(), e);
+            FileUtil.del(tempDir);
+        }
+    }
+
+    /**
+     * sitemap.xml 为 sitemapindex, txt 格式没有索引, sitemap.txt 为第一个分片
+     */
+    private void writeIndex(Path tempDir, String siteUrl, int shards) throws IOException {
+        String today = LocalDateTimeUtil.format(LocalDate.now(), "yyyy-MM-dd");
+        try (Writer writer = new MultiWriter(tempDir.resolve(SITEMAP_XML))) {
+            writer.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+            writer.write("<sitemapindex xmlns=\"http://www.sitemaps.org/schemas/sitemap/0.9\">\n");
+            for (int i = 1; i <= shards; i++) {
+                writer.write("<sitemap><loc>" + escapeXml(siteUrl + "/sitemap-" + i + ".xml") + "</loc><lastmod>" + today + "</lastmod></sitemap>\n");
+            }
+            writer.write("</sitemapindex>\n");
+        }
+        Files.copy(tempDir.resolve("sitemap-1.txt"), tempDir.resolve(SITEMAP_TXT));
+        Files.copy(tempDir.resolve("sitemap-1.txt" + GZIP_SUFFIX), tempDir.resolve(SITEMAP_TXT + GZIP_SUFFIX));
+    }
+
+    private static void replaceDir(Path tempDir, Path sitemapDir) throws IOException {
+        Files.createDirectories(sitemapDir);
+        List<Path> newFiles;
+        try (Stream<Path> list = Files.list(tempDir)) {
+            newFiles = list.toList();
+        }
+        for (Path newFile : newFiles) {
+            Files.move(newFile, sitemapDir.resolve(newFile.getFileName()), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        // 删除多余的旧分片
+        List<Path> oldFiles;
+        try (Stream<Path> list = Files.list(sitemapDir)) {
+            oldFiles = list.filter(path -> newFiles.stream().noneMatch(newFile -> newFile.getFileName().equals(path.getFileName()))).toList();
+        }
+        for (Path oldFile : oldFiles) {
+            Files.deleteIfExists(oldFile);
+        }
+        FileUtil.del(tempDir);
+    }
+
+    private static Query getQuery() {
+        Query query = new Query();
+        query.addCriteria(Criteria.where(Constants.SUFFIX).is("md"));
+        query.addCriteria(Criteria.where(Constants.RELEASE).is(true));
+        query.fields().include("slug").include(Constants.ALONE_PAGE).include("updateDate");
+        return query;
+    }
+
+    private static String getUrl(String siteUrl, FileDocument fileDocument) {
+        String prefix = Boolean.TRUE.equals(fileDocument.getAlonePage()) ? "/o/" : "/s/";
+        String slug = fileDocument.getSlug();
+        if (CharSequenceUtil.isBlank(slug)) {
+            slug = fileDocument.getId();
+        }
+        return siteUrl + prefix + slug;
+    }
+
+    private String getSiteUrl() {
+        // 不依赖 SettingService, 网站设置修改时由 SettingService 触发重新生成
+        Query query = new Query();
+        query.fields().include("siteUrl");
+        WebsiteSettingDO websiteSettingDO = mongoTemplate.findOne(query, WebsiteSettingDO.class, SettingService.COLLECTION_NAME_WEBSITE_SETTING);
+        String siteUrl = websiteSettingDO == null ? null : websiteSettingDO.getSiteUrl();
+        if (siteUrl == null) {
+            return "";
+        }
+        if (siteUrl.endsWith("/")) {
+            siteUrl = siteUrl.substring(0, siteUrl.length() - 1);
+        }
+        return siteUrl;
+    }
+
+    private Path getSitemapDir() {
+        return Paths.get(fileProperties.getRootDir(), fileProperties.getChunkFileDir(), fileProperties.getSitemapCache());
+    }
+
+    private static String escapeXml(String text) {
+        StringBuilder sb = new StringBuilder(text.length());
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            switch (c) {
+                case '&' -> sb.append("&amp;");
+                case '<' -> sb.append("&lt;");
+                case '>' -> sb.append("&gt;");
+                case '"' -> sb.append("&quot;");
+                case '\'' -> sb.append("&apos;");
+                default -> sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * 一个分片的 xml 和 txt 文件
+     */
+    private static class ShardWriter implements Closeable {
+        private final Writer xmlWriter;
+        private final Writer txtWriter;
+        private int count;
+
+        ShardWriter(Path dir, String name) throws IOException {
+            xmlWriter = new MultiWriter(dir.resolve(name + ".xml"));
+            txtWriter = new MultiWriter(dir.resolve(name + ".txt"));
+            xmlWriter.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+            xmlWriter.write("<urlset xmlns=\"http://www.sitemaps.org/schemas/sitemap/0.9\">\n");
+        }
+
+        void write(String url, FileDocument fileDocument) throws IOException {
+            xmlWriter.write("<url><loc>");
+            xmlWriter.write(escapeXml(url));
+            xmlWriter.write("</loc>");
+            if (fileDocument.getUpdateDate() != null) {
+                xmlWriter.write("<lastmod>");
+                xmlWriter.write(LocalDateTimeUtil.format(fileDocument.getUpdateDate(), "yyyy-MM-dd"));
+                xmlWriter.write("</lastmod>");
+            }
+            xmlWriter.write("</url>\n");
+            txtWriter.write(url);
+            txtWriter.write("\r\n");
+            count++;
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                xmlWriter.write("</urlset>\n");
+                xmlWriter.close();
+            } finally {
+                txtWriter.close();
+            }
+        }
+    }
+
+    /**
+     * 同时写入原文件和 .gz 文件
+     */
+    private static class MultiWriter extends Writer {
+        private final Writer writer;
+
+        MultiWriter(Path file) throws IOException {
+            OutputStream plain = new BufferedOutputStream(Files.newOutputStream(file));
+            OutputStream gzip = new GZIPOutputStream(new BufferedOutputStream(Files.newOutputStream(file.resolveSibling(file.getFileName() + GZIP_SUFFIX))));
+            writer = new BufferedWriter(new OutputStreamWriter(new TeeOutputStream(plain, gzip), StandardCharsets.UTF_8));
+        }
+
+        @Override
+        public void write(char[] cbuf, int off, int len) throws IOException {
+            writer.write(cbuf, off, len);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            writer.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            writer.close();
+        }
+    }
+
+    private static class TeeOutputStream extends OutputStream {
+        private final List<OutputStream> outs = new ArrayList<>(2);
+
+        TeeOutputStream(OutputStream... outs) {
+            this.outs.addAll(List.of(outs));
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            for (OutputStream out : outs) {
+                out.write(b);
+            }
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            for (OutputStream out : outs) {
+                out.write(b, off, len);
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            for (OutputStream out : outs) {
+                out.flush();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            IOException exception = null;
+            for (OutputStream out : outs) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    exception = e;
+                }
+            }
+            if (exception != null) {
+                throw exception;
+            }
+        }
+    }
+}
@@ -5,7 +5,6 @@ import cn.hutool.core.util.StrUtil;
 import com.jmal.clouddisk.model.Tag;
 import com.jmal.clouddisk.model.TagDO;
 import com.jmal.clouddisk.model.TagDTO;
-import com.jmal.clouddisk.service.Constants;
 import com.jmal.clouddisk.service.IUserService;
 import com.jmal.clouddisk.util.MongoUtil;
 import com.jmal.clouddisk.util.ResponseResult;
@@ -22,6 +21,7 @@ import org.springframework.stereotype.Service;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
 import java.util.stream.Collectors;
 
 /**
@@ -35,6 +35,10 @@ public class TagService {
 
     private final MongoTemplate mongoTemplate;
 
+    private final ArticlePageCache articlePageCache;
+
+    private final ArticleCountService articleCountService;
+
     private static final String COLLECTION_NAME = "tag";
 
 
@@ -60,27 +64,17 @@ public class TagService {
     public List<TagDTO> listTagsOfArticle() {
         Query query = getQueryUserId(null);
         List<TagDO> tagList = mongoTemplate.find(query, TagDO.class, COLLECTION_NAME);
-        return tagList.parallelStream().map(tag -> {
+        Map<String, Long> tagCounts = articleCountService.getTagCounts();
+        return tagList.stream().map(tag -> {
             TagDTO tagDTO = new TagDTO();
             BeanUtils.copyProperties(tag, tagDTO);
-            getTagArticlesNum(tagDTO);
+            tagDTO.setArticleNum(tagCounts.getOrDefault(tag.getId(), 0L));
             tagDTO.setFontSize(Math.round(Math.log(tagDTO.getArticleNum() * 5d) * 10d));
             tagDTO.setColor("rgb(" + Math.round(Math.random() * 100 + 80) + "," + Math.round(Math.random() * 100 + 80) + "," + Math.round(Math.random() * 100 + 80) + ")");
             return tagDTO;
         }).filter(tag -> tag.getArticleNum() > 0).sorted().toList();
     }
 
-    /***
-     * 获取标签的文章数
-     * @param tagDTO tagDTO
-     */
-    private void getTagArticlesNum(TagDTO tagDTO) {
-        Query query = new Query();
-        query.addCriteria(Criteria.where(Constants.TAG_IDS).is(tagDTO.getId()));
-        query.addCriteria(Criteria.where(Constants.RELEASE).is(true));
-        tagDTO.setArticleNum(mongoTemplate.count(query, CommonFileService.COLLECTION_NAME));
-    }
-
     /***
      * 获取查询条件
      * @param userId userId
@@ -149,6 +143,7 @@ public class TagService {
         BeanUtils.copyProperties(tagDTO, tag);
         tag.setId(null);
         mongoTemplate.save(tag, COLLECTION_NAME);
+        articlePageCache.invalidate(ArticlePageCache.TAG_LIST);
         return ResultUtil.success();
     }
 
@@ -180,6 +175,7 @@ public class TagService {
         query.addCriteria(Criteria.where("_id").is(tagDTO.getId()));
         Update update = MongoUtil.getUpdate(tag);
         mongoTemplate.upsert(query, update, COLLECTION_NAME);
+        articlePageCache.invalidate(ArticlePageCache.TAG_LIST, ArticlePageCache.TAG_TAG_PREFIX + tagDTO.getId());
         return ResultUtil.success();
     }
 
@@ -208,6 +204,11 @@ public class TagService {
         Query query = new Query();
         query.addCriteria(Criteria.where("_id").in(tagIdList));
         mongoTemplate.remove(query, COLLECTION_NAME);
+        List<String> tags = new ArrayList<>();
+        tags.add(ArticlePageCache.TAG_LIST);
+        tagIdList.forEach(tagId -> tags.add(ArticlePageCache.TAG_TAG_PREFIX + tagId));
+        articlePageCache.invalidate(tags.toArray(new String[0]));
+        articleCountService.remove(ArticleCountService.TYPE_TAG, tagIdList);
     }
 
     /**
@@ -0,0 +1,383 @@
+package com.jmal.clouddisk.service.impl;
+
+import cn.hutool.core.thread.ThreadUtil;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.jmal.clouddisk.config.FileProperties;
+import com.jmal.clouddisk.service.Constants;
+import com.jmal.clouddisk.util.TimeUntils;
+import com.mongodb.client.AggregateIterable;
+import com.mongodb.client.model.Accumulators;
+import com.mongodb.client.model.Filters;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.stereotype.Service;
+
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import static com.mongodb.client.model.Aggregates.group;
+import static com.mongodb.client.model.Aggregates.match;
+
+/**
+ * 文章访问量计数
+ * <p>
+ * 访问量先累加到内存中的 LongAdder, 定时通过 $inc 批量写入 articleVisits 集合, 不再每次 count 日志集合<br>
+ * 首次启动时从历史日志回填一次, 回填的值用 $set 写入单独的 history 字段, 重复执行也不会重复计数<br>
+ * 可选按天统计(articleVisitsDaily)用于趋势图
+ * </p>
+ *
+ * @author jmal
+ */
+@Service
+@Slf4j
+@RequiredArgsConstructor
+public class VisitCounterService {
+
+    public static final String COLLECTION_NAME = "articleVisits";
+
+    public static final String DAILY_COLLECTION_NAME = "articleVisitsDaily";
+
+    /**
+     * 回填完成的标记
+     */
+    private static final String BACKFILL_MARKER_ID = "__backfill__";
+
+    private static final String VISITS = "visits";
+
+    /**
+     * 回填的历史访问量
+     */
+    private static final String HISTORY = "history";
+
+    /**
+     * 需要计数的url前缀
+     */
+    private static final List<String> COUNTED_URL_PREFIX = List.of("/articles/s/", "/articles/o/");
+
+    /**
+     * 刷新间隔(秒)
+     */
+    private static final long FLUSH_INTERVAL = 5;
+
+    private static final DateTimeFormatter DATE_FORMATTER = DateTimeFormatter.ofPattern("yyyy-MM-dd");
+
+    private final MongoTemplate mongoTemplate;
+
+    private final FileProperties fileProperties;
+
+    /**
+     * 内存中的计数, 增量写入数据库后移除
+     * key: url
+     */
+    private final Map<String, Counter> counters = new ConcurrentHashMap<>();
+
+    /**
+     * 内存中按天的计数
+     * key: url|yyyy-MM-dd
+     */
+    private final Map<String, Counter> dailyCounters = new ConcurrentHashMap<>();
+
+    /**
+     * 已写入数据库的访问量缓存
+     * key: url
+     */
+    private final Cache<String, Long> persistedCache = Caffeine.newBuilder().maximumSize(10000).expireAfterWrite(10, TimeUnit.MINUTES).build();
+
+    private ScheduledExecutorService scheduler;
+
+    /**
+     * 首次回填时只统计该时间之前的日志, 之后的访问由内存计数负责
+     */
+    private LocalDateTime backfillBefore;
+
+    @PostConstruct
+    public void init() {
+        backfillBefore = LocalDateTime.now(TimeUntils.ZONE_ID);
+        scheduler = ThreadUtil.createScheduledExecutor(1);
+        scheduler.execute(this::backfill);
+        scheduler.scheduleWithFixedDelay(this::flush, FLUSH_INTERVAL, FLUSH_INTERVAL, TimeUnit.SECONDS);
+    }
+
+    @PreDestroy
+    public void destroy() {
+        if (scheduler != null) {
+            scheduler.shutdown();
+        }
+        flush();
+    }
+
+    /**
+     * 访问量+1
+     *
+     * @param url 请求地址
+     */
+    public void increment(String url) {
+        if (!isCounted(url)) {
+            return;
+        }
+        add(counters, url, 1);
+        if (Boolean.TRUE.equals(fileProperties.getVisitDailyBuckets())) {
+            String day = LocalDate.now(TimeUntils.ZONE_ID).format(DATE_FORMATTER);
+            add(dailyCounters, url + "|" + day, 1);
+        }
+    }
+
+    /**
+     * 在 compute 中累加, 和 prune 中的移除互斥, 不会累加到已移除的计数器上
+     */
+    private static void add(Map<String, Counter> counterMap, String key, long value) {
+        counterMap.compute(key, (k, counter) -> {
+            if (counter == null) {
+                counter = new Counter();
+            }
+            counter.adder.add(value);
+            return counter;
+        });
+    }
+
+    /**
+     * 移除增量已全部写入数据库的计数器, 避免访问过的url一直留在内存中
+     */
+    private static void prune(Map<String, Counter> counterMap) {
+        for (String key : counterMap.keySet()) {
+            counterMap.computeIfPresent(key, (k, counter) -> counter.pending() == 0 ? null : counter);
+        }
+    }
+
+    /**
+     * 获取url的访问次数
+     *
+     * @param url url
+     * @return 访问次数
+     */
+    public long getVisits(String url) {
+        Long persisted = persistedCache.get(url, this::loadVisits);
+        Counter counter = counters.get(url);
+        long pending = counter == null ? 0 : counter.pending();
+        return (persisted == null ? 0 : persisted) + pending;
+    }
+
+    /**
+     * 按天获取url的访问次数
+     *
+     * @param url  url
+     * @param days 最近天数
+     * @return key: yyyy-MM-dd, value: 访问次数
+     */
+    public Map<String, Long> getDailyVisits(String url, int days) {
+        Map<String, Long> result = new LinkedHashMap<>();
+        LocalDate today = LocalDate.now(TimeUntils.ZONE_ID);
+        List<String> dayList = new ArrayList<>(days);
+        for (int i = days - 1; i >= 0; i--) {
+            String day = today.minusDays(i).format(DATE_FORMATTER);
+            dayList.add(day);
+            result.put(day, 0L);
+        }
+        Query query = new Query();
+        query.addCriteria(Criteria.where("url").is(url).and("date").in(dayList));
+        for (Document document : mongoTemplate.find(query, Document.class, DAILY_COLLECTION_NAME)) {
+            result.put(document.getString("date"), getLong(document, VISITS) + getLong(document, HISTORY));
+        }
+        for (String day : dayList) {
+            Counter counter = dailyCounters.get(url + "|" + day);
+            if (counter != null) {
+                result.merge(day, counter.pending(), Long::sum);
+            }
+        }
+        return result;
+    }
+
+    private static boolean isCounted(String url) {
+        if (url == null) {
+            return false;
+        }
+        for (String prefix : COUNTED_URL_PREFIX) {
+            if (url.startsWith(prefix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private Long loadVisits(String url) {
+        Document document = mongoTemplate.findById(url, Document.class, COLLECTION_NAME);
+        if (document == null) {
+            return 0L;
+        }
+        return getLong(document, VISITS) + getLong(document, HISTORY);
+    }
+
+    private static long getLong(Document document, String key) {
+        Number value = document.get(key, Number.class);
+        return value == null ? 0 : value.longValue();
+    }
+
+    /**
+     * 把内存中的增量通过 $inc 批量写入
+     */
+    private synchronized void flush() {
+        Map<String, Long> deltas = takeDeltas(counters);
+        if (!deltas.isEmpty()) {
+            try {
+                BulkOperations bulkOperations = mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, COLLECTION_NAME);
+                deltas.forEach((url, delta) -> bulkOperations.upsert(Query.query(Criteria.where("_id").is(url)), new Update().inc(VISITS, delta)));
+                bulkOperations.execute();
+                // 写入后内存中已不再包含这部分增量, 缓存的值要同步增加
+                deltas.forEach((url, delta) -> persistedCache.asMap().computeIfPresent(url, (key, value) -> value + delta));
+            } catch (Exception e) {
+                restoreDeltas(counters, deltas);
+                log.error("访问量写入失败: {}", e.getMessage());
+            }
+        }
+        Map<String, Long> dailyDeltas = takeDeltas(dailyCounters);
+        if (!dailyDeltas.isEmpty()) {
+            try {
+                BulkOperations bulkOperations = mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, DAILY_COLLECTION_NAME);
+                dailyDeltas.forEach((key, delta) -> {
+                    int index = key.lastIndexOf('|');
+                    Update update = new Update().inc(VISITS, delta).set("url", key.substring(0, index)).set("date", key.substring(index + 1));
+                    bulkOperations.upsert(Query.query(Criteria.where("_id").is(key)), update);
+                });
+                bulkOperations.execute();
+            } catch (Exception e) {
+                restoreDeltas(dailyCounters, dailyDeltas);
+                log.error("按天访问量写入失败: {}", e.getMessage());
+            }
+        }
+        prune(counters);
+        prune(dailyCounters);
+    }
+
+    /**
+     * 写入失败, 把增量加回去等待下次刷新
+     */
+    private static void restoreDeltas(Map<String, Counter> counterMap, Map<String, Long> deltas) {
+        deltas.forEach((key, delta) -> add(counterMap, key, delta));
+    }
+
+    private static Map<String, Long> takeDeltas(Map<String, Counter> counterMap) {
+        Map<String, Long> deltas = new HashMap<>();
+        counterMap.forEach((key, counter) -> {
+            long delta = counter.take();
+            if (delta > 0) {
+                deltas.put(key, delta);
+            }
+        });
+        return deltas;
+    }
+
+    /**
+     * 从历史日志回填一次访问量, 只统计首次启动之前的日志
+     * <p>
+     * 先插入回填标记, 标记中记录统计的截止时间, _id 唯一保证所有节点使用第一个插入的截止时间<br>
+     * 标记未完成时任何节点启动都会(重新)执行回填, 多个节点可能同时执行, 但回填的值按同一截止时间用 $set 写入 history 字段,
+     * 重复执行或中途失败后重新执行都不会重复计数
+     * </p>
+     */
+    private void backfill() {
+        try {
+            Document marker = claimBackfill();
+            if (Boolean.TRUE.equals(marker.getBoolean("done"))) {
+                return;
+            }
+            long start = System.currentTimeMillis();
+            Bson filter = Filters.and(
+                    Filters.regex("url", "^/articles/(s|o)/"),
+                    Filters.lt(Constants.CREATE_TIME, marker.getDate("time")));
+            AggregateIterable<Document> totals = mongoTemplate.getCollection("log").aggregate(List.of(
+                    match(filter),
+                    group("$url", Accumulators.sum(VISITS, 1))
+            )).allowDiskUse(true);
+            BulkOperations bulkOperations = mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, COLLECTION_NAME);
+            int count = 0;
+            for (Document document : totals) {
+                bulkOperations.upsert(Query.query(Criteria.where("_id").is(document.getString("_id"))),
+                        new Update().set(HISTORY, document.get(VISITS, Number.class).longValue()));
+                count++;
+            }
+            if (count > 0) {
+                bulkOperations.execute();
+            }
+            if (Boolean.TRUE.equals(fileProperties.getVisitDailyBuckets())) {
+                backfillDaily(filter);
+            }
+            mongoTemplate.updateFirst(Query.query(Criteria.where("_id").is(BACKFILL_MARKER_ID)), new Update().set("done", true), COLLECTION_NAME);
+            persistedCache.invalidateAll();
+            log.info("文章访问量回填完成, url数: {}, 耗时: {}ms", count, System.currentTimeMillis() - start);
+        } catch (Exception e) {
+            log.error("文章访问量回填失败: {}", e.getMessage(), e);
+        }
+    }
+
+    /**
+     * 插入回填标记, 已存在时返回已有的标记(可能是其他节点正在执行或中途失败的)
+     */
+    private Document claimBackfill() {
+        Document marker = new Document("_id", BACKFILL_MARKER_ID).append("time", Date.from(backfillBefore.atZone(TimeUntils.ZONE_ID).toInstant())).append("done", false);
+        try {
+            mongoTemplate.insert(marker, COLLECTION_NAME);
+            return marker;
+        } catch (DuplicateKeyException e) {
+            return mongoTemplate.findById(BACKFILL_MARKER_ID, Document.class, COLLECTION_NAME);
+        }
+    }
+
+    private void backfillDaily(Bson filter) {
+        Document dateToString = new Document("$dateToString", new Document("format", "%Y-%m-%d")
+                .append("date", "$" + Constants.CREATE_TIME)
+                .append("timezone", TimeUntils.ZONE_ID.getId()));
+        AggregateIterable<Document> daily = mongoTemplate.getCollection("log").aggregate(List.of(
+                match(filter),
+                group(new Document("url", "$url").append("date", dateToString), Accumulators.sum(VISITS, 1))
+        )).allowDiskUse(true);
+        BulkOperations bulkOperations = mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, DAILY_COLLECTION_NAME);
+        int count = 0;
+        for (Document document : daily) {
+            Document id = document.get("_id", Document.class);
+            String url = id.getString("url");
+            String date = id.getString("date");
+            Update update = new Update().set(HISTORY, document.get(VISITS, Number.class).longValue()).set("url", url).set("date", date);
+            bulkOperations.upsert(Query.query(Criteria.where("_id").is(url + "|" + date)), update);
+            count++;
+        }
+        if (count > 0) {
+            bulkOperations.execute();
+        }
+    }
+
+    /**
+     * 计数器, 通过记录已写入的值计算增量, 刷新时不会丢失并发的累加
+     */
+    private static class Counter {
+        private final LongAdder adder = new LongAdder();
+        private volatile long flushed;
+
+        long pending() {
+            return Math.max(0, adder.sum() - flushed);
+        }
+
+        long take() {
+            long sum = adder.sum();
+            long delta = sum - flushed;
+            flushed = sum;
+            return delta;
+        }
+    }
+}
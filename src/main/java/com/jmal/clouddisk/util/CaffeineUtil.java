@@ -3,6 +3,7 @@ package com.jmal.clouddisk.util;
 import cn.hutool.core.util.URLUtil;
 import com.github.benmanes.caffeine.cache.Cache;
 import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
 import com.jmal.clouddisk.model.rbac.ConsumerDO;
 import com.jmal.clouddisk.oss.BucketInfo;
 import com.jmal.clouddisk.webdav.MyWebdavServlet;
@@ -11,7 +12,9 @@ import org.springframework.stereotype.Component;
 
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.Lock;
@@ -34,7 +37,7 @@ public class CaffeineUtil {
      * key: 路径前缀，例如：/jmal/aliyunStorage ,其中jmal为用户名,aliyunStorage 为oss存储的挂载文件夹名称，由用户自定义
      * value: BucketInfo
      */
-    private static final Cache<String, BucketInfo> OSS_DIAMETER_PREFIX_CACHE = Caffeine.newBuilder().build();
+    private static final Cache<String, BucketInfo> OSS_DIAMETER_PREFIX_CACHE = Caffeine.newBuilder().recordStats().build();
 
     private static final Cache<String, Long> LAST_ACCESS_TIME_CACHE = Caffeine.newBuilder().build();
 
@@ -43,12 +46,17 @@ public class CaffeineUtil {
      */
     private static final Cache<String, String> SPACE_FULL = Caffeine.newBuilder().build();
 
+    /**
+     * 用户相关缓存的最大条数
+     */
+    private static final long USER_CACHE_MAXIMUM_SIZE = 10000;
+
     /***
      * 用户信息缓存
      * key: username
      * value: ConsumerDO 用户信息
      */
-    public static final Cache<String, ConsumerDO> CONSUMER_USERNAME = Caffeine.newBuilder().build();
+    public static final Cache<String, ConsumerDO> CONSUMER_USERNAME = Caffeine.newBuilder().maximumSize(USER_CACHE_MAXIMUM_SIZE).recordStats().build();
 
     /***
      * 已上传的分片索引
@@ -80,21 +88,21 @@ public class CaffeineUtil {
      * key: username
      * value: 权限标识列表
      */
-    private static final Cache<String, List<String>> AUTHORITIES_CACHE = Caffeine.newBuilder().build();
+    private static final Cache<String, List<String>> AUTHORITIES_CACHE = Caffeine.newBuilder().maximumSize(USER_CACHE_MAXIMUM_SIZE).recordStats().build();
 
     /**
      * 缓存userId
      * key: username
      * value: userId
      */
-    private static final Cache<String, String> USER_ID_CACHE = Caffeine.newBuilder().build();
+    private static final Cache<String, String> USER_ID_CACHE = Caffeine.newBuilder().maximumSize(USER_CACHE_MAXIMUM_SIZE).recordStats().build();
 
     /**
      * 缓存username
      * key: userId
      * value: username
      */
-    private static final Cache<String, String> USERNAME_CACHE = Caffeine.newBuilder().build();
+    private static final Cache<String, String> USERNAME_CACHE = Caffeine.newBuilder().maximumSize(USER_CACHE_MAXIMUM_SIZE).recordStats().build();
 
     public static List<String> getAuthoritiesCache(String username) {
         return AUTHORITIES_CACHE.getIfPresent(username);
@@ -276,6 +284,78 @@ public class CaffeineUtil {
         THUMBNAIL_REQUEST_CACHE.put(id, true);
     }
 
+    /**
+     * 删除用户相关的所有缓存
+     * @param userId userId, 可以为null
+     * @param username username, 可以为null
+     */
+    public static void invalidateUser(String userId, String username) {
+        if (userId != null) {
+            String cachedUsername = USERNAME_CACHE.getIfPresent(userId);
+            if (cachedUsername != null && !cachedUsername.equals(username)) {
+                // 用户名被修改过, 旧用户名的缓存也要删除
+                invalidateUsername(cachedUsername);
+            }
+            CONSUMER_USERNAME.asMap().forEach((name, consumerDO) -> {
+                if (userId.equals(consumerDO.getId())) {
+                    invalidateUsername(name);
+                }
+            });
+            USERNAME_CACHE.invalidate(userId);
+        }
+        if (username != null) {
+            invalidateUsername(username);
+        }
+    }
+
+    private static void invalidateUsername(String username) {
+        CONSUMER_USERNAME.invalidate(username);
+        AUTHORITIES_CACHE.invalidate(username);
+        USER_ID_CACHE.invalidate(username);
+    }
+
+    /**
+     * 删除所有用户的权限缓存, 角色或菜单变化时使用
+     */
+    public static void invalidateAllAuthorities() {
+        AUTHORITIES_CACHE.invalidateAll();
+    }
+
+    /**
+     * 删除所有用户相关的缓存
+     */
+    public static void invalidateAllUsers() {
+        CONSUMER_USERNAME.invalidateAll();
+        AUTHORITIES_CACHE.invalidateAll();
+        USER_ID_CACHE.invalidateAll();
+        USERNAME_CACHE.invalidateAll();
+    }
+
+    /**
+     * 缓存统计信息
+     * @return key: 缓存名称, value: 条数, 命中/未命中次数, 命中率, 淘汰次数
+     */
+    public static Map<String, Map<String, Object>> stats() {
+        Map<String, Map<String, Object>> stats = new LinkedHashMap<>();
+        stats.put("consumerUsername", stats(CONSUMER_USERNAME));
+        stats.put("authorities", stats(AUTHORITIES_CACHE));
+        stats.put("userId", stats(USER_ID_CACHE));
+        stats.put("username", stats(USERNAME_CACHE));
+        stats.put("ossDiameterPrefix", stats(OSS_DIAMETER_PREFIX_CACHE));
+        return stats;
+    }
+
+    private static Map<String, Object> stats(Cache<?, ?> cache) {
+        CacheStats cacheStats = cache.stats();
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("size", cache.estimatedSize());
+        map.put("hitCount", cacheStats.hitCount());
+        map.put("missCount", cacheStats.missCount());
+        map.put("hitRate", cacheStats.hitRate());
+        map.put("evictionCount", cacheStats.evictionCount());
+        return map;
+    }
+
     public static String getUsernameCache(String userId) {
         return USERNAME_CACHE.getIfPresent(userId);
     }
@@ -0,0 +1,181 @@
+package com.jmal.clouddisk.util;
+
+import cn.hutool.core.io.FileUtil;
+import cn.hutool.core.io.file.PathUtil;
+import cn.hutool.core.util.StrUtil;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 复制文件/目录
+ * <p>
+ * 优先使用 reflink(FICLONE, btrfs/XFS 等写时复制的文件系统), 只复制元数据, 不复制数据块<br>
+ * 文件系统不支持时改用 FileChannel.transferTo 流式复制(内核内复制, 不经过堆内存)<br>
+ * 每个文件系统只探测一次是否支持 reflink, 只有 EOPNOTSUPP/EXDEV 才记为不支持, 其他错误(权限, 空间不足等)只对本次复制改用流式复制
+ * </p>
+ *
+ * @author jmal
+ */
+@Slf4j
+public class FileCloneUtil {
+
+    private static final boolean LINUX = System.getProperty("os.name", "").toLowerCase().startsWith("linux");
+
+    /**
+     * 文件系统是否支持 reflink
+     */
+    private static final Map<FileStore, Boolean> REFLINK_SUPPORTED = new ConcurrentHashMap<>();
+
+    private static final long REFLINK_TIMEOUT_MINUTES = 30;
+
+    /**
+     * EOPNOTSUPP, EXDEV 的错误信息
+     */
+    private static final String[] UNSUPPORTED_MESSAGES = {"Operation not supported", "Invalid cross-device link"};
+
+    /**
+     * 最多读取的 cp 错误信息长度
+     */
+    private static final int MAX_MESSAGE_LENGTH = 8192;
+
+    private FileCloneUtil() {
+    }
+
+    /**
+     * 复制文件或目录
+     *
+     * @param source 源文件/目录
+     * @param target 目标文件/目录, 不能已存在
+     */
+    public static void copy(Path source, Path target) throws IOException {
+        if (Files.exists(target, LinkOption.NOFOLLOW_LINKS)) {
+            throw new FileAlreadyExistsException(target.toString());
+        }
+        FileStore fileStore = Files.getFileStore(source);
+        // 跨文件系统不能 reflink
+        boolean sameStore = fileStore.equals(Files.getFileStore(target.getParent()));
+        if (LINUX && sameStore && !Boolean.FALSE.equals(REFLINK_SUPPORTED.get(fileStore))) {
+            ReflinkResult result = reflink(source, target);
+            if (result == ReflinkResult.CLONED) {
+                REFLINK_SUPPORTED.put(fileStore, true);
+                return;
+            }
+            if (result == ReflinkResult.UNSUPPORTED && REFLINK_SUPPORTED.putIfAbsent(fileStore, false) == null) {
+                log.info("{} 不支持 reflink, 使用流式复制", fileStore);
+            }
+            // reflink 失败时可能已复制了一部分
+            PathUtil.del(target);
+        }
+        streamCopy(source, target);
+    }
+
+    private enum ReflinkResult {
+        /**
+         * 复制成功
+         */
+        CLONED,
+        /**
+         * 文件系统不支持 reflink
+         */
+        UNSUPPORTED,
+        /**
+         * 其他错误
+         */
+        FAILED
+    }
+
+    /**
+     * cp --reflink=always, 不支持时直接失败, 不会退化为普通复制
+     * <p>
+     * cp 的退出码都是1, 按错误信息区分不支持 reflink 和其他错误, 用 LC_ALL=C 固定为英文
+     * </p>
+     */
+    private static ReflinkResult reflink(Path source, Path target) {
+        ProcessBuilder processBuilder = new ProcessBuilder("cp", "-R", "-T", "--reflink=always", "--preserve=timestamps",
+                source.toString(), target.toString());
+        processBuilder.environment().put("LC_ALL", "C");
+        processBuilder.redirectErrorStream(true);
+        File output = null;
+        try {
+            output = File.createTempFile("reflink", ".log");
+            processBuilder.redirectOutput(output);
+            Process process = processBuilder.start();
+            if (!process.waitFor(REFLINK_TIMEOUT_MINUTES, TimeUnit.MINUTES)) {
+                process.destroyForcibly();
+                return ReflinkResult.FAILED;
+            }
+            if (process.exitValue() == 0) {
+                return ReflinkResult.CLONED;
+            }
+            String message = readHead(output);
+            if (StrUtil.containsAny(message, UNSUPPORTED_MESSAGES)) {
+                return ReflinkResult.UNSUPPORTED;
+            }
+            log.warn("reflink 失败, 改用流式复制, {} -> {}, {}", source, target, StrUtil.trim(message));
+            return ReflinkResult.FAILED;
+        } catch (IOException e) {
+            return ReflinkResult.FAILED;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return ReflinkResult.FAILED;
+        } finally {
+            if (output != null) {
+                FileUtil.del(output);
+            }
+        }
+    }
+
+    private static String readHead(File file) throws IOException {
+        try (InputStream inputStream = Files.newInputStream(file.toPath())) {
+            return new String(inputStream.readNBytes(MAX_MESSAGE_LENGTH), StandardCharsets.UTF_8);
+        }
+    }
+
+    private static void streamCopy(Path source, Path target) throws IOException {
+        Files.walkFileTree(source, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                Files.createDirectories(target.resolve(source.relativize(dir)));
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Path to = target.resolve(source.relativize(file));
+                transfer(file, to);
+                Files.setLastModifiedTime(to, attrs.lastModifiedTime());
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
+                if (exc != null) {
+                    throw exc;
+                }
+                Files.setLastModifiedTime(target.resolve(source.relativize(dir)), Files.getLastModifiedTime(dir));
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    private static void transfer(Path source, Path target) throws IOException {
+        try (FileChannel in = FileChannel.open(source, StandardOpenOption.READ);
+             FileChannel out = FileChannel.open(target, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+            long size = in.size();
+            long position = 0;
+            while (position < size) {
+                position += in.transferTo(position, size - position, out);
+            }
+        }
+    }
+}
@@ -0,0 +1,243 @@
+package com.jmal.clouddisk.util;
+
+import cn.hutool.crypto.SecureUtil;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import org.springframework.http.HttpHeaders;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * HTTP 条件请求和 Range 请求
+ * <p>
+ * 强 ETag 由 (文件id, 大小, 修改时间) 生成<br>
+ * If-None-Match / If-Modified-Since 命中时返回 304, Range 返回 206, If-Range 不匹配时返回完整内容
+ * </p>
+ *
+ * @author jmal
+ */
+public class HttpCacheUtil {
+
+    private HttpCacheUtil() {
+    }
+
+    /**
+     * 由 (文件id, 大小, 修改时间) 生成的 ETag 值, 不带引号, 也用作衍生文件的缓存key
+     *
+     * @param fileId       文件id, 没有 FileDocument 时用文件路径
+     * @param size         文件大小
+     * @param lastModified 修改时间
+     * @return ETag
+     */
+    public static String getETag(String fileId, long size, long lastModified) {
+        return SecureUtil.md5(fileId + size + lastModified);
+    }
+
+    /**
+     * 响应头 ETag 的值(强 ETag)
+     *
+     * @param fileId       文件id, 没有 FileDocument 时用文件路径
+     * @param size         文件大小
+     * @param lastModified 修改时间
+     * @return "ETag"
+     */
+    public static String strongETag(String fileId, long size, long lastModified) {
+        return "\"" + getETag(fileId, size, lastModified) + "\"";
+    }
+
+    /**
+     * 设置 ETag, Last-Modified 响应头, 检查 If-None-Match / If-Modified-Since
+     * <p>
+     * 有 If-None-Match 时忽略 If-Modified-Since
+     * </p>
+     *
+     * @param eTag         strongETag
+     * @param lastModified 修改时间, 小于等于 0 时不使用
+     * @return 未修改时返回 true, 已设置状态码 304, 不需要再输出内容
+     */
+    public static boolean checkNotModified(HttpServletRequest request, HttpServletResponse response, String eTag, long lastModified) {
+        setCacheHeaders(response, eTag, lastModified);
+        boolean notModified = isNotModified(request, eTag, lastModified);
+        if (notModified) {
+            response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+        }
+        return notModified;
+    }
+
+    /**
+     * 设置 ETag, Last-Modified 响应头
+     *
+     * @param eTag         strongETag
+     * @param lastModified 修改时间, 小于等于 0 时不设置
+     */
+    public static void setCacheHeaders(HttpServletResponse response, String eTag, long lastModified) {
+        response.setHeader(HttpHeaders.ETAG, eTag);
+        if (lastModified > 0) {
+            response.setDateHeader(HttpHeaders.LAST_MODIFIED, lastModified);
+        }
+    }
+
+    /**
+     * 检查 If-None-Match / If-Modified-Since, 不修改响应
+     *
+     * @param eTag         strongETag
+     * @param lastModified 修改时间, 小于等于 0 时只检查 If-None-Match
+     * @return 未修改时返回 true
+     */
+    public static boolean isNotModified(HttpServletRequest request, String eTag, long lastModified) {
+        String ifNoneMatch = request.getHeader(HttpHeaders.IF_NONE_MATCH);
+        if (ifNoneMatch != null) {
+            return matchETag(ifNoneMatch, eTag);
+        }
+        long ifModifiedSince = getDateHeader(request, HttpHeaders.IF_MODIFIED_SINCE);
+        // http 日期精确到秒
+        return lastModified > 0 && ifModifiedSince >= 0 && lastModified / 1000 <= ifModifiedSince / 1000;
+    }
+
+    /**
+     * 输出文件, 支持单段 Range 和 If-Range
+     *
+     * @param file         文件
+     * @param eTag         strongETag
+     * @param lastModified 修改时间
+     */
+    public static void writeFile(HttpServletRequest request, HttpServletResponse response, File file, String eTag, long lastModified) throws IOException {
+        write(request, response, file.length(), eTag, lastModified, (outputStream, start, length) -> {
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                WritableByteChannel target = Channels.newChannel(outputStream);
+                long position = start;
+                long end = start + length;
+                while (position < end) {
+                    position += channel.transferTo(position, end - position, target);
+                }
+            }
+        });
+    }
+
+    /**
+     * 输出内容, 支持单段 Range 和 If-Range
+     *
+     * @param body         内容
+     * @param eTag         strongETag
+     * @param lastModified 修改时间
+     */
+    public static void writeBytes(HttpServletRequest request, HttpServletResponse response, byte[] body, String eTag, long lastModified) throws IOException {
+        write(request, response, body.length, eTag, lastModified, (outputStream, start, length) -> outputStream.write(body, (int) start, (int) length));
+    }
+
+    private static void write(HttpServletRequest request, HttpServletResponse response, long total, String eTag, long lastModified, RangeWriter rangeWriter) throws IOException {
+        response.setHeader(HttpHeaders.ACCEPT_RANGES, "bytes");
+        String range = request.getHeader(HttpHeaders.RANGE);
+        if (range == null || !matchIfRange(request, eTag, lastModified)) {
+            response.setStatus(HttpServletResponse.SC_OK);
+            response.setContentLengthLong(total);
+            rangeWriter.write(response.getOutputStream(), 0, total);
+            return;
+        }
+        long[] ranges = parseRange(range, total);
+        if (ranges.length == 0) {
+            response.setStatus(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+            response.setHeader(HttpHeaders.CONTENT_RANGE, "bytes */" + total);
+            return;
+        }
+        long start = ranges[0];
+        long end = ranges[1];
+        response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+        response.setHeader(HttpHeaders.CONTENT_RANGE, "bytes " + start + "-" + end + "/" + total);
+        response.setContentLengthLong(end - start + 1);
+        rangeWriter.write(response.getOutputStream(), start, end - start + 1);
+    }
+
+    /**
+     * 解析单个Range, 多段Range只取第一段
+     *
+     * @param range Range 请求头
+     * @param total 内容总长度
+     * @return [start, end], 不满足时返回空数组
+     */
+    public static long[] parseRange(String range, long total) {
+        if (!range.startsWith("bytes=")) {
+            return new long[0];
+        }
+        String spec = range.substring("bytes=".length()).split(",")[0].trim();
+        int index = spec.indexOf('-');
+        if (index < 0) {
+            return new long[0];
+        }
+        try {
+            long start;
+            long end;
+            if (index == 0) {
+                long suffixLength = Long.parseLong(spec.substring(1));
+                start = Math.max(0, total - suffixLength);
+                end = total - 1;
+            } else {
+                start = Long.parseLong(spec.substring(0, index));
+                end = index == spec.length() - 1 ? total - 1 : Math.min(Long.parseLong(spec.substring(index + 1)), total - 1);
+            }
+            if (start > end || start >= total) {
+                return new long[0];
+            }
+            return new long[]{start, end};
+        } catch (NumberFormatException e) {
+            return new long[0];
+        }
+    }
+
+    /**
+     * If-Range 为空, 或者与当前的 ETag(强比较) / 修改时间一致
+     *
+     * @param eTag         strongETag
+     * @param lastModified 修改时间, 小于等于 0 时 If-Range 为日期时不匹配
+     * @return 可以按 Range 输出
+     */
+    public static boolean matchIfRange(HttpServletRequest request, String eTag, long lastModified) {
+        String ifRange = request.getHeader(HttpHeaders.IF_RANGE);
+        if (ifRange == null) {
+            return true;
+        }
+        ifRange = ifRange.trim();
+        if (ifRange.startsWith("\"") || ifRange.startsWith("W/")) {
+            return ifRange.equals(eTag);
+        }
+        long date = getDateHeader(request, HttpHeaders.IF_RANGE);
+        return lastModified > 0 && date >= 0 && lastModified / 1000 == date / 1000;
+    }
+
+    /**
+     * If-None-Match 使用弱比较
+     */
+    private static boolean matchETag(String ifNoneMatch, String eTag) {
+        String value = removeWeakPrefix(eTag);
+        for (String tag : ifNoneMatch.split(",")) {
+            tag = tag.trim();
+            if ("*".equals(tag) || removeWeakPrefix(tag).equals(value)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String removeWeakPrefix(String eTag) {
+        return eTag.startsWith("W/") ? eTag.substring(2) : eTag;
+    }
+
+    private static long getDateHeader(HttpServletRequest request, String name) {
+        try {
+            return request.getDateHeader(name);
+        } catch (IllegalArgumentException e) {
+            return -1;
+        }
+    }
+
+    @FunctionalInterface
+    private interface RangeWriter {
+        void write(OutputStream outputStream, long start, long length) throws IOException;
+    }
+}
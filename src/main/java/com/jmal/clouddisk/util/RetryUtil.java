@@ -0,0 +1,53 @@
+package com.jmal.clouddisk.util;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * 失败后重试
+ * <p>
+ * 等待时间按指数增长, 在 [一半, 全部] 之间随机(抖动), 避免多个线程同时重试
+ * </p>
+ *
+ * @author jmal
+ */
+@Slf4j
+public class RetryUtil {
+
+    private static final long BASE_BACKOFF_MILLIS = 500;
+
+    private static final long MAX_BACKOFF_MILLIS = 30_000;
+
+    private RetryUtil() {
+    }
+
+    /**
+     * 执行 attempt, 失败后最多重试 retries 次
+     *
+     * @param retries 重试次数
+     * @param attempt 要执行的操作
+     * @throws Exception 最后一次失败的异常
+     */
+    public static void retry(int retries, Attempt attempt) throws Exception {
+        for (int i = 0; ; i++) {
+            try {
+                attempt.run();
+                return;
+            } catch (Exception e) {
+                if (i >= retries || Thread.currentThread().isInterrupted()) {
+                    throw e;
+                }
+                long backoff = Math.min(MAX_BACKOFF_MILLIS, BASE_BACKOFF_MILLIS << i);
+                long sleep = ThreadLocalRandom.current().nextLong(backoff / 2, backoff + 1);
+                log.warn("第 {} 次重试, {}ms 后: {}", i + 1, sleep, e.getMessage());
+                Thread.sleep(sleep);
+            }
+        }
+    }
+
+    @FunctionalInterface
+    public interface Attempt {
+        void run() throws Exception;
+    }
+}
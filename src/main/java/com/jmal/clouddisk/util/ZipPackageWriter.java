@@ -0,0 +1,544 @@
+package com.jmal.clouddisk.util;
+
+import lombok.Getter;
+import lombok.Setter;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * 流式ZIP64打包写入器
+ * <p>
+ * 1.存储(STORED)条目的CRC由线程池预先计算, 不需要数据描述符, 因此全部为存储条目时压缩包的长度可以预先算出, 并且支持按Range输出,
+ * 只计算文件头或中央目录在Range内的条目的CRC<br>
+ * 2.较小的压缩(DEFLATED)条目在线程池中并行压缩到内存, 并受每次下载的预读字节上限约束<br>
+ * 3.较大的压缩条目在写出线程中边读边压缩, 使用ZIP64数据描述符<br>
+ * 所有条目统一使用ZIP64扩展字段, 保证同一组文件每次输出的字节完全一致
+ * </p>
+ *
+ * @author jmal
+ */
+public class ZipPackageWriter {
+
+    private static final int LOCAL_HEADER_SIG = 0x04034b50;
+    private static final int CENTRAL_HEADER_SIG = 0x02014b50;
+    private static final int DATA_DESCRIPTOR_SIG = 0x08074b50;
+    private static final int ZIP64_END_SIG = 0x06064b50;
+    private static final int ZIP64_LOCATOR_SIG = 0x07064b50;
+    private static final int END_SIG = 0x06054b50;
+
+    private static final int VERSION = 45;
+    private static final int FLAG_UTF8 = 1 << 11;
+    private static final int FLAG_DATA_DESCRIPTOR = 1 << 3;
+    private static final int ZIP64_EXTRA_ID = 0x0001;
+    private static final long ZIP64_MAGIC = 0xFFFFFFFFL;
+
+    private static final int LOCAL_HEADER_LENGTH = 30 + 20;
+    private static final int CENTRAL_HEADER_LENGTH = 46 + 28;
+    private static final int DATA_DESCRIPTOR_LENGTH = 24;
+    private static final int END_LENGTH = 56 + 20 + 22;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * 小于该大小的压缩条目会在线程池中并行压缩到内存
+     */
+    public static final long IN_MEMORY_DEFLATE_LIMIT = 4 * 1024 * 1024L;
+
+    private final List<Entry> entries;
+
+    private final ExecutorService executorService;
+
+    /**
+     * 每次下载预读(并行压缩到内存)的字节上限
+     */
+    private final long readAheadBytes;
+
+    /**
+     * 最多提前准备的条目数
+     */
+    private final int maxAhead;
+
+    public ZipPackageWriter(List<Entry> entries, ExecutorService executorService, long readAheadBytes, int maxAhead) {
+        this.entries = entries;
+        this.executorService = executorService;
+        this.readAheadBytes = readAheadBytes;
+        this.maxAhead = Math.max(1, maxAhead);
+    }
+
+    /**
+     * 所有条目都是存储(STORED)条目时, 压缩包的总长度是确定的
+     */
+    public boolean isLengthKnown() {
+        return entries.stream().allMatch(Entry::isStored);
+    }
+
+    /**
+     * 计算压缩包的总长度, 只有 isLengthKnown() 时有效
+     */
+    public long computeLength() {
+        long length = END_LENGTH;
+        for (Entry entry : entries) {
+            length += LOCAL_HEADER_LENGTH + CENTRAL_HEADER_LENGTH + 2L * entry.nameBytes.length + entry.size;
+        }
+        return length;
+    }
+
+    /**
+     * 写出整个压缩包
+     *
+     * @param outputStream 输出流
+     */
+    public void write(OutputStream outputStream) throws IOException {
+        write(outputStream, 0, Long.MAX_VALUE);
+    }
+
+    /**
+     * 写出压缩包中 [start, end) 的部分
+     *
+     * @param outputStream 输出流
+     * @param start        起始位置(包含)
+     * @param end          结束位置(不包含)
+     */
+    public void write(OutputStream outputStream, long start, long end) throws IOException {
+        RangeSink sink = new RangeSink(outputStream, start, end);
+        boolean[] crcRequired = crcRequired(start, end);
+        int next = 0;
+        long pendingBytes = 0;
+        try {
+            for (int i = 0; i < entries.size() && !sink.isDone(); i++) {
+                // 在预读上限内提前准备后面的条目, 当前条目无论如何都要准备, 避免死锁
+                while (next < entries.size() && (next == i || (next - i < maxAhead && pendingBytes + entries.get(next).readAheadCost() <= readAheadBytes))) {
+                    prepare(entries.get(next), crcRequired[next]);
+                    pendingBytes += entries.get(next).readAheadCost();
+                    next++;
+                }
+                Entry entry = entries.get(i);
+                await(entry);
+                writeEntry(sink, entry);
+                pendingBytes -= entry.readAheadCost();
+                entry.compressed = null;
+            }
+            if (!sink.isDone()) {
+                // Range 在中央目录之前结束时, 后面的条目和中央目录都不需要输出
+                writeCentralDirectory(sink);
+            }
+        } finally {
+            for (Entry entry : entries) {
+                if (entry.future != null && !entry.future.isDone()) {
+                    entry.future.cancel(true);
+                }
+                entry.compressed = null;
+            }
+        }
+        outputStream.flush();
+    }
+
+    /**
+     * 存储条目的CRC只出现在本地文件头和中央目录中, Range 不包含这两处时不需要读取文件计算CRC
+     *
+     * @param start 起始位置(包含)
+     * @param end   结束位置(不包含)
+     * @return 每个条目是否需要CRC
+     */
+    private boolean[] crcRequired(long start, long end) {
+        boolean[] required = new boolean[entries.size()];
+        if (!isLengthKnown()) {
+            // 有压缩条目时不支持 Range, 总是输出整个压缩包
+            Arrays.fill(required, true);
+            return required;
+        }
+        long position = 0;
+        for (int i = 0; i < entries.size(); i++) {
+            Entry entry = entries.get(i);
+            long headerEnd = position + LOCAL_HEADER_LENGTH + entry.nameBytes.length;
+            required[i] = position < end && headerEnd > start;
+            position = headerEnd + entry.size;
+        }
+        if (position < end) {
+            // 中央目录在 Range 内, 需要所有条目的CRC
+            Arrays.fill(required, true);
+        }
+        return required;
+    }
+
+    private void prepare(Entry entry, boolean crcRequired) {
+        if (entry.directory || entry.future != null) {
+            return;
+        }
+        if (entry.stored) {
+            if (entry.crc == null && crcRequired) {
+                entry.future = executorService.submit(() -> {
+                    entry.crc = crc(entry);
+                    return null;
+                });
+            }
+        } else if (entry.size <= IN_MEMORY_DEFLATE_LIMIT) {
+            entry.future = executorService.submit(() -> {
+                deflateToMemory(entry);
+                return null;
+            });
+        }
+    }
+
+    private static void await(Entry entry) throws IOException {
+        if (entry.future == null) {
+            return;
+        }
+        try {
+            entry.future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        } catch (ExecutionException | CancellationException e) {
+            Throwable cause = e.getCause() != null ? e.getCause() : e;
+            if (cause instanceof IOException ioException) {
+                throw ioException;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    private void writeEntry(RangeSink sink, Entry entry) throws IOException {
+        entry.offset = sink.position;
+        if (entry.directory) {
+            entry.crc = 0L;
+            entry.compressedSize = 0;
+            sink.write(localHeader(entry, false));
+        } else if (entry.stored) {
+            sink.write(localHeader(entry, false));
+            copyFileData(sink, entry);
+        } else if (entry.compressed != null) {
+            sink.write(localHeader(entry, false));
+            sink.write(entry.compressed);
+        } else {
+            entry.crc = 0L;
+            entry.compressedSize = 0;
+            entry.descriptor = true;
+            sink.write(localHeader(entry, true));
+            deflateInline(sink, entry);
+            sink.write(dataDescriptor(entry));
+        }
+    }
+
+    /**
+     * 复制存储条目的文件数据, 位于Range起点之前的数据直接跳过, 不读取
+     */
+    private static void copyFileData(RangeSink sink, Entry entry) throws IOException {
+        long skip = sink.bytesBeforeStart();
+        if (skip >= entry.size) {
+            sink.skip(entry.size);
+            return;
+        }
+        try (FileChannel channel = FileChannel.open(entry.file, StandardOpenOption.READ)) {
+            channel.position(skip);
+            sink.skip(skip);
+            ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+            long remaining = entry.size - skip;
+            while (remaining > 0 && !sink.isDone()) {
+                buffer.clear();
+                if (remaining < buffer.capacity()) {
+                    buffer.limit((int) remaining);
+                }
+                int read = channel.read(buffer);
+                if (read < 0) {
+                    throw new IOException("文件已变更: " + entry.file);
+                }
+                sink.write(buffer.array(), 0, read);
+                remaining -= read;
+            }
+            if (remaining > 0) {
+                sink.skip(remaining);
+            }
+        }
+    }
+
+    private static long crc(Entry entry) throws IOException {
+        CRC32 crc32 = new CRC32();
+        long total = 0;
+        try (InputStream inputStream = Files.newInputStream(entry.file)) {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int read;
+            while ((read = inputStream.read(buffer)) > 0) {
+                crc32.update(buffer, 0, read);
+                total += read;
+            }
+        }
+        if (total != entry.size) {
+            throw new IOException("文件已变更: " + entry.file);
+        }
+        return crc32.getValue();
+    }
+
+    private static void deflateToMemory(Entry entry) throws IOException {
+        byte[] data = Files.readAllBytes(entry.file);
+        if (data.length != entry.size) {
+            throw new IOException("文件已变更: " + entry.file);
+        }
+        CRC32 crc32 = new CRC32();
+        crc32.update(data);
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream((int) Math.max(64, data.length / 2));
+            try (DeflaterOutputStream deflaterOut = new DeflaterOutputStream(out, deflater, BUFFER_SIZE)) {
+                deflaterOut.write(data);
+            }
+            entry.compressed = out.toByteArray();
+            entry.compressedSize = entry.compressed.length;
+            entry.crc = crc32.getValue();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static void deflateInline(RangeSink sink, Entry entry) throws IOException {
+        CRC32 crc32 = new CRC32();
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        long total = 0;
+        long before = sink.position;
+        try (InputStream inputStream = Files.newInputStream(entry.file)) {
+            byte[] in = new byte[BUFFER_SIZE];
+            byte[] out = new byte[BUFFER_SIZE];
+            int read;
+            while ((read = inputStream.read(in)) > 0) {
+                crc32.update(in, 0, read);
+                total += read;
+                deflater.setInput(in, 0, read);
+                while (!deflater.needsInput()) {
+                    int len = deflater.deflate(out);
+                    sink.write(out, 0, len);
+                }
+            }
+            deflater.finish();
+            while (!deflater.finished()) {
+                int len = deflater.deflate(out);
+                sink.write(out, 0, len);
+            }
+        } finally {
+            deflater.end();
+        }
+        entry.size = total;
+        entry.crc = crc32.getValue();
+        entry.compressedSize = sink.position - before;
+    }
+
+    private void writeCentralDirectory(RangeSink sink) throws IOException {
+        long centralStart = sink.position;
+        for (Entry entry : entries) {
+            sink.write(centralHeader(entry));
+        }
+        long centralSize = sink.position - centralStart;
+        long zip64EndOffset = sink.position;
+        ByteBuffer buffer = newBuffer(END_LENGTH);
+        // zip64 end of central directory record
+        buffer.putInt(ZIP64_END_SIG);
+        buffer.putLong(44);
+        buffer.putShort((short) VERSION);
+        buffer.putShort((short) VERSION);
+        buffer.putInt(0);
+        buffer.putInt(0);
+        buffer.putLong(entries.size());
+        buffer.putLong(entries.size());
+        buffer.putLong(centralSize);
+        buffer.putLong(centralStart);
+        // zip64 end of central directory locator
+        buffer.putInt(ZIP64_LOCATOR_SIG);
+        buffer.putInt(0);
+        buffer.putLong(zip64EndOffset);
+        buffer.putInt(1);
+        // end of central directory record
+        buffer.putInt(END_SIG);
+        buffer.putShort((short) 0);
+        buffer.putShort((short) 0);
+        buffer.putShort((short) 0xFFFF);
+        buffer.putShort((short) 0xFFFF);
+        buffer.putInt((int) ZIP64_MAGIC);
+        buffer.putInt((int) ZIP64_MAGIC);
+        buffer.putShort((short) 0);
+        sink.write(buffer.array());
+    }
+
+    private static byte[] localHeader(Entry entry, boolean dataDescriptor) {
+        ByteBuffer buffer = newBuffer(LOCAL_HEADER_LENGTH + entry.nameBytes.length);
+        buffer.putInt(LOCAL_HEADER_SIG);
+        buffer.putShort((short) VERSION);
+        buffer.putShort((short) (dataDescriptor ? FLAG_UTF8 | FLAG_DATA_DESCRIPTOR : FLAG_UTF8));
+        buffer.putShort((short) entry.method());
+        buffer.putInt((int) dosTime(entry.modified));
+        buffer.putInt(entry.crc == null ? 0 : entry.crc.intValue());
+        buffer.putInt((int) ZIP64_MAGIC);
+        buffer.putInt((int) ZIP64_MAGIC);
+        buffer.putShort((short) entry.nameBytes.length);
+        buffer.putShort((short) 20);
+        buffer.put(entry.nameBytes);
+        buffer.putShort((short) ZIP64_EXTRA_ID);
+        buffer.putShort((short) 16);
+        buffer.putLong(dataDescriptor ? 0 : entry.size);
+        buffer.putLong(dataDescriptor ? 0 : entry.compressedSize);
+        return buffer.array();
+    }
+
+    private static byte[] dataDescriptor(Entry entry) {
+        ByteBuffer buffer = newBuffer(DATA_DESCRIPTOR_LENGTH);
+        buffer.putInt(DATA_DESCRIPTOR_SIG);
+        buffer.putInt(entry.crc.intValue());
+        buffer.putLong(entry.compressedSize);
+        buffer.putLong(entry.size);
+        return buffer.array();
+    }
+
+    private static byte[] centralHeader(Entry entry) {
+        ByteBuffer buffer = newBuffer(CENTRAL_HEADER_LENGTH + entry.nameBytes.length);
+        buffer.putInt(CENTRAL_HEADER_SIG);
+        buffer.putShort((short) VERSION);
+        buffer.putShort((short) VERSION);
+        buffer.putShort((short) (entry.dataDescriptor() ? FLAG_UTF8 | FLAG_DATA_DESCRIPTOR : FLAG_UTF8));
+        buffer.putShort((short) entry.method());
+        buffer.putInt((int) dosTime(entry.modified));
+        buffer.putInt(entry.crc == null ? 0 : entry.crc.intValue());
+        buffer.putInt((int) ZIP64_MAGIC);
+        buffer.putInt((int) ZIP64_MAGIC);
+        buffer.putShort((short) entry.nameBytes.length);
+        buffer.putShort((short) 28);
+        // comment length, disk number start, internal attributes
+        buffer.putShort((short) 0);
+        buffer.putShort((short) 0);
+        buffer.putShort((short) 0);
+        // external attributes, 0x10 为 MS-DOS 目录属性
+        buffer.putInt(entry.directory ? 0x10 : 0);
+        buffer.putInt((int) ZIP64_MAGIC);
+        buffer.put(entry.nameBytes);
+        buffer.putShort((short) ZIP64_EXTRA_ID);
+        buffer.putShort((short) 24);
+        buffer.putLong(entry.size);
+        buffer.putLong(entry.compressedSize);
+        buffer.putLong(entry.offset);
+        return buffer.array();
+    }
+
+    private static ByteBuffer newBuffer(int size) {
+        return ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private static long dosTime(long modified) {
+        LocalDateTime time = LocalDateTime.ofInstant(Instant.ofEpochMilli(modified), TimeUntils.ZONE_ID);
+        if (time.getYear() < 1980) {
+            return (1 << 21) | (1 << 16);
+        }
+        return (long) (time.getYear() - 1980) << 25
+                | (long) time.getMonthValue() << 21
+                | (long) time.getDayOfMonth() << 16
+                | (long) time.getHour() << 11
+                | (long) time.getMinute() << 5
+                | (long) time.getSecond() >> 1;
+    }
+
+    /**
+     * 压缩包条目
+     */
+    @Getter
+    public static class Entry {
+        private final String name;
+        private final byte[] nameBytes;
+        private final Path file;
+        private final boolean directory;
+        private final boolean stored;
+        private final long modified;
+        private long size;
+        /**
+         * 存储条目可以预先提供CRC(例如缓存的CRC), 为null时由线程池计算
+         */
+        @Setter
+        private volatile Long crc;
+        private volatile long compressedSize;
+        private volatile byte[] compressed;
+        private long offset;
+        private boolean descriptor;
+        private Future<?> future;
+
+        public Entry(String name, Path file, boolean directory, boolean stored, long size, long modified, Long crc) {
+            this.name = directory && !name.endsWith("/") ? name + "/" : name;
+            this.nameBytes = this.name.getBytes(StandardCharsets.UTF_8);
+            this.file = file;
+            this.directory = directory;
+            this.stored = directory || stored;
+            this.size = directory ? 0 : size;
+            this.modified = modified;
+            this.crc = directory ? Long.valueOf(0L) : crc;
+            this.compressedSize = this.stored ? this.size : 0;
+        }
+
+        private int method() {
+            return stored ? 0 : Deflater.DEFLATED;
+        }
+
+        private boolean dataDescriptor() {
+            return descriptor;
+        }
+
+        private long readAheadCost() {
+            return !stored && size <= IN_MEMORY_DEFLATE_LIMIT ? size : 0;
+        }
+    }
+
+    /**
+     * 按Range截取输出的流
+     */
+    private static class RangeSink {
+        private final OutputStream outputStream;
+        private final long start;
+        private final long end;
+        private long position;
+
+        RangeSink(OutputStream outputStream, long start, long end) {
+            this.outputStream = outputStream;
+            this.start = start;
+            this.end = end;
+        }
+
+        boolean isDone() {
+            return position >= end;
+        }
+
+        long bytesBeforeStart() {
+            return Math.max(0, start - position);
+        }
+
+        void skip(long length) {
+            position += length;
+        }
+
+        void write(byte[] bytes) throws IOException {
+            write(bytes, 0, bytes.length);
+        }
+
+        void write(byte[] bytes, int off, int len) throws IOException {
+            long from = Math.max(position, start);
+            long to = Math.min(position + len, end);
+            if (from < to) {
+                outputStream.write(bytes, off + (int) (from - position), (int) (to - from));
+            }
+            position += len;
+        }
+    }
+}
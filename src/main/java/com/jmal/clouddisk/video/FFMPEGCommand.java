@@ -15,6 +15,7 @@ import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.stream.Collectors;
 
+import static com.jmal.clouddisk.util.FFMPEGUtils.getWaitingForResults;
 import static com.jmal.clouddisk.util.FFMPEGUtils.printErrorInfo;
 
 @Slf4j
@@ -123,6 +124,30 @@ public class FFMPEGCommand {
         return processBuilder;
     }
 
+    /**
+     * 视频的第一个关键帧作为封面
+     * <p>
+     * 只解码关键帧, 远程视频(url)只读取 moov 和第一个关键帧所在的范围
+     * </p>
+     *
+     * @param videoPath  视频路径或url
+     * @param outputPath 封面输出路径
+     * @return 是否生成成功
+     */
+    public static boolean firstKeyFrame(String videoPath, String outputPath) throws IOException, InterruptedException {
+        ProcessBuilder processBuilder = new ProcessBuilder(
+                Constants.FFMPEG,
+                "-y",
+                "-skip_frame", "nokey",
+                "-i", videoPath,
+                "-vf", String.format("scale=%s:-2", thumbnailWidth),
+                "-frames:v", "1",
+                outputPath
+        );
+        processBuilder.redirectErrorStream(true);
+        return getWaitingForResults(outputPath, processBuilder) != null;
+    }
+
     static ProcessBuilder useVideotoolbox(String fileId, Path fileAbsolutePath, int bitrate, int height, String videoCacheDir, String outputPath, int vttInterval, String thumbnailPattern) {
         return new ProcessBuilder(
                 Constants.FFMPEG,
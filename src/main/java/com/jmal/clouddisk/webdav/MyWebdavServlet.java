@@ -6,6 +6,7 @@ import cn.hutool.core.util.URLUtil;
 import com.github.benmanes.caffeine.cache.Cache;
 import com.github.benmanes.caffeine.cache.Caffeine;
 import com.jmal.clouddisk.config.FileProperties;
+import com.jmal.clouddisk.interceptor.StreamLimiter;
 import com.jmal.clouddisk.oss.AbstractOssObject;
 import com.jmal.clouddisk.oss.IOssService;
 import com.jmal.clouddisk.oss.OssConfigService;
@@ -22,6 +23,7 @@ import org.apache.catalina.WebResource;
 import org.apache.catalina.connector.ClientAbortException;
 import org.apache.tomcat.util.http.parser.Ranges;
 import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
 import org.springframework.stereotype.Component;
 
 import java.io.BufferedInputStream;
@@ -46,6 +48,8 @@ public class MyWebdavServlet extends WebdavServlet {
 
     private final transient IFileService fileService;
 
+    private final transient StreamLimiter streamLimiter;
+
     public static final String PATH_DELIMITER = "/";
 
     private static final Cache<String, Long> REQUEST_URI_GET_MAP = Caffeine.newBuilder().expireAfterWrite(3L, TimeUnit.SECONDS).build();
@@ -57,7 +61,21 @@ public class MyWebdavServlet extends WebdavServlet {
         if (filterMac(request, response, method)) return;
         // 过滤掉过于频繁的GET请求, 只针对 oss
         if (filterTooManyRequest(request, response, method)) return;
-        super.service(request, response);
+        if (!method.equals(WebdavMethod.GET.getCode())) {
+            super.service(request, response);
+            return;
+        }
+        // 限制每个用户同时下载的数量
+        String streamKey = StreamLimiter.getKey(request, request.getRemoteUser());
+        if (!streamLimiter.tryAcquire(streamKey)) {
+            response.sendError(HttpStatus.TOO_MANY_REQUESTS.value());
+            return;
+        }
+        try {
+            super.service(request, response);
+        } finally {
+            streamLimiter.release(streamKey);
+        }
     }
 
     /**
@@ -0,0 +1,126 @@
+package com.jmal.clouddisk;
+
+import cn.hutool.core.lang.Console;
+import cn.hutool.core.thread.ThreadUtil;
+import com.jmal.clouddisk.interceptor.AuthInterceptor;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * @author jmal
+ * @Description 慢速客户端下载压测, 对比平台线程(MyTomcatServletWebServerFactoryCustomizer 默认配置)和虚拟线程
+ * <p>
+ * 大量慢速客户端同时下载大文件, 每次只读很少的数据, 同时测量普通请求的响应时间<br>
+ * 平台线程: Tomcat 线程池(默认200)被慢速下载占满后, 普通请求排队甚至超时<br>
+ * 虚拟线程: 慢速下载只占用虚拟线程, 普通请求的响应时间基本不受影响
+ * </p>
+ * 先以 file.virtual-threads=false 启动服务运行一次, 再以 file.virtual-threads=true 启动服务运行一次, 对比输出结果<br>
+ * 参数: -Dhost=localhost -Dport=8088 -Dfile=/file/jmal/大文件 -Dtoken=jmal-token -Dclients=400 -Dseconds=30
+ */
+public class SlowDownloadLoadText {
+
+    private static final String HOST = System.getProperty("host", "localhost");
+    private static final int PORT = Integer.getInteger("port", 8088);
+    private static final String FILE = System.getProperty("file", "/file/jmal/test.mp4");
+    private static final String TOKEN = System.getProperty("token", "");
+    private static final String PROBE = System.getProperty("probe", "/public/s/invalid");
+    private static final int CLIENTS = Integer.getInteger("clients", 400);
+    private static final int SECONDS = Integer.getInteger("seconds", 30);
+
+    public static void main(String[] args) throws Exception {
+        AtomicInteger reading = new AtomicInteger();
+        AtomicInteger rejected = new AtomicInteger();
+        AtomicInteger failed = new AtomicInteger();
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(SECONDS);
+        try (ExecutorService slowClients = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (int i = 0; i < CLIENTS; i++) {
+                slowClients.execute(() -> slowDownload(deadline, reading, rejected, failed));
+            }
+            // 等待慢速客户端都连上
+            ThreadUtil.sleep(3000);
+            List<Long> latencies = probe(deadline);
+            Console.log("慢速客户端: {}, 正在下载: {}, 429: {}, 失败: {}", CLIENTS, reading.get(), rejected.get(), failed.get());
+            printLatencies(latencies);
+        }
+    }
+
+    /**
+     * 慢速下载, 每 200ms 读 1KB, 模拟弱网下的手机客户端
+     */
+    private static void slowDownload(long deadline, AtomicInteger reading, AtomicInteger rejected, AtomicInteger failed) {
+        try (Socket socket = new Socket(HOST, PORT)) {
+            socket.setReceiveBufferSize(4096);
+            OutputStream out = socket.getOutputStream();
+            String request = "GET " + FILE + "?o=download HTTP/1.1\r\n" +
+                    "Host: " + HOST + ":" + PORT + "\r\n" +
+                    AuthInterceptor.JMAL_TOKEN + ": " + TOKEN + "\r\n" +
+                    "Connection: close\r\n\r\n";
+            out.write(request.getBytes(StandardCharsets.UTF_8));
+            out.flush();
+            InputStream in = socket.getInputStream();
+            byte[] buffer = new byte[1024];
+            int read = in.read(buffer);
+            if (read <= 0) {
+                failed.incrementAndGet();
+                return;
+            }
+            if (new String(buffer, 0, read, StandardCharsets.ISO_8859_1).startsWith("HTTP/1.1 429")) {
+                rejected.incrementAndGet();
+                return;
+            }
+            reading.incrementAndGet();
+            while (System.currentTimeMillis() < deadline && in.read(buffer) > 0) {
+                ThreadUtil.sleep(200);
+            }
+        } catch (Exception e) {
+            failed.incrementAndGet();
+        }
+    }
+
+    /**
+     * 慢速下载进行中, 每 100ms 请求一次普通接口, 记录响应时间
+     */
+    private static List<Long> probe(long deadline) {
+        HttpClient client = HttpClient.newBuilder().connectTimeout(Duration.ofSeconds(10)).build();
+        HttpRequest request = HttpRequest.newBuilder(URI.create("http://" + HOST + ":" + PORT + PROBE)).timeout(Duration.ofSeconds(10)).build();
+        List<Long> latencies = new ArrayList<>();
+        while (System.currentTimeMillis() < deadline) {
+            long start = System.nanoTime();
+            try {
+                client.send(request, HttpResponse.BodyHandlers.discarding());
+                latencies.add(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+            } catch (Exception e) {
+                // 超时记为 10s
+                latencies.add(10000L);
+            }
+            ThreadUtil.sleep(100);
+        }
+        return latencies;
+    }
+
+    private static void printLatencies(List<Long> latencies) {
+        if (latencies.isEmpty()) {
+            Console.log("没有普通请求完成");
+            return;
+        }
+        Collections.sort(latencies);
+        int size = latencies.size();
+        Console.log("普通请求: {}, p50: {}ms, p90: {}ms, p99: {}ms, max: {}ms", size,
+                latencies.get(size / 2), latencies.get(size * 9 / 10), latencies.get(Math.min(size - 1, size * 99 / 100)), latencies.get(size - 1));
+    }
+}
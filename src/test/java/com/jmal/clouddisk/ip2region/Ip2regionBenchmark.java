@@ -0,0 +1,152 @@
+package com.jmal.clouddisk.ip2region;
+
+import com.jmal.clouddisk.config.FileProperties;
+import com.jmal.clouddisk.model.LogOperation;
+import com.jmal.clouddisk.service.impl.IpRegionService;
+import org.lionsoul.ip2region.xdb.Searcher;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @author jmal
+ * @Description ip2region 几种查询方式在多线程记录日志时的对比
+ * <p>
+ * 原始查询, 都返回区域字符串, 不经过任何缓存, 可以互相比较:<br>
+ * fileOnly: 完全基于文件, 每个线程一个 Searcher<br>
+ * vectorIndex: 缓存 VectorIndex, 每个线程一个 Searcher(原 LogService 的方式)<br>
+ * buffer: 缓存整个 xdb 到堆内存, 多线程共用一个 Searcher<br>
+ * mmap: IpRegionService.search, 内存映射整个 xdb<br>
+ * 带缓存的查询, 返回 IpInfo, 只和彼此比较:<br>
+ * cachedHot: IpRegionService.getIpInfo, IP 池小于 IP 结果 LRU, 几乎都命中<br>
+ * cachedCold: IpRegionService.getIpInfo, IP 池远大于 IP 结果 LRU, 大多未命中, 只命中区域缓存
+ * </p>
+ * 运行 main 方法, 用 -Dip2region.db 指定 xdb 文件路径
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Threads(8)
+@Fork(1)
+public class Ip2regionBenchmark {
+
+    private static final String DB_PATH = System.getProperty("ip2region.db", "/Users/jmal/studio/myProject/github/jmal-cloud-server/docker/ip2region.xdb");
+
+    /**
+     * 模拟访问日志中的IP, 有一定的重复
+     */
+    private static final int IP_POOL_SIZE = 20000;
+
+    /**
+     * 小于 IpRegionService 的 IP 结果缓存数量(4096)的 IP 池
+     */
+    private static final int HOT_IP_POOL_SIZE = 1024;
+
+    @State(Scope.Benchmark)
+    public static class Shared {
+        String[] ips;
+        String[] hotIps;
+        byte[] vIndex;
+        Searcher bufferSearcher;
+        IpRegionService ipRegionService;
+
+        @Setup
+        public void setup() throws IOException {
+            Random random = new Random(42);
+            ips = new String[IP_POOL_SIZE];
+            for (int i = 0; i < ips.length; i++) {
+                ips[i] = random.nextInt(1, 224) + "." + random.nextInt(256) + "." + random.nextInt(256) + "." + random.nextInt(256);
+            }
+            hotIps = new String[HOT_IP_POOL_SIZE];
+            System.arraycopy(ips, 0, hotIps, 0, HOT_IP_POOL_SIZE);
+            vIndex = Searcher.loadVectorIndexFromFile(DB_PATH);
+            bufferSearcher = Searcher.newWithBuffer(Searcher.loadContentFromFile(DB_PATH));
+            FileProperties fileProperties = new FileProperties();
+            fileProperties.setIp2regionDbPath(DB_PATH);
+            ipRegionService = new IpRegionService(fileProperties);
+            ipRegionService.init();
+        }
+
+        @TearDown
+        public void tearDown() {
+            ipRegionService.destroy();
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class PerThread {
+        Searcher fileSearcher;
+        Searcher vectorIndexSearcher;
+        int next;
+        int nextHot;
+
+        @Setup
+        public void setup(Shared shared) throws IOException {
+            fileSearcher = Searcher.newWithFileOnly(DB_PATH);
+            vectorIndexSearcher = Searcher.newWithVectorIndex(DB_PATH, shared.vIndex);
+            next = Math.floorMod(Thread.currentThread().threadId() * 7919, shared.ips.length);
+            nextHot = Math.floorMod(Thread.currentThread().threadId() * 7919, shared.hotIps.length);
+        }
+
+        @TearDown
+        public void tearDown() throws IOException {
+            fileSearcher.close();
+            vectorIndexSearcher.close();
+        }
+
+        String nextIp(Shared shared) {
+            next = (next + 1) % shared.ips.length;
+            return shared.ips[next];
+        }
+
+        String nextHotIp(Shared shared) {
+            nextHot = (nextHot + 1) % shared.hotIps.length;
+            return shared.hotIps[nextHot];
+        }
+    }
+
+    @Benchmark
+    public String fileOnly(Shared shared, PerThread perThread) throws Exception {
+        return perThread.fileSearcher.search(perThread.nextIp(shared));
+    }
+
+    @Benchmark
+    public String vectorIndex(Shared shared, PerThread perThread) throws Exception {
+        return perThread.vectorIndexSearcher.search(perThread.nextIp(shared));
+    }
+
+    @Benchmark
+    public String buffer(Shared shared, PerThread perThread) throws Exception {
+        return shared.bufferSearcher.search(perThread.nextIp(shared));
+    }
+
+    @Benchmark
+    public String mmap(Shared shared, PerThread perThread) {
+        return shared.ipRegionService.search(perThread.nextIp(shared));
+    }
+
+    @Benchmark
+    public LogOperation.IpInfo cachedHot(Shared shared, PerThread perThread) {
+        return shared.ipRegionService.getIpInfo(perThread.nextHotIp(shared));
+    }
+
+    @Benchmark
+    public LogOperation.IpInfo cachedCold(Shared shared, PerThread perThread) {
+        return shared.ipRegionService.getIpInfo(perThread.nextIp(shared));
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        Options options = new OptionsBuilder()
+                .include(Ip2regionBenchmark.class.getSimpleName())
+                .jvmArgsAppend("-Dip2region.db=" + DB_PATH)
+                .build();
+        new Runner(options).run();
+    }
+}
@@ -0,0 +1,115 @@
+package com.jmal.clouddisk.ip2region;
+
+import com.jmal.clouddisk.config.FileProperties;
+import com.jmal.clouddisk.model.LogOperation;
+import com.jmal.clouddisk.service.impl.IpRegionService;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.lionsoul.ip2region.xdb.Searcher;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+/**
+ * @author jmal
+ * @Description IpRegionService 和 ip2region 的 Searcher 查询结果对比
+ * <p>
+ * 从 xdb 的段索引中抽样, 每个段取起止IP和中间的IP, 再加上随机IP<br>
+ * 用 -Dip2region.db 指定 xdb 文件路径, 文件不存在时跳过
+ * </p>
+ */
+class IpRegionServiceTest {
+
+    private static final String DB_PATH = System.getProperty("ip2region.db", "/Users/jmal/studio/myProject/github/jmal-cloud-server/docker/ip2region.xdb");
+
+    private static final int SEGMENT_INDEX_SIZE = 14;
+
+    /**
+     * 最多抽样的段数
+     */
+    private static final int MAX_SAMPLE_SEGMENTS = 20000;
+
+    private static final int RANDOM_IP_COUNT = 20000;
+
+    private static IpRegionService ipRegionService;
+
+    private static Searcher searcher;
+
+    @BeforeAll
+    static void init() throws IOException {
+        assumeTrue(Files.isRegularFile(Paths.get(DB_PATH)), "ip2region.xdb 不存在: " + DB_PATH);
+        FileProperties fileProperties = new FileProperties();
+        fileProperties.setIp2regionDbPath(DB_PATH);
+        ipRegionService = new IpRegionService(fileProperties);
+        ipRegionService.init();
+        searcher = Searcher.newWithBuffer(Searcher.loadContentFromFile(DB_PATH));
+    }
+
+    @AfterAll
+    static void destroy() throws IOException {
+        if (ipRegionService != null) {
+            ipRegionService.destroy();
+        }
+        if (searcher != null) {
+            searcher.close();
+        }
+    }
+
+    @Test
+    void sameAsSearcher() throws Exception {
+        List<Long> ips = sampleIps();
+        for (long ip : ips) {
+            String ipStr = Searcher.long2ip(ip);
+            String expected = searcher.search(ipStr);
+            assertEquals(expected, ipRegionService.search(ipStr), ipStr);
+            LogOperation.IpInfo ipInfo = expected == null ? null : IpRegionService.region2IpInfo(expected);
+            assertEquals(ipInfo, ipRegionService.getIpInfo(ipStr), ipStr);
+            // 第二次从缓存中读取
+            assertEquals(ipInfo, ipRegionService.getIpInfo(ipStr), ipStr);
+        }
+    }
+
+    @Test
+    void invalidIp() {
+        for (String ip : new String[]{"", " ", "1.2.3", "1.2.3.4.5", "256.1.1.1", "1..2.3", "1.2.3.", "a.b.c.d", "::1", "1.2.3.1234"}) {
+            assertNull(ipRegionService.search(ip), ip);
+            assertNull(ipRegionService.getIpInfo(ip), ip);
+        }
+    }
+
+    /**
+     * 按段索引抽样, 每个段取起止IP和中间的IP, 再加上随机IP
+     */
+    private static List<Long> sampleIps() throws IOException {
+        ByteBuffer db = IpRegionService.load(Paths.get(DB_PATH));
+        // xdb 文件头: version(2), indexPolicy(2), createdAt(4), startIndexPtr(4), endIndexPtr(4)
+        long startIndexPtr = Integer.toUnsignedLong(db.getInt(8));
+        long endIndexPtr = Integer.toUnsignedLong(db.getInt(12));
+        long segments = (endIndexPtr - startIndexPtr) / SEGMENT_INDEX_SIZE + 1;
+        long step = Math.max(1, segments / MAX_SAMPLE_SEGMENTS);
+        List<Long> ips = new ArrayList<>();
+        for (long i = 0; i < segments; i += step) {
+            int p = (int) (startIndexPtr + i * SEGMENT_INDEX_SIZE);
+            long sip = Integer.toUnsignedLong(db.getInt(p));
+            long eip = Integer.toUnsignedLong(db.getInt(p + 4));
+            ips.add(sip);
+            ips.add(eip);
+            ips.add(sip + (eip - sip) / 2);
+        }
+        assertTrue(ips.size() >= 3);
+        Random random = new Random(42);
+        for (int i = 0; i < RANDOM_IP_COUNT; i++) {
+            ips.add(Integer.toUnsignedLong(random.nextInt()));
+        }
+        return ips;
+    }
+}
@@ -0,0 +1,113 @@
+package com.jmal.clouddisk.oss;
+
+import cn.hutool.core.lang.Console;
+import cn.hutool.core.util.StrUtil;
+import com.jmal.clouddisk.config.FileProperties;
+import com.jmal.clouddisk.media.ImageDerivativeService;
+import com.jmal.clouddisk.oss.minio.MinIOService;
+import com.jmal.clouddisk.oss.web.OssTransferService;
+import com.jmal.clouddisk.oss.web.model.OssConfigDTO;
+import io.minio.*;
+import io.minio.messages.DeleteObject;
+import io.minio.messages.Item;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * @author jmal
+ * @Description 本地 MinIO 上测试 oss 复制, 如: docker run -p 9000:9000 minio/minio server /data
+ * @date 2026/10/19 10:20
+ */
+@SpringBootTest
+class MinIOTest {
+
+    private static final String endpoint = StrUtil.blankToDefault(System.getenv("MINIO_ENDPOINT"), "http://127.0.0.1:9000");
+    private static final String accessKey = StrUtil.blankToDefault(System.getenv("MINIO_ACCESS_KEY"), "minioadmin");
+    private static final String secretKey = StrUtil.blankToDefault(System.getenv("MINIO_SECRET_KEY"), "minioadmin");
+    private static final String bucketName = "jmalcloud-test";
+
+    private static final String SOURCE = "transfer-test/source/";
+    private static final String DESTINATION = "transfer-test/destination/";
+
+    @Autowired
+    FileProperties fileProperties;
+
+    @Autowired
+    OssTransferService ossTransferService;
+
+    @Autowired
+    OssMultipartUploader multipartUploader;
+
+    @Autowired
+    OssNamespaceIndex namespaceIndex;
+
+    @Autowired
+    ImageDerivativeService imageDerivativeService;
+
+    @Test
+    void copyFolder() throws Exception {
+        MinioClient minioClient = MinioClient.builder().endpoint(endpoint).credentials(accessKey, secretKey).build();
+        if (!minioClient.bucketExists(BucketExistsArgs.builder().bucket(bucketName).build())) {
+            minioClient.makeBucket(MakeBucketArgs.builder().bucket(bucketName).build());
+        }
+        removePrefix(minioClient, "transfer-test/");
+        // 500 个小文件和 1 个分片复制的大文件
+        int count = 500;
+        for (int i = 0; i < count; i++) {
+            byte[] bytes = ("file-" + i).getBytes();
+            minioClient.putObject(PutObjectArgs.builder().bucket(bucketName).object(SOURCE + "dir-" + i % 10 + "/file-" + i + ".txt")
+                    .stream(new ByteArrayInputStream(bytes), bytes.length, -1).build());
+        }
+        byte[] large = new byte[(int) BaseOssService.MULTIPART_THRESHOLD + 1024 * 1024];
+        minioClient.putObject(PutObjectArgs.builder().bucket(bucketName).object(SOURCE + "large.bin")
+                .stream(new ByteArrayInputStream(large), large.length, -1).build());
+
+        OssConfigDTO ossConfigDTO = new OssConfigDTO();
+        ossConfigDTO.setEndpoint(endpoint);
+        ossConfigDTO.setAccessKey(accessKey);
+        ossConfigDTO.setSecretKey(secretKey);
+        ossConfigDTO.setRegion("us-east-1");
+        ossConfigDTO.setBucket(bucketName);
+        ossConfigDTO.setUsername("test");
+        MinIOService minIOService = new MinIOService(fileProperties, ossConfigDTO, multipartUploader, namespaceIndex, imageDerivativeService);
+        try {
+            long start = System.currentTimeMillis();
+            OssTransferService.TransferResult result = ossTransferService.copy(minIOService, bucketName, SOURCE, minIOService, bucketName, DESTINATION);
+            Console.log("复制 {} 个对象, 耗时: {}ms", result.copied().size(), System.currentTimeMillis() - start);
+            assertTrue(result.failed().isEmpty());
+            assertEquals(count + 1, result.copied().size());
+            assertEquals(count + 1, listObjects(minioClient, DESTINATION).size());
+            StatObjectResponse stat = minioClient.statObject(StatObjectArgs.builder().bucket(bucketName).object(DESTINATION + "large.bin").build());
+            assertEquals(large.length, stat.size());
+        } finally {
+            minIOService.close();
+            removePrefix(minioClient, "transfer-test/");
+        }
+    }
+
+    private static List<String> listObjects(MinioClient minioClient, String prefix) throws Exception {
+        List<String> keys = new ArrayList<>();
+        for (Result<Item> result : minioClient.listObjects(ListObjectsArgs.builder().bucket(bucketName).prefix(prefix).recursive(true).build())) {
+            keys.add(result.get().objectName());
+        }
+        return keys;
+    }
+
+    private static void removePrefix(MinioClient minioClient, String prefix) throws Exception {
+        List<DeleteObject> objects = listObjects(minioClient, prefix).stream().map(DeleteObject::new).toList();
+        if (objects.isEmpty()) {
+            return;
+        }
+        for (Result<?> result : minioClient.removeObjects(RemoveObjectsArgs.builder().bucket(bucketName).objects(objects).build())) {
+            result.get();
+        }
+    }
+}
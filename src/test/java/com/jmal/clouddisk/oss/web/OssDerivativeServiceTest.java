@@ -0,0 +1,206 @@
+package com.jmal.clouddisk.oss.web;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import javax.imageio.ImageIO;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * @author jmal
+ * @Description 读取 jpeg 文件头中 exif IFD1 内嵌的缩略图, 包括截断和损坏的文件头
+ * @date 2026/10/19 21:10
+ */
+class OssDerivativeServiceTest {
+
+    private static byte[] thumbnail;
+
+    private static byte[] image;
+
+    @BeforeAll
+    static void init() throws IOException {
+        thumbnail = toJpeg(newImage(160, 120, Color.RED));
+        image = toJpeg(newImage(1600, 1200, Color.BLUE));
+    }
+
+    @Test
+    void ifd1Thumbnail() throws IOException {
+        for (ByteOrder byteOrder : new ByteOrder[]{ByteOrder.LITTLE_ENDIAN, ByteOrder.BIG_ENDIAN}) {
+            byte[] jpeg = withExif(tiff(byteOrder, null, thumbnail.length, false));
+            // 拼接后仍是可以解码的 jpeg
+            BufferedImage bufferedImage = ImageIO.read(new ByteArrayInputStream(jpeg));
+            assertEquals(1600, bufferedImage.getWidth());
+
+            byte[] result = OssDerivativeService.getExifThumbnail(head(jpeg));
+            assertArrayEquals(thumbnail, result, byteOrder.toString());
+            assertEquals(160, ImageIO.read(new ByteArrayInputStream(result)).getWidth());
+        }
+        // 长度的类型为 SHORT
+        byte[] jpeg = withExif(tiff(ByteOrder.BIG_ENDIAN, null, thumbnail.length, true));
+        assertArrayEquals(thumbnail, OssDerivativeService.getExifThumbnail(head(jpeg)));
+    }
+
+    @Test
+    void noThumbnail() throws IOException {
+        assertNull(OssDerivativeService.getExifThumbnail(head(image)));
+        assertNull(OssDerivativeService.getExifThumbnail(new byte[0]));
+        assertNull(OssDerivativeService.getExifThumbnail(new byte[]{(byte) 0xFF, (byte) 0xD8}));
+        assertNull(OssDerivativeService.getExifThumbnail("not a jpeg file".getBytes()));
+    }
+
+    @Test
+    void truncated() {
+        byte[] jpeg = withExif(tiff(ByteOrder.LITTLE_ENDIAN, null, thumbnail.length, false));
+        // 在每个位置截断, 缩略图不完整时返回null
+        int thumbnailEnd = indexOf(jpeg, thumbnail) + thumbnail.length;
+        for (int length = 0; length < thumbnailEnd; length++) {
+            assertNull(OssDerivativeService.getExifThumbnail(Arrays.copyOf(jpeg, length)), "length: " + length);
+        }
+        assertArrayEquals(thumbnail, OssDerivativeService.getExifThumbnail(Arrays.copyOf(jpeg, thumbnailEnd)));
+    }
+
+    @Test
+    void corrupt() {
+        ByteOrder byteOrder = ByteOrder.LITTLE_ENDIAN;
+        // IFD1 偏移超出范围, 包括按 int 读取为负数的
+        assertNull(OssDerivativeService.getExifThumbnail(withExif(tiff(byteOrder, 0xFFFFFFF0, thumbnail.length, false))));
+        assertNull(OssDerivativeService.getExifThumbnail(withExif(tiff(byteOrder, 0x80000000, thumbnail.length, false))));
+        // 缩略图长度超出范围, 0, 或 start + length 溢出
+        assertNull(OssDerivativeService.getExifThumbnail(withExif(tiff(byteOrder, null, thumbnail.length + 1, false))));
+        assertNull(OssDerivativeService.getExifThumbnail(withExif(tiff(byteOrder, null, 0, false))));
+        assertNull(OssDerivativeService.getExifThumbnail(withExif(tiff(byteOrder, null, 0xFFFFFFFF, false))));
+        assertNull(OssDerivativeService.getExifThumbnail(withExif(tiff(byteOrder, null, 0x7FFFFFFF, false))));
+
+        byte[] tiff = tiff(byteOrder, null, thumbnail.length, false);
+        // 缩略图偏移超出范围
+        byte[] badOffset = tiff.clone();
+        ByteBuffer.wrap(badOffset).order(byteOrder).putInt(thumbnailOffsetPosition(), 0x7FFFFFF0);
+        assertNull(OssDerivativeService.getExifThumbnail(withExif(badOffset)));
+        ByteBuffer.wrap(badOffset).order(byteOrder).putInt(thumbnailOffsetPosition(), 0xFFFFFFF0);
+        assertNull(OssDerivativeService.getExifThumbnail(withExif(badOffset)));
+        // IFD0 的条目数超出范围
+        byte[] badCount = tiff.clone();
+        ByteBuffer.wrap(badCount).order(byteOrder).putShort(8, (short) 0xFFFF);
+        assertNull(OssDerivativeService.getExifThumbnail(withExif(badCount)));
+        // 字节序标记错误
+        byte[] badByteOrder = tiff.clone();
+        badByteOrder[0] = 'X';
+        assertNull(OssDerivativeService.getExifThumbnail(withExif(badByteOrder)));
+        // 段长度小于 2
+        byte[] jpeg = withExif(tiff);
+        jpeg[4] = 0;
+        jpeg[5] = 1;
+        assertNull(OssDerivativeService.getExifThumbnail(jpeg));
+    }
+
+    @Test
+    void randomCorruption() {
+        byte[] jpeg = head(withExif(tiff(ByteOrder.BIG_ENDIAN, null, thumbnail.length, false)));
+        int exifEnd = indexOf(jpeg, thumbnail);
+        Random random = new Random(47);
+        for (int i = 0; i < 20000; i++) {
+            byte[] corrupt = jpeg.clone();
+            for (int j = 0; j < 1 + random.nextInt(4); j++) {
+                corrupt[random.nextInt(exifEnd)] = (byte) random.nextInt(256);
+            }
+            byte[] result = OssDerivativeService.getExifThumbnail(corrupt);
+            if (result != null) {
+                assertTrue(result.length >= 2 && (result[0] & 0xFF) == 0xFF && (result[1] & 0xFF) == 0xD8);
+            }
+        }
+    }
+
+    /**
+     * TIFF 头, IFD0 一个条目(Orientation), IFD1 为缩略图的偏移和长度, 之后是缩略图
+     *
+     * @param ifd1Offset IFD1 的偏移, 为null时指向正确的位置
+     */
+    private static byte[] tiff(ByteOrder byteOrder, Integer ifd1Offset, int thumbnailLength, boolean shortLength) {
+        int ifd0 = 8;
+        int ifd1 = ifd0 + 2 + 12 + 4;
+        int thumbnailOffset = ifd1 + 2 + 12 * 2 + 4;
+        ByteBuffer buffer = ByteBuffer.allocate(thumbnailOffset + thumbnail.length).order(byteOrder);
+        buffer.put(byteOrder == ByteOrder.LITTLE_ENDIAN ? new byte[]{'I', 'I'} : new byte[]{'M', 'M'});
+        buffer.putShort((short) 42);
+        buffer.putInt(ifd0);
+        // IFD0
+        buffer.putShort((short) 1);
+        buffer.putShort((short) 0x0112).putShort((short) 3).putInt(1).putShort((short) 1).putShort((short) 0);
+        buffer.putInt(ifd1Offset == null ? ifd1 : ifd1Offset);
+        // IFD1
+        buffer.putShort((short) 2);
+        buffer.putShort((short) 0x0201).putShort((short) 4).putInt(1).putInt(thumbnailOffset);
+        if (shortLength) {
+            buffer.putShort((short) 0x0202).putShort((short) 3).putInt(1).putShort((short) thumbnailLength).putShort((short) 0);
+        } else {
+            buffer.putShort((short) 0x0202).putShort((short) 4).putInt(1).putInt(thumbnailLength);
+        }
+        buffer.putInt(0);
+        buffer.put(thumbnail);
+        return buffer.array();
+    }
+
+    /**
+     * tiff() 中缩略图偏移的值所在位置
+     */
+    private static int thumbnailOffsetPosition() {
+        return 8 + 2 + 12 + 4 + 2 + 8;
+    }
+
+    /**
+     * 在 SOI 之后插入 APP1(exif) 段
+     */
+    private static byte[] withExif(byte[] tiff) {
+        byte[] exifHeader = "Exif\0\0".getBytes();
+        int length = 2 + exifHeader.length + tiff.length;
+        ByteBuffer buffer = ByteBuffer.allocate(image.length + 2 + length);
+        buffer.put(image, 0, 2);
+        buffer.put((byte) 0xFF).put((byte) 0xE1).putShort((short) length);
+        buffer.put(exifHeader).put(tiff);
+        buffer.put(image, 2, image.length - 2);
+        return buffer.array();
+    }
+
+    /**
+     * 和 OssDerivativeService 一样只读取文件头
+     */
+    private static byte[] head(byte[] jpeg) {
+        return Arrays.copyOf(jpeg, Math.min(jpeg.length, 64 * 1024));
+    }
+
+    private static int indexOf(byte[] data, byte[] target) {
+        for (int i = 0; i <= data.length - target.length; i++) {
+            if (Arrays.equals(data, i, i + target.length, target, 0, target.length)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static BufferedImage newImage(int width, int height, Color color) {
+        BufferedImage bufferedImage = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Graphics2D graphics = bufferedImage.createGraphics();
+        graphics.setColor(color);
+        graphics.fillRect(0, 0, width, height);
+        graphics.setColor(Color.WHITE);
+        graphics.drawLine(0, 0, width, height);
+        graphics.dispose();
+        return bufferedImage;
+    }
+
+    private static byte[] toJpeg(BufferedImage bufferedImage) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageIO.write(bufferedImage, "jpg", out);
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,219 @@
+package com.jmal.clouddisk.util;
+
+import cn.hutool.core.io.FileUtil;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * @author jmal
+ * @Description ZipPackageWriter 写出的压缩包用 java.util.zip 读回校验
+ * @date 2026/10/19 20:30
+ */
+class ZipPackageWriterTest {
+
+    private static final long MODIFIED = 1_700_000_000_000L;
+
+    private static ExecutorService executorService;
+
+    private static Path tempDir;
+
+    @BeforeAll
+    static void init() throws IOException {
+        executorService = Executors.newFixedThreadPool(4);
+        tempDir = Files.createTempDirectory("zipPackageWriterTest");
+    }
+
+    @AfterAll
+    static void destroy() {
+        executorService.shutdownNow();
+        FileUtil.del(tempDir.toFile());
+    }
+
+    @Test
+    void moreThan65535Entries() throws IOException {
+        // 目录条目不读取文件, 用来凑出超过 65535 个条目
+        int dirCount = 70000;
+        byte[] data = randomBytes(100_000, 1);
+        Path file = writeFile("many/a.jpg", data);
+        List<ZipPackageWriter.Entry> entries = new ArrayList<>();
+        for (int i = 0; i < dirCount; i++) {
+            entries.add(new ZipPackageWriter.Entry("dir-" + i, tempDir, true, true, 0, MODIFIED, null));
+        }
+        entries.add(new ZipPackageWriter.Entry("dir-0/a.jpg", file, false, true, data.length, MODIFIED, null));
+        ZipPackageWriter writer = newWriter(entries);
+        assertTrue(writer.isLengthKnown());
+        byte[] zip = write(writer);
+        assertEquals(writer.computeLength(), zip.length);
+
+        Path zipPath = tempDir.resolve("many.zip");
+        Files.write(zipPath, zip);
+        try (ZipFile zipFile = new ZipFile(zipPath.toFile())) {
+            assertEquals(dirCount + 1, zipFile.size());
+            assertTrue(zipFile.getEntry("dir-69999/").isDirectory());
+            ZipEntry zipEntry = zipFile.getEntry("dir-0/a.jpg");
+            assertEquals(ZipEntry.STORED, zipEntry.getMethod());
+            try (InputStream inputStream = zipFile.getInputStream(zipEntry)) {
+                assertArrayEquals(data, inputStream.readAllBytes());
+            }
+        }
+    }
+
+    @Test
+    void storedAndDeflated() throws IOException {
+        byte[] text = "hello jmal\n".repeat(1000).getBytes(StandardCharsets.UTF_8);
+        // 超过 IN_MEMORY_DEFLATE_LIMIT 的条目边读边压缩, 使用数据描述符
+        byte[] large = "0123456789abcdef".repeat((int) (ZipPackageWriter.IN_MEMORY_DEFLATE_LIMIT / 16) + 1024).getBytes(StandardCharsets.UTF_8);
+        byte[] media = randomBytes(200_000, 2);
+        List<ZipPackageWriter.Entry> entries = List.of(
+                new ZipPackageWriter.Entry("mixed", tempDir, true, true, 0, MODIFIED, null),
+                new ZipPackageWriter.Entry("mixed/a.txt", writeFile("mixed/a.txt", text), false, false, text.length, MODIFIED, null),
+                new ZipPackageWriter.Entry("mixed/b.log", writeFile("mixed/b.log", large), false, false, large.length, MODIFIED, null),
+                new ZipPackageWriter.Entry("mixed/c.mp4", writeFile("mixed/c.mp4", media), false, true, media.length, MODIFIED, null));
+        ZipPackageWriter writer = newWriter(entries);
+        assertFalse(writer.isLengthKnown());
+        byte[] zip = write(writer);
+
+        Path zipPath = tempDir.resolve("mixed.zip");
+        Files.write(zipPath, zip);
+        try (ZipFile zipFile = new ZipFile(zipPath.toFile())) {
+            assertEquals(4, zipFile.size());
+            assertEntry(zipFile, "mixed/a.txt", ZipEntry.DEFLATED, text);
+            assertEntry(zipFile, "mixed/b.log", ZipEntry.DEFLATED, large);
+            assertEntry(zipFile, "mixed/c.mp4", ZipEntry.STORED, media);
+        }
+    }
+
+    @Test
+    void rangeResume() throws IOException {
+        List<byte[]> contents = List.of(new byte[0], randomBytes(1, 3), randomBytes(70_000, 4), randomBytes(300_000, 5), randomBytes(1000, 6));
+        List<Path> files = new ArrayList<>();
+        for (int i = 0; i < contents.size(); i++) {
+            files.add(writeFile("range/" + i + ".jpg", contents.get(i)));
+        }
+        byte[] full = write(newWriter(rangeEntries(files, contents)));
+        long total = newWriter(rangeEntries(files, contents)).computeLength();
+        assertEquals(total, full.length);
+
+        long[][] ranges = {
+                {0, 1},
+                {0, 100},
+                {30, 200},
+                // 第 3 个文件的数据中间
+                {1000, 5000},
+                // 跨多个条目
+                {500, 200_000},
+                // 中央目录内
+                {full.length - 300, full.length - 10},
+                {full.length - 1, full.length},
+                {0, full.length}
+        };
+        for (long[] range : ranges) {
+            byte[] part = write(newWriter(rangeEntries(files, contents)), range[0], range[1]);
+            assertArrayEquals(Arrays.copyOfRange(full, (int) range[0], (int) range[1]), part, "range: " + range[0] + "-" + range[1]);
+        }
+
+        // 只在第 3 个文件数据中间的 Range 不需要读取任何文件计算CRC
+        List<ZipPackageWriter.Entry> dataOnly = rangeEntries(files, contents);
+        write(newWriter(dataOnly), 1000, 5000);
+        dataOnly.stream().filter(entry -> entry.getSize() > 0).forEach(entry -> assertNull(entry.getCrc(), entry.getName()));
+
+        // 中断后从任意位置续传, 拼接的结果是完整可用的压缩包
+        int resumeAt = 123_456;
+        ByteArrayOutputStream resumed = new ByteArrayOutputStream();
+        resumed.write(full, 0, resumeAt);
+        resumed.write(write(newWriter(rangeEntries(files, contents)), resumeAt, full.length));
+        assertArrayEquals(full, resumed.toByteArray());
+        Path zipPath = tempDir.resolve("range.zip");
+        Files.write(zipPath, resumed.toByteArray());
+        try (ZipFile zipFile = new ZipFile(zipPath.toFile())) {
+            assertEquals(contents.size() + 1, zipFile.size());
+            for (int i = 0; i < contents.size(); i++) {
+                assertEntry(zipFile, "range/" + i + ".jpg", ZipEntry.STORED, contents.get(i));
+            }
+        }
+        // ZipInputStream 按本地文件头顺序读取, 并校验每个存储条目的CRC
+        try (ZipInputStream zipInputStream = new ZipInputStream(new ByteArrayInputStream(resumed.toByteArray()))) {
+            int count = 0;
+            while (zipInputStream.getNextEntry() != null) {
+                zipInputStream.readAllBytes();
+                count++;
+            }
+            assertEquals(contents.size() + 1, count);
+        }
+    }
+
+    /**
+     * 每次请求都重新生成条目, 和 PackageDownloadService 一样CRC由写入器按需计算
+     */
+    private static List<ZipPackageWriter.Entry> rangeEntries(List<Path> files, List<byte[]> contents) {
+        List<ZipPackageWriter.Entry> entries = new ArrayList<>();
+        entries.add(new ZipPackageWriter.Entry("range", tempDir, true, true, 0, MODIFIED, null));
+        for (int i = 0; i < files.size(); i++) {
+            entries.add(new ZipPackageWriter.Entry("range/" + i + ".jpg", files.get(i), false, true, contents.get(i).length, MODIFIED, null));
+        }
+        return entries;
+    }
+
+    private static void assertEntry(ZipFile zipFile, String name, int method, byte[] expected) throws IOException {
+        ZipEntry zipEntry = zipFile.getEntry(name);
+        assertNotNull(zipEntry, name);
+        assertEquals(method, zipEntry.getMethod(), name);
+        assertEquals(expected.length, zipEntry.getSize(), name);
+        CRC32 crc32 = new CRC32();
+        crc32.update(expected);
+        assertEquals(crc32.getValue(), zipEntry.getCrc(), name);
+        try (InputStream inputStream = zipFile.getInputStream(zipEntry)) {
+            assertArrayEquals(expected, inputStream.readAllBytes(), name);
+        }
+    }
+
+    private static ZipPackageWriter newWriter(List<ZipPackageWriter.Entry> entries) {
+        return new ZipPackageWriter(entries, executorService, 32 * 1024 * 1024L, 16);
+    }
+
+    private static byte[] write(ZipPackageWriter writer) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writer.write(out);
+        return out.toByteArray();
+    }
+
+    private static byte[] write(ZipPackageWriter writer, long start, long end) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writer.write(out, start, end);
+        return out.toByteArray();
+    }
+
+    private static Path writeFile(String name, byte[] data) throws IOException {
+        Path file = tempDir.resolve(name);
+        Files.createDirectories(file.getParent());
+        Files.write(file, data);
+        return file;
+    }
+
+    private static byte[] randomBytes(int length, long seed) {
+        byte[] bytes = new byte[length];
+        new Random(seed).nextBytes(bytes);
+        return bytes;
+    }
+}